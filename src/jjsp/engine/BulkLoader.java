@@ -0,0 +1,292 @@
+/*
+JJSP - Java and Javascript Server Pages 
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify 
+it under the terms of the GNU General Public License as published by 
+the Free Software Foundation, either version 3 of the License, or 
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but 
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+for more details.
+
+You should have received a copy of the GNU General Public License along with 
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.engine;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.zip.*;
+import java.util.concurrent.*;
+
+import jjsp.util.*;
+
+/**
+   Loads many files into an Environment's local store at once. Directory trees are walked with one fork join task per
+   directory; the files found (or the entries of a zip archive) are then read, hashed and, if asked, compressed by
+   splitting the list between the threads of the common fork join pool. The finished entries are put into the store
+   in one step at the end, so no other thread sees a partly loaded tree, and the time spent in each phase is reported.
+ */
+public class BulkLoader
+{
+    private static final int SPLIT_SIZE = 16;
+
+    private final Environment env;
+    private final boolean precompress;
+    private final ConcurrentLinkedQueue failures;
+
+    private long walkTime, readTime, insertTime, bytesRead;
+
+    public BulkLoader(Environment env, boolean precompress)
+    {
+        this.env = env;
+        this.precompress = precompress;
+        failures = new ConcurrentLinkedQueue();
+    }
+
+    static class WalkTask extends RecursiveTask
+    {
+        final File dir;
+        final int level;
+        final String startsWith, endsWith;
+
+        WalkTask(File dir, int level, String startsWith, String endsWith)
+        {
+            this.dir = dir;
+            this.level = level;
+            this.startsWith = startsWith;
+            this.endsWith = endsWith;
+        }
+
+        protected Object compute()
+        {
+            ArrayList result = new ArrayList();
+            if (level < 0)
+                return result;
+            File[] ff = dir.listFiles();
+            if (ff == null)
+                return result;
+            Arrays.sort(ff);
+
+            ArrayList subTasks = new ArrayList();
+            for (int i=0; i<ff.length; i++)
+            {
+                if (ff[i].isDirectory())
+                {
+                    WalkTask sub = new WalkTask(ff[i], level-1, startsWith, endsWith);
+                    sub.fork();
+                    subTasks.add(sub);
+                }
+                else
+                {
+                    String absPath = ff[i].getAbsolutePath().replace("\\", "/");
+                    if (absPath.startsWith(startsWith) && absPath.endsWith(endsWith))
+                        result.add(ff[i]);
+                }
+            }
+
+            for (int i=0; i<subTasks.size(); i++)
+                result.addAll((List) ((WalkTask) subTasks.get(i)).join());
+            return result;
+        }
+    }
+
+    /** Something to read into the store: either a file or an entry of a zip file */
+    static class Source
+    {
+        final String localPath;
+        final URI sourceURI;
+        final File file;
+        final ZipFile zip;
+        final ZipEntry zipEntry;
+        String stamp;
+
+        Source(String localPath, File file)
+        {
+            this.localPath = localPath;
+            this.file = file;
+            sourceURI = file.toURI();
+            zip = null;
+            zipEntry = null;
+        }
+
+        Source(String localPath, ZipFile zip, ZipEntry zipEntry)
+        {
+            this.localPath = localPath;
+            sourceURI = null;
+            file = null;
+            this.zip = zip;
+            this.zipEntry = zipEntry;
+        }
+
+        byte[] read() throws IOException
+        {
+            if (file != null)
+            {
+                // Taken before reading, so a change made during the read still differs from it
+                stamp = Utils.fileHash(file);
+                return Utils.load(file);
+            }
+            return Utils.load(zip.getInputStream(zipEntry));
+        }
+    }
+
+    class ReadTask extends RecursiveAction
+    {
+        final Source[] sources;
+        final Environment.LocalEntry[] results;
+        final int start, end;
+
+        ReadTask(Source[] sources, Environment.LocalEntry[] results, int start, int end)
+        {
+            this.sources = sources;
+            this.results = results;
+            this.start = start;
+            this.end = end;
+        }
+
+        protected void compute()
+        {
+            if (end - start > SPLIT_SIZE)
+            {
+                int mid = (start + end) >>> 1;
+                invokeAll(new ReadTask(sources, results, start, mid), new ReadTask(sources, results, mid, end));
+                return;
+            }
+
+            for (int i=start; i<end; i++)
+            {
+                try
+                {
+                    String path = Environment.checkLocalResourcePath(sources[i].localPath);
+                    byte[] data = sources[i].read();
+                    Environment.LocalEntry entry = env.new LocalEntry(path, sources[i].sourceURI, data);
+                    entry.getETag();
+                    if (precompress)
+                        entry.compress();
+                    results[i] = entry;
+                }
+                catch (Exception e)
+                {
+                    failures.add("   Failed to load '"+sources[i].localPath+"': "+e+"\n");
+                }
+            }
+        }
+    }
+
+    private Environment.LocalEntry[] readAll(Source[] sources)
+    {
+        Environment.LocalEntry[] results = new Environment.LocalEntry[sources.length];
+        long t0 = System.currentTimeMillis();
+        ForkJoinPool.commonPool().invoke(new ReadTask(sources, results, 0, sources.length));
+        readTime = System.currentTimeMillis() - t0;
+
+        for (int i=0; i<results.length; i++)
+            if (results[i] != null)
+                bytesRead += results[i].getAsset().length();
+        return results;
+    }
+
+    private int insertAll(Environment.LocalEntry[] entries)
+    {
+        long t0 = System.currentTimeMillis();
+        int count = env.putLocalEntries(entries);
+        insertTime = System.currentTimeMillis() - t0;
+        return count;
+    }
+
+    /** Lists the files under srcDir (down to maxLevels of subdirectories) whose absolute paths start and end as given */
+    public static List listFiles(File srcDir, int maxLevels, String startsWith, String endsWith)
+    {
+        return (List) ForkJoinPool.commonPool().invoke(new WalkTask(srcDir, maxLevels, startsWith, endsWith));
+    }
+
+    /** Loads the files under srcDir (down to maxLevels of subdirectories) whose absolute paths start and end as given, under destPath */
+    public String loadDirectory(File srcDir, int maxLevels, String startsWith, String endsWith, String destPath)
+    {
+        long t0 = System.currentTimeMillis();
+        List files = listFiles(srcDir, maxLevels, startsWith, endsWith);
+        walkTime = System.currentTimeMillis() - t0;
+        if (env.isRecordingDependencies())
+            env.recordDependency(new String[]{StoreSnapshot.DIRECTORY, srcDir.getAbsolutePath(), String.valueOf(maxLevels), startsWith, endsWith, StoreSnapshot.listingHash(files)});
+
+        StringBuffer report = new StringBuffer();
+        Source[] sources = new Source[files.size()];
+        for (int i=0; i<sources.length; i++)
+        {
+            File f = (File) files.get(i);
+            String outputPath = destPath+f.getAbsolutePath().replace("\\", "/").substring(startsWith.length());
+            sources[i] = new Source(outputPath, f);
+            report.append("   "+f+" == "+outputPath+"\n");
+        }
+
+        Environment.LocalEntry[] entries = readAll(sources);
+        if (env.isRecordingDependencies())
+        {
+            for (int i=0; i<sources.length; i++)
+                if (entries[i] != null)
+                    env.recordDependency(new String[]{StoreSnapshot.FILE, sources[i].sourceURI.toString(), sources[i].stamp});
+        }
+
+        int count = insertAll(entries);
+        report.append(getFailures());
+        report.append(getTimings(count));
+        return report.toString();
+    }
+
+    /** Loads every file entry of the zip file, under localPathPrefix */
+    public String loadZip(File zipFile, String localPathPrefix, String description) throws IOException
+    {
+        StringBuffer report = new StringBuffer();
+        ZipFile zip = new ZipFile(zipFile);
+        try
+        {
+            long t0 = System.currentTimeMillis();
+            ArrayList list = new ArrayList();
+            Enumeration en = zip.entries();
+            while (en.hasMoreElements())
+            {
+                ZipEntry zen = (ZipEntry) en.nextElement();
+                if (!zen.isDirectory())
+                    list.add(new Source(localPathPrefix+zen.getName(), zip, zen));
+            }
+            walkTime = System.currentTimeMillis() - t0;
+
+            Source[] sources = new Source[list.size()];
+            list.toArray(sources);
+            Environment.LocalEntry[] entries = readAll(sources);
+            for (int i=0; i<entries.length; i++)
+                if (entries[i] != null)
+                    report.append("Local resource '"+entries[i].path+"' loaded from "+description+" with "+entries[i].getAsset().length()+" bytes\n");
+
+            int count = insertAll(entries);
+            report.append(getFailures());
+            report.append(getTimings(count));
+        }
+        finally
+        {
+            zip.close();
+        }
+        return report.toString();
+    }
+
+    /** Lists the files or zip entries which could not be read or stored, one per line */
+    public String getFailures()
+    {
+        StringBuffer buf = new StringBuffer();
+        Iterator itt = failures.iterator();
+        while (itt.hasNext())
+            buf.append(itt.next());
+        return buf.toString();
+    }
+
+    public String getTimings(int count)
+    {
+        String failed = failures.isEmpty() ? "" : ", "+failures.size()+" failed";
+        return "Bulk loaded "+count+" entries ("+bytesRead+" bytes"+failed+"):  listing "+walkTime+" ms, reading and hashing"+(precompress ? " and compressing " : " ")+readTime+" ms, inserting "+insertTime+" ms\n";
+    }
+}
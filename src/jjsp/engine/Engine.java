@@ -43,6 +43,12 @@ public class Engine implements Runnable
     private HTTPServer server;
     private JJSPRuntime jjspRuntime;
     private boolean started, stop;
+    private String sourceStamp;
+    private ReloadWatcher reloadWatcher;
+    private WarmUp.Recorder warmUpRecorder;
+
+    public static final long RETIRE_WARNING_TIME = 10000;
+    public static final String WARM_UP_FILE = "warmup/requests.txt";
 
     public Engine(String jsSrc, URI sourceURI, URI rootURI, File localCacheDir, Map args)
     {
@@ -53,6 +59,7 @@ public class Engine implements Runnable
         this.args = args;
         
         started = stop = false;
+        sourceStamp = getCurrentSourceStamp();
     }
 
     public synchronized void start()
@@ -91,6 +98,10 @@ public class Engine implements Runnable
         }
         catch (Throwable e){}
 
+        WarmUp.Recorder recorder = getWarmUpRecorder();
+        if (recorder != null)
+            recorder.save();
+
         try
         {
             JJSPRuntime jr = getRuntime();
@@ -171,7 +182,7 @@ public class Engine implements Runnable
 
     protected void compile(JJSPRuntime runtime, String jsSrc) throws Exception
     {
-        getRuntime().init(jsSrc);
+        runtime.init(jsSrc);
     }
 
     protected Logger getLogger()
@@ -193,10 +204,72 @@ public class Engine implements Runnable
         if (mainFilter == null)
             return null;
 
-        server = new HTTPServer(mainFilter, getHTTPLog(jjspRuntime));
+        HTTPServerLogger httpLog = getHTTPLog(jjspRuntime);
+        if (jjspRuntime.hasArg("warmUp"))
+        {
+            // Record what is served, as the warm-up set for the next start
+            warmUpRecorder = new WarmUp.Recorder(new File(localCacheDir, WARM_UP_FILE));
+            httpLog = new HTTPLoggerChain(httpLog, warmUpRecorder);
+        }
+
+        server = new HTTPServer(new RuntimeFilter(mainFilter), httpLog);
         return server;
     }
 
+    public synchronized WarmUp.Recorder getWarmUpRecorder()
+    {
+        return warmUpRecorder;
+    }
+
+    /**
+        With the arg 'warmUp' set, replays requests through the server's filters before it listens (see WarmUp), for at most
+        'warmUpMillis' (default 30000) and at most 'warmUpMaxReplays' (default 1000) replays of each request. The requests are
+        read from the resource named by the arg 'warmUpRequests' or, if that is not given, from those recorded while the server
+        last ran. The arg 'warmUpPrefixes', a comma separated list of path prefixes, limits the replay to the paths under them;
+        set it to the static and local store paths when other paths reach proxies, scripts or databases.
+    */
+    protected void warmUp(HTTPServer server, JJSPRuntime runtime) throws Exception
+    {
+        if (!runtime.hasArg("warmUp"))
+            return;
+
+        String requestText = null;
+        String requestPath = runtime.getArg("warmUpRequests");
+        File recorded = new File(localCacheDir, WARM_UP_FILE);
+        try
+        {
+            if (requestPath != null)
+                requestText = runtime.loadFromResourcePath(requestPath).asString();
+            else if (recorded.isFile())
+                requestText = Utils.loadText(recorded.toURI());
+        }
+        catch (Exception e)
+        {
+            // A missing request list should not stop the server starting, only its warm-up
+            log(Level.WARNING, "Warm-up skipped: failed to read requests from "+((requestPath != null) ? requestPath : recorded.toString())+": "+e);
+            return;
+        }
+
+        if (requestText == null)
+        {
+            log(Level.INFO, "Warm-up skipped: no 'warmUpRequests' given and none recorded in "+recorded+" yet");
+            return;
+        }
+
+        long maxTime = WarmUp.DEFAULT_MAX_TIME;
+        int maxReplays = WarmUp.DEFAULT_MAX_REPLAYS;
+        try
+        {
+            maxTime = Long.parseLong(runtime.getArg("warmUpMillis", String.valueOf(maxTime)));
+            maxReplays = Integer.parseInt(runtime.getArg("warmUpMaxReplays", String.valueOf(maxReplays)));
+        }
+        catch (Exception e) {}
+
+        WarmUp warmUp = new WarmUp(server, WarmUp.parseRequestLines(requestText), WarmUp.parsePathPrefixes(runtime.getArg("warmUpPrefixes")));
+        warmUp.setMaxReplays(maxReplays);
+        log(Level.INFO, warmUp.run(maxTime));
+    }
+
     protected ServerSocketInfo getDefaultServerSocket(JJSPRuntime runtime) throws Exception 
     {
         int port = Utils.getFreeSocket(null, JJSPRuntime.DEFAULT_PORT_BASE, JJSPRuntime.DEFAULT_PORT_BASE+128); 
@@ -252,6 +325,8 @@ public class Engine implements Runnable
                 return;
             }
 
+            warmUp(server, jr);
+
             ServerSocketInfo[] ssInfo = jr.getServerSockets();
             if ((ssInfo == null) || (ssInfo.length == 0))
                 ssInfo = new ServerSocketInfo[]{getDefaultServerSocket(jr)};
@@ -289,6 +364,8 @@ public class Engine implements Runnable
             launchComplete(server, jjspRuntime, isListening);
             if (!isListening)
                 stop();
+            else if (hotReloadEnabled(jr))
+                startReloadWatcher(jr);
             launchOK = true;
         }
         catch (Throwable t)
@@ -302,6 +379,244 @@ public class Engine implements Runnable
         }
     }
 
+    private String getCurrentSourceStamp()
+    {
+        try
+        {
+            if ((sourceURI != null) && "file".equals(sourceURI.getScheme()))
+                return Utils.fileHash(new File(sourceURI));
+        }
+        catch (Exception e) {}
+        return "";
+    }
+
+    /** The size and modification time of the main source file when it was last read (see Utils.fileHash) */
+    public synchronized String getSourceStamp()
+    {
+        return sourceStamp;
+    }
+
+    /** Whether to watch the sources and reload when they change; by default when the arg 'hotReload' is set */
+    protected boolean hotReloadEnabled(JJSPRuntime runtime)
+    {
+        return runtime.hasArg("hotReload");
+    }
+
+    private void startReloadWatcher(JJSPRuntime jr)
+    {
+        long interval = ReloadWatcher.DEFAULT_INTERVAL;
+        try
+        {
+            interval = Long.parseLong(jr.getArg("hotReloadMillis", String.valueOf(interval)));
+        }
+        catch (Exception e) {}
+
+        ReloadWatcher watcher = new ReloadWatcher(this, interval);
+        synchronized (this)
+        {
+            reloadWatcher = watcher;
+        }
+        watcher.start();
+        jr.log("Hot reload enabled: "+watcher);
+    }
+
+    public synchronized ReloadWatcher getReloadWatcher()
+    {
+        return reloadWatcher;
+    }
+
+    /** Reloads from the main source file, translating it if it is JJSP; if it cannot be read the source given at construction is used again */
+    public boolean reload()
+    {
+        String src = jsSrc;
+        String stamp = getCurrentSourceStamp();
+        try
+        {
+            String text = Utils.loadText(sourceURI);
+            String path = sourceURI.getPath().toLowerCase();
+            if (path.endsWith(".jet") || path.endsWith(".jjsp"))
+                text = new ScriptCache(localCacheDir).translate(text);
+            src = text;
+        }
+        catch (Exception e) {}
+
+        synchronized (this)
+        {
+            sourceStamp = stamp;
+        }
+        return reload(src);
+    }
+
+    /**
+        Initialises a new runtime from jsSrc and, if that succeeds and sets a main filter, swaps the filter into the running
+        server, so the listening sockets and open connections are kept and requests in progress finish on the old filters.
+        The old runtime is stopped (closing whatever it registered with closeOnExit) once its last request has finished. If the 
+        new runtime fails, the error is reported through runtimeError, the old runtime carries on serving and false is returned.
+        Server sockets and the HTTP logger are those of the first runtime and are not changed by a reload.
+        <p>
+        The whole script runs again in the new runtime while the old one is still serving, so anything it starts (threads,
+        connection pools, balancers with health checks) exists twice until the old runtime is stopped. Scripts can hand such
+        objects on with JJSPRuntime.retain and take them back with getRetained instead of creating them again.
+    */
+    public boolean reload(String jsSrc)
+    {
+        HTTPServer srv = null;
+        JJSPRuntime old = null;
+        synchronized (this)
+        {
+            if (stop || (server == null))
+                return false;
+            srv = server;
+            old = jjspRuntime;
+        }
+
+        JJSPRuntime jr = null;
+        RuntimeFilter oldFilter = null;
+        try
+        {
+            long t0 = System.currentTimeMillis();
+            jr = new JJSPRuntime(rootURI, localCacheDir, args);
+            jr.addResourcePathRoot(sourceURI);
+            jr.setLogger(getLogger());
+            jr.inheritRetained(old.getRetainedObjects());
+            compile(jr, jsSrc);
+
+            HTTPRequestFilter mainFilter = jr.getMainRequestFilter();
+            if (mainFilter == null)
+                throw new IllegalStateException("Reloaded source did not set a main request filter");
+
+            synchronized (this)
+            {
+                if (stop)
+                    throw new IllegalStateException("Engine stopped during reload");
+                jjspRuntime = jr;
+                oldFilter = (RuntimeFilter) srv.setMainFilter(new RuntimeFilter(mainFilter));
+            }
+            jr.adoptCloseOnExit(old.releaseFromCloseOnExit(jr.getRetainedObjects().values()));
+            jr.println("Engine Reloaded in "+(System.currentTimeMillis()-t0)+" ms "+new Date());
+        }
+        catch (Throwable t)
+        {
+            runtimeError(t);
+            try
+            {
+                if (jr != null)
+                {
+                    // Objects taken from the old runtime are still in use by it
+                    jr.releaseFromCloseOnExit(old.getRetainedObjects().values());
+                    jr.engineStopped();
+                }
+            }
+            catch (Throwable tt) {}
+            return false;
+        }
+
+        final JJSPRuntime retired = old;
+        final RuntimeFilter retiredFilter = oldFilter;
+        Thread t = new Thread("JJSP Retire Runtime")
+        {
+            public void run()
+            {
+                try
+                {
+                    if (!retiredFilter.retire(RETIRE_WARNING_TIME))
+                    {
+                        retired.log(Level.WARNING, "Previous runtime still has "+retiredFilter.getRequestsInProgress()+" requests in progress "+RETIRE_WARNING_TIME+" ms after a reload");
+                        retiredFilter.retire(0);
+                    }
+                    retired.engineStopped();
+                }
+                catch (Throwable t) {}
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        return true;
+    }
+
+    /** 
+        Wraps a runtime's main filter in the server to count its requests in progress, so that after a reload the old runtime 
+        is stopped only when it has finished them. A request arriving on the old filter after it has been retired is passed to 
+        the server's current main filter.
+    */
+    class RuntimeFilter implements HTTPRequestFilter
+    {
+        private final HTTPRequestFilter filter;
+        private int inProgress;
+        private boolean retired;
+
+        RuntimeFilter(HTTPRequestFilter filter)
+        {
+            this.filter = filter;
+            inProgress = 0;
+            retired = false;
+        }
+
+        public HTTPFilterChain filterRequest(HTTPFilterChain chain, HTTPInputStream input, HTTPOutputStream output, ConnectionState state)
+        {
+            boolean counted = false;
+            synchronized (this)
+            {
+                counted = !retired;
+                if (counted)
+                    inProgress++;
+            }
+
+            if (!counted)
+            {
+                HTTPServer srv = null;
+                synchronized (Engine.this)
+                {
+                    srv = server;
+                }
+                return srv.getMainFilter().filterRequest(chain, input, output, state);
+            }
+
+            try
+            {
+                return filter.filterRequest(chain, input, output, state);
+            }
+            finally
+            {
+                synchronized (this)
+                {
+                    inProgress--;
+                    notifyAll();
+                }
+            }
+        }
+
+        public synchronized int getRequestsInProgress()
+        {
+            return inProgress;
+        }
+
+        /** Stops counting new requests and waits up to timeout ms (forever when 0) for those in progress; returns true if none are left */
+        synchronized boolean retire(long timeout) throws InterruptedException
+        {
+            retired = true;
+            long limit = System.currentTimeMillis() + timeout;
+            while (inProgress > 0)
+            {
+                long wait = (timeout <= 0) ? 0 : limit - System.currentTimeMillis();
+                if ((timeout > 0) && (wait <= 0))
+                    return false;
+                wait(wait);
+            }
+            return true;
+        }
+
+        public void close()
+        {
+            filter.close();
+        }
+
+        public String getName()
+        {
+            return filter.getName();
+        }
+    }
+
     static class DefaultEngine extends Engine
     {
         private long lastTimePrintout;
@@ -409,7 +724,7 @@ public class Engine implements Runnable
 
         String jsSrc = Utils.loadText(srcFile);
         if (srcFile.getName().endsWith(".jet") || srcFile.getName().endsWith(".jjsp"))
-            jsSrc = new ScriptParser(jsSrc).translateToJavascript();
+            jsSrc = new ScriptCache(cacheDir).translate(jsSrc);
 
         Engine engine = new DefaultEngine(jsSrc, srcFile, rootDir, cacheDir, args);
         engine.start();
@@ -22,10 +22,12 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.zip.*;
+import java.util.concurrent.*;
 import java.lang.reflect.*;
 
 import java.awt.image.*;
 import javax.imageio.*;
+import java.nio.file.*;
 import java.nio.file.attribute.*;
 
 import jjsp.util.*;
@@ -50,6 +52,10 @@ public class Environment extends ImageGenerator
     private HashMap serviceLoaders;
     private URLClassLoader libraryLoader;
     private TreeMap registeredDataInfoIndices;
+    private volatile ResourcePrefetcher prefetcher;
+    private URICache uriCache;
+    private OffHeapStore offHeapStore;
+    private volatile LinkedHashMap dependencies;
 
     public Environment() throws IOException
     {
@@ -98,7 +104,11 @@ public class Environment extends ImageGenerator
         if (args != null)
             this.args.putAll(args);
 
-        localContent = new TreeMap();
+        offHeapStore = OffHeapStore.getDefault();
+        uriCache = new URICache(localCacheDir);
+        configureURICache(uriCache);
+
+        localContent = new ConcurrentHashMap();
         resourcePathRoots = new ArrayList();
         addResourcePathRoot(rootURI);
 
@@ -174,6 +184,69 @@ public class Environment extends ImageGenerator
         return localCacheDir;
     }
 
+    /** 
+        Applies the args 'uriMissSeconds' (how long a 404 is remembered, default 30), 'uriFreshSeconds' (how long a copy is used
+        without revalidation when the server gives no max-age, default 0), 'serveStale' and 'offline' to the cache of remote resources.
+    */
+    protected void configureURICache(URICache cache)
+    {
+        try
+        {
+            cache.setMissTTL(1000l*Long.parseLong(getArg("uriMissSeconds", String.valueOf(URICache.DEFAULT_MISS_TTL/1000))));
+        }
+        catch (Exception e) {}
+        try
+        {
+            cache.setDefaultFreshness(1000l*Long.parseLong(getArg("uriFreshSeconds", "0")));
+        }
+        catch (Exception e) {}
+
+        cache.setServeStale(hasArg("serveStale"));
+        cache.setOffline(hasArg("offline"));
+    }
+
+    /** Starts keeping a list of what the local store is built from (resources loaded, directories walked), for a StoreSnapshot */
+    public void startRecordingDependencies()
+    {
+        dependencies = new LinkedHashMap();
+    }
+
+    /** Stops recording, returning the dependencies recorded since startRecordingDependencies (or null if it was not called) */
+    public synchronized String[][] stopRecordingDependencies()
+    {
+        LinkedHashMap deps = dependencies;
+        dependencies = null;
+        if (deps == null)
+            return null;
+
+        String[][] result = new String[deps.size()][];
+        deps.values().toArray(result);
+        return result;
+    }
+
+    /** Records one dependency (its kind, what it names and its hash; see StoreSnapshot) when dependencies are being recorded */
+    public synchronized void recordDependency(String[] dependency)
+    {
+        if (dependencies != null)
+            dependencies.put(Arrays.asList(dependency), dependency);
+    }
+
+    public boolean isRecordingDependencies()
+    {
+        return dependencies != null;
+    }
+
+    public URICache getURICache()
+    {
+        return uriCache;
+    }
+
+    /** Where large local store entries (and their gzipped forms) are kept, off the heap */
+    public OffHeapStore getOffHeapStore()
+    {
+        return offHeapStore;
+    }
+
     public File getServiceCacheDir(String serviceName) throws IOException
     {
         File cacheDir = getLocalCacheDir();
@@ -461,6 +534,138 @@ public class Environment extends ImageGenerator
         }
     }
 
+    /** 
+        An item in the local store, under its canonical path (see checkLocalResourcePath). Content registered by URI is loaded
+        on first use; the ETag, content type and compressed forms are worked out once, when first asked for, and kept with it.
+    */
+    public class LocalEntry
+    {
+        public final String path;
+        public final URI sourceURI;
+
+        private volatile OffHeapStore.Asset data, gzipped, deflated;
+        private volatile String contentType;
+        private volatile boolean compressed;
+
+        LocalEntry(String path, URI sourceURI, byte[] data)
+        {
+            this.path = path;
+            this.sourceURI = sourceURI;
+            this.data = offHeapStore.store(data);
+        }
+
+        LocalEntry(String path, URI sourceURI, OffHeapStore.Asset data, OffHeapStore.Asset gzipped, OffHeapStore.Asset deflated, boolean compressed)
+        {
+            this.path = path;
+            this.sourceURI = sourceURI;
+            this.data = data;
+            this.gzipped = gzipped;
+            this.deflated = deflated;
+            this.compressed = compressed;
+        }
+
+        public boolean isLoaded()
+        {
+            return data != null;
+        }
+
+        /** Returns the content, loading it from its URI if it has not been loaded yet, or null if that fails */
+        public OffHeapStore.Asset getAsset()
+        {
+            OffHeapStore.Asset result = data;
+            if ((result != null) || (sourceURI == null))
+                return result;
+
+            try
+            {
+                result = offHeapStore.store(uriCache.load(sourceURI));
+                data = result;
+            }
+            catch (Exception e) {}
+            return result;
+        }
+
+        /** Returns the content as an array, which is a copy when it is held off heap */
+        public byte[] getData()
+        {
+            OffHeapStore.Asset asset = getAsset();
+            if (asset == null)
+                return null;
+            return asset.toByteArray();
+        }
+
+        public String getETag()
+        {
+            OffHeapStore.Asset asset = getAsset();
+            if (asset == null)
+                return null;
+            return asset.getETag();
+        }
+
+        /** Guessed from the path, or null when the path does not suggest one */
+        public String getContentType()
+        {
+            String result = contentType;
+            if (result == null)
+            {
+                result = HTTPHeaders.guessMIMEType(path, "");
+                contentType = result;
+            }
+            return (result.length() == 0) ? null : result;
+        }
+
+        /** 
+            Makes the gzip and deflate forms of the content at the highest compression level, keeping each only when it is
+            smaller than the content itself. Does nothing after the first call which found the content.
+        */
+        public synchronized void compress()
+        {
+            if (compressed)
+                return;
+            byte[] raw = getData();
+            if (raw == null)
+                return;
+
+            byte[] gz = Utils.gzip(raw, Deflater.BEST_COMPRESSION);
+            if (gz.length < raw.length)
+                gzipped = offHeapStore.store(gz);
+            byte[] zl = Utils.deflate(raw, Deflater.BEST_COMPRESSION);
+            if (zl.length < raw.length)
+                deflated = offHeapStore.store(zl);
+            compressed = true;
+        }
+
+        public boolean isCompressed()
+        {
+            return compressed;
+        }
+
+        /** Returns the gzip or deflate form if it has already been made, without making it */
+        OffHeapStore.Asset getCompressedAsset(String encoding)
+        {
+            if (encoding.equals("gzip"))
+                return gzipped;
+            if (encoding.equals("deflate"))
+                return deflated;
+            return null;
+        }
+
+        /** Returns the content in the given content coding (null or "identity" for the content itself), or null when that form is not kept */
+        public OffHeapStore.Asset getEncodedAsset(String encoding)
+        {
+            if ((encoding == null) || encoding.equals("identity"))
+                return getAsset();
+
+            if (!compressed)
+                compress();
+            if (encoding.equals("gzip"))
+                return gzipped;
+            if (encoding.equals("deflate"))
+                return deflated;
+            return null;
+        }
+    }
+
     public URIContent loadFromResourcePath(String path) throws IOException
     {
         Iterator itt = null;
@@ -469,6 +674,7 @@ public class Environment extends ImageGenerator
             itt = resourcePathRoots.iterator();
         }
 
+        ResourcePrefetcher pf = prefetcher;
         StringBuffer buf = new StringBuffer();
         while (itt.hasNext())
         {
@@ -476,7 +682,13 @@ public class Environment extends ImageGenerator
             try
             {
                 URI resolvedURI = uri.resolve(path);
-                byte[] data = Utils.load(resolvedURI);
+                byte[] data = null;
+                if (pf != null)
+                    data = pf.take(resolvedURI);
+                if (data == null)
+                    data = uriCache.load(resolvedURI);
+                if (isRecordingDependencies())
+                    recordDependency(new String[]{StoreSnapshot.RESOURCE, resolvedURI.toString(), Utils.toHexString(Utils.SHA256(data))});
                 return new URIContent(resolvedURI, data);
             }
             catch (Exception e) {}
@@ -487,6 +699,47 @@ public class Environment extends ImageGenerator
         throw new IOException("Failed to find resource '"+path+"' in path '"+buf+"'");
     }
 
+    /** 
+        Starts fetching, in the background, the resources which source loads or includes by a literal path, so that later calls
+        to loadFromResourcePath find them already loaded. Uses 'prefetchThreads' threads (from the args, default 8; 0 disables it).
+    */
+    public void prefetchResources(String source)
+    {
+        int threads = ResourcePrefetcher.DEFAULT_THREADS;
+        try
+        {
+            threads = Integer.parseInt(getArg("prefetchThreads", String.valueOf(threads)));
+        }
+        catch (Exception e) {}
+        if (threads <= 0)
+            return;
+
+        ResourcePrefetcher pf = null;
+        synchronized (this)
+        {
+            if (prefetcher == null)
+                prefetcher = new ResourcePrefetcher(threads, ResourcePrefetcher.DEFAULT_MAX_RESOURCES, uriCache);
+            pf = prefetcher;
+        }
+        pf.scan(source, getResourcePathRoots());
+    }
+
+    /** Stops prefetching and discards any prefetched resources not yet loaded, returning a summary of what was done */
+    public String stopPrefetching()
+    {
+        ResourcePrefetcher pf = null;
+        synchronized (this)
+        {
+            pf = prefetcher;
+            prefetcher = null;
+        }
+        if (pf == null)
+            return "";
+
+        pf.close();
+        return pf.toString();
+    }
+
     public byte[] load(String path) throws Exception
     {
         return loadFromResourcePath(path).data;
@@ -561,65 +814,58 @@ public class Environment extends ImageGenerator
                 throw new IOException("Unknown URI scheme: '"+uri+"'");
         }
         
-        synchronized (localContent)
-        {
-            localContent.put(path, contents);
-        }
+        LocalEntry entry = null;
+        if (contents instanceof URI)
+            entry = new LocalEntry(path, (URI) contents, null);
+        else if (contents instanceof URIContent)
+            entry = new LocalEntry(path, ((URIContent) contents).resolvedURI, ((URIContent) contents).data);
+        else
+            entry = new LocalEntry(path, null, (byte[]) contents);
+
+        localContent.put(path, entry);
         return message;
     }
 
+    /** Puts all the (non null) entries into the local store in one step, returning how many there were */
+    int putLocalEntries(LocalEntry[] entries)
+    {
+        HashMap batch = new HashMap();
+        for (int i=0; i<entries.length; i++)
+            if (entries[i] != null)
+                batch.put(entries[i].path, entries[i]);
+
+        localContent.putAll(batch);
+        return batch.size();
+    }
+
     public String[] listLocal()
     {
-        synchronized (localContent)
-        {
-            String[] result = new String[localContent.size()];
-            localContent.keySet().toArray(result);
-            return result;
-        }
+        String[] result = (String[]) localContent.keySet().toArray(new String[0]);
+        Arrays.sort(result);
+        return result;
     }
 
     public boolean deleteLocal(String name)
     {
         name = checkLocalResourcePath(name);
-        synchronized (localContent)
-        {
-            return localContent.remove(name) != null;
-        }
+        return localContent.remove(name) != null;
+    }
+
+    /** Looks up a local store entry by a path which is already canonical (as returned by listLocal), without checking or converting it */
+    public LocalEntry getLocalEntry(String canonicalPath)
+    {
+        return (LocalEntry) localContent.get(canonicalPath);
     }
 
     public byte[] getLocal(String name)
     {
         if ((name == null) || (name.length() == 0))
             return null;
-        name = checkLocalResourcePath(name);
         
-        Object obj = null;
-        synchronized (localContent)
-        {
-            obj = localContent.get(name);
-            if (obj == null)
-                return null;
-        }
-
-        if (obj instanceof byte[])
-            return (byte[]) obj;
-        else if (obj instanceof URI)
-        {
-            URI uri = (URI) obj;
-            try
-            {
-                byte[] result = Utils.load(uri);
-                URIContent content = new URIContent(uri, result);
-                putLocal(name, content);
-                return content.data;
-            }
-            catch (Exception e) {}
+        LocalEntry entry = getLocalEntry(checkLocalResourcePath(name));
+        if (entry == null)
             return null;
-        }
-        else if (obj instanceof URIContent)
-            return ((URIContent) obj).data;
-
-        throw new IllegalStateException("Unknown object type in local store "+obj);
+        return entry.getData();
     }
 
     public String getLocalString(String name)
@@ -644,38 +890,21 @@ public class Environment extends ImageGenerator
         return "Loaded '"+srcPath+"' (from '"+uc.resolvedURI+"') to local store at '"+dstPath+"'\n";
     }
 
-    private void recursiveDirGlobMatch(int level, File f, String destPath, String startsWith, String endsWith, StringBuffer report)
-    {
-        if (f.isDirectory())
-        {
-            if (level < 0)
-                return;
-            File[] ff = f.listFiles();
-            for (int i=0; i<ff.length; i++)
-                recursiveDirGlobMatch(level-1, ff[i], destPath, startsWith, endsWith, report);
-        }
-        else
-        {
-            String absPath = f.getAbsolutePath().replace("\\", "/");
-            if (absPath.startsWith(startsWith) && absPath.endsWith(endsWith))
-            {
-                String outputPath = destPath+absPath.substring(startsWith.length());
-                try
-                {
-                    putLocal(outputPath, f);
-                }
-                catch (Exception e) {}
-                report.append("   "+f+" == "+outputPath+"\n");
-            }
-        }
-    }
-
     public String loadFilesToLocalStore(String globMatch, String destDirPath)
     {
         return loadFilesToLocalStore(globMatch, destDirPath, 10);
     }
 
     public String loadFilesToLocalStore(String globMatch, String destDirPath, int maxLevels)
+    {
+        return loadFilesToLocalStore(globMatch, destDirPath, maxLevels, false);
+    }
+
+    /** 
+        Reads the matching files into the local store, walking, reading and hashing them (and also compressing them when 
+        precompress is set, ready for LocalCompressedFilter) in parallel. They all appear in the store together once done.
+    */
+    public String loadFilesToLocalStore(String globMatch, String destDirPath, int maxLevels, boolean precompress)
     {
         maxLevels = Math.max(0, maxLevels);
         destDirPath = checkLocalResourcePath(destDirPath);
@@ -728,7 +957,7 @@ public class Environment extends ImageGenerator
                 if (!startsWith.endsWith("/") && srcDir.isDirectory())
                     startsWith = startsWith+"/";
                 buf.append("'"+srcDir+"' to '"+destDirPath+"' max subdirs "+maxLevels+"]\n");
-                recursiveDirGlobMatch(maxLevels, srcDir, destDirPath, startsWith, suffix, buf);
+                buf.append(new BulkLoader(this, precompress).loadDirectory(srcDir, maxLevels, startsWith, suffix, destDirPath));
 
                 return buf.toString();
             }
@@ -744,6 +973,12 @@ public class Environment extends ImageGenerator
     }
 
     public String loadZipToLocalStore(String remotePath, String localPathPrefix, boolean ignoreIfNotFound) throws Exception
+    {
+        return loadZipToLocalStore(remotePath, localPathPrefix, ignoreIfNotFound, false);
+    }
+
+    /** Loads every file in the zip into the local store under localPathPrefix, inflating (and compressing, if precompress is set) entries in parallel */
+    public String loadZipToLocalStore(String remotePath, String localPathPrefix, boolean ignoreIfNotFound, boolean precompress) throws Exception
     {
         StringWriter sw = new StringWriter();
         URIContent loadResult = null;
@@ -759,41 +994,31 @@ public class Environment extends ImageGenerator
                 throw e;
         }
 
-        byte[] buffer = new byte[4096];
         if ((localPathPrefix.length() > 0) && !localPathPrefix.endsWith("/"))
             localPathPrefix = localPathPrefix+"/";
 
         sw.write("Loading "+remotePath+" as ZIP data ("+loadResult.data.length+" compressed)\n");
-        ZipInputStream zin = new ZipInputStream(new ByteArrayInputStream(loadResult.data));
-        while (true)
+
+        // ZipFile can inflate several entries at once, but only from a file, so remote archives are spooled to the cache dir
+        File zipFile = null;
+        File temp = null;
+        if ("file".equals(loadResult.resolvedURI.getScheme()))
+            zipFile = new File(loadResult.resolvedURI);
+        else
         {
-            ZipEntry zen = zin.getNextEntry();
-            if (zen == null)
-                break;
-            try
-            {
-                if (zen.isDirectory())
-                    continue;
+            temp = File.createTempFile("bulk", ".zip", localCacheDir);
+            Files.write(temp.toPath(), loadResult.data);
+            zipFile = temp;
+        }
 
-                ByteArrayOutputStream bout = new ByteArrayOutputStream();
-                while (true)
-                {
-                    int r = zin.read(buffer);
-                    if (r < 0)
-                        break;
-                    bout.write(buffer, 0, r);
-                }
-                bout.close();
-                byte[] content = bout.toByteArray();
-                String path = localPathPrefix+zen.getName();
-
-                path = putLocal(path, content);
-                sw.write("Local resource '"+path+"' loaded from "+loadResult.resolvedURI+" with "+content.length+" bytes\n");
-            }
-            finally
-            {
-                zin.closeEntry();
-            }
+        try
+        {
+            sw.write(new BulkLoader(this, precompress).loadZip(zipFile, localPathPrefix, String.valueOf(loadResult.resolvedURI)));
+        }
+        finally
+        {
+            if (temp != null)
+                temp.delete();
         }
 
         return sw.toString();
@@ -855,7 +1080,7 @@ public class Environment extends ImageGenerator
             libName = libName+".jar";
 
         URI libURI = getLibraryURI();
-        String[] paths = listURIDirectory(libURI);
+        String[] paths = listURIDirectory(libURI, uriCache);
         for (int i=0; i<paths.length; i++)
         {
             if (!paths[i].equalsIgnoreCase(libName))
@@ -869,6 +1094,11 @@ public class Environment extends ImageGenerator
     }
 
     public static String[] listURIDirectory(URI dirURI) throws IOException
+    {
+        return listURIDirectory(dirURI, null);
+    }
+
+    public static String[] listURIDirectory(URI dirURI, URICache cache) throws IOException
     {
         ArrayList buf = new ArrayList();
 
@@ -888,7 +1118,11 @@ public class Environment extends ImageGenerator
         else
         {
             // Really only works for the HTTP result from a JJSP localStore handler, which lists contents by default 1 per line.
-            InputStream in = dirURI.toURL().openStream();
+            InputStream in = null;
+            if (cache != null)
+                in = new ByteArrayInputStream(cache.load(dirURI));
+            else
+                in = dirURI.toURL().openStream();
             BufferedReader br = new BufferedReader(new InputStreamReader(in));
             while (true)
             {
@@ -939,12 +1173,12 @@ public class Environment extends ImageGenerator
 
     public String[] getServiceNames() throws IOException
     {
-        return listURIDirectory(getServicesURI());
+        return listURIDirectory(getServicesURI(), uriCache);
     }
 
     public String[] listServiceResourcePaths(String serviceName) throws IOException
     {
-        return listURIDirectory(getServiceURI(serviceName));
+        return listURIDirectory(getServiceURI(serviceName), uriCache);
     }
 
     public boolean serviceExists(String name) throws IOException
@@ -1188,26 +1422,64 @@ public class Environment extends ImageGenerator
             throw new IllegalStateException("Local resource paths cannot be absolute");
         if (path.indexOf(":") >= 0)
             throw new IllegalStateException("Illegal colon in local resource path '"+path+"'");
-        path = path.replace("\\", "/");
-        if (!path.startsWith("/"))
-            path = "/"+path;
-
-        while(path.indexOf("//") >= 0)
-            path = path.replace("//", "/");
-        path = path.replace("%", "%25");
-        path = path.replace(" ", "%20");
-        path = path.replace("@", "%40");
-        path = path.replace("[", "%5B");
-        path = path.replace("]", "%5D");
-        path = path.replace("$", "%24");
-        path = path.replace("!", "%21");
-        path = path.replace("#", "%23");
-        path = path.replace("+", "%2B");
-        path = path.replace("'", "%27");
-        path = path.replace("(", "%28");
-        path = path.replace(")", "%29");
-            
-        return path;
+
+        // One pass: backslashes become slashes, runs of slashes collapse to one and reserved characters are percent encoded
+        StringBuilder buf = new StringBuilder(path.length()+8);
+        buf.append('/');
+        for (int i=0; i<path.length(); i++)
+        {
+            char ch = path.charAt(i);
+            if (ch == '\\')
+                ch = '/';
+
+            switch (ch)
+            {
+            case '/':
+                if (buf.charAt(buf.length()-1) != '/')
+                    buf.append('/');
+                break;
+            case '%':
+                buf.append("%25");
+                break;
+            case ' ':
+                buf.append("%20");
+                break;
+            case '@':
+                buf.append("%40");
+                break;
+            case '[':
+                buf.append("%5B");
+                break;
+            case ']':
+                buf.append("%5D");
+                break;
+            case '$':
+                buf.append("%24");
+                break;
+            case '!':
+                buf.append("%21");
+                break;
+            case '#':
+                buf.append("%23");
+                break;
+            case '+':
+                buf.append("%2B");
+                break;
+            case '\'':
+                buf.append("%27");
+                break;
+            case '(':
+                buf.append("%28");
+                break;
+            case ')':
+                buf.append("%29");
+                break;
+            default:
+                buf.append(ch);
+            }
+        }
+
+        return buf.toString();
     }
 
     public static String stripMultipleBlankLines(String src)
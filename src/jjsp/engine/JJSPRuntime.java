@@ -25,6 +25,7 @@ import java.lang.reflect.*;
 import java.util.*;
 import java.util.logging.*;
 import java.util.function.*;
+import java.util.concurrent.atomic.*;
 import java.awt.image.*;
 
 import javax.imageio.*;
@@ -41,6 +42,7 @@ public class JJSPRuntime extends Environment
 {
     public static final String JJSP_NAME = "jjsp";
     public static final String TOP_LEVEL_SOURCE_PATH = "<<JJSP MAIN>>";
+    public static final String NASHORN_CODE_CACHE_PROPERTY = "nashorn.persistent.code.cache";
 
     public static final int DEFAULT_PORT_BASE = 2016;
 
@@ -51,12 +53,18 @@ public class JJSPRuntime extends Environment
     private ArrayList serverSockets;
     private Function shutdownHook;
     private ArrayList closeOnExit;
+    private HashMap retained, inherited;
     private HTTPServerLogger httpLogger;
     private HTTPRequestFilter mainFilter;
+    private boolean recordServerMetrics;
 
     private Logger logger;
     private StringWriter outputWriter;
     private ScriptEngine scriptEngine;
+    private ScriptCache scriptCache;
+    private StoreSnapshot snapshot;
+    private boolean restoredFromSnapshot;
+    private String[][] dependencies;
 
     private static ScriptEngineManager engineManager = new ScriptEngineManager();
 
@@ -68,10 +76,13 @@ public class JJSPRuntime extends Environment
         stopRequested = false;
         shutdownHook = null;
         closeOnExit = new ArrayList();
+        retained = new HashMap();
+        inherited = null;
         includedFiles = new HashSet();
 
         serverSockets = new ArrayList();
         outputWriter = new StringWriter();
+        scriptCache = new ScriptCache(localCacheDir);
     }
 
     public synchronized void registerNamedLogger(String name) throws IOException
@@ -134,7 +145,14 @@ public class JJSPRuntime extends Environment
             {
                 try
                 {
-                    scriptEngine = engineManager.getEngineByName("nashorn");
+                    scriptEngine = createCachingNashornEngine();
+                }
+                catch (Throwable t) {}
+
+                try
+                {
+                    if (scriptEngine == null)
+                        scriptEngine = engineManager.getEngineByName("nashorn");
                 }
                 catch (Exception e) {}
 
@@ -149,32 +167,190 @@ public class JJSPRuntime extends Environment
             jsContext.setErrorWriter(outputWriter);
             jsContext.setReader(null);
 
-            scriptEngine.eval(wrapFunctionScript(ImageGenerator.class, JJSP_NAME));
-            scriptEngine.eval(wrapFunctionScript(Environment.class, JJSP_NAME));
-            scriptEngine.eval(wrapFunctionScript(JJSPRuntime.class, JJSP_NAME));
+            prefetchResources(jsSource);
+            restoreSnapshot(jsSource);
+            if (hasArg("snapshot") || hasArg("hotReload"))
+                startRecordingDependencies();
 
-            scriptEngine.eval("delete exit");
-            scriptEngine.eval("delete quit");
-            scriptEngine.eval("$p=function(arg){jjsp.print(arg);};");
-            scriptEngine.eval("$log=function(arg){jjsp.println(new Date()+':  '+arg);};");
-            scriptEngine.eval("console=$log");
-            scriptEngine.eval("console.log=$log");
-            scriptEngine.eval("output=function(n, f){if (typeof f == 'function') return jjsp.putLocal(n, f()); else return jjsp.putLocal(n, f);}");
+            String[] prelude = getPreludeScripts();
+            for (int i=0; i<prelude.length; i++)
+                scriptCache.eval(scriptEngine, prelude[i]);
 
             scriptEngine.put(ScriptEngine.FILENAME, TOP_LEVEL_SOURCE_PATH);
-            scriptEngine.eval(jsSource);
+            scriptCache.eval(scriptEngine, jsSource);
 
+            String[][] deps = stopRecordingDependencies();
             synchronized (this)
             {
                 initComplete = true;
+                dependencies = deps;
             }
+            writeSnapshot();
         }
         finally
         {
+            stopRecordingDependencies();
+            stopPrefetching();
             Thread.currentThread().setContextClassLoader(currentLoader);
         }
     }
 
+    /** 
+        With the arg 'snapshot' set, fills the local store from the snapshot image for this source if there is one and it is
+        still valid (see StoreSnapshot); otherwise an image is written after init.
+    */
+    private void restoreSnapshot(String jsSource)
+    {
+        if (!hasArg("snapshot"))
+            return;
+
+        StoreSnapshot ss = new StoreSnapshot(getLocalCacheDir(), StoreSnapshot.createKey(jsSource, getRootURI(), getArgs()));
+        boolean restored = ss.restore(this);
+
+        synchronized (this)
+        {
+            snapshot = ss;
+            restoredFromSnapshot = restored;
+            outputWriter.write("\nLocal store snapshot: "+ss.getStatus()+"\n");
+        }
+    }
+
+    private void writeSnapshot()
+    {
+        StoreSnapshot ss = null;
+        synchronized (this)
+        {
+            if (restoredFromSnapshot || (snapshot == null))
+                return;
+            ss = snapshot;
+        }
+
+        try
+        {
+            ss.write(this, getDependencies());
+            log("Local store snapshot: "+ss.getStatus());
+        }
+        catch (Exception e)
+        {
+            log("warn", "Failed to write local store snapshot "+ss.getImageFile(), e);
+        }
+    }
+
+    /** True when the local store was filled from a snapshot image at startup, so scripts can skip regenerating its content */
+    public synchronized boolean restoredFromSnapshot()
+    {
+        return restoredFromSnapshot;
+    }
+
+    /** 
+        What init loaded (resources, walked directories; see StoreSnapshot) when the arg 'snapshot' or 'hotReload' is set,
+        otherwise null
+    */
+    public synchronized String[][] getDependencies()
+    {
+        return dependencies;
+    }
+
+    public synchronized StoreSnapshot getStoreSnapshot()
+    {
+        return snapshot;
+    }
+
+    /** 
+        Creates a Nashorn engine with its persistent code cache switched on, so the classes compiled for each script are kept
+        and reused by later runs when the script text has not changed. Nashorn has no engine option for the cache location
+        and reads it only from the VM wide system property nashorn.persistent.code.cache, so the cache is used only when that
+        has been set when starting Java (-Dnashorn.persistent.code.cache=dir); otherwise this returns null.
+    */
+    private ScriptEngine createCachingNashornEngine() throws Exception
+    {
+        if (System.getProperty(NASHORN_CODE_CACHE_PROPERTY) == null)
+            return null;
+
+        // Reached through the engine manager and reflection, since the Nashorn API classes are deprecated for removal from Java 11
+        Iterator itt = engineManager.getEngineFactories().iterator();
+        while (itt.hasNext())
+        {
+            ScriptEngineFactory factory = (ScriptEngineFactory) itt.next();
+            if (!factory.getNames().contains("nashorn"))
+                continue;
+
+            Method m = factory.getClass().getMethod("getScriptEngine", String[].class, ClassLoader.class);
+            ScriptEngine result = (ScriptEngine) m.invoke(factory, new Object[]{new String[]{"--persistent-code-cache"}, getLibraryLoader()});
+            result.setBindings(engineManager.getBindings(), ScriptContext.GLOBAL_SCOPE);
+            return result;
+        }
+        return null;
+    }
+
+    public ScriptCache getScriptCache()
+    {
+        return scriptCache;
+    }
+
+    private static String[] preludeScripts;
+
+    private static synchronized String[] getPreludeScripts()
+    {
+        // The wrappers are generated by reflection and never change, so are built once per VM
+        if (preludeScripts == null)
+            preludeScripts = createPreludeScripts();
+        return preludeScripts;
+    }
+
+    private static String[] createPreludeScripts()
+    {
+        return new String[]{wrapFunctionScript(ImageGenerator.class, JJSP_NAME),
+                            wrapFunctionScript(Environment.class, JJSP_NAME),
+                            wrapFunctionScript(JJSPRuntime.class, JJSP_NAME),
+                            "delete exit",
+                            "delete quit",
+                            "$p=function(arg){jjsp.print(arg);};",
+                            "$log=function(arg){jjsp.println(new Date()+':  '+arg);};",
+                            "console=$log",
+                            "console.log=$log",
+                            "output=function(n, f){if (typeof f == 'function') return jjsp.putLocal(n, f()); else return jjsp.putLocal(n, f);}"};
+    }
+
+    /** 
+        Creates a pool of Javascript scopes for request handler functions, each set up like the main script's scope (with 'jjsp' bound to 
+        this runtime) and then running the given .js or .jf sources in order. The sources should only define functions and per instance 
+        state; they run once in every scope, so should not create servers or filters. Size defaults to one scope per processor when <= 0.
+    */
+    public ScriptEnginePool createScriptEnginePool(String name, int size, String[] sourcePaths) throws Exception
+    {
+        ArrayList sources = new ArrayList(Arrays.asList(getPreludeScripts()));
+        for (int i=0; i<sourcePaths.length; i++)
+        {
+            String lower = sourcePaths[i].toLowerCase();
+            if (!lower.endsWith(".js") && !lower.endsWith(".jf"))
+                throw new IllegalStateException("Script engine pools can only load JS source files: "+sourcePaths[i]);
+            sources.add(loadFromResourcePath(sourcePaths[i]).asString());
+        }
+
+        HashMap shared = new HashMap();
+        shared.put(JJSP_NAME, this);
+        if (size <= 0)
+            size = ScriptEnginePool.DEFAULT_SIZE;
+
+        ScriptEngine engine = null;
+        synchronized (this)
+        {
+            engine = scriptEngine;
+        }
+        String[] srcs = new String[sources.size()];
+        sources.toArray(srcs);
+        ScriptEnginePool result = new ScriptEnginePool(name, engine, size, srcs, shared);
+        closeOnExit(result);
+        return result;
+    }
+
+    /** Creates a filter calling the named function (with arguments request, response and state) in whichever instance of the pool is free */
+    public JSRequestFilter createPooledFilter(String functionName, ScriptEnginePool pool, HTTPRequestFilter chain) throws Exception
+    {
+        return new JSRequestFilter(functionName, pool, chain);
+    }
+
     public synchronized ServerSocketInfo[] getServerSockets()
     {
         ServerSocketInfo[] result = new ServerSocketInfo[serverSockets.size()];
@@ -242,6 +418,73 @@ public class JJSPRuntime extends Environment
         return false;
     }
 
+    /** 
+        Keeps obj (a database pool, balancer, background thread etc) for the runtime which replaces this one on a hot reload, so 
+        the reloaded script can take it with getRetained rather than create it again alongside this runtime's; returns obj. If
+        the new runtime retains it too, the object is left out when this runtime closes its closeOnExit objects.
+    */
+    public synchronized Object retain(String name, Object obj)
+    {
+        retained.put(name, obj);
+        return obj;
+    }
+
+    /** The object retained under name by the runtime this one replaced on a hot reload, or null */
+    public synchronized Object getRetained(String name)
+    {
+        if (inherited == null)
+            return null;
+        return inherited.get(name);
+    }
+
+    /** True when this runtime was created by a hot reload (see Engine.reload), while the runtime it replaces is still serving */
+    public synchronized boolean isReload()
+    {
+        return inherited != null;
+    }
+
+    synchronized Map getRetainedObjects()
+    {
+        return new HashMap(retained);
+    }
+
+    synchronized void inheritRetained(Map objects)
+    {
+        inherited = new HashMap(objects);
+    }
+
+    /** Removes the given objects from the closeOnExit list, as they now belong to another runtime, and returns those which were on it */
+    synchronized ArrayList releaseFromCloseOnExit(Collection objects)
+    {
+        ArrayList result = new ArrayList();
+        for (Iterator itt = objects.iterator(); itt.hasNext();)
+        {
+            Object obj = itt.next();
+            for (int i=closeOnExit.size()-1; i>=0; i--)
+            {
+                if (closeOnExit.get(i) != obj)
+                    continue;
+                closeOnExit.remove(i);
+                if (!result.contains(obj))
+                    result.add(obj);
+            }
+        }
+        return result;
+    }
+
+    synchronized void adoptCloseOnExit(Collection objects)
+    {
+        for (Iterator itt = objects.iterator(); itt.hasNext();)
+        {
+            Object obj = itt.next();
+            boolean present = false;
+            for (int i=0; i<closeOnExit.size(); i++)
+                present |= (closeOnExit.get(i) == obj);
+            if (!present)
+                closeOnExit.add(obj);
+        }
+    }
+
     public synchronized void engineStopped() throws Exception
     {
         for (int i=0; i<closeOnExit.size(); i++)
@@ -484,8 +727,7 @@ public class JJSPRuntime extends Environment
             String lower = sourcePath.toLowerCase();
             if (lower.endsWith(".jjsp") || lower.endsWith(".jet"))
             {
-                ScriptParser jjspParser = new ScriptParser(jsSource);
-                jsSource = jjspParser.translateToJavascript();
+                jsSource = scriptCache.translate(jsSource);
                 description = "JJSP Script";
             }
             else if (lower.endsWith(".jf"))
@@ -499,7 +741,7 @@ public class JJSPRuntime extends Environment
                 outputWriter.write("\nIncluding JJSP resource: "+srcURI+"   ");
             }
 
-            scriptEngine.eval(jsSource);
+            scriptCache.eval(scriptEngine, jsSource);
 
             synchronized (this)
             {
@@ -532,10 +774,7 @@ public class JJSPRuntime extends Environment
 
             String lower = sourcePath.toLowerCase();
             if (lower.endsWith(".jjsp") || lower.endsWith(".jet"))
-            {
-                ScriptParser jjspParser = new ScriptParser(jsSource);
-                jsSource = jjspParser.translateToJavascript();
-            }
+                jsSource = scriptCache.translate(jsSource);
             else if (!lower.endsWith(".js"))
                 throw new IllegalStateException("Can only use the 'parse' command with JJSP and JS source files");
 
@@ -641,9 +880,18 @@ public class JJSPRuntime extends Environment
         return instance;
     }
 
+    /** 
+        Wraps a handler function from the main script. The main script's scope is not thread safe, so calls are serialised on its engine 
+        and only one request runs the handler at a time; use createPooledFilter with createScriptEnginePool to handle requests concurrently.
+    */
     public HTTPRequestHandlerAdapter createFilter(String functionName, HTTPRequestHandler jsHandlerFunction, HTTPRequestFilter chain) throws Exception
     {
-        return new HTTPRequestHandlerAdapter(functionName, jsHandlerFunction, chain);
+        ScriptEngine engine = null;
+        synchronized (this)
+        {
+            engine = scriptEngine;
+        }
+        return new HTTPRequestHandlerAdapter(functionName, jsHandlerFunction, chain, engine);
     }
 
     public PredicateFilter createPredicateFilter(String functionName, HTTPRequestPredicate predicate, HTTPRequestFilter yes, HTTPRequestFilter no) throws Exception
@@ -822,6 +1070,30 @@ public class JJSPRuntime extends Environment
         return new ProxyFilter(name, targetHost, targetPort, chain);
     }
 
+    public ProxyFilter createProxyFilter(String name, String targetHost, int targetPort, UpstreamPool pool, HTTPRequestFilter chain)
+    {
+        return new ProxyFilter(name, targetHost, targetPort, pool, chain);
+    }
+
+    public ProxyFilter createProxyFilter(String name, UpstreamBalancer balancer, HTTPRequestFilter chain)
+    {
+        return new ProxyFilter(name, balancer, chain);
+    }
+
+    /** Creates a load balanced group of upstreams from a comma separated list of host:port targets; balancing is one of ROUND_ROBIN, LEAST_OUTSTANDING, HASH_PATH or HASH_COOKIE. The group is closed when the runtime stops. */
+    public UpstreamBalancer createUpstreamBalancer(String name, String balancing, String targets)
+    {
+        UpstreamBalancer result = new UpstreamBalancer(name, UpstreamBalancer.Balancing.valueOf(balancing.toUpperCase()));
+        result.addUpstreams(targets);
+        closeOnExit(result);
+        return result;
+    }
+
+    public UpstreamPool createUpstreamPool(int maxConnectionsPerHost, int idleTimeout, int connectTimeout, int readTimeout)
+    {
+        return new UpstreamPool(maxConnectionsPerHost, idleTimeout, connectTimeout, readTimeout);
+    }
+
     public class LocalFilter extends AbstractRequestFilter
     {
         private int cacheTime;
@@ -876,9 +1148,29 @@ public class JJSPRuntime extends Environment
             cacheTime = seconds;
         }
 
+        /** 
+            @deprecated No longer called: handleRequest serves the stored entry (or one of its compressed forms, chosen by
+            selectEncoding) directly, so overriding this has no effect. Put a filter ahead of this one to serve other content.
+        */
+        @Deprecated
         protected byte[] getContentFor(String path)
         {
-            return getLocal(path);
+            LocalEntry entry = getLocalEntry(path);
+            if (entry == null)
+                return null;
+            return entry.getData();
+        }
+
+        /** Returns the content coding of the form of entry to send in response to a request with these headers, or null to send it as it is */
+        protected String selectEncoding(HTTPRequestHeaders reqHeaders, LocalEntry entry)
+        {
+            return null;
+        }
+
+        /** True when the response depends on the request's Accept-Encoding header, so caches must be told with 'Vary' */
+        protected boolean negotiatesEncoding()
+        {
+            return false;
         }
 
         @Override
@@ -898,19 +1190,41 @@ public class JJSPRuntime extends Environment
             if (!validPaths.contains(path))
                 return false;
 
-            byte[] content = getContentFor(path);
-            if (content == null)
+            // The valid paths came from listLocal, so are already canonical and can be looked up directly
+            LocalEntry entry = getLocalEntry(path);
+            if (entry == null)
                 return false;
 
-            response.getHeaders().configureCacheControl(cacheTime);
-            response.getHeaders().configureAsOK();
-            response.getHeaders().guessAndSetContentType(path, defaultContentType);
-            if (contentEncoding != null)
-                response.getHeaders().setContentEncoding(contentEncoding);
+            String encoding = selectEncoding(request.getHeaders(), entry);
+            OffHeapStore.Asset content = entry.getEncodedAsset(encoding);
+            if (content == null)
+                return false;
 
-            if (request.getHeaders().isHead())
+            String eTag = content.getETag();
+            String contentType = entry.getContentType();
+            if (contentType == null)
+                contentType = defaultContentType;
+
+            HTTPResponseHeaders headers = response.getHeaders();
+            headers.configureCacheControl(eTag, cacheTime);
+            headers.configureAsOK();
+            headers.setContentType(contentType);
+            if (encoding != null)
+                headers.setContentEncoding(encoding);
+            else if (contentEncoding != null)
+                headers.setContentEncoding(contentEncoding);
+            if (negotiatesEncoding())
+                headers.setHeader("Vary", "Accept-Encoding");
+
+            if (request.getHeaders().ifNoneMatch(eTag))
+            {
+                headers.configureAsNotModified();
+                headers.setContentLength(content.length());
+                response.sendHeaders();
+            }
+            else if (request.getHeaders().isHead())
             {
-                response.getHeaders().setContentLength(content.length);
+                response.getHeaders().setContentLength(content.length());
                 response.sendHeaders();
             }
             else
@@ -920,39 +1234,78 @@ public class JJSPRuntime extends Environment
         }
     }
 
-    public class LocalCompressedFilter extends LocalFilter
+    /**
+       Serves local store entries gzip or deflate compressed to clients whose Accept-Encoding allows it, and as they are to
+       the rest. The compressed forms of all its entries are made (in parallel, at the highest level) when the filter is
+       created, and are kept only where they are smaller than the original.
+    */
+    public class LocalCompressedFilter extends LocalFilter implements ServerMetrics.Source
     {
-        private HashMap compressedContentCache;
+        private String[] paths;
+        private LongAdder cacheHits, cacheMisses;
 
         public LocalCompressedFilter(String name, String[] paths, int cacheTime, HTTPRequestFilter chain)
         {
             super(name, paths, cacheTime, chain);
 
-            compressedContentCache = new HashMap();
-            setContentEncoding("gzip");
-        }
+            this.paths = paths;
+            cacheHits = new LongAdder();
+            cacheMisses = new LongAdder();
 
-        @Override
-        protected byte[] getContentFor(String path)
-        {
-            byte[] compressed = null;
-            synchronized (compressedContentCache)
+            ArrayList entries = new ArrayList();
+            for (int i=0; i<paths.length; i++)
             {
-                compressed = (byte[]) compressedContentCache.get(path);
-                if (compressed != null)
-                    return compressed;
+                LocalEntry entry = getLocalEntry(paths[i].startsWith("/") ? paths[i] : "/"+paths[i]);
+                if (entry != null)
+                    entries.add(entry);
             }
+            entries.parallelStream().forEach((entry) -> ((LocalEntry) entry).compress());
 
-            byte[] raw = super.getContentFor(path);
-            if (raw == null)
-                return null;
+            ServerMetrics.getDefault().addSource(this);
+        }
 
-            compressed = Utils.gzip(raw);
-            synchronized (compressedContentCache)
+        public void writeMetrics(ServerMetrics.Output out)
+        {
+            int entries = 0;
+            for (int i=0; i<paths.length; i++)
             {
-                compressedContentCache.put(path, compressed);
-                return compressed;
+                LocalEntry entry = getLocalEntry(paths[i].startsWith("/") ? paths[i] : "/"+paths[i]);
+                if ((entry != null) && entry.isCompressed())
+                    entries++;
             }
+            ServerMetrics.writeCacheMetrics(out, "compressed", getName(), cacheHits.sum(), cacheMisses.sum(), entries);
+        }
+
+        public String getMetricsKey()
+        {
+            return "cache/compressed/"+getName();
+        }
+
+        protected void closeFilter() throws Exception
+        {
+            ServerMetrics.getDefault().removeSource(this);
+        }
+
+        @Override
+        protected boolean negotiatesEncoding()
+        {
+            return true;
+        }
+
+        @Override
+        protected String selectEncoding(HTTPRequestHeaders reqHeaders, LocalEntry entry)
+        {
+            // Entries replaced since the filter was created are compressed on their first request
+            if (entry.isCompressed())
+                cacheHits.increment();
+            else
+                cacheMisses.increment();
+
+            if (reqHeaders.acceptsEncoding("gzip") && (entry.getEncodedAsset("gzip") != null))
+                return "gzip";
+            if (reqHeaders.acceptsEncoding("deflate") && (entry.getEncodedAsset("deflate") != null))
+                return "deflate";
+            return null;
         }
     }
 
@@ -1139,8 +1492,39 @@ public class JJSPRuntime extends Environment
         return new MemoryLog(logLength);
     }
 
+    public HTTPServerLogger createMemoryLogger(int logLength, long maxAgeMillis, long maxBytes)
+    {
+        return new MemoryLog(logLength, maxAgeMillis, maxBytes);
+    }
+
+    public RouteMetricsLogger createRouteMetricsLogger(File metricsDir, long intervalMillis)
+    {
+        return new RouteMetricsLogger(metricsDir, intervalMillis);
+    }
+
+    public FilterTimingLogger createFilterTimingLogger(long slowThresholdMillis, int maxSamples, boolean captureStacks)
+    {
+        return new FilterTimingLogger(slowThresholdMillis, maxSamples, captureStacks);
+    }
+
+    public HTTPServerLogger createLoggerChain(HTTPServerLogger first, HTTPServerLogger second)
+    {
+        return new HTTPLoggerChain(first, second);
+    }
+
+    public MetricsFilter createMetricsFilter(String name, HTTPRequestFilter chain)
+    {
+        synchronized (this)
+        {
+            recordServerMetrics = true;
+        }
+        return new MetricsFilter(name, chain);
+    }
+
     public synchronized HTTPServerLogger getHTTPLogger()
     {
+        if (recordServerMetrics)
+            return new HTTPLoggerChain(httpLogger, ServerMetrics.getDefault());
         return httpLogger;
     }
 
@@ -1152,6 +1536,14 @@ public class JJSPRuntime extends Environment
         return httpLogger;
     }
 
+    public synchronized HTTPServerLogger setHTTPBinaryLogDirectory(File logDir, boolean autoFlush) throws IOException
+    {
+        if (initialised())
+            throw new IllegalStateException("Cannot set HTTP Log Directory after JJSP has started");
+        this.httpLogger = new BinaryLogger(BinaryLogger.HOURLY, logDir, BinaryLogger.DEFAULT_MAX_RECORDS, autoFlush);
+        return httpLogger;
+    }
+
     public synchronized HTTPServerLogger setHTTPLogger(HTTPServerLogger httpLogger)
     {
         if (initialised())
@@ -0,0 +1,189 @@
+/*
+JJSP - Java and Javascript Server Pages 
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify 
+it under the terms of the GNU General Public License as published by 
+the Free Software Foundation, either version 3 of the License, or 
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but 
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+for more details.
+
+You should have received a copy of the GNU General Public License along with 
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.engine;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import jjsp.util.*;
+
+/**
+   Watches what an Engine's runtime was built from (its main source file and the dependencies recorded by init: includes,
+   parsed sources, loaded files and walked directories) and reloads the engine when any of it changes. Local files are
+   checked by size and modification time each interval; a resource loaded through the resource path is then compared with
+   the hash of its content, so touching one does not cause a reload. Directories are listed again each interval. Remote
+   resources are not watched.
+ */
+public class ReloadWatcher implements Runnable
+{
+    public static final long DEFAULT_INTERVAL = 1000;
+
+    private final Engine engine;
+    private final long interval;
+
+    private JJSPRuntime watched;
+    private String[][] dependencies;
+    private HashMap stats;
+    private int reloads, failures;
+
+    public ReloadWatcher(Engine engine, long interval)
+    {
+        this.engine = engine;
+        this.interval = Math.max(50, interval);
+        stats = new HashMap();
+    }
+
+    public void start()
+    {
+        Thread t = new Thread(this, "JJSP Reload Watcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static File getLocalFile(String[] dep)
+    {
+        try
+        {
+            if (dep[0].equals(StoreSnapshot.DIRECTORY))
+                return null;
+            URI uri = new URI(dep[1]);
+            if (!"file".equals(uri.getScheme()))
+                return null;
+            return new File(uri);
+        }
+        catch (Exception e) {}
+        return null;
+    }
+
+    private void watch(JJSPRuntime rt)
+    {
+        watched = rt;
+        stats = new HashMap();
+
+        ArrayList deps = new ArrayList();
+        URI src = engine.getSourceURI();
+        if ((src != null) && "file".equals(src.getScheme()) && new File(src).isFile())
+            deps.add(new String[]{StoreSnapshot.FILE, src.toString(), engine.getSourceStamp()});
+        if (rt.getDependencies() != null)
+            deps.addAll(Arrays.asList(rt.getDependencies()));
+
+        dependencies = new String[deps.size()][];
+        deps.toArray(dependencies);
+    }
+
+    /** Returns the index of the first dependency found to have changed, or -1 */
+    private int findChange()
+    {
+        for (int i=0; i<dependencies.length; i++)
+        {
+            String[] dep = dependencies[i];
+            File f = getLocalFile(dep);
+            if (f == null)
+            {
+                if (!dep[0].equals(StoreSnapshot.DIRECTORY))
+                    continue;
+            }
+            else
+            {
+                String key = dep[0]+" "+dep[1];
+                String stamp = Utils.fileHash(f);
+                if (stamp.equals(stats.get(key)))
+                    continue;
+                stats.put(key, stamp);
+            }
+
+            // The first check of each file, and any after its size or time changes, compares it with the recorded hash
+            if (StoreSnapshot.checkDependency(watched, dep) != null)
+                return i;
+        }
+        return -1;
+    }
+
+    public void run()
+    {
+        while (!engine.stopped())
+        {
+            try
+            {
+                Thread.sleep(interval);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+
+            JJSPRuntime rt = engine.getRuntime();
+            if (rt == null)
+                continue;
+
+            try
+            {
+                check(rt);
+            }
+            catch (Throwable t)
+            {
+                // The watcher must outlive any one bad check, or hot reload silently stops for the rest of the run
+                rt.log("warn", "Hot reload check failed", t);
+                synchronized (this)
+                {
+                    failures++;
+                }
+            }
+        }
+    }
+
+    private void check(JJSPRuntime rt)
+    {
+        if (rt != watched)
+            watch(rt);
+
+        int changed = findChange();
+        if (changed < 0)
+            return;
+
+        String[] dep = dependencies[changed];
+        rt.log("Reloading after change to "+dep[0]+" "+dep[1]);
+        if (engine.reload())
+        {
+            synchronized (this)
+            {
+                reloads++;
+            }
+        }
+        else
+        {
+            // Keep serving the old runtime, and wait for the next change before trying again
+            if (dep[0].equals(StoreSnapshot.DIRECTORY))
+            {
+                String[] current = dep.clone();
+                current[current.length-1] = StoreSnapshot.listingHash(BulkLoader.listFiles(new File(dep[1]), Integer.parseInt(dep[2]), dep[3], dep[4]));
+                dependencies[changed] = current;
+            }
+            synchronized (this)
+            {
+                failures++;
+            }
+        }
+    }
+
+    public synchronized String toString()
+    {
+        return "ReloadWatcher[every "+interval+" ms, reloads: "+reloads+", failed: "+failures+"]";
+    }
+}
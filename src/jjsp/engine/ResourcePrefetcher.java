@@ -0,0 +1,225 @@
+/*
+JJSP - Java and Javascript Server Pages 
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify 
+it under the terms of the GNU General Public License as published by 
+the Free Software Foundation, either version 3 of the License, or 
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but 
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+for more details.
+
+You should have received a copy of the GNU General Public License along with 
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.engine;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.regex.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import jjsp.util.*;
+
+/**
+   Fetches the resources a script is going to load before the script asks for them. Sources are scanned for the runtime's
+   include and load calls with a literal path, and every URI that path could resolve to (one per resource path root, in the
+   same way as Environment.loadFromResourcePath) is fetched in parallel on a small fixed set of threads. Included sources
+   are scanned in turn once they arrive, with their own URI added as a root just as include does.
+   <p>
+   Nothing here decides which URI a load ends up using: loadFromResourcePath still tries the roots in order and only
+   asks take() for the result of each attempt, so resolution is unchanged and a wrong guess costs only a wasted fetch.
+   Each prefetched result is handed out once. A local file is stamped (size and modification time) before it is fetched,
+   and its result is only handed out if the file still has that stamp, so a file changed, created or deleted while init
+   runs is loaded afresh rather than taken from an earlier read.
+ */
+public class ResourcePrefetcher
+{
+    public static final int DEFAULT_THREADS = 8;
+    public static final int DEFAULT_MAX_RESOURCES = 1000;
+
+    // Only the runtime's own calls: bare, as the prelude defines them, or on 'jjsp.' - never a method of some other object
+    private static final Pattern LOAD_CALL = Pattern.compile("(?:(?<![\\w$.])|(?<=\\bjjsp\\.))(include|cinclude|conditionalInclude|load|loadText|loadImage|loadFileToLocalStore|loadZipToLocalStore)\\s*\\(\\s*([\"'])([^\"'\\\\\\r\\n]+)\\2");
+    private static final Object NOT_FOUND = new Object();
+
+    private final int maxResources;
+    private final URICache cache;
+    private final ExecutorService executor;
+    private final ConcurrentHashMap fetches;
+    private final AtomicInteger submitted, used;
+
+    public ResourcePrefetcher()
+    {
+        this(DEFAULT_THREADS, DEFAULT_MAX_RESOURCES, null);
+    }
+
+    /** Fetches through cache when it is not null, so prefetched resources are revalidated and stored like any other load */
+    public ResourcePrefetcher(int threads, int maxResources, URICache cache)
+    {
+        this.maxResources = maxResources;
+        this.cache = cache;
+        fetches = new ConcurrentHashMap();
+        submitted = new AtomicInteger();
+        used = new AtomicInteger();
+
+        executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory()
+        {
+            AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "JJSP Prefetch "+count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /** Starts fetching every URI that the literal resource paths in source may resolve to against roots */
+    public void scan(String source, URI[] roots)
+    {
+        Matcher m = LOAD_CALL.matcher(source);
+        while (m.find())
+        {
+            String call = m.group(1);
+            boolean isInclude = call.endsWith("nclude");
+            String path = m.group(3);
+
+            for (int i=0; i<roots.length; i++)
+            {
+                try
+                {
+                    submit(roots[i].resolve(path), isInclude ? roots : null);
+                }
+                catch (Exception e) {}
+            }
+        }
+    }
+
+    private void submit(URI uri, URI[] roots)
+    {
+        if (fetches.containsKey(uri) || (submitted.get() >= maxResources))
+            return;
+
+        Fetch fetch = new Fetch(uri, roots);
+        if (fetches.putIfAbsent(uri, fetch) != null)
+            return;
+
+        submitted.incrementAndGet();
+        try
+        {
+            executor.execute(fetch.task);
+        }
+        catch (RejectedExecutionException e)
+        {
+            fetches.remove(uri, fetch);
+        }
+    }
+
+    private static String getStamp(URI uri)
+    {
+        if (!"file".equals(uri.getScheme()))
+            return null;
+        return Utils.fileHash(new File(uri));
+    }
+
+    class Fetch implements Callable
+    {
+        final URI uri;
+        final URI[] roots;
+        final FutureTask task;
+
+        String stamp;
+
+        Fetch(URI uri, URI[] roots)
+        {
+            this.uri = uri;
+            this.roots = roots;
+            task = new FutureTask(this);
+        }
+
+        public Object call() throws Exception
+        {
+            // Taken before reading, so a change made during the read still differs from it
+            stamp = getStamp(uri);
+
+            byte[] data = null;
+            try
+            {
+                if (cache != null)
+                    data = cache.load(uri);
+                else
+                    data = Utils.load(uri);
+            }
+            catch (FileNotFoundException e)
+            {
+                return NOT_FOUND;
+            }
+
+            if (roots != null)
+            {
+                URI[] nested = new URI[roots.length+1];
+                System.arraycopy(roots, 0, nested, 0, roots.length);
+                nested[roots.length] = uri;
+                scan(Utils.toAsciiString(data), nested);
+            }
+            return data;
+        }
+    }
+
+    /**
+       Returns the prefetched contents of uri, or null when it was not prefetched (or the fetch failed for a reason other
+       than the resource not existing, or it is a local file which has changed since) and the caller should load it itself. Throws FileNotFoundException when the fetch
+       found nothing there.
+    */
+    public byte[] take(URI uri) throws IOException
+    {
+        Fetch f = (Fetch) fetches.remove(uri);
+        if (f == null)
+            return null;
+
+        // If the fetch is still queued behind others, run it here rather than wait for a prefetch thread (this does nothing once it has started)
+        f.task.run();
+
+        Object result = null;
+        try
+        {
+            result = f.task.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+
+        // The stamp was set before the task completed, so get() has made it visible here
+        if ((f.stamp != null) && !f.stamp.equals(getStamp(uri)))
+            return null;
+
+        used.incrementAndGet();
+        if (result == NOT_FOUND)
+            throw new FileNotFoundException(uri.toString());
+        return (byte[]) result;
+    }
+
+    /** Stops any fetches still running and discards everything not yet taken */
+    public void close()
+    {
+        executor.shutdownNow();
+        fetches.clear();
+    }
+
+    public String toString()
+    {
+        return "ResourcePrefetcher[fetched: "+submitted.get()+", used: "+used.get()+"]";
+    }
+}
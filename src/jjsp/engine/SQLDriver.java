@@ -21,12 +21,14 @@ import java.io.*;
 import java.net.*;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
 import javax.script.*;
 
 import jjsp.util.*;
+import jjsp.http.*;
 
-public class SQLDriver implements AutoCloseable
+public class SQLDriver implements AutoCloseable, ServerMetrics.Source
 {
     public static final int MAX_CONNECTIONS = 1024;
 
@@ -42,6 +44,8 @@ public class SQLDriver implements AutoCloseable
     private HashSet allConnections;
     private LinkedList connections;
     private String dbURL, user, password;
+    private LongAdder checkoutFailures, connectionsOpened;
+    private ServerMetrics.Histogram checkoutWait;
 
     public SQLDriver(Map props, ClassLoader serviceLoader) throws Exception
     {
@@ -74,6 +78,31 @@ public class SQLDriver implements AutoCloseable
 
         allConnections = new HashSet();
         connections = new LinkedList();
+
+        checkoutFailures = new LongAdder();
+        connectionsOpened = new LongAdder();
+        checkoutWait = new ServerMetrics.Histogram();
+        ServerMetrics.getDefault().addSource(this);
+    }
+
+    public void writeMetrics(ServerMetrics.Output out)
+    {
+        int idle = 0, open = 0;
+        synchronized (connections)
+        {
+            if (closed)
+                return;
+            idle = connections.size();
+            open = allConnections.size();
+        }
+
+        String label = ServerMetrics.label("database", getDatabaseURI());
+        out.gauge("jjsp_sql_pool_open_connections", "Database connections open in the pool", label, open);
+        out.gauge("jjsp_sql_pool_idle_connections", "Database connections idle in the pool", label, idle);
+        out.gauge("jjsp_sql_pool_max_connections", "Maximum database connections in the pool", label, MAX_CONNECTIONS);
+        out.counter("jjsp_sql_pool_connections_opened_total", "New database connections made", label, connectionsOpened.sum());
+        out.counter("jjsp_sql_pool_checkout_failures_total", "Connection checkouts which timed out or failed", label, checkoutFailures.sum());
+        out.histogram("jjsp_sql_pool_checkout_wait_seconds", "Time taken to check out a pooled connection", label, checkoutWait);
     }
 
     public synchronized boolean isClosed()
@@ -235,6 +264,41 @@ public class SQLDriver implements AutoCloseable
     }
 
     public ConnectionWrapper getConnection(long timeout) throws IOException
+    {
+        ConnectionWrapper result = null;
+        long start = System.nanoTime();
+        HTTPEvents.JDBCCheckout event = new HTTPEvents.JDBCCheckout();
+        event.begin();
+        try
+        {
+            result = checkoutConnection(timeout, event);
+            return result;
+        }
+        finally
+        {
+            checkoutWait.observe((System.nanoTime() - start) / 1e9);
+            if (result == null)
+                checkoutFailures.increment();
+            if (event.newConnection)
+                connectionsOpened.increment();
+
+            event.end();
+            if (event.shouldCommit())
+            {
+                event.database = String.valueOf(getDatabaseURI());
+                event.timeout = timeout;
+                event.success = (result != null);
+                synchronized (connections)
+                {
+                    event.idleConnections = connections.size();
+                    event.openConnections = allConnections.size();
+                }
+                event.commit();
+            }
+        }
+    }
+
+    private ConnectionWrapper checkoutConnection(long timeout, HTTPEvents.JDBCCheckout event) throws IOException
     {
         long start = System.currentTimeMillis();
         while (true)
@@ -261,6 +325,7 @@ public class SQLDriver implements AutoCloseable
                     {
                         cw = new ConnectionWrapper(dbDriver.connect(dbURL, pp));
                     }
+                    event.newConnection = true;
 
                     synchronized (connections)
                     { 
@@ -337,6 +402,7 @@ public class SQLDriver implements AutoCloseable
 
     public void close() throws Exception
     {
+        ServerMetrics.getDefault().removeSource(this);
         synchronized (connections)
         {
             closed = true;
@@ -0,0 +1,219 @@
+/*
+JJSP - Java and Javascript Server Pages 
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify 
+it under the terms of the GNU General Public License as published by 
+the Free Software Foundation, either version 3 of the License, or 
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but 
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+for more details.
+
+You should have received a copy of the GNU General Public License along with 
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.engine;
+
+import java.io.*;
+import java.util.*;
+import java.nio.file.*;
+import java.nio.charset.*;
+import java.security.*;
+
+import javax.script.*;
+
+import jjsp.util.*;
+
+/**
+   Caches the work of turning JJSP sources into runnable Javascript. Translated .jjsp/.jet sources are written to a
+   'scripts' directory under the local cache directory, named by a SHA-256 hash of the source text and the translator
+   itself, so an unchanged file is never translated twice, even across restarts. Translations unused for a while, or beyond
+   the most recently used MAX_TRANSLATIONS, are deleted as new ones are written. Scripts compiled with a Compilable engine
+   are kept in memory by the same kind of hash, so a source evaluated more than once by an engine (like the prelude
+   scripts run in every scope) is compiled only once.
+   <p>
+   Compiled code is tied to the engine which compiled it, so nothing compiled is shared between runtimes (each has its
+   own engine and ScriptCache); only the translations on disk are. Persisting compiled code between runs is left to
+   Nashorn's own code cache, which JJSPRuntime switches on when the nashorn.persistent.code.cache property is set.
+ */
+public class ScriptCache
+{
+    public static final String SCRIPTS_DIR = "scripts";
+    public static final int MAX_TRANSLATIONS = 500;
+    public static final long MAX_TRANSLATION_AGE = 30L*24*3600*1000;
+
+    private static final String TRANSLATOR_KEY = getTranslatorKey();
+
+    private final File scriptsDir;
+    private final HashMap compiled;
+    private int translationHits, translationMisses, compileHits, compileMisses;
+
+    public ScriptCache(File localCacheDir)
+    {
+        scriptsDir = new File(localCacheDir, SCRIPTS_DIR);
+        scriptsDir.mkdirs();
+        compiled = new HashMap();
+    }
+
+    private static String getTranslatorKey()
+    {
+        // Any change to the parser class invalidates earlier translations
+        try
+        {
+            return Utils.toHexString(Utils.SHA256(Utils.load(ScriptParser.class.getResourceAsStream("ScriptParser.class"))));
+        }
+        catch (Exception e) {}
+        return Utils.getJarVersion();
+    }
+
+    public static String hash(String prefix, String source)
+    {
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(prefix.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            md.update(source.getBytes(StandardCharsets.UTF_8));
+            return Utils.toHexString(md.digest());
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    public File getScriptsDir()
+    {
+        return scriptsDir;
+    }
+
+    /** Returns the Javascript translation of a JJSP source, from the cache directory when this exact source has been translated before */
+    public String translate(String jjspSource)
+    {
+        String key = hash(TRANSLATOR_KEY, jjspSource);
+        File cached = new File(scriptsDir, key+".js");
+
+        if (cached.isFile())
+        {
+            try
+            {
+                String result = new String(Utils.load(cached), StandardCharsets.UTF_8);
+                // Marks the translation as in use, so pruning removes the ones no longer used first
+                cached.setLastModified(System.currentTimeMillis());
+                synchronized (this)
+                {
+                    translationHits++;
+                }
+                return result;
+            }
+            catch (Exception e) {}
+        }
+
+        String result = new ScriptParser(jjspSource).translateToJavascript();
+        synchronized (this)
+        {
+            translationMisses++;
+        }
+
+        // Written to a temporary file and moved so that a concurrent reader never sees a partial translation
+        File temp = null;
+        try
+        {
+            temp = File.createTempFile(key, ".tmp", scriptsDir);
+            Files.write(temp.toPath(), result.getBytes(StandardCharsets.UTF_8));
+            Files.move(temp.toPath(), cached.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (Exception e)
+        {
+            if (temp != null)
+                temp.delete();
+        }
+
+        prune(cached);
+        return result;
+    }
+
+    /** 
+        Deletes translations not used for MAX_TRANSLATION_AGE and then, least recently used first, any beyond MAX_TRANSLATIONS,
+        so that the directory does not grow with every edit of every source. Called after a new translation is written.
+    */
+    private void prune(File keep)
+    {
+        File[] files = scriptsDir.listFiles();
+        if (files == null)
+            return;
+
+        long now = System.currentTimeMillis();
+        ArrayList retained = new ArrayList();
+        for (int i=0; i<files.length; i++)
+        {
+            File f = files[i];
+            if (!f.isFile() || f.equals(keep))
+                continue;
+
+            String name = f.getName();
+            long age = now - f.lastModified();
+            if (name.endsWith(".js") && (age > MAX_TRANSLATION_AGE))
+                f.delete();
+            else if (name.endsWith(".tmp") && (age > 3600*1000))
+                f.delete();
+            else if (name.endsWith(".js"))
+                retained.add(f);
+        }
+
+        if (retained.size() < MAX_TRANSLATIONS)
+            return;
+
+        File[] byAge = new File[retained.size()];
+        retained.toArray(byAge);
+        Arrays.sort(byAge, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (int i=0; i<=byAge.length-MAX_TRANSLATIONS; i++)
+            byAge[i].delete();
+    }
+
+    /** Returns the compiled form of jsSource for engine, or null when the engine cannot compile scripts */
+    public CompiledScript compile(ScriptEngine engine, String jsSource) throws ScriptException
+    {
+        if (!(engine instanceof Compilable))
+            return null;
+
+        // The file name is compiled into the script (for error reports), so is part of the key
+        Object fileName = engine.get(ScriptEngine.FILENAME);
+        String key = hash(String.valueOf(fileName), jsSource);
+
+        synchronized (this)
+        {
+            CompiledScript result = (CompiledScript) compiled.get(key);
+            if ((result != null) && (result.getEngine() == engine))
+            {
+                compileHits++;
+                return result;
+            }
+        }
+
+        CompiledScript result = ((Compilable) engine).compile(jsSource);
+        synchronized (this)
+        {
+            compileMisses++;
+            compiled.put(key, result);
+        }
+        return result;
+    }
+
+    /** Evaluates jsSource in the engine's default context, compiling it first (or reusing an earlier compilation) when possible */
+    public Object eval(ScriptEngine engine, String jsSource) throws ScriptException
+    {
+        CompiledScript cs = compile(engine, jsSource);
+        if (cs == null)
+            return engine.eval(jsSource);
+        return cs.eval();
+    }
+
+    public synchronized String toString()
+    {
+        return "ScriptCache["+scriptsDir+"  translations: "+translationHits+" cached, "+translationMisses+" new;  compilations: "+compileHits+" cached, "+compileMisses+" new]";
+    }
+}
@@ -0,0 +1,355 @@
+/*
+JJSP - Java and Javascript Server Pages 
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify 
+it under the terms of the GNU General Public License as published by 
+the Free Software Foundation, either version 3 of the License, or 
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but 
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+for more details.
+
+You should have received a copy of the GNU General Public License along with 
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.engine;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.lang.reflect.*;
+
+import javax.script.*;
+
+import jjsp.http.*;
+
+/**
+   A fixed set of independent Javascript global scopes, all created from one ScriptEngine and initialised by running the
+   same scripts (compiled once, when the engine supports it) in each. A thread borrows an instance for the duration of a
+   call and has sole use of it, so script state is never touched by two threads at once; a thread goes back to the
+   instance it used last if that is free, which keeps each global (and what the JIT has learnt about it) mostly on one
+   thread.
+   <p>
+   The contract for state: Javascript variables and objects belong to the instance which created them and are never seen
+   by the others, so anything a script keeps between calls (counters, caches, memoised values) is per instance. The only
+   state shared between instances is the Java objects placed in every scope with putShared (and the JJSPRuntime itself
+   when the pool is created by one) - these are called concurrently and must be thread safe.
+ */
+public class ScriptEnginePool implements ServerMetrics.Source
+{
+    public static final int DEFAULT_SIZE = Runtime.getRuntime().availableProcessors();
+
+    private final String name;
+    private final ScriptEngine engine;
+    private final Instance[] instances;
+    private final Semaphore available;
+    private final ThreadLocal affinity;
+    private final LongAdder borrows, waits, affinityHits;
+    private final ServerMetrics.Histogram acquireWait;
+
+    public class Instance
+    {
+        private final int index;
+        private final Bindings global;
+        private final ScriptContext context;
+        private final AtomicBoolean inUse;
+
+        Instance(int index, Bindings global, ScriptContext context)
+        {
+            this.index = index;
+            this.global = global;
+            this.context = context;
+            inUse = new AtomicBoolean(false);
+        }
+
+        public int getIndex()
+        {
+            return index;
+        }
+
+        public ScriptContext getContext()
+        {
+            return context;
+        }
+
+        public Object eval(String jsSource) throws ScriptException
+        {
+            return engine.eval(jsSource, context);
+        }
+
+        public Object get(String key)
+        {
+            return context.getAttribute(key, ScriptContext.ENGINE_SCOPE);
+        }
+
+        public Object invokeFunction(String functionName, Object... args) throws ScriptException, NoSuchMethodException
+        {
+            if (global == null)
+                return ((Invocable) engine).invokeFunction(functionName, args);
+            // The bindings of a script scope are the global object itself, so this runs the function in this instance's global
+            return ((Invocable) engine).invokeMethod(global, functionName, args);
+        }
+
+        /**
+            Returns an implementation of the single method interface iface which calls the named global function of this instance
+            directly, so that callers pay for the function lookup and argument conversion set up once rather than on every call.
+        */
+        public Object bindFunction(String functionName, Class iface) throws ScriptException
+        {
+            Method method = getSingleMethod(iface);
+            Object target = null;
+            if (global == null)
+                target = engine.eval("({"+method.getName()+": "+functionName+"})");
+            else
+                target = engine.eval("({"+method.getName()+": "+functionName+"})", context);
+
+            if (target == null)
+                throw new ScriptException("Function '"+functionName+"' not found");
+            Object result = ((Invocable) engine).getInterface(target, iface);
+            if (result == null)
+                throw new ScriptException("Function '"+functionName+"' cannot implement "+iface.getName());
+            return result;
+        }
+    }
+
+    static Method getSingleMethod(Class iface)
+    {
+        if (!iface.isInterface())
+            throw new IllegalArgumentException(iface+" is not an interface");
+
+        Method result = null;
+        Method[] mm = iface.getMethods();
+        for (int i=0; i<mm.length; i++)
+        {
+            if (!Modifier.isAbstract(mm[i].getModifiers()))
+                continue;
+            if (result != null)
+                throw new IllegalArgumentException(iface+" has more than one method");
+            result = mm[i];
+        }
+
+        if (result == null)
+            throw new IllegalArgumentException(iface+" has no methods");
+        return result;
+    }
+
+    /** Wraps a single engine which has already been set up, so calls into it are serialised rather than concurrent */
+    public ScriptEnginePool(String name, ScriptEngine engine)
+    {
+        this.name = name;
+        this.engine = engine;
+        instances = new Instance[]{new Instance(0, null, engine.getContext())};
+
+        available = new Semaphore(1);
+        affinity = new ThreadLocal();
+        borrows = new LongAdder();
+        waits = new LongAdder();
+        affinityHits = new LongAdder();
+        acquireWait = new ServerMetrics.Histogram();
+        ServerMetrics.getDefault().addSource(this);
+    }
+
+    public ScriptEnginePool(String name, ScriptEngine engine, int size, String[] sources) throws ScriptException
+    {
+        this(name, engine, size, sources, null);
+    }
+
+    /** Creates size global scopes in engine, puts each of the shared values into every scope, then runs each source in every scope in order */
+    public ScriptEnginePool(String name, ScriptEngine engine, int size, String[] sources, Map shared) throws ScriptException
+    {
+        this.name = name;
+        this.engine = engine;
+        size = Math.max(1, size);
+
+        Object[] compiled = new Object[sources.length];
+        for (int i=0; i<sources.length; i++)
+        {
+            if (engine instanceof Compilable)
+                compiled[i] = ((Compilable) engine).compile(sources[i]);
+            else
+                compiled[i] = sources[i];
+        }
+
+        instances = new Instance[size];
+        for (int i=0; i<size; i++)
+        {
+            SimpleScriptContext context = new SimpleScriptContext();
+            Bindings global = engine.createBindings();
+            context.setBindings(global, ScriptContext.ENGINE_SCOPE);
+            context.setBindings(engine.getBindings(ScriptContext.GLOBAL_SCOPE), ScriptContext.GLOBAL_SCOPE);
+            context.setWriter(engine.getContext().getWriter());
+            context.setErrorWriter(engine.getContext().getErrorWriter());
+            context.setReader(null);
+
+            if (shared != null)
+                global.putAll(shared);
+
+            for (int j=0; j<compiled.length; j++)
+            {
+                if (compiled[j] instanceof CompiledScript)
+                    ((CompiledScript) compiled[j]).eval(context);
+                else
+                    engine.eval((String) compiled[j], context);
+            }
+
+            instances[i] = new Instance(i, global, context);
+        }
+
+        available = new Semaphore(size);
+        affinity = new ThreadLocal();
+        borrows = new LongAdder();
+        waits = new LongAdder();
+        affinityHits = new LongAdder();
+        acquireWait = new ServerMetrics.Histogram();
+        ServerMetrics.getDefault().addSource(this);
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public ScriptEngine getEngine()
+    {
+        return engine;
+    }
+
+    public int size()
+    {
+        return instances.length;
+    }
+
+    /** Puts a (thread safe) Java object into the global scope of every instance, waiting until none of them is in use */
+    public void putShared(String key, Object value) throws InterruptedException
+    {
+        available.acquire(instances.length);
+        try
+        {
+            for (int i=0; i<instances.length; i++)
+                instances[i].context.setAttribute(key, value, ScriptContext.ENGINE_SCOPE);
+        }
+        finally
+        {
+            available.release(instances.length);
+        }
+    }
+
+    /** Binds the named function in every instance (see Instance.bindFunction); the result is indexed by Instance.getIndex() */
+    public Object[] bindFunction(String functionName, Class iface) throws ScriptException, InterruptedException
+    {
+        Object[] result = new Object[instances.length];
+        available.acquire(instances.length);
+        try
+        {
+            for (int i=0; i<instances.length; i++)
+                result[i] = instances[i].bindFunction(functionName, iface);
+        }
+        finally
+        {
+            available.release(instances.length);
+        }
+        return result;
+    }
+
+    public Instance acquire() throws InterruptedException
+    {
+        long start = System.nanoTime();
+        borrows.increment();
+        if (!available.tryAcquire())
+        {
+            waits.increment();
+            available.acquire();
+        }
+
+        try
+        {
+            // Holding a permit means at least one instance is free; prefer the one this thread used last
+            Instance preferred = (Instance) affinity.get();
+            if ((preferred != null) && preferred.inUse.compareAndSet(false, true))
+            {
+                affinityHits.increment();
+                return preferred;
+            }
+
+            int first = (int) ((Thread.currentThread().getId() & 0x7FFFFFFF) % instances.length);
+            while (true)
+            {
+                for (int i=0; i<instances.length; i++)
+                {
+                    Instance inst = instances[(first + i) % instances.length];
+                    if (inst.inUse.compareAndSet(false, true))
+                    {
+                        affinity.set(inst);
+                        return inst;
+                    }
+                }
+                Thread.yield();
+            }
+        }
+        finally
+        {
+            acquireWait.observe((System.nanoTime() - start) / 1e9);
+        }
+    }
+
+    public void release(Instance inst)
+    {
+        if ((inst == null) || !inst.inUse.compareAndSet(true, false))
+            return;
+        available.release();
+    }
+
+    /** Calls the named global function in whichever instance this thread can borrow */
+    public Object invokeFunction(String functionName, Object... args) throws ScriptException, NoSuchMethodException
+    {
+        Instance inst = null;
+        try
+        {
+            inst = acquire();
+        }
+        catch (InterruptedException e)
+        {
+            throw new ScriptException("Interrupted waiting for a script engine instance of pool '"+name+"'");
+        }
+
+        try
+        {
+            return inst.invokeFunction(functionName, args);
+        }
+        finally
+        {
+            release(inst);
+        }
+    }
+
+    public void writeMetrics(ServerMetrics.Output out)
+    {
+        int busy = 0;
+        for (int i=0; i<instances.length; i++)
+            if (instances[i].inUse.get())
+                busy++;
+
+        String label = ServerMetrics.label("pool", name);
+        out.gauge("jjsp_script_pool_instances", "Script engine instances in the pool", label, instances.length);
+        out.gauge("jjsp_script_pool_busy_instances", "Script engine instances currently borrowed", label, busy);
+        out.counter("jjsp_script_pool_borrows_total", "Instances borrowed from the pool for a call", label, borrows.sum());
+        out.counter("jjsp_script_pool_waits_total", "Borrows which had to wait for a free instance", label, waits.sum());
+        out.counter("jjsp_script_pool_affinity_hits_total", "Borrows which got the same instance as the thread's previous call", label, affinityHits.sum());
+        out.histogram("jjsp_script_pool_acquire_wait_seconds", "Time taken to borrow a script engine instance", label, acquireWait);
+    }
+
+    public String getMetricsKey()
+    {
+        return "script_pool/"+name;
+    }
+
+    /** Removes the pool from the server metrics; the instances stay usable */
+    public void close()
+    {
+        ServerMetrics.getDefault().removeSource(this);
+    }
+}
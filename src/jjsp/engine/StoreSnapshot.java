@@ -0,0 +1,362 @@
+/*
+JJSP - Java and Javascript Server Pages 
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify 
+it under the terms of the GNU General Public License as published by 
+the Free Software Foundation, either version 3 of the License, or 
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but 
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+for more details.
+
+You should have received a copy of the GNU General Public License along with 
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.engine;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.nio.file.*;
+import java.nio.channels.*;
+
+import jjsp.util.*;
+import jjsp.http.*;
+
+/**
+   Saves a fully built local store to an image file, and maps it back in on the next start when nothing it was built
+   from has changed, so that generating the site's content need not be repeated on every restart.
+   <p>
+   An image is named by a key made from the main source, the root URI and the args. It lists what the store was built
+   from: every resource loaded through the resource path (includes, parsed sources, data files and zips) with a hash of
+   its content, every directory walked by loadFilesToLocalStore with a hash of its listing, and the size and modification
+   time of every file whose content is in the store. An image is used only when all of these still match. After the
+   dependency list comes an index of the entries, giving each one's path, source URI, ETag and the offsets of its
+   content and its gzip and deflate forms, then all the content. Content is not read on restore; the data region is
+   memory mapped and each entry wraps its own slice of it. Entries registered by a remote URI are saved as references
+   only, so they are still loaded (and revalidated) from their URI on first use.
+   <p>
+   Scripts still run in full after a restore (they also set up the filters and handlers which serve the content), so
+   expensive generation steps should be skipped when JJSPRuntime.restoredFromSnapshot() is true.
+ */
+public class StoreSnapshot
+{
+    public static final String SNAPSHOT_DIR = "snapshots";
+    public static final String IMAGE_SUFFIX = ".img";
+
+    public static final String RESOURCE = "resource";
+    public static final String DIRECTORY = "dir";
+    public static final String FILE = "file";
+
+    private static final String MAGIC = "JJSP Local Store Snapshot 1";
+    private static final int LAZY = 1;
+    private static final int COMPRESSED = 2;
+    private static final String[] ENCODINGS = {"gzip", "deflate"};
+
+    private final File dir, imageFile;
+    private final String key;
+
+    private String status;
+
+    public StoreSnapshot(File localCacheDir, String key)
+    {
+        this.key = key;
+        dir = new File(localCacheDir, SNAPSHOT_DIR);
+        imageFile = new File(dir, key+IMAGE_SUFFIX);
+        status = "not used";
+    }
+
+    public static String createKey(String mainSource, URI rootURI, Map args)
+    {
+        StringBuffer buf = new StringBuffer();
+        buf.append(rootURI+"\n");
+        Iterator itt = new TreeMap(args).entrySet().iterator();
+        while (itt.hasNext())
+        {
+            Map.Entry e = (Map.Entry) itt.next();
+            buf.append(e.getKey()+"="+e.getValue()+"\n");
+        }
+        return ScriptCache.hash(buf.toString(), mainSource);
+    }
+
+    public static String listingHash(List files)
+    {
+        StringBuffer buf = new StringBuffer();
+        for (int i=0; i<files.size(); i++)
+            buf.append(((File) files.get(i)).getAbsolutePath()+"\n");
+        return Utils.SHA256(buf.toString());
+    }
+
+    public File getImageFile()
+    {
+        return imageFile;
+    }
+
+    public String getStatus()
+    {
+        return status;
+    }
+
+    private static String readString(DataInputStream din) throws IOException
+    {
+        String s = din.readUTF();
+        return (s.length() == 0) ? null : s;
+    }
+
+    /** Returns null when the dependency still matches, otherwise a description of the difference */
+    static String checkDependency(Environment env, String[] dep)
+    {
+        try
+        {
+            String kind = dep[0];
+            String hash = dep[dep.length-1];
+            if (kind.equals(RESOURCE))
+            {
+                byte[] data = env.getURICache().load(new URI(dep[1]));
+                if (Utils.toHexString(Utils.SHA256(data)).equals(hash))
+                    return null;
+            }
+            else if (kind.equals(DIRECTORY))
+            {
+                List files = BulkLoader.listFiles(new File(dep[1]), Integer.parseInt(dep[2]), dep[3], dep[4]);
+                if (listingHash(files).equals(hash))
+                    return null;
+            }
+            else if (kind.equals(FILE))
+            {
+                if (Utils.fileHash(new File(new URI(dep[1]))).equals(hash))
+                    return null;
+            }
+            return "changed "+kind+" "+dep[1];
+        }
+        catch (Exception e)
+        {
+            return "cannot check "+dep[0]+" "+dep[1]+": "+e;
+        }
+    }
+
+    /**
+        Puts the entries of the image into the env's local store if the image exists and everything it depends on is
+        unchanged, returning true if it did.
+    */
+    public boolean restore(Environment env)
+    {
+        if (!imageFile.isFile())
+        {
+            status = "no image "+imageFile;
+            return false;
+        }
+
+        try
+        {
+            FileChannel channel = FileChannel.open(imageFile.toPath(), StandardOpenOption.READ);
+            try
+            {
+                DataInputStream din = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+                int headerLength = din.readInt();
+                if (!din.readUTF().equals(MAGIC) || !din.readUTF().equals(key))
+                {
+                    status = "image "+imageFile+" is for another version or source";
+                    return false;
+                }
+
+                int depCount = din.readInt();
+                for (int i=0; i<depCount; i++)
+                {
+                    String[] dep = new String[din.readInt()];
+                    for (int j=0; j<dep.length; j++)
+                        dep[j] = din.readUTF();
+
+                    String mismatch = checkDependency(env, dep);
+                    if (mismatch != null)
+                    {
+                        status = "image "+imageFile+" is out of date: "+mismatch;
+                        return false;
+                    }
+                }
+
+                long dataStart = 4 + headerLength;
+                long dataLength = channel.size() - dataStart;
+                MappedByteBuffer region = null;
+                if (dataLength <= Integer.MAX_VALUE)
+                    region = channel.map(FileChannel.MapMode.READ_ONLY, dataStart, dataLength);
+
+                OffHeapStore store = env.getOffHeapStore();
+                Environment.LocalEntry[] entries = new Environment.LocalEntry[din.readInt()];
+                for (int i=0; i<entries.length; i++)
+                {
+                    String path = din.readUTF();
+                    String source = readString(din);
+                    URI sourceURI = (source == null) ? null : new URI(source);
+                    int flags = din.readByte();
+                    if ((flags & LAZY) != 0)
+                    {
+                        entries[i] = env.new LocalEntry(path, sourceURI, null);
+                        continue;
+                    }
+
+                    String eTag = readString(din);
+                    OffHeapStore.Asset[] assets = new OffHeapStore.Asset[1+ENCODINGS.length];
+                    for (int j=0; j<assets.length; j++)
+                    {
+                        long offset = din.readLong();
+                        int length = din.readInt();
+                        if (length < 0)
+                            continue;
+
+                        ByteBuffer slice = null;
+                        if (region != null)
+                        {
+                            ByteBuffer view = region.duplicate();
+                            view.position((int) offset);
+                            view.limit((int) offset + length);
+                            slice = view.slice();
+                        }
+                        else
+                            slice = channel.map(FileChannel.MapMode.READ_ONLY, dataStart + offset, length);
+
+                        assets[j] = store.wrap(slice, (j == 0) ? eTag : null);
+                    }
+                    entries[i] = env.new LocalEntry(path, sourceURI, assets[0], assets[1], assets[2], (flags & COMPRESSED) != 0);
+                }
+
+                int count = env.putLocalEntries(entries);
+                status = "restored "+count+" entries from "+imageFile;
+                return true;
+            }
+            finally
+            {
+                // The mappings stay valid after the channel is closed
+                channel.close();
+            }
+        }
+        catch (Exception e)
+        {
+            status = "failed to read image "+imageFile+": "+e;
+            return false;
+        }
+    }
+
+    /**
+        Writes the env's local store to the image, with the given dependencies (from Environment.stopRecordingDependencies)
+        and one for each file whose content the store holds. Other images in the snapshot directory are deleted.
+    */
+    public void write(Environment env, String[][] dependencies) throws IOException
+    {
+        String[] paths = env.listLocal();
+        ArrayList deps = new ArrayList();
+        HashSet recordedFiles = new HashSet();
+        for (int i=0; (dependencies != null) && (i<dependencies.length); i++)
+        {
+            deps.add(dependencies[i]);
+            if (dependencies[i][0].equals(FILE))
+                recordedFiles.add(dependencies[i][1]);
+        }
+
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        DataOutputStream iout = new DataOutputStream(index);
+        ArrayList content = new ArrayList();
+        long offset = 0;
+
+        iout.writeInt(paths.length);
+        for (int i=0; i<paths.length; i++)
+        {
+            Environment.LocalEntry entry = env.getLocalEntry(paths[i]);
+            URI sourceURI = (entry == null) ? null : entry.sourceURI;
+            boolean fileSource = (sourceURI != null) && "file".equals(sourceURI.getScheme());
+            OffHeapStore.Asset data = null;
+            if ((entry != null) && ((sourceURI == null) || fileSource))
+                data = entry.getAsset();
+
+            iout.writeUTF(paths[i]);
+            iout.writeUTF((sourceURI == null) ? "" : sourceURI.toString());
+            if (data == null)
+            {
+                iout.writeByte(LAZY);
+                continue;
+            }
+
+            // Files bulk loaded during init were stamped as they were read, which stays the better record
+            if (fileSource && !recordedFiles.contains(sourceURI.toString()))
+                deps.add(new String[]{FILE, sourceURI.toString(), Utils.fileHash(new File(sourceURI))});
+
+            OffHeapStore.Asset[] assets = new OffHeapStore.Asset[1+ENCODINGS.length];
+            assets[0] = data;
+            for (int j=0; j<ENCODINGS.length; j++)
+                assets[j+1] = entry.getCompressedAsset(ENCODINGS[j]);
+
+            iout.writeByte(entry.isCompressed() ? COMPRESSED : 0);
+            iout.writeUTF(data.getETag());
+            for (int j=0; j<assets.length; j++)
+            {
+                if (assets[j] == null)
+                {
+                    iout.writeLong(0);
+                    iout.writeInt(-1);
+                    continue;
+                }
+
+                iout.writeLong(offset);
+                iout.writeInt(assets[j].length());
+                offset += assets[j].length();
+                content.add(assets[j]);
+            }
+        }
+        iout.close();
+
+        dir.mkdirs();
+        File temp = File.createTempFile(key, ".tmp", dir);
+        try
+        {
+            DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64*1024));
+            try
+            {
+                ByteArrayOutputStream header = new ByteArrayOutputStream();
+                DataOutputStream hout = new DataOutputStream(header);
+                hout.writeUTF(MAGIC);
+                hout.writeUTF(key);
+                hout.writeInt(deps.size());
+                for (int i=0; i<deps.size(); i++)
+                {
+                    String[] dep = (String[]) deps.get(i);
+                    hout.writeInt(dep.length);
+                    for (int j=0; j<dep.length; j++)
+                        hout.writeUTF(dep[j]);
+                }
+                index.writeTo(hout);
+                hout.close();
+
+                dout.writeInt(header.size());
+                header.writeTo(dout);
+                for (int i=0; i<content.size(); i++)
+                    ((OffHeapStore.Asset) content.get(i)).writeTo(dout);
+            }
+            finally
+            {
+                dout.close();
+            }
+
+            Files.move(temp.toPath(), imageFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally
+        {
+            temp.delete();
+        }
+
+        File[] old = dir.listFiles();
+        for (int i=0; (old != null) && (i<old.length); i++)
+            if (old[i].getName().endsWith(IMAGE_SUFFIX) && !old[i].equals(imageFile))
+                old[i].delete();
+
+        status = "wrote "+paths.length+" entries ("+offset+" bytes) to "+imageFile;
+    }
+
+    public String toString()
+    {
+        return "StoreSnapshot["+status+"]";
+    }
+}
@@ -0,0 +1,407 @@
+/*
+JJSP - Java and Javascript Server Pages 
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify 
+it under the terms of the GNU General Public License as published by 
+the Free Software Foundation, either version 3 of the License, or 
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but 
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+for more details.
+
+You should have received a copy of the GNU General Public License along with 
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.engine;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import jjsp.util.*;
+
+/**
+   A disk cache for resources loaded over HTTP(S) by an Environment. Each copy is kept with the ETag and Last-Modified
+   of the response which delivered it, and loading it again sends a conditional request, so an unchanged resource costs a
+   304 rather than its whole body. A copy is used without asking the server at all while it is fresh: for the max-age the
+   server gave, or else for the configured default freshness (none unless set).
+   <p>
+   Misses (404 and 410) are remembered for a short time, so looking a path up against a list of roots does not repeat
+   a failed fetch for every root on every lookup. With serveStale set, a cached copy is used when the server cannot be
+   reached or fails; offline mode uses a cached copy without contacting the server at all. Other URI schemes are loaded
+   directly.
+ */
+public class URICache
+{
+    public static final String URI_CACHE_DIR = "uricache";
+    public static final long DEFAULT_MISS_TTL = 30000;
+
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 60000;
+
+    private final File cacheDir;
+    private final ConcurrentHashMap entries, misses;
+    private final AtomicLong hits, revalidated, fetched, missHits, staleServed;
+
+    private volatile long missTTL, defaultFreshness;
+    private volatile boolean serveStale, offline;
+
+    class Entry
+    {
+        final File file;
+        final String etag, lastModified;
+        final long maxAge;
+        volatile long validated;
+
+        Entry(File file, String etag, String lastModified, long maxAge, long validated)
+        {
+            this.file = file;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.maxAge = maxAge;
+            this.validated = validated;
+        }
+
+        boolean isFresh(long now)
+        {
+            long freshFor = (maxAge >= 0) ? maxAge : defaultFreshness;
+            return now - validated < freshFor;
+        }
+
+        byte[] read() throws IOException
+        {
+            DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try
+            {
+                readHeader(din);
+                byte[] result = new byte[din.readInt()];
+                din.readFully(result);
+                return result;
+            }
+            finally
+            {
+                din.close();
+            }
+        }
+    }
+
+    public URICache(File localCacheDir)
+    {
+        cacheDir = new File(localCacheDir, URI_CACHE_DIR);
+        cacheDir.mkdirs();
+
+        entries = new ConcurrentHashMap();
+        misses = new ConcurrentHashMap();
+        hits = new AtomicLong();
+        revalidated = new AtomicLong();
+        fetched = new AtomicLong();
+        missHits = new AtomicLong();
+        staleServed = new AtomicLong();
+
+        missTTL = DEFAULT_MISS_TTL;
+        defaultFreshness = 0;
+        serveStale = false;
+        offline = false;
+    }
+
+    /** How long (ms) a 404 or 410 for a URI is remembered; 0 turns off the negative cache */
+    public void setMissTTL(long millis)
+    {
+        missTTL = Math.max(0, millis);
+        if (missTTL == 0)
+            misses.clear();
+    }
+
+    /** How long (ms) a copy is used without revalidation when the server did not give a max-age */
+    public void setDefaultFreshness(long millis)
+    {
+        defaultFreshness = Math.max(0, millis);
+    }
+
+    /** When set, a cached copy is returned if the server cannot be reached or returns a server error */
+    public void setServeStale(boolean value)
+    {
+        serveStale = value;
+    }
+
+    /** When set, cached copies are returned without contacting the server; only uncached resources are fetched */
+    public void setOffline(boolean value)
+    {
+        offline = value;
+    }
+
+    public File getCacheDir()
+    {
+        return cacheDir;
+    }
+
+    public static boolean isCacheable(URI uri)
+    {
+        String scheme = uri.getScheme();
+        return "http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme);
+    }
+
+    public byte[] load(URI uri) throws IOException
+    {
+        if (!isCacheable(uri))
+        {
+            try
+            {
+                return Utils.load(uri);
+            }
+            catch (IOException e)
+            {
+                throw e;
+            }
+            catch (Exception e)
+            {
+                throw new IOException("Failed to load "+uri, e);
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        Long missTime = (Long) misses.get(uri);
+        if (missTime != null)
+        {
+            if (now - missTime.longValue() < missTTL)
+            {
+                missHits.incrementAndGet();
+                throw new FileNotFoundException(uri.toString());
+            }
+            misses.remove(uri, missTime);
+        }
+
+        Entry entry = getEntry(uri);
+        if ((entry != null) && (offline || entry.isFresh(now)))
+        {
+            try
+            {
+                byte[] result = entry.read();
+                hits.incrementAndGet();
+                return result;
+            }
+            catch (IOException e)
+            {
+                entries.remove(uri, entry);
+                entry = null;
+            }
+        }
+
+        try
+        {
+            return fetch(uri, entry);
+        }
+        catch (FileNotFoundException e)
+        {
+            throw e;
+        }
+        catch (IOException e)
+        {
+            if (serveStale && (entry != null))
+            {
+                try
+                {
+                    byte[] result = entry.read();
+                    staleServed.incrementAndGet();
+                    return result;
+                }
+                catch (IOException ee) {}
+            }
+            throw e;
+        }
+    }
+
+    private byte[] fetch(URI uri, Entry entry) throws IOException
+    {
+        HttpURLConnection conn = (HttpURLConnection) uri.toURL().openConnection();
+        conn.setUseCaches(false);
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout(READ_TIMEOUT);
+        if (entry != null)
+        {
+            if (entry.etag != null)
+                conn.setRequestProperty("If-None-Match", entry.etag);
+            if (entry.lastModified != null)
+                conn.setRequestProperty("If-Modified-Since", entry.lastModified);
+        }
+
+        try
+        {
+            int code = conn.getResponseCode();
+            if ((code == HttpURLConnection.HTTP_NOT_MODIFIED) && (entry != null))
+            {
+                byte[] result = entry.read();
+                entry.validated = System.currentTimeMillis();
+                revalidated.incrementAndGet();
+                return result;
+            }
+
+            if ((code == HttpURLConnection.HTTP_NOT_FOUND) || (code == HttpURLConnection.HTTP_GONE))
+            {
+                discard(uri);
+                if (missTTL > 0)
+                    misses.put(uri, Long.valueOf(System.currentTimeMillis()));
+                throw new FileNotFoundException(uri.toString());
+            }
+
+            if (code != HttpURLConnection.HTTP_OK)
+                throw new IOException("HTTP "+code+" loading "+uri);
+
+            byte[] result = Utils.load(conn.getInputStream());
+            fetched.incrementAndGet();
+
+            String cacheControl = conn.getHeaderField("Cache-Control");
+            if ((cacheControl != null) && cacheControl.toLowerCase().contains("no-store"))
+                discard(uri);
+            else
+                store(uri, result, conn.getHeaderField("ETag"), conn.getHeaderField("Last-Modified"), getMaxAge(cacheControl));
+            return result;
+        }
+        finally
+        {
+            try
+            {
+                if (conn.getErrorStream() != null)
+                    conn.getErrorStream().close();
+            }
+            catch (Exception e) {}
+        }
+    }
+
+    static long getMaxAge(String cacheControl)
+    {
+        if (cacheControl == null)
+            return -1;
+
+        String[] parts = cacheControl.toLowerCase().split(",");
+        for (int i=0; i<parts.length; i++)
+        {
+            String part = parts[i].trim();
+            if (part.equals("no-cache"))
+                return 0;
+            if (part.startsWith("max-age="))
+            {
+                try
+                {
+                    return 1000l*Long.parseLong(part.substring(8).trim());
+                }
+                catch (Exception e) {}
+            }
+        }
+        return -1;
+    }
+
+    private File getFile(URI uri)
+    {
+        return new File(cacheDir, Utils.SHA256(uri.toString())+".cache");
+    }
+
+    private static String readString(DataInputStream din) throws IOException
+    {
+        String s = din.readUTF();
+        return (s.length() == 0) ? null : s;
+    }
+
+    private static String[] readHeader(DataInputStream din) throws IOException
+    {
+        return new String[]{din.readUTF(), readString(din), readString(din), String.valueOf(din.readLong())};
+    }
+
+    private Entry getEntry(URI uri)
+    {
+        Entry result = (Entry) entries.get(uri);
+        if (result != null)
+            return result;
+
+        // Copies written by earlier runs are revalidated before first use, since their freshness is unknown
+        File f = getFile(uri);
+        if (!f.isFile())
+            return null;
+
+        try
+        {
+            DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            try
+            {
+                String[] header = readHeader(din);
+                if (!header[0].equals(uri.toString()))
+                    return null;
+                result = new Entry(f, header[1], header[2], Long.parseLong(header[3]), 0);
+            }
+            finally
+            {
+                din.close();
+            }
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+
+        Entry prev = (Entry) entries.putIfAbsent(uri, result);
+        return (prev != null) ? prev : result;
+    }
+
+    private void store(URI uri, byte[] data, String etag, String lastModified, long maxAge)
+    {
+        if ((etag == null) && (lastModified == null) && (maxAge <= 0) && (defaultFreshness == 0) && !serveStale && !offline)
+        {
+            // Nothing could ever make use of the copy
+            discard(uri);
+            return;
+        }
+
+        File f = getFile(uri);
+        File temp = null;
+        try
+        {
+            temp = File.createTempFile(f.getName(), ".tmp", cacheDir);
+            DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try
+            {
+                dout.writeUTF(uri.toString());
+                dout.writeUTF((etag == null) ? "" : etag);
+                dout.writeUTF((lastModified == null) ? "" : lastModified);
+                dout.writeLong(maxAge);
+                dout.writeInt(data.length);
+                dout.write(data);
+            }
+            finally
+            {
+                dout.close();
+            }
+
+            Files.move(temp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            entries.put(uri, new Entry(f, etag, lastModified, maxAge, System.currentTimeMillis()));
+        }
+        catch (Exception e)
+        {
+            if (temp != null)
+                temp.delete();
+            entries.remove(uri);
+        }
+    }
+
+    private void discard(URI uri)
+    {
+        entries.remove(uri);
+        getFile(uri).delete();
+    }
+
+    /** Forgets all remembered misses, so the next lookups go to the servers again */
+    public void clearMisses()
+    {
+        misses.clear();
+    }
+
+    public String toString()
+    {
+        return "URICache["+cacheDir+"  fresh hits: "+hits.get()+", revalidated: "+revalidated.get()+", fetched: "+fetched.get()+", known misses: "+missHits.get()+", stale served: "+staleServed.get()+"]";
+    }
+}
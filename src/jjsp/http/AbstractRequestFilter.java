@@ -87,6 +87,10 @@ public abstract class AbstractRequestFilter implements HTTPRequestFilter
             myChain.report = ERROR;
             myChain.error = t;
         }
+        finally
+        {
+            myChain.markExit();
+        }
         
         return myChain;
     }
@@ -0,0 +1,217 @@
+/*
+JJSP - Java and Javascript Server Pages 
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify 
+it under the terms of the GNU General Public License as published by 
+the Free Software Foundation, either version 3 of the License, or 
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but 
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+for more details.
+
+You should have received a copy of the GNU General Public License along with 
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.http;
+
+import java.io.*;
+import java.util.*;
+import java.text.*;
+
+import jjsp.util.*;
+
+/**
+   Selects records from a directory of binary log segments by time range, path prefix, status range and minimum latency.
+   Segments and record blocks whose index shows they cannot match are skipped without being read.
+ */
+public class BinaryLogQuery
+{
+    private long fromTime, toTime, minLatency;
+    private int minStatus, maxStatus;
+    private String pathPrefix;
+
+    public BinaryLogQuery()
+    {
+        fromTime = 0;
+        toTime = Long.MAX_VALUE;
+        minLatency = 0;
+        minStatus = 0;
+        maxStatus = 999;
+        pathPrefix = null;
+    }
+
+    public void setTimeRange(long fromTime, long toTime)
+    {
+        this.fromTime = fromTime;
+        this.toTime = toTime;
+    }
+
+    public void setPathPrefix(String pathPrefix)
+    {
+        this.pathPrefix = pathPrefix;
+    }
+
+    public void setStatusRange(int minStatus, int maxStatus)
+    {
+        this.minStatus = minStatus;
+        this.maxStatus = maxStatus;
+    }
+
+    public void setMinLatency(long minLatency)
+    {
+        this.minLatency = minLatency;
+    }
+
+    public long getFromTime()
+    {
+        return fromTime;
+    }
+
+    public long getToTime()
+    {
+        return toTime;
+    }
+
+    public long getMinLatency()
+    {
+        return minLatency;
+    }
+
+    public String getPathPrefix()
+    {
+        return pathPrefix;
+    }
+
+    public boolean pathMatches(String path)
+    {
+        if (pathPrefix == null)
+            return true;
+        return (path != null) && path.startsWith(pathPrefix);
+    }
+
+    public boolean statusMatches(int status)
+    {
+        return (status >= minStatus) && (status <= maxStatus);
+    }
+
+    boolean statusClassMayMatch(int statusClass)
+    {
+        if (statusClass == 0)
+            return (minStatus < 100) || (maxStatus >= 600);
+        return (statusClass*100 <= maxStatus) && (statusClass*100 + 99 >= minStatus);
+    }
+
+    public static File[] listSegments(File logDir)
+    {
+        File[] ff = logDir.listFiles();
+        if (ff == null)
+            return new File[0];
+
+        ArrayList result = new ArrayList();
+        for (int i=0; i<ff.length; i++)
+            if (ff[i].isFile() && ff[i].getName().endsWith(BinaryLogSegment.FILE_SUFFIX))
+                result.add(ff[i]);
+
+        File[] files = (File[]) result.toArray(new File[result.size()]);
+        Arrays.sort(files);
+        return files;
+    }
+
+    public List<BinaryLogRecord> run(File logDir, int maxResults) throws IOException
+    {
+        ArrayList result = new ArrayList();
+        File[] segments = listSegments(logDir);
+        for (int i=0; i<segments.length; i++)
+        {
+            try (BinaryLogSegment seg = new BinaryLogSegment(segments[i]))
+            {
+                if (!seg.query(this, result, maxResults))
+                    break;
+            }
+            catch (IOException e)
+            {
+                System.err.println("Skipping unreadable log segment "+segments[i]+": "+e.getMessage());
+            }
+        }
+        return result;
+    }
+
+    private static long parseTime(String s, long def) throws ParseException
+    {
+        if (s == null)
+            return def;
+        try
+        {
+            return Long.parseLong(s);
+        }
+        catch (NumberFormatException e) {}
+
+        if (s.length() <= 10)
+            return new SimpleDateFormat("yyyy-MM-dd").parse(s).getTime();
+        return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").parse(s).getTime();
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Args.parse(args);
+        if (!Args.hasArg("dir"))
+        {
+            System.out.println("Usage: BinaryLogQuery -dir <logDir> [-from <time>] [-to <time>] [-path <prefix>] [-status <code|4xx|min-max>] [-minMs <latency>] [-limit <n>] [-summary] [-json]");
+            System.out.println("  Times are milliseconds since the epoch, yyyy-MM-dd or yyyy-MM-ddTHH:mm:ss");
+            return;
+        }
+
+        File dir = new File(Args.getArg("dir"));
+        BinaryLogQuery query = new BinaryLogQuery();
+        query.setTimeRange(parseTime(Args.getArg("from", null), 0), parseTime(Args.getArg("to", null), Long.MAX_VALUE));
+        query.setPathPrefix(Args.getArg("path", null));
+        query.setMinLatency(Args.getInt("minMs", 0));
+
+        String status = Args.getArg("status", null);
+        if (status != null)
+        {
+            status = status.toLowerCase();
+            if (status.endsWith("xx"))
+            {
+                int cls = Integer.parseInt(status.substring(0, status.length()-2));
+                query.setStatusRange(cls*100, cls*100+99);
+            }
+            else if (status.indexOf('-') > 0)
+            {
+                int dash = status.indexOf('-');
+                query.setStatusRange(Integer.parseInt(status.substring(0, dash)), Integer.parseInt(status.substring(dash+1)));
+            }
+            else
+            {
+                int code = Integer.parseInt(status);
+                query.setStatusRange(code, code);
+            }
+        }
+
+        if (Args.getBoolean("summary", false))
+        {
+            File[] segments = listSegments(dir);
+            for (int i=0; i<segments.length; i++)
+            {
+                try (BinaryLogSegment seg = new BinaryLogSegment(segments[i]))
+                {
+                    System.out.println(seg.getSummary());
+                }
+            }
+            return;
+        }
+
+        boolean json = Args.getBoolean("json", false);
+        long start = System.nanoTime();
+        List<BinaryLogRecord> records = query.run(dir, Args.getInt("limit", 1000));
+        for (int i=0; i<records.size(); i++)
+        {
+            BinaryLogRecord r = records.get(i);
+            System.out.println(json ? r.toJSON() : r.toString());
+        }
+        System.err.println(records.size()+" records in "+(System.nanoTime() - start)/1000000+"ms");
+    }
+}
@@ -0,0 +1,79 @@
+/*
+JJSP - Java and Javascript Server Pages 
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify 
+it under the terms of the GNU General Public License as published by 
+the Free Software Foundation, either version 3 of the License, or 
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but 
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+for more details.
+
+You should have received a copy of the GNU General Public License along with 
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.http;
+
+import java.io.*;
+import java.util.*;
+
+/**
+   A single request as decoded from a binary access log segment (see BinaryLogSegment).
+ */
+public class BinaryLogRecord
+{
+    public static final int FLAG_SECURE = 1;
+    public static final int FLAG_ERROR = 2;
+
+    public final boolean isSecure, hasError;
+    public final int status, totalTime, requestReadTime, responseTime, responseWriteTime;
+    public final long requestReceived, bytesRead, bytesWritten;
+    public final String method, path, clientAddress, filterChain;
+
+    public BinaryLogRecord(long requestReceived, int totalTime, int requestReadTime, int responseTime, int responseWriteTime, int status, int flags, long bytesRead, long bytesWritten, String method, String path, String clientAddress, String filterChain)
+    {
+        this.requestReceived = requestReceived;
+        this.totalTime = totalTime;
+        this.requestReadTime = requestReadTime;
+        this.responseTime = responseTime;
+        this.responseWriteTime = responseWriteTime;
+        this.status = status;
+        this.isSecure = (flags & FLAG_SECURE) != 0;
+        this.hasError = (flags & FLAG_ERROR) != 0;
+        this.bytesRead = bytesRead;
+        this.bytesWritten = bytesWritten;
+        this.method = method;
+        this.path = path;
+        this.clientAddress = clientAddress;
+        this.filterChain = filterChain;
+    }
+
+    public String toString()
+    {
+        return new Date(requestReceived)+" ["+clientAddress+"] "+method+" "+path+" "+status+" "+totalTime+"ms "+requestReadTime+"ms "+responseTime+"ms "+responseWriteTime+"ms "+bytesRead+" "+bytesWritten+" "+filterChain+(hasError ? " ERROR" : "");
+    }
+
+    public String toJSON()
+    {
+        StringBuffer buf = new StringBuffer("{");
+        buf.append("\"requestDate\":"+requestReceived+",");
+        buf.append("\"totalTime\":"+totalTime+",");
+        buf.append("\"requestReadTime\":"+requestReadTime+",");
+        buf.append("\"responseTime\":"+responseTime+",");
+        buf.append("\"responseWriteTime\":"+responseWriteTime+",");
+        buf.append("\"status\":"+status+",");
+        buf.append("\"bytesRead\":"+bytesRead+",");
+        buf.append("\"bytesWritten\":"+bytesWritten+",");
+        buf.append("\"secure\":"+isSecure+",");
+        buf.append("\"error\":"+hasError+",");
+        buf.append("\"method\":\""+method+"\",");
+        buf.append("\"path\":\""+path.replace("\\", "\\\\").replace("\"", "\\\"")+"\",");
+        buf.append("\"address\":\""+clientAddress+"\",");
+        buf.append("\"chain\":\""+filterChain.replace("\\", "\\\\").replace("\"", "\\\"")+"\"");
+        buf.append("}");
+        return buf.toString();
+    }
+}
@@ -0,0 +1,631 @@
+/*
+JJSP - Java and Javascript Server Pages 
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify 
+it under the terms of the GNU General Public License as published by 
+the Free Software Foundation, either version 3 of the License, or 
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but 
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+for more details.
+
+You should have received a copy of the GNU General Public License along with 
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.http;
+
+import java.io.*;
+import java.util.*;
+
+/**
+   One file of a binary access log. A segment is a header followed by fixed width request records, with the strings
+   (method, path, client address and filter chain) dictionary encoded and defined inline the first time they are used.
+   When a segment is closed a footer is appended holding the complete dictionary, a sparse index of record blocks
+   (with the time and latency range of each block) and summary statistics for the whole segment, so that queries can
+   skip whole segments and blocks without reading them. Segments without a footer (still being written, or left by
+   a crash) are read with a sequential scan.
+ */
+public class BinaryLogSegment implements AutoCloseable
+{
+    public static final String FILE_SUFFIX = ".blog";
+
+    public static final long MAGIC = 0x4A4A5350424C4F47L; // "JJSPBLOG"
+    public static final long FOOTER_MAGIC = 0x4A4A5350464F4F54L; // "JJSPFOOT"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 20;
+    public static final int BLOCK_SIZE = 512;
+    public static final int MAX_STRING_LENGTH = 1024;
+
+    static final int DEFINE = 'D';
+    static final int RECORD = 'R';
+    static final int FOOTER = 'F';
+
+    public static final int STATUS_CLASSES = 6;
+
+    private final File file;
+    private final long created;
+    private final boolean complete;
+    private final RandomAccessFile raf;
+
+    private ArrayList dictionary;
+    private long[] blockOffsets, blockMinTimes, blockMaxTimes;
+    private int[] blockMaxLatencies, blockRecords;
+    private long footerOffset, records, minTime, maxTime, totalBytesRead, totalBytesWritten, maxLatency, totalLatency;
+    private long[] statusCounts;
+
+    public BinaryLogSegment(File file) throws IOException
+    {
+        this.file = file;
+        raf = new RandomAccessFile(file, "r");
+
+        try
+        {
+            if (raf.length() < HEADER_SIZE)
+                throw new IOException("Binary log segment "+file+" truncated");
+            if (raf.readLong() != MAGIC)
+                throw new IOException("Not a binary log segment: "+file);
+            int version = raf.readInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported binary log segment version "+version+" in "+file);
+            created = raf.readLong();
+
+            dictionary = new ArrayList();
+            statusCounts = new long[STATUS_CLASSES];
+            complete = readFooter();
+        }
+        catch (IOException e)
+        {
+            raf.close();
+            throw e;
+        }
+    }
+
+    private boolean readFooter() throws IOException
+    {
+        long len = raf.length();
+        if (len < HEADER_SIZE + 17)
+            return false;
+
+        raf.seek(len - 16);
+        long offset = raf.readLong();
+        if ((raf.readLong() != FOOTER_MAGIC) || (offset < HEADER_SIZE) || (offset >= len - 16))
+            return false;
+
+        byte[] raw = new byte[(int) (len - 16 - offset)];
+        raf.seek(offset);
+        raf.readFully(raw);
+        DataInputStream din = new DataInputStream(new ByteArrayInputStream(raw));
+        if (din.readByte() != FOOTER)
+            return false;
+
+        int dictSize = din.readInt();
+        for (int i=0; i<dictSize; i++)
+            dictionary.add(din.readUTF());
+
+        int blocks = din.readInt();
+        blockOffsets = new long[blocks];
+        blockMinTimes = new long[blocks];
+        blockMaxTimes = new long[blocks];
+        blockMaxLatencies = new int[blocks];
+        blockRecords = new int[blocks];
+        for (int i=0; i<blocks; i++)
+        {
+            blockOffsets[i] = din.readLong();
+            blockMinTimes[i] = din.readLong();
+            blockMaxTimes[i] = din.readLong();
+            blockMaxLatencies[i] = din.readInt();
+            blockRecords[i] = din.readInt();
+        }
+
+        records = din.readLong();
+        minTime = din.readLong();
+        maxTime = din.readLong();
+        totalBytesRead = din.readLong();
+        totalBytesWritten = din.readLong();
+        maxLatency = din.readLong();
+        totalLatency = din.readLong();
+        for (int i=0; i<STATUS_CLASSES; i++)
+            statusCounts[i] = din.readLong();
+
+        footerOffset = offset;
+        return true;
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    public long getCreationTime()
+    {
+        return created;
+    }
+
+    /** True when the segment was closed cleanly and carries an index and summary */
+    public boolean isComplete()
+    {
+        return complete;
+    }
+
+    public long getRecordCount()
+    {
+        return records;
+    }
+
+    public long getMinTime()
+    {
+        return minTime;
+    }
+
+    public long getMaxTime()
+    {
+        return maxTime;
+    }
+
+    public long getMaxLatency()
+    {
+        return maxLatency;
+    }
+
+    public long getTotalBytesRead()
+    {
+        return totalBytesRead;
+    }
+
+    public long getTotalBytesWritten()
+    {
+        return totalBytesWritten;
+    }
+
+    public double getMeanLatency()
+    {
+        if (records == 0)
+            return 0;
+        return ((double) totalLatency) / records;
+    }
+
+    public long getStatusCount(int statusClass)
+    {
+        return statusCounts[statusClassIndex(statusClass*100)];
+    }
+
+    static int statusClassIndex(int status)
+    {
+        int cls = status / 100;
+        if ((cls < 1) || (cls > 5))
+            return 0;
+        return cls;
+    }
+
+    public String getSummary()
+    {
+        if (!complete)
+            return file.getName()+" [incomplete - no index] created "+new Date(created);
+
+        StringBuffer buf = new StringBuffer();
+        buf.append(file.getName()+" "+records+" requests "+new Date(minTime)+" -> "+new Date(maxTime));
+        buf.append(" mean "+Math.round(getMeanLatency())+"ms max "+maxLatency+"ms");
+        buf.append(" in/out "+totalBytesRead+"/"+totalBytesWritten);
+        for (int i=1; i<STATUS_CLASSES; i++)
+            buf.append(" "+i+"xx:"+statusCounts[i]);
+        if (statusCounts[0] > 0)
+            buf.append(" other:"+statusCounts[0]);
+        return buf.toString();
+    }
+
+    private boolean segmentMayMatch(BinaryLogQuery query)
+    {
+        if (!complete)
+            return true;
+        if (records == 0)
+            return false;
+        if ((maxTime < query.getFromTime()) || (minTime >= query.getToTime()))
+            return false;
+        if (maxLatency < query.getMinLatency())
+            return false;
+
+        boolean statusPossible = false;
+        for (int i=0; i<STATUS_CLASSES; i++)
+        {
+            if ((statusCounts[i] > 0) && query.statusClassMayMatch(i))
+            {
+                statusPossible = true;
+                break;
+            }
+        }
+        return statusPossible;
+    }
+
+    private boolean blockMayMatch(int block, BinaryLogQuery query)
+    {
+        if ((blockMaxTimes[block] < query.getFromTime()) || (blockMinTimes[block] >= query.getToTime()))
+            return false;
+        return blockMaxLatencies[block] >= query.getMinLatency();
+    }
+
+    private boolean[] matchingPaths(BinaryLogQuery query)
+    {
+        boolean[] result = new boolean[dictionary.size()];
+        boolean any = false;
+        for (int i=0; i<result.length; i++)
+        {
+            result[i] = query.pathMatches((String) dictionary.get(i));
+            any |= result[i];
+        }
+
+        if (!any)
+            return null;
+        return result;
+    }
+
+    /** Appends to results the records matching the query, returning false once maxResults is reached */
+    public synchronized boolean query(BinaryLogQuery query, List results, int maxResults) throws IOException
+    {
+        if (results.size() >= maxResults)
+            return false;
+        if (!segmentMayMatch(query))
+            return true;
+
+        if (!complete)
+        {
+            long end = raf.length();
+            DataInputStream din = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64*1024));
+            try
+            {
+                din.skipBytes(HEADER_SIZE);
+                return scan(din, -1, end - HEADER_SIZE, null, query, results, maxResults);
+            }
+            finally
+            {
+                din.close();
+            }
+        }
+
+        boolean[] pathMatch = null;
+        if (query.getPathPrefix() != null)
+        {
+            pathMatch = matchingPaths(query);
+            if (pathMatch == null)
+                return true;
+        }
+
+        for (int b=0; b<blockOffsets.length; b++)
+        {
+            if (!blockMayMatch(b, query))
+                continue;
+
+            long start = blockOffsets[b];
+            long end = (b+1 < blockOffsets.length) ? blockOffsets[b+1] : footerOffset;
+            byte[] raw = new byte[(int) (end - start)];
+            raf.seek(start);
+            raf.readFully(raw);
+
+            DataInputStream din = new DataInputStream(new ByteArrayInputStream(raw));
+            if (!scan(din, blockRecords[b], raw.length, pathMatch, query, results, maxResults))
+                return false;
+        }
+
+        return true;
+    }
+
+    private boolean scan(DataInputStream din, int maxRecords, long length, boolean[] pathMatch, BinaryLogQuery query, List results, int maxResults) throws IOException
+    {
+        int count = 0;
+        long remaining = length;
+        while ((remaining > 0) && ((maxRecords < 0) || (count < maxRecords)))
+        {
+            int type = 0;
+            try
+            {
+                type = din.readByte();
+                if (type == DEFINE)
+                {
+                    int id = din.readInt();
+                    String value = din.readUTF();
+                    remaining -= 7 + utfLength(value);
+                    if (!complete)
+                    {
+                        while (dictionary.size() <= id)
+                            dictionary.add("");
+                        dictionary.set(id, value);
+                    }
+                    continue;
+                }
+                else if (type != RECORD)
+                    return true;
+
+                long received = din.readLong();
+                int total = din.readInt();
+                int read = din.readInt();
+                int resp = din.readInt();
+                int write = din.readInt();
+                int status = din.readShort();
+                int flags = din.readByte();
+                long bytesRead = din.readLong();
+                long bytesWritten = din.readLong();
+                int methodId = din.readInt();
+                int pathId = din.readInt();
+                int clientId = din.readInt();
+                int chainId = din.readInt();
+                remaining -= Writer.RECORD_SIZE;
+                count++;
+
+                if ((received < query.getFromTime()) || (received >= query.getToTime()))
+                    continue;
+                if (total < query.getMinLatency())
+                    continue;
+                if (!query.statusMatches(status))
+                    continue;
+                if (pathMatch != null)
+                {
+                    if ((pathId >= pathMatch.length) || !pathMatch[pathId])
+                        continue;
+                }
+                else if (!query.pathMatches(lookup(pathId)))
+                    continue;
+
+                results.add(new BinaryLogRecord(received, total, read, resp, write, status, flags, bytesRead, bytesWritten, lookup(methodId), lookup(pathId), lookup(clientId), lookup(chainId)));
+                if (results.size() >= maxResults)
+                    return false;
+            }
+            catch (EOFException e) // A partially written record at the end of an open segment
+            {
+                return true;
+            }
+        }
+
+        return true;
+    }
+
+    private static int utfLength(String s)
+    {
+        int result = 0;
+        for (int i=0; i<s.length(); i++)
+        {
+            char ch = s.charAt(i);
+            if ((ch >= 0x0001) && (ch <= 0x007F))
+                result++;
+            else if (ch > 0x07FF)
+                result += 3;
+            else
+                result += 2;
+        }
+        return result;
+    }
+
+    private String lookup(int id)
+    {
+        if ((id < 0) || (id >= dictionary.size()))
+            return "?";
+        return (String) dictionary.get(id);
+    }
+
+    public void close() throws IOException
+    {
+        raf.close();
+    }
+
+    /** Writes a single segment file. Not thread safe - callers (see BinaryLogger) serialise access. */
+    public static class Writer implements AutoCloseable
+    {
+        public static final int RECORD_SIZE = 60;
+
+        private final File file;
+        private final DataOutputStream out;
+        private final HashMap dictionary;
+        private final ArrayList dictionaryList;
+        private final ArrayList blocks;
+
+        private long offset, records, minTime, maxTime, totalBytesRead, totalBytesWritten, maxLatency, totalLatency;
+        private long[] statusCounts;
+        private long blockOffset, blockMinTime, blockMaxTime;
+        private int blockMaxLatency, blockCount;
+        private boolean closed;
+
+        public Writer(File file) throws IOException
+        {
+            this.file = file;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64*1024));
+            dictionary = new HashMap();
+            dictionaryList = new ArrayList();
+            blocks = new ArrayList();
+            statusCounts = new long[STATUS_CLASSES];
+            minTime = Long.MAX_VALUE;
+            maxTime = Long.MIN_VALUE;
+
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            offset = HEADER_SIZE;
+            closed = false;
+        }
+
+        public File getFile()
+        {
+            return file;
+        }
+
+        public long getRecordCount()
+        {
+            return records;
+        }
+
+        private int encode(String value) throws IOException
+        {
+            if (value == null)
+                value = "";
+            if (value.length() > MAX_STRING_LENGTH)
+                value = value.substring(0, MAX_STRING_LENGTH);
+
+            Integer id = (Integer) dictionary.get(value);
+            if (id != null)
+                return id.intValue();
+
+            id = Integer.valueOf(dictionaryList.size());
+            dictionary.put(value, id);
+            dictionaryList.add(value);
+
+            int start = out.size();
+            out.writeByte(DEFINE);
+            out.writeInt(id.intValue());
+            out.writeUTF(value);
+            offset += out.size() - start;
+            return id.intValue();
+        }
+
+        private static int clip(long value)
+        {
+            return (int) Math.max(0, Math.min(Integer.MAX_VALUE, value));
+        }
+
+        public static int parseStatus(String responseMainLine)
+        {
+            if ((responseMainLine == null) || (responseMainLine.length() < 12))
+                return 0;
+            try
+            {
+                return Integer.parseInt(responseMainLine.substring(9, 12));
+            }
+            catch (Exception e)
+            {
+                return 0;
+            }
+        }
+
+        public void write(HTTPLogEntry entry) throws IOException
+        {
+            if (closed)
+                throw new IOException("Binary log segment closed");
+
+            String method = "";
+            String path = "";
+            String mainLine = entry.getRequestMainLine();
+            if (mainLine != null)
+            {
+                int sp1 = mainLine.indexOf(' ');
+                int sp2 = mainLine.lastIndexOf(' ');
+                if (sp1 > 0)
+                {
+                    method = mainLine.substring(0, sp1);
+                    path = (sp2 > sp1) ? mainLine.substring(sp1+1, sp2) : mainLine.substring(sp1+1);
+                    int q = path.indexOf('?');
+                    if (q >= 0)
+                        path = path.substring(0, q);
+                }
+            }
+
+            int status = parseStatus(entry.getResponseMainLine());
+            int flags = 0;
+            if (entry.isSecure)
+                flags |= BinaryLogRecord.FLAG_SECURE;
+            if (entry.filterChain.getPrimaryError() != null)
+                flags |= BinaryLogRecord.FLAG_ERROR;
+
+            int methodId = encode(method);
+            int pathId = encode(path);
+            int clientId = encode(entry.clientAddress);
+            int chainId = encode(entry.filterChain.getPath());
+
+            if (blockCount == 0)
+            {
+                blockOffset = offset;
+                blockMinTime = Long.MAX_VALUE;
+                blockMaxTime = Long.MIN_VALUE;
+                blockMaxLatency = 0;
+            }
+
+            int total = clip(entry.totalRequestTime());
+            out.writeByte(RECORD);
+            out.writeLong(entry.requestReceived);
+            out.writeInt(total);
+            out.writeInt(clip(entry.requestReadTime()));
+            out.writeInt(clip(entry.responseTime()));
+            out.writeInt(clip(entry.responseWriteTime()));
+            out.writeShort(status);
+            out.writeByte(flags);
+            out.writeLong(entry.bytesRead);
+            out.writeLong(entry.bytesWritten);
+            out.writeInt(methodId);
+            out.writeInt(pathId);
+            out.writeInt(clientId);
+            out.writeInt(chainId);
+            offset += RECORD_SIZE;
+
+            records++;
+            minTime = Math.min(minTime, entry.requestReceived);
+            maxTime = Math.max(maxTime, entry.requestReceived);
+            totalBytesRead += entry.bytesRead;
+            totalBytesWritten += entry.bytesWritten;
+            maxLatency = Math.max(maxLatency, total);
+            totalLatency += total;
+            statusCounts[statusClassIndex(status)]++;
+
+            blockMinTime = Math.min(blockMinTime, entry.requestReceived);
+            blockMaxTime = Math.max(blockMaxTime, entry.requestReceived);
+            blockMaxLatency = Math.max(blockMaxLatency, total);
+            if (++blockCount >= BLOCK_SIZE)
+                endBlock();
+        }
+
+        private void endBlock()
+        {
+            if (blockCount == 0)
+                return;
+            blocks.add(new long[]{blockOffset, blockMinTime, blockMaxTime, blockMaxLatency, blockCount});
+            blockCount = 0;
+        }
+
+        public void flush() throws IOException
+        {
+            out.flush();
+        }
+
+        public void close() throws IOException
+        {
+            if (closed)
+                return;
+            closed = true;
+            endBlock();
+
+            try
+            {
+                long footerOffset = offset;
+                out.writeByte(FOOTER);
+                out.writeInt(dictionaryList.size());
+                for (int i=0; i<dictionaryList.size(); i++)
+                    out.writeUTF((String) dictionaryList.get(i));
+
+                out.writeInt(blocks.size());
+                for (int i=0; i<blocks.size(); i++)
+                {
+                    long[] block = (long[]) blocks.get(i);
+                    out.writeLong(block[0]);
+                    out.writeLong(block[1]);
+                    out.writeLong(block[2]);
+                    out.writeInt((int) block[3]);
+                    out.writeInt((int) block[4]);
+                }
+
+                out.writeLong(records);
+                out.writeLong(records > 0 ? minTime : 0);
+                out.writeLong(records > 0 ? maxTime : 0);
+                out.writeLong(totalBytesRead);
+                out.writeLong(totalBytesWritten);
+                out.writeLong(maxLatency);
+                out.writeLong(totalLatency);
+                for (int i=0; i<STATUS_CLASSES; i++)
+                    out.writeLong(statusCounts[i]);
+
+                out.writeLong(footerOffset);
+                out.writeLong(FOOTER_MAGIC);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+JJSP - Java and Javascript Server Pages 
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify 
+it under the terms of the GNU General Public License as published by 
+the Free Software Foundation, either version 3 of the License, or 
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but 
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+for more details.
+
+You should have received a copy of the GNU General Public License along with 
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.http;
+
+import java.io.*;
+import java.util.*;
+import java.net.*;
+import java.text.*;
+
+import jjsp.util.*;
+
+/**
+   Writes request log entries to a directory of compact binary segments (see BinaryLogSegment), rotating to a new
+   segment every log period or once a segment holds maxRecords entries. Query the directory with BinaryLogQuery.
+ */
+public class BinaryLogger implements HTTPServerLogger
+{
+    public static final long HOURLY = DirectoryFileLogger.HOURLY;
+    public static final long DAILY = DirectoryFileLogger.DAILY;
+    public static final int DEFAULT_MAX_RECORDS = 1024*1024;
+
+    private final File logDir;
+    private final long logPeriod;
+    private final int maxRecords;
+    private final boolean autoFlush;
+
+    private long currentPeriod;
+    private BinaryLogSegment.Writer currentWriter;
+
+    public BinaryLogger(long logPeriod, File logDir) throws IOException
+    {
+        this(logPeriod, logDir, DEFAULT_MAX_RECORDS, false);
+    }
+
+    public BinaryLogger(long logPeriod, File logDir, int maxRecords, boolean autoFlush) throws IOException
+    {
+        this.logDir = logDir;
+        this.logPeriod = logPeriod;
+        this.autoFlush = autoFlush;
+        this.maxRecords = Math.max(1, maxRecords);
+
+        logDir.mkdirs();
+        currentPeriod = -1;
+        currentWriter = null;
+    }
+
+    public File getLogDirectory()
+    {
+        return logDir;
+    }
+
+    private BinaryLogSegment.Writer getCurrentWriter() throws IOException
+    {
+        long now = System.currentTimeMillis();
+        if ((currentWriter != null) && ((now / logPeriod) == currentPeriod) && (currentWriter.getRecordCount() < maxRecords))
+            return currentWriter;
+
+        try
+        {
+            currentWriter.close();
+        }
+        catch (Exception e) {}
+
+        currentPeriod = now / logPeriod;
+        String name = "HTTPLog_"+new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss-SSS").format(new Date(now));
+        File ff = new File(logDir, name+BinaryLogSegment.FILE_SUFFIX);
+        for (int i=1; ff.exists(); i++)
+            ff = new File(logDir, name+"_"+i+BinaryLogSegment.FILE_SUFFIX);
+
+        currentWriter = new BinaryLogSegment.Writer(ff);
+        return currentWriter;
+    }
+
+    public synchronized void requestProcessed(HTTPLogEntry logEntry)
+    {
+        try
+        {
+            BinaryLogSegment.Writer w = getCurrentWriter();
+            w.write(logEntry);
+            if (autoFlush)
+                w.flush();
+        }
+        catch (Exception e) {}
+    }
+
+    public synchronized void flush()
+    {
+        try
+        {
+            currentWriter.flush();
+        }
+        catch (Exception e) {}
+    }
+
+    public synchronized void close()
+    {
+        try
+        {
+            currentWriter.close();
+        }
+        catch (Exception e) {}
+        currentWriter = null;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Args.parse(args);
+        File dir = new File(Args.getArg("dir", "BinaryLogTEST"));
+        int count = Args.getInt("count", 1000000);
+
+        BinaryLogger logger = new BinaryLogger(HOURLY, dir, Args.getInt("maxRecords", DEFAULT_MAX_RECORDS), false);
+
+        String[] paths = {"/index.html", "/api/users", "/api/orders?id=5", "/static/main.css", "/missing.png"};
+        HTTPRequestHeaders[] reqs = new HTTPRequestHeaders[paths.length];
+        HTTPResponseHeaders[] resps = new HTTPResponseHeaders[paths.length];
+        for (int i=0; i<paths.length; i++)
+        {
+            reqs[i] = new HTTPRequestHeaders();
+            reqs[i].readHeadersFromStream(new ByteArrayInputStream(Utils.getAsciiBytes("GET "+paths[i]+" HTTP/1.1\r\nUser-Agent: tester\r\n\r\n")));
+            resps[i] = new HTTPResponseHeaders();
+        }
+        resps[0].configureAsOK();
+        resps[1].configureAsOK();
+        resps[2].configureAsNotModified();
+        resps[3].configureAsNotFound();
+        resps[4].configureAsServerError();
+
+        HTTPFilterChain chain = new HTTPFilterChain("link1", null);
+        long now = System.currentTimeMillis();
+        long start = System.nanoTime();
+        for (int i=0; i<count; i++)
+        {
+            int k = i % paths.length;
+            HTTPLogEntry entry = new HTTPLogEntry(false, "10.0.0."+(i % 50), now+i, now+i+1, now+i+2+(i % 37), now+i+3+(i % 37), 100, 1000+k, chain, reqs[k], resps[k]);
+            logger.requestProcessed(entry);
+        }
+        logger.close();
+
+        long bytes = 0;
+        File[] ff = dir.listFiles();
+        for (int i=0; i<ff.length; i++)
+            bytes += ff[i].length();
+        System.out.println("Logged "+count+" entries in "+(System.nanoTime() - start)/1000000+"ms to "+ff.length+" segments, "+bytes+" bytes ("+(bytes/Math.max(1, count))+" bytes per entry)");
+    }
+}
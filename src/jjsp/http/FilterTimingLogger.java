@@ -0,0 +1,276 @@
+/*
+JJSP - Java and Javascript Server Pages 
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify 
+it under the terms of the GNU General Public License as published by 
+the Free Software Foundation, either version 3 of the License, or 
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but 
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+for more details.
+
+You should have received a copy of the GNU General Public License along with 
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.http;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+   Aggregates the nanosecond entry/exit times each filter records in its HTTPFilterChain link into per filter name
+   histograms (in microseconds) of both the elapsed time of the hop and its self time, excluding the filters it passed
+   the request on to. Requests slower than the threshold are kept as samples (the last maxSamples of them) with their
+   full chain timing and, optionally, the handling thread's stack as seen by a watchdog once the threshold was passed.
+ */
+public class FilterTimingLogger implements HTTPServerLogger
+{
+    public static final int MAX_STACK_DEPTH = 50;
+
+    private final long thresholdMillis;
+    private final int maxSamples;
+    private final boolean captureStacks;
+    private final ConcurrentHashMap filterStats;
+    private final ConcurrentHashMap inFlight;
+    private final LinkedList samples;
+
+    private volatile boolean closed;
+
+    class FilterStats
+    {
+        final LatencyHistogram elapsed, self;
+
+        FilterStats()
+        {
+            elapsed = new LatencyHistogram();
+            self = new LatencyHistogram();
+        }
+    }
+
+    class InFlight
+    {
+        final long started;
+        final String request;
+        final Thread thread;
+        volatile String stack;
+
+        InFlight(String request)
+        {
+            this.request = request;
+            started = System.currentTimeMillis();
+            thread = Thread.currentThread();
+            stack = null;
+        }
+    }
+
+    public static class Sample
+    {
+        public final long time, totalMillis;
+        public final String request, timings, stack;
+
+        Sample(long time, long totalMillis, String request, String timings, String stack)
+        {
+            this.time = time;
+            this.totalMillis = totalMillis;
+            this.request = request;
+            this.timings = timings;
+            this.stack = stack;
+        }
+
+        public String toString()
+        {
+            String result = new Date(time)+" "+totalMillis+"ms "+request+"\n    "+timings;
+            if (stack != null)
+                result += "\n"+stack;
+            return result;
+        }
+    }
+
+    public FilterTimingLogger(long thresholdMillis, int maxSamples)
+    {
+        this(thresholdMillis, maxSamples, false);
+    }
+
+    public FilterTimingLogger(long thresholdMillis, int maxSamples, boolean captureStacks)
+    {
+        this.thresholdMillis = Math.max(1, thresholdMillis);
+        this.maxSamples = Math.max(1, maxSamples);
+        this.captureStacks = captureStacks;
+
+        filterStats = new ConcurrentHashMap();
+        inFlight = new ConcurrentHashMap();
+        samples = new LinkedList();
+        closed = false;
+
+        if (captureStacks)
+        {
+            Thread t = new Thread(new Watchdog(), "Slow Request Watchdog");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    class Watchdog implements Runnable
+    {
+        public void run()
+        {
+            long period = Math.max(5, thresholdMillis/4);
+            while (!closed)
+            {
+                try
+                {
+                    Thread.sleep(period);
+
+                    long limit = System.currentTimeMillis() - thresholdMillis;
+                    Iterator itt = inFlight.values().iterator();
+                    while (itt.hasNext())
+                    {
+                        InFlight f = (InFlight) itt.next();
+                        if ((f.stack == null) && (f.started <= limit))
+                            f.stack = formatStack(f.thread.getStackTrace());
+                    }
+                }
+                catch (InterruptedException e) {}
+                catch (Throwable t) {}
+            }
+        }
+    }
+
+    private static String formatStack(StackTraceElement[] trace)
+    {
+        StringBuffer buf = new StringBuffer();
+        for (int i=0; i<Math.min(trace.length, MAX_STACK_DEPTH); i++)
+            buf.append("        at "+trace[i]+"\n");
+        if (trace.length > MAX_STACK_DEPTH)
+            buf.append("        ... "+(trace.length - MAX_STACK_DEPTH)+" more\n");
+        return buf.toString();
+    }
+
+    public void requestStarted(HTTPRequestHeaders reqHeaders)
+    {
+        if (captureStacks && !closed)
+            inFlight.put(Thread.currentThread(), new InFlight(reqHeaders.getMainLine()));
+    }
+
+    private FilterStats getStats(String name)
+    {
+        FilterStats result = (FilterStats) filterStats.get(name);
+        if (result != null)
+            return result;
+
+        result = new FilterStats();
+        FilterStats existing = (FilterStats) filterStats.putIfAbsent(name, result);
+        if (existing != null)
+            return existing;
+        return result;
+    }
+
+    public void requestProcessed(HTTPLogEntry entry)
+    {
+        InFlight f = null;
+        if (captureStacks)
+            f = (InFlight) inFlight.remove(Thread.currentThread());
+        if ((entry == null) || (entry.filterChain == null))
+            return;
+
+        HTTPFilterChain[] links = entry.filterChain.toArray();
+        long[] elapsed = entry.filterChain.getElapsedNanos();
+        long[] self = entry.filterChain.getSelfNanos();
+
+        for (int i=0; i<links.length; i++)
+        {
+            if (elapsed[i] < 0)
+                continue;
+            FilterStats stats = getStats(links[i].linkName);
+            stats.elapsed.record(elapsed[i]/1000);
+            stats.self.record(self[i]/1000);
+        }
+
+        long total = entry.totalRequestTime();
+        if (total < thresholdMillis)
+            return;
+
+        String stack = (f == null) ? null : f.stack;
+        Sample s = new Sample(entry.requestReceived, total, entry.getRequestMainLine(), entry.filterChain.getTimingReport(), stack);
+        synchronized (samples)
+        {
+            samples.addLast(s);
+            while (samples.size() > maxSamples)
+                samples.removeFirst();
+        }
+    }
+
+    public long getThresholdMillis()
+    {
+        return thresholdMillis;
+    }
+
+    public String[] getFilterNames()
+    {
+        TreeSet result = new TreeSet(filterStats.keySet());
+        return (String[]) result.toArray(new String[result.size()]);
+    }
+
+    /** Returns the histogram of the elapsed microseconds of the named filter, or null if it has not been seen */
+    public LatencyHistogram getElapsedMicros(String filterName)
+    {
+        FilterStats stats = (FilterStats) filterStats.get(filterName);
+        if (stats == null)
+            return null;
+        return stats.elapsed;
+    }
+
+    /** Returns the histogram of the self microseconds of the named filter, or null if it has not been seen */
+    public LatencyHistogram getSelfMicros(String filterName)
+    {
+        FilterStats stats = (FilterStats) filterStats.get(filterName);
+        if (stats == null)
+            return null;
+        return stats.self;
+    }
+
+    /** Returns the slow request samples, newest first */
+    public List<Sample> getSamples()
+    {
+        ArrayList result = new ArrayList();
+        synchronized (samples)
+        {
+            result.addAll(samples);
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    public void reset()
+    {
+        filterStats.clear();
+        synchronized (samples)
+        {
+            samples.clear();
+        }
+    }
+
+    public String getReport()
+    {
+        StringBuffer buf = new StringBuffer();
+        String[] names = getFilterNames();
+        for (int i=0; i<names.length; i++)
+        {
+            FilterStats stats = (FilterStats) filterStats.get(names[i]);
+            LatencyHistogram self = stats.self;
+            buf.append(names[i]+": count="+self.getCount()+" self(us) mean="+Math.round(self.getMean())+" p50="+self.getValueAtPercentile(50)+" p99="+self.getValueAtPercentile(99)+" max="+self.getMax());
+            buf.append(" elapsed(us) p50="+stats.elapsed.getValueAtPercentile(50)+" p99="+stats.elapsed.getValueAtPercentile(99)+"\n");
+        }
+        return buf.toString();
+    }
+
+    public void close()
+    {
+        closed = true;
+        inFlight.clear();
+    }
+}
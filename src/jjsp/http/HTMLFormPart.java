@@ -20,9 +20,13 @@ package jjsp.http;
 import java.io.*;
 import java.util.*;
 import java.net.*;
+import java.nio.file.*;
+
+import jjsp.util.*;
 
 /**
    A class for representing part of a HTML form submission. Browsers can use HTTP post to send data to the server and there can be multiple parts to this data. The static processPostedFormData() of this class can extract the form parts from the raw data submitted.
+   Parts read with a MultipartReader may instead hold their data in a temporary file; call dispose() once they have been used.
  */
 public class HTMLFormPart
 {
@@ -30,16 +34,25 @@ public class HTMLFormPart
     public static final String CONTENT_TYPE_KEY = "Content-Type";
     public static final String BOUNDARY_KEY = "boundary";
 
-    private static final byte[] CRLF_CRLF = "\r\n\r\n".getBytes(HTTPUtils.ASCII);
-    private static final byte[] CRLF = "\r\n".getBytes(HTTPUtils.ASCII);
-
     private Map attributes;
     private byte[] rawData;
+    private File dataFile;
+    private long length;
     
     public HTMLFormPart(Map attrs, byte[] data)
     {
         attributes = attrs;
         rawData = data;
+        dataFile = null;
+        length = data.length;
+    }
+
+    public HTMLFormPart(Map attrs, File dataFile, long length)
+    {
+        attributes = attrs;
+        rawData = null;
+        this.dataFile = dataFile;
+        this.length = length;
     }
 
     public String getAttribute(String key)
@@ -55,44 +68,77 @@ public class HTMLFormPart
         return attributes;
     }
 
-    public byte[] getData()
+    public long getLength()
     {
-        return rawData;
+        return length;
     }
-    
-    public String toString()
+
+    public boolean isOnDisk()
     {
-        return attributes+"  ["+rawData.length+"]";
+        return dataFile != null;
     }
 
-    private static int seekSequence(byte[] data, int start, byte[] seq)
+    public File getDataFile()
     {
-        return seekSequence(data, start, data.length, seq);
+        return dataFile;
     }
 
-    private static int seekSequence(byte[] data, int start, int end, byte[] seq)
+    /** Returns the data of this part, loading it into memory if it was spilled to disk */
+    public byte[] getData()
     {
-        end = Math.min(end, data.length-2) - seq.length;
-        
-        for (int i=start; i<end; i++)
+        if (rawData != null)
+            return rawData;
+        if (dataFile == null)
+            return null;
+
+        try
         {
-            int match = 0;
-            for (int j=0, k=i; j<seq.length; j++, k++)
+            return Utils.load(dataFile);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException("Failed to read spilled form data from "+dataFile, e);
+        }
+    }
+
+    public InputStream getInputStream() throws IOException
+    {
+        if (dataFile != null)
+            return new BufferedInputStream(new FileInputStream(dataFile));
+        return new ByteArrayInputStream(rawData);
+    }
+
+    /** Moves (or writes) the data of this part to the target file. A spilled part is renamed where possible rather than copied. */
+    public void moveTo(File target) throws IOException
+    {
+        if (dataFile == null)
+        {
+            try (FileOutputStream fout = new FileOutputStream(target))
             {
-                if (data[k] != seq[j])
-                    break;
-                else
-                    match++;
+                fout.write(rawData);
             }
-            
-            if (match == seq.length)
-                return i;
+            return;
         }
-        
-        return -1;
+
+        Files.move(dataFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        rawData = null;
+        dataFile = null;
+    }
+
+    /** Deletes any temporary file holding the data of this part */
+    public void dispose()
+    {
+        if (dataFile != null)
+            dataFile.delete();
+        dataFile = null;
+    }
+    
+    public String toString()
+    {
+        return attributes+"  ["+length+"]";
     }
 
-    private static Map extractAttrs(String src)
+    static Map extractAttrs(String src)
     {
         HashMap result = new HashMap();
         StringTokenizer tokens = new StringTokenizer(src, ";");
@@ -134,7 +180,7 @@ public class HTMLFormPart
     }
 
     /**
-       The main means of getting the parts of an HTML form from the raw posted data. 
+       The main means of getting the parts of an HTML form from the raw posted data. Large or streamed bodies should use a MultipartReader directly.
      */
     public static HTMLFormPart[] processPostedFormData(HTTPHeaders headers, byte[] rawBody)
     {
@@ -142,54 +188,19 @@ public class HTMLFormPart
         if (boundaryString == null)
             return null;
 
-        byte[] submissionBoundary = boundaryString.getBytes(HTTPUtils.ASCII);
-        int pos = seekSequence(rawBody, 0, submissionBoundary);
-        if (pos < 0)
-            return null;
-        pos += submissionBoundary.length;
-        
-        Vector buffer = new Vector();
-        while (true)
+        MultipartReader reader = new MultipartReader(new ByteArrayInputStream(rawBody), boundaryString, Math.min(rawBody.length + 1024, MultipartReader.DEFAULT_BUFFER_SIZE));
+        ArrayList buffer = new ArrayList();
+        try
         {
-            int nextPos = seekSequence(rawBody, pos, submissionBoundary);
-            if (nextPos < 0)
-                break;
-            
-            int bodyEnd = nextPos;
-            if (rawBody[bodyEnd - 1] == '\n')
-                bodyEnd--;
-            if (rawBody[bodyEnd - 1] == '\r')
-                bodyEnd--;
-            
-            int end = seekSequence(rawBody, pos, CRLF_CRLF);
-            int bodyStart = -1;
-            if (end < 0)
+            while (true)
             {
-                end = seekSequence(rawBody, pos, CRLF);
-                if (end < 0)
+                MultipartReader.Part part = reader.nextPart();
+                if (part == null)
                     break;
-                bodyStart = end + 2;
+                buffer.add(part.toFormPart(Integer.MAX_VALUE - 8, null));
             }
-            else
-                bodyStart = end + 4;
-            
-            int valStart = seekSequence(rawBody, pos, CONTENT_DISPOSITION_KEY.getBytes(HTTPUtils.ASCII));
-            if (valStart < 0)
-                break;
-            valStart += CONTENT_DISPOSITION_KEY.length();
-            int valEnd = seekSequence(rawBody, valStart, CRLF);
-            if (valEnd < 0)
-                break;
-            
-            Map attrs = extractAttrs(new String(rawBody, valStart, valEnd - valStart));
-            byte[] raw = new byte[bodyEnd - bodyStart];
-            System.arraycopy(rawBody, bodyStart, raw, 0, raw.length);
-            
-            HTMLFormPart part = new HTMLFormPart(attrs, raw);
-            buffer.add(part);
-            
-            pos = nextPos+submissionBoundary.length;
         }
+        catch (IOException e) {} // Truncated or malformed data - return the complete parts found
 
         HTMLFormPart[] result = new HTMLFormPart[buffer.size()];
         buffer.toArray(result);
@@ -0,0 +1,216 @@
+/*
+JJSP - Java and Javascript Server Pages 
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify 
+it under the terms of the GNU General Public License as published by 
+the Free Software Foundation, either version 3 of the License, or 
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but 
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+for more details.
+
+You should have received a copy of the GNU General Public License along with 
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.http;
+
+import jdk.jfr.*;
+
+/**
+   JDK Flight Recorder events for the request lifecycle. They are only populated and committed when enabled in a recording
+   (e.g. -XX:StartFlightRecording or jcmd JFR.start), so they cost close to nothing otherwise.
+ */
+public class HTTPEvents
+{
+    public static final String CATEGORY = "JJSP";
+
+    @Name("jjsp.ConnectionAccepted")
+    @Label("Connection Accepted")
+    @Category({CATEGORY, "HTTP"})
+    @Description("A client socket was accepted and handed to the socket handler pool")
+    @StackTrace(false)
+    public static class ConnectionAccepted extends Event
+    {
+        @Label("Server Port")
+        public int serverPort;
+
+        @Label("Secure")
+        public boolean secure;
+
+        @Label("Client Address")
+        public String clientAddress;
+    }
+
+    @Name("jjsp.Connection")
+    @Label("Connection")
+    @Category({CATEGORY, "HTTP"})
+    @Description("The lifetime of a client connection, from the start of handling until the socket was closed")
+    @StackTrace(false)
+    public static class Connection extends Event
+    {
+        @Label("Server Port")
+        public int serverPort;
+
+        @Label("Secure")
+        public boolean secure;
+
+        @Label("Client Address")
+        public String clientAddress;
+
+        @Label("Handler Queue Wait")
+        @Timespan(Timespan.MILLISECONDS)
+        public long queueWait;
+    }
+
+    @Name("jjsp.RequestHeaders")
+    @Label("Request Headers Parsed")
+    @Category({CATEGORY, "HTTP"})
+    @Description("Reading and parsing of the request headers")
+    @StackTrace(false)
+    public static class RequestHeaders extends Event
+    {
+        @Label("Server Port")
+        public int serverPort;
+
+        @Label("Method")
+        public String method;
+
+        @Label("Path")
+        public String path;
+
+        @Label("Header Bytes")
+        @DataAmount
+        public long bytes;
+    }
+
+    @Name("jjsp.FilterInvocation")
+    @Label("Filter Invocation")
+    @Category({CATEGORY, "HTTP", "Filters"})
+    @Description("A single hop through a request filter, including the filters it passed the request on to")
+    @StackTrace(false)
+    public static class FilterInvocation extends Event
+    {
+        @Label("Filter")
+        public String filter;
+
+        @Label("Report")
+        public String report;
+
+        @Label("Error")
+        public String error;
+    }
+
+    @Name("jjsp.ResponseHeaders")
+    @Label("Response Headers Sent")
+    @Category({CATEGORY, "HTTP"})
+    @Description("Writing the response headers to the client")
+    @StackTrace(false)
+    public static class ResponseHeaders extends Event
+    {
+        @Label("Server Port")
+        public int serverPort;
+
+        @Label("Status Line")
+        public String status;
+
+        @Label("Content Length")
+        @DataAmount
+        public long contentLength;
+
+        @Label("Chunked")
+        public boolean chunked;
+    }
+
+    @Name("jjsp.Request")
+    @Label("Request Completed")
+    @Category({CATEGORY, "HTTP"})
+    @Description("A request, from its headers being parsed until the response body was completed")
+    @StackTrace(false)
+    public static class Request extends Event
+    {
+        @Label("Server Port")
+        public int serverPort;
+
+        @Label("Client Address")
+        public String clientAddress;
+
+        @Label("Method")
+        public String method;
+
+        @Label("Path")
+        public String path;
+
+        @Label("Status")
+        public int status;
+
+        @Label("Bytes Read")
+        @DataAmount
+        public long bytesRead;
+
+        @Label("Bytes Written")
+        @DataAmount
+        public long bytesWritten;
+
+        @Label("Filter Chain")
+        public String filterChain;
+    }
+
+    @Name("jjsp.ScriptInvocation")
+    @Label("Script Handler Invocation")
+    @Category({CATEGORY, "Script"})
+    @Description("Invocation of a Javascript request handler function")
+    @StackTrace(false)
+    public static class ScriptInvocation extends Event
+    {
+        @Label("Function")
+        public String function;
+
+        @Label("Path")
+        public String path;
+
+        @Label("Handled")
+        public boolean handled;
+    }
+
+    @Name("jjsp.JDBCCheckout")
+    @Label("JDBC Connection Checkout")
+    @Category({CATEGORY, "Database"})
+    @Description("Obtaining a connection from a SQLDriver pool; the duration is the pool wait time")
+    @StackTrace(false)
+    public static class JDBCCheckout extends Event
+    {
+        @Label("Database")
+        public String database;
+
+        @Label("Timeout")
+        @Timespan(Timespan.MILLISECONDS)
+        public long timeout;
+
+        @Label("Success")
+        public boolean success;
+
+        @Label("New Connection")
+        public boolean newConnection;
+
+        @Label("Idle Connections")
+        public int idleConnections;
+
+        @Label("Open Connections")
+        public int openConnections;
+    }
+
+    static final EventType FILTER_INVOCATION = EventType.getEventType(FilterInvocation.class);
+
+    static String method(String mainLine)
+    {
+        if (mainLine == null)
+            return null;
+        int sp = mainLine.indexOf(' ');
+        if (sp < 0)
+            return mainLine;
+        return mainLine.substring(0, sp);
+    }
+}
@@ -26,6 +26,11 @@ public class HTTPFilterChain
 { 
     public final String linkName;
     public final HTTPFilterChain previous;
+    public final long entryNanos;
+
+    public long exitNanos;
+
+    private HTTPEvents.FilterInvocation event;
 
     public String report;
     public Throwable error;
@@ -42,6 +47,117 @@ public class HTTPFilterChain
         this.linkName = linkName;
         this.previous = previous;
         report = EMPTY_REPORT;
+        entryNanos = System.nanoTime();
+        exitNanos = 0;
+
+        if (HTTPEvents.FILTER_INVOCATION.isEnabled())
+        {
+            event = new HTTPEvents.FilterInvocation();
+            event.begin();
+        }
+    }
+
+    /** Called by a filter as it returns, so that the time spent in each hop of the chain can be reported */
+    public void markExit()
+    {
+        exitNanos = System.nanoTime();
+
+        if (event != null)
+        {
+            event.end();
+            if (event.shouldCommit())
+            {
+                event.filter = linkName;
+                event.report = report;
+                if (error != null)
+                    event.error = error.toString();
+                event.commit();
+            }
+            event = null;
+        }
+    }
+
+    public int getLength()
+    {
+        int result = 0;
+        for (HTTPFilterChain ch = this; ch != null; ch = ch.previous)
+            result++;
+        return result;
+    }
+
+    /** Returns the links of this chain, first (outermost) filter first */
+    public HTTPFilterChain[] toArray()
+    {
+        HTTPFilterChain[] result = new HTTPFilterChain[getLength()];
+        int pos = result.length;
+        for (HTTPFilterChain ch = this; ch != null; ch = ch.previous)
+            result[--pos] = ch;
+        return result;
+    }
+
+    /** Returns the nanoseconds each link (first filter first) spent from entry to exit, including the links it passed the request on to.
+        Links whose filter did not mark its exit take the exit time of the nearest enclosing link which did, or -1 if there is none. */
+    public long[] getElapsedNanos()
+    {
+        HTTPFilterChain[] links = toArray();
+        long[] result = new long[links.length];
+
+        for (int i=0; i<links.length; i++)
+        {
+            long exit = links[i].exitNanos;
+            if (exit == 0)
+            {
+                for (int j=i-1; j>=0; j--)
+                {
+                    if (links[j].exitNanos != 0)
+                    {
+                        exit = links[j].exitNanos;
+                        break;
+                    }
+                }
+            }
+
+            if (exit == 0)
+                result[i] = -1;
+            else
+                result[i] = Math.max(0, exit - links[i].entryNanos);
+        }
+        return result;
+    }
+
+    /** Returns the nanoseconds each link (first filter first) spent itself, excluding the time of the links after it */
+    public long[] getSelfNanos()
+    {
+        long[] elapsed = getElapsedNanos();
+        long[] result = new long[elapsed.length];
+        for (int i=0; i<elapsed.length; i++)
+        {
+            if ((elapsed[i] < 0) || (i == elapsed.length-1) || (elapsed[i+1] < 0))
+                result[i] = elapsed[i];
+            else
+                result[i] = Math.max(0, elapsed[i] - elapsed[i+1]);
+        }
+        return result;
+    }
+
+    public String getTimingReport()
+    {
+        HTTPFilterChain[] links = toArray();
+        long[] elapsed = getElapsedNanos();
+        long[] self = getSelfNanos();
+
+        StringBuffer buf = new StringBuffer();
+        for (int i=0; i<links.length; i++)
+        {
+            if (i > 0)
+                buf.append(" -> ");
+            buf.append(links[i].linkName);
+            if (elapsed[i] < 0)
+                buf.append("[?]");
+            else
+                buf.append("["+(elapsed[i]/1000)+"us self "+(self[i]/1000)+"us]");
+        }
+        return buf.toString();
     }
 
     public void setReport(String report)
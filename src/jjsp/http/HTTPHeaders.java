@@ -32,17 +32,17 @@ public class HTTPHeaders
     public static final String MAIN_LINE = "Main-Line";
 
     protected String mainLine;
-    protected LinkedHashMap headerMap;
+    final HeaderTable headerTable;
 
     public HTTPHeaders()
     {
-        headerMap = new LinkedHashMap();
+        headerTable = new HeaderTable();
     }
 
     public void clear()
     {
         mainLine = null;
-        headerMap.clear();
+        headerTable.clear();
     }
 
     public String getMainLine()
@@ -52,19 +52,22 @@ public class HTTPHeaders
 
     public int getHeaderCount()
     {
-        return headerMap.size();
+        return headerTable.size();
     }
 
     public String[] getHeaderKeys()
     {
-        String[] keys = new String[headerMap.size()];
-        headerMap.keySet().toArray(keys);
+        String[] keys = new String[headerTable.size()];
+        for (int i=0; i<keys.length; i++)
+            keys[i] = headerTable.getKey(i);
         return keys;
     }
 
     public boolean hasHeader(String key)
     {
-        return headerMap.containsKey(key);
+        if (key == null)
+            return false;
+        return headerTable.containsKey(key);
     }
 
     public String getHeader(String key)
@@ -76,7 +79,7 @@ public class HTTPHeaders
     {
         if (key == null)
             return null;
-        Object val = headerMap.get(key);
+        Object val = headerTable.get(key);
         if (val == null)
             return defaultValue;
         return (String) val;
@@ -88,12 +91,12 @@ public class HTTPHeaders
             return;
             
         if (value == null)
-            headerMap.remove(key);
+            headerTable.remove(key);
         else
         {
-            if (headerMap.size() >= MAX_HEADERS)
+            if ((headerTable.size() >= MAX_HEADERS) && !headerTable.containsKey(key))
                 throw new IllegalStateException("Too many headers");
-            headerMap.put(key, value);
+            headerTable.put(key, value);
         }
     }
 
@@ -101,7 +104,7 @@ public class HTTPHeaders
     {
         if (key == null)
             return false;
-        return headerMap.remove(key) != null;
+        return headerTable.remove(key) != null;
     }
 
     protected void setHeaders(String[] keys, String[] values)
@@ -114,16 +117,17 @@ public class HTTPHeaders
             setHeader(keys[i], values[i]);
     }
 
+    /** Parses a non-negative decimal header value, returning defaultValue if it is missing or malformed */
+    public long getLongHeader(String key, long defaultValue)
+    {
+        if (key == null)
+            return defaultValue;
+        return headerTable.getLong(key, defaultValue);
+    }
+
     public long getContentLength()
     {
-        try
-        {
-            return Long.parseLong(getHeader("Content-Length", "-1"));
-        }
-        catch (Exception e) 
-        {
-            return -1;
-        }
+        return headerTable.getLong("Content-Length", -1);
     }
     
     public boolean isHTTP11()
@@ -131,9 +135,23 @@ public class HTTPHeaders
         return mainLine.endsWith("HTTP/1.1") || mainLine.startsWith("HTTP/1.1");
     }
 
+    /** Chunked when "chunked" is the final transfer coding listed (e.g. "gzip, chunked") */
     public boolean isChunked()
     {
-        return isHTTP11() && "chunked".equalsIgnoreCase(getHeader("Transfer-Encoding", "none"));
+        if (!isHTTP11())
+            return false;
+        if (headerTable.valueEqualsIgnoreCase("Transfer-Encoding", "chunked"))
+            return true;
+
+        String codings = getHeader("Transfer-Encoding", null);
+        if (codings == null)
+            return false;
+        codings = codings.trim().toLowerCase();
+        if (!codings.endsWith("chunked"))
+            return false;
+        
+        int before = codings.length() - 8;
+        return (before < 0) || (codings.charAt(before) == ',') || (codings.charAt(before) == ' ');
     }
 
     public boolean useCache()
@@ -143,7 +161,7 @@ public class HTTPHeaders
 
     public boolean closeConnection()
     {
-        return !isHTTP11() || "close".equalsIgnoreCase(getHeader("Connection", "Keep-alive"));
+        return !isHTTP11() || headerTable.valueEqualsIgnoreCase("Connection", "close");
     }
 
     public long[] extractByteRanges()
@@ -194,11 +212,10 @@ public class HTTPHeaders
         ps.print(getMainLine());
         ps.print("\r\n");
         
-        String[] keys = getHeaderKeys();
-        for (int i=0; i<keys.length; i++)
+        for (int i=0; i<headerTable.size(); i++)
         {
-            String key = keys[i];
-            Object value = headerMap.get(key);
+            String key = headerTable.getKey(i);
+            Object value = headerTable.getValue(i);
             try
             {
                 String sval = (String) value;
@@ -214,7 +231,7 @@ public class HTTPHeaders
                 {
                     ps.print(key);
                     ps.print(": ");
-                    ps.print(Utils.getAsciiBytes(HTTPResponseHeaders.formatSetCookie((HttpCookie)values.get(j))));
+                    ps.print(Utils.getAsciiBytes(HTTPResponseHeaders.formatSetCookie(values.get(j))));
                     ps.print("\r\n");
                 }
             }
@@ -288,10 +305,130 @@ public class HTTPHeaders
     }
 
     public Map toMap()
+    {
+        return toMap(mainLine, headerTable);
+    }
+
+    /** 
+        @deprecated headers are no longer held in a map; this returns a view of them in place of the old headerMap field. Lookups, 
+        put and remove go through to the headers (keys ignore case), while iterating works over a copy. Use getHeader and setHeader.
+    */
+    @Deprecated
+    protected Map getHeaderMap()
+    {
+        return new HeaderMapView();
+    }
+
+    class HeaderMapView extends AbstractMap
+    {
+        public Object get(Object key)
+        {
+            if (!(key instanceof String))
+                return null;
+            return headerTable.get((String) key);
+        }
+
+        public boolean containsKey(Object key)
+        {
+            return (key instanceof String) && headerTable.containsKey((String) key);
+        }
+
+        public Object put(Object key, Object value)
+        {
+            Object result = get(key);
+            if (value == null)
+                headerTable.remove((String) key);
+            else
+                headerTable.put((String) key, value);
+            return result;
+        }
+
+        public Object remove(Object key)
+        {
+            if (!(key instanceof String))
+                return null;
+            return headerTable.remove((String) key);
+        }
+
+        public int size()
+        {
+            return headerTable.size();
+        }
+
+        public void clear()
+        {
+            headerTable.clear();
+        }
+
+        public Set entrySet()
+        {
+            LinkedHashMap copy = new LinkedHashMap();
+            for (int i=0; i<headerTable.size(); i++)
+                copy.put(headerTable.getKey(i), headerTable.getValue(i));
+            return Collections.unmodifiableMap(copy).entrySet();
+        }
+    }
+
+    /** 
+        Returns a map equal to what toMap() returns now, which copies the headers (as raw bytes for those read from a
+        request) but only builds the map when first read, so that loggers which need at most the main line pay for no more.
+    */
+    public Map toLazyMap()
+    {
+        return new LazyHeaderMap(mainLine, headerTable.copy());
+    }
+
+    static class LazyHeaderMap extends AbstractMap
+    {
+        private final String mainLine;
+        private HeaderTable table;
+        private Map map;
+
+        LazyHeaderMap(String mainLine, HeaderTable table)
+        {
+            this.mainLine = mainLine;
+            this.table = table;
+        }
+
+        private synchronized Map getMap()
+        {
+            if (map == null)
+            {
+                map = Collections.unmodifiableMap(HTTPHeaders.toMap(mainLine, table));
+                table = null;
+            }
+            return map;
+        }
+
+        public Object get(Object key)
+        {
+            if (MAIN_LINE.equals(key))
+                return mainLine;
+            return getMap().get(key);
+        }
+
+        public boolean containsKey(Object key)
+        {
+            return MAIN_LINE.equals(key) || getMap().containsKey(key);
+        }
+
+        public int size()
+        {
+            return getMap().size();
+        }
+
+        public Set entrySet()
+        {
+            return getMap().entrySet();
+        }
+    }
+
+    static Map toMap(String mainLine, HeaderTable headerTable)
     {
         LinkedHashMap result = new LinkedHashMap();
         result.put(MAIN_LINE, mainLine);
-        result.putAll(headerMap);
+        for (int i=0; i<headerTable.size(); i++)
+            result.put(headerTable.getKey(i), headerTable.getValue(i));
 
         Object sc = result.get("Set-Cookie");
         if ((sc != null) && (sc instanceof List))
@@ -300,8 +437,10 @@ public class HTTPHeaders
             result.remove("Set-Cookie");
             for (int i=0; i<ll.size(); i++)
             {
-                HttpCookie cookie = (HttpCookie) ll.get(i);
-                result.put("Set-Cookie:"+cookie.getName(), cookie.getValue());
+                Object val = ll.get(i);
+                HttpCookie cookie = (val instanceof HttpCookie) ? (HttpCookie) val : HTTPResponseHeaders.parseSetCookie((String) val);
+                if (cookie != null)
+                    result.put("Set-Cookie:"+cookie.getName(), cookie.getValue());
             }
         }
         
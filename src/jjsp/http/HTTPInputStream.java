@@ -25,12 +25,16 @@ import jjsp.util.*;
 
 public class HTTPInputStream extends InputStream
 {
-    private static final int DEFAULT_MAX_TO_READ_ON_CLOSE = 4*1024;
+    public static final long DEFAULT_MAX_TO_READ_ON_CLOSE = 64*1024;
+    public static final int MAX_CHUNK_LINE_LENGTH = 4*1024;
     private static final int DEFAULT_MAX_POST_DATA_SIZE = 256*1024;
+    private static final int INPUT_BUFFER_SIZE = 16*1024;
     
     private boolean isSecure;
     private int serverPort;
+    private long maxToReadOnClose;
     private HTTPRequestHeaders headers;
+    private LinkedHashMap trailers;
     private InetSocketAddress clientAddress;
     private MeasurableInputStream src;
     private InputStream contentStream;
@@ -43,7 +47,46 @@ public class HTTPInputStream extends InputStream
         this.clientAddress = address;
 
         headers = new HTTPRequestHeaders();
+        trailers = new LinkedHashMap();
         contentStream = null; 
+        maxToReadOnClose = DEFAULT_MAX_TO_READ_ON_CLOSE;
+    }
+
+    /** 
+        Sets how many unread body bytes are skipped when a request is closed so that the connection can be reused for the next request.
+        If more than this remains the connection is closed instead.
+    */
+    public void setMaxToReadOnClose(long bytes)
+    {
+        maxToReadOnClose = Math.max(0, bytes);
+    }
+
+    public long getMaxToReadOnClose()
+    {
+        return maxToReadOnClose;
+    }
+
+    public boolean isChunked()
+    {
+        return contentStream instanceof ChunkedContentStream;
+    }
+
+    /** Returns the trailer fields sent after a chunked request body; these are only available once the body has been read to its end */
+    public Map getTrailers()
+    {
+        return trailers;
+    }
+
+    public String getTrailer(String name)
+    {
+        Iterator itt = trailers.entrySet().iterator();
+        while (itt.hasNext())
+        {
+            Map.Entry e = (Map.Entry) itt.next();
+            if (name.equalsIgnoreCase((String) e.getKey()))
+                return (String) e.getValue();
+        }
+        return null;
     }
 
     public int getServerPort()
@@ -81,27 +124,33 @@ public class HTTPInputStream extends InputStream
         return src.totalBytesRead;
     }
 
+    /** Buffers the socket input (which is shared by every request on the connection) and counts the bytes handed on */
     class MeasurableInputStream extends InputStream
     {
         boolean measureTimeOfNextRead;
         long readTime, totalBytesRead;
 
         private final InputStream src;
+        private final byte[] buffer;
+        private int pos, limit;
 
         MeasurableInputStream(InputStream src)
         {
             this.src = src;
+            buffer = new byte[INPUT_BUFFER_SIZE];
+            pos = limit = 0;
             measureTimeOfNextRead = false;
             readTime = totalBytesRead = 0;
         }
         
         public int available() throws IOException
         {
-            return src.available();
+            return (limit - pos) + src.available();
         }
 
         public void close() throws IOException
         {
+            pos = limit = 0;
             src.close();
         }
 
@@ -115,14 +164,23 @@ public class HTTPInputStream extends InputStream
 
             totalBytesRead += number;
         }
+
+        private boolean fill() throws IOException
+        {
+            int r = src.read(buffer, 0, buffer.length);
+            if (r <= 0)
+                return false;
+            pos = 0;
+            limit = r;
+            return true;
+        }
 	
         public int read() throws IOException
         {
-            int result = src.read();
-            if (result < 0)
-                return result;
+            if ((pos >= limit) && !fill())
+                return -1;
             bytesRead(1);
-            return result;
+            return buffer[pos++] & 0xFF;
         }
 
         public int read(byte[] b) throws IOException
@@ -132,20 +190,75 @@ public class HTTPInputStream extends InputStream
 
         public int read(byte[] b, int off, int len) throws IOException
         {
-            int r = src.read(b, off, len);
-            if (r <= 0)
-                return r;
+            if (len <= 0)
+                return 0;
+
+            if (pos >= limit)
+            {
+                if (len >= buffer.length)
+                {
+                    int r = src.read(b, off, len);
+                    if (r > 0)
+                        bytesRead(r);
+                    return r;
+                }
+                if (!fill())
+                    return -1;
+            }
+
+            int r = Math.min(len, limit - pos);
+            System.arraycopy(buffer, pos, b, off, r);
+            pos += r;
             bytesRead(r);
             return r;
         }
 
         public long skip(long toSkip) throws IOException
         {
+            if (toSkip <= 0)
+                return 0;
+
+            if (pos < limit)
+            {
+                int s = (int) Math.min(toSkip, limit - pos);
+                pos += s;
+                bytesRead(s);
+                return s;
+            }
+
             long result = src.skip(toSkip);
-            if (result >= 0)
+            if (result > 0)
                 bytesRead(result);
             return result;
         }
+
+        /** Reads a CRLF terminated line into the line buffer in bulk, returning its length including the CRLF, or -1 if it is too long */
+        int readLine(byte[] lineBuffer) throws IOException
+        {
+            int len = 0;
+            while (true)
+            {
+                if ((pos >= limit) && !fill())
+                    throw new EOFException("Unexpected EOF while seeking EOL");
+
+                int i = pos;
+                while ((i < limit) && (buffer[i] != '\n'))
+                    i++;
+
+                boolean found = (i < limit);
+                int n = (found ? i + 1 : limit) - pos;
+                if (len + n > lineBuffer.length)
+                    return -1;
+
+                System.arraycopy(buffer, pos, lineBuffer, len, n);
+                len += n;
+                pos += n;
+                bytesRead(n);
+
+                if (found && (len >= 2) && (lineBuffer[len-2] == '\r'))
+                    return len;
+            }
+        }
     }
 
     public boolean readHeaders() throws IOException
@@ -154,14 +267,19 @@ public class HTTPInputStream extends InputStream
             contentStream.close();
         contentStream = null;
 
+        trailers.clear();
         if (!headers.readHeadersFromStream(src, clientAddress))
             return false;
 
-        long len = headers.getContentLength();
-        if (len >= 0)
-            contentStream = new UnchunkedContentStream(len);
-        else if (headers.getHeader("Content-Type", "").equals("chunked"))
+        // Transfer-Encoding takes precedence over any Content-Length (RFC 7230 3.3.3)
+        if (headers.isChunked())
             contentStream = new ChunkedContentStream();
+        else
+        {
+            long len = headers.getContentLength();
+            if (len >= 0)
+                contentStream = new UnchunkedContentStream(len);
+        }
         
         return true;
     }
@@ -300,15 +418,25 @@ public class HTTPInputStream extends InputStream
     {
         private boolean eof;
         private byte[] lineBuffer;
-        private int chunkLength, chunkPos;
+        private long chunkLength, chunkPos;
 
         ChunkedContentStream() throws IOException
         {
             chunkPos = 0;
             chunkLength = 0;
-            lineBuffer = new byte[512];
+            lineBuffer = new byte[MAX_CHUNK_LINE_LENGTH];
             eof = false;
-            findNextChunk();
+        }
+
+        private int readChunkLine() throws IOException
+        {
+            int pos = src.readLine(lineBuffer);
+            if (pos < 0)
+            {
+                dispose();
+                throw new IOException("Chunk header line too long");
+            }
+            return pos;
         }
 
         private boolean findNextChunk() throws IOException
@@ -316,55 +444,83 @@ public class HTTPInputStream extends InputStream
             if (eof)
                 return false;
 
-            int pos = HTTPRequestHeaders.readLine(src, lineBuffer);
-            if (pos < 0)
-                return false;
-            if (pos == 2)
-                pos = HTTPRequestHeaders.readLine(src, lineBuffer);
+            if (chunkLength > 0)
+            {
+                // Consume the CRLF which ends the previous chunk's data
+                if (readChunkLine() != 2)
+                    throw new IOException("Missing CRLF after chunk data");
+            }
 
-            chunkLength = -1;
-            for (int i=0; i<pos; i++)
+            int pos = readChunkLine();
+            long len = 0;
+            int digits = 0;
+            for (int i=0; i<pos-2; i++)
             {
-                if (Character.digit((char) lineBuffer[i], 16) < 0)
+                int d = Character.digit((char) lineBuffer[i], 16);
+                if (d < 0)
                 {
-                    try
-                    {
-                        chunkLength = Integer.parseInt(new String(lineBuffer, 0, i), 16);
-                        chunkPos = 0;
-                        break;
-                    }
-                    catch (Exception e)
-                    {
-                        throw new IOException("Invalid chunk size");
-                    }
+                    byte b = lineBuffer[i];
+                    if ((b == ';') || (b == ' ') || (b == '\t'))
+                        break; // Chunk extensions are ignored
+                    throw new IOException("Invalid chunk size");
                 }
+                if (++digits > 15)
+                    throw new IOException("Chunk size too large");
+                len = (len << 4) | d;
             }
+            if (digits == 0)
+                throw new IOException("Invalid chunk size");
 
-            if (chunkLength < 0)
-                throw new EOFException("Unexpected EOF reading chunk size");
+            chunkLength = len;
+            chunkPos = 0;
             if (chunkLength > 0)
                 return true;
 
             eof = true;
-            if (!headers.readNextHeaderValuesFromStream(src))
-                dispose();
+            readTrailers();
             return false;
         }
 
+        private void readTrailers() throws IOException
+        {
+            while (true)
+            {
+                int pos = readChunkLine();
+                if (pos == 2)
+                    return;
+                if (trailers.size() >= HTTPHeaders.MAX_HEADERS)
+                {
+                    dispose();
+                    throw new IOException("Too many chunked trailer fields");
+                }
+
+                for (int i=0; i<pos; i++)
+                {
+                    if (lineBuffer[i] != (byte)':')
+                        continue;
+                    String key = new String(lineBuffer, 0, i, HTTPUtils.ASCII).trim();
+                    String value = new String(lineBuffer, i+1, pos-i-3, HTTPUtils.ASCII).trim();
+                    trailers.put(key, value);
+                    break;
+                }
+            }
+        }
+
         public int available() throws IOException
         {
             if (eof)
                 return 0;
-            return Math.min(chunkLength - chunkPos, src.available());
+            return (int) Math.min(chunkLength - chunkPos, src.available());
         }
 
         public int read() throws IOException
         {
-            if ((chunkPos >= chunkLength) && !findNextChunk())
+            if (eof || ((chunkPos >= chunkLength) && !findNextChunk()))
                 return -1;
             int b = src.read();
-            if (b >= 0)
-                chunkPos++;
+            if (b < 0)
+                throw new EOFException("EOF reading Chunk");
+            chunkPos++;
             return b;
         }
 
@@ -375,35 +531,17 @@ public class HTTPInputStream extends InputStream
 
         public int read(byte[] b, int off, int len) throws IOException
         {
-            if (eof)
-                return -1;
             int toRead = Math.min(b.length - off, len);
             if (toRead <= 0)
                 return 0;
+            if (eof || ((chunkPos >= chunkLength) && !findNextChunk()))
+                return -1;
 
-            int read = 0;
-            while (true)
-            {
-                if (read >= toRead)
-                    return read;
-                
-                if (eof || ((chunkPos >= chunkLength) && !findNextChunk()))
-                {
-                    if (read > 0)
-                        return read;
-                    close();
-                    return -1;
-                }
-
-                int r = Math.min(toRead - read, chunkLength - chunkPos);
-                r = src.read(b, off, r);
-                if (r < 0)
-                    throw new EOFException("EOF reading Chunk");
-
-                read += r;
-                off += r;
-                chunkPos += r;
-            }
+            int r = src.read(b, off, (int) Math.min(toRead, chunkLength - chunkPos));
+            if (r < 0)
+                throw new EOFException("EOF reading Chunk");
+            chunkPos += r;
+            return r;
         }
         
         public long skip(long s) throws IOException
@@ -416,7 +554,9 @@ public class HTTPInputStream extends InputStream
                 return 0;
             long skipped = src.skip(toSkip);
             if (skipped > 0)
-                chunkPos += (int) skipped;
+                chunkPos += skipped;
+            else
+                throw new EOFException("EOF skipping Chunk");
             return skipped;
         } 
 
@@ -425,10 +565,10 @@ public class HTTPInputStream extends InputStream
             if (eof)
                 return;
             
-            long remain = DEFAULT_MAX_TO_READ_ON_CLOSE;
-            for (int i=0; (remain>0) && (i<32); i++)
+            long remain = maxToReadOnClose;
+            while (remain >= 0)
             {
-                long s = skip(Integer.MAX_VALUE);
+                long s = skip(Math.max(1, remain));
                 if (s < 0)
                     break;
                 remain -= s;
@@ -539,7 +679,13 @@ public class HTTPInputStream extends InputStream
                 return;
             }
 
-            long remain = Math.min(length - pos, DEFAULT_MAX_TO_READ_ON_CLOSE);
+            long remain = length - pos;
+            if (remain > maxToReadOnClose)
+            {
+                closed = true;
+                dispose();
+                throw new IOException("Unread request body ("+remain+" bytes) exceeds the limit to read on close");
+            }
             while (remain > 0)
             {
                 long s = src.skip(remain);
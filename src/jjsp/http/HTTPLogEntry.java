@@ -28,6 +28,7 @@ public class HTTPLogEntry
     public final String SESSION_ID = "SID";
 
     public final boolean isSecure;
+    public final int serverPort;
     public final String clientAddress;
     public final Map reqHeaders, respHeaders;
     public final HTTPFilterChain filterChain;
@@ -35,6 +36,12 @@ public class HTTPLogEntry
 
     public HTTPLogEntry(boolean isSecure, String clientAddress, long requestReceived, long processStart, long responseStart, long responseSent, long bytesRead, long bytesWritten, HTTPFilterChain filterChain, HTTPRequestHeaders req, HTTPResponseHeaders resp)
     {
+        this(-1, isSecure, clientAddress, requestReceived, processStart, responseStart, responseSent, bytesRead, bytesWritten, filterChain, req, resp);
+    }
+
+    public HTTPLogEntry(int serverPort, boolean isSecure, String clientAddress, long requestReceived, long processStart, long responseStart, long responseSent, long bytesRead, long bytesWritten, HTTPFilterChain filterChain, HTTPRequestHeaders req, HTTPResponseHeaders resp)
+    {
+        this.serverPort = serverPort;
         this.isSecure = isSecure;
         this.clientAddress = clientAddress;
         this.requestReceived = requestReceived;
@@ -45,8 +52,8 @@ public class HTTPLogEntry
         this.bytesWritten = bytesWritten;
         this.filterChain = filterChain;
 
-        reqHeaders = req.toMap();
-        respHeaders = resp.toMap();
+        reqHeaders = req.toLazyMap();
+        respHeaders = resp.toLazyMap();
     }
 
     public String getSessionID()
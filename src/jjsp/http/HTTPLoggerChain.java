@@ -38,6 +38,14 @@ public class HTTPLoggerChain implements HTTPServerLogger
             second.socketException(clientPort, serverPort, isSecure, clientAddress, t);
     }
 
+    public void requestStarted(HTTPRequestHeaders reqHeaders)
+    {
+        if (first != null)
+            first.requestStarted(reqHeaders);
+        if (second != null)
+            second.requestStarted(reqHeaders);
+    }
+
     public void requestProcessed(HTTPLogEntry logEntry)
     {
         if (first != null)
@@ -286,6 +286,23 @@ public class HTTPOutputStream extends OutputStream
         }
     }
 
+    public void sendContent(OffHeapStore.Asset content) throws IOException
+    {
+        sendContent(content, 0, content.length());
+    }
+
+    /** Sends part of an asset as the whole response body, copying it from off heap memory in small pieces */
+    public void sendContent(OffHeapStore.Asset content, int off, int len) throws IOException
+    {
+        if (!headers.contentTypeConfigured())
+            headers.setContentType("text/html; charset=utf-8");
+
+        len = Math.max(0, Math.min(content.length() - off, len));
+        prepareToSendContent(len, false);
+        content.writeTo(this, off, len);
+        close();
+    }
+
     public void sendHeaders() throws IOException
     {
         if (!headers.responseCodeConfigured())
@@ -306,8 +323,24 @@ public class HTTPOutputStream extends OutputStream
         if (!headers.cacheControlConfigured())
             headers.configureToPreventCaching();
 
+        HTTPEvents.ResponseHeaders event = new HTTPEvents.ResponseHeaders();
+        event.begin();
         headers.printToStream(dest);
         dest.flush();
+        headersSent(event, 0, false);
+    }
+
+    private void headersSent(HTTPEvents.ResponseHeaders event, long contentLength, boolean isChunked)
+    {
+        event.end();
+        if (!event.shouldCommit())
+            return;
+
+        event.serverPort = serverPort;
+        event.status = headers.getMainLine();
+        event.contentLength = contentLength;
+        event.chunked = isChunked;
+        event.commit();
     }
 
     public void prepareToSendContent(long contentLength, boolean isChunked) throws IOException
@@ -343,7 +376,11 @@ public class HTTPOutputStream extends OutputStream
         outputSent = true;
         if (legacyHTTP)
             headers.convertToHTTP10();
+
+        HTTPEvents.ResponseHeaders event = new HTTPEvents.ResponseHeaders();
+        event.begin();
         headers.printToStream(dest);
+        headersSent(event, contentLength, isChunked);
 
         if (isResponseToHeadRequest)
             contentStream = new DummyOutputStream();
@@ -31,10 +31,10 @@ public class HTTPRequestHeaders extends HTTPHeaders
     public static final int DEFAULT_HEADER_LINE_LENGTH = 4*1024;
     
     private int pos;
-    private String reqURL;
     private byte[] lineBuffer;
     private String clientIPAddress;
-    private Map queryMap, cookieMap;
+    private Map queryMap, queryValues, cookieMap;
+    private String rawURL, reqURL, reqPath;
     private boolean queryParsed, cookiesParsed;
 
     public HTTPRequestHeaders()
@@ -45,9 +45,12 @@ public class HTTPRequestHeaders extends HTTPHeaders
     public HTTPRequestHeaders(int lineLength)
     {
         pos = 0;
+        rawURL = null;
         reqURL = null;
+        reqPath = null;
         lineBuffer = new byte[lineLength];
         queryMap = new HashMap();
+        queryValues = new HashMap();
         cookieMap = new HashMap();
         clientIPAddress = null;
     }
@@ -55,11 +58,14 @@ public class HTTPRequestHeaders extends HTTPHeaders
     public void clear()
     {
         super.clear();
+        rawURL = null;
         reqURL = null;
+        reqPath = null;
         pos = 0;
         queryParsed = false;
         cookiesParsed = false;
         queryMap.clear();
+        queryValues.clear();
         cookieMap.clear();
         clientIPAddress = null;
     }
@@ -92,17 +98,14 @@ public class HTTPRequestHeaders extends HTTPHeaders
                 if (lineBuffer[i] != (byte)':')
                     continue;
                 
-                String key = new String(lineBuffer, 0, i, HTTPUtils.ASCII);
-                
                 int val = i+1;
                 while (lineBuffer[val] == (byte)' ')
                     val++;
                 
-                String value = new String(lineBuffer, val, pos-val-2, HTTPUtils.ASCII);
                 if (getHeaderCount() >= MAX_HEADERS)
                     return false;
 
-                setHeader(key, value);
+                headerTable.putRaw(lineBuffer, 0, i, val, Math.max(0, pos-val-2));
                 break;
             }
         }
@@ -155,26 +158,44 @@ public class HTTPRequestHeaders extends HTTPHeaders
         return true;
     }
 
-    public String getRequestURL()
+    /** Returns the request target exactly as sent, without any percent decoding */
+    public String getRawRequestURL()
     {
-        if (reqURL != null)
-            return reqURL;
+        if (rawURL != null)
+            return rawURL;
+        if (mainLine == null)
+            return null;
 
         int space = mainLine.indexOf(" ");
         if (space < 0)
             return null;
         int end = mainLine.lastIndexOf(" ");
-        if (end < 0)
-            return null;
+        if (end <= space)
+            end = mainLine.length();
 
-        try
-        {
-            reqURL = URLDecoder.decode(mainLine.substring(space+1, end).trim(), "UTF-8");
-        }
-        catch (Exception e) {}
+        rawURL = mainLine.substring(space+1, end).trim();
+        return rawURL;
+    }
+
+    /** Returns the decoded request URL, with '+' decoded as a space as URLDecoder does (see getRequestURL(boolean)) */
+    public String getRequestURL()
+    {
+        if (reqURL != null)
+            return reqURL;
+
+        reqURL = getRequestURL(true);
         return reqURL;
     }
 
+    /** Decodes the request URL; with plusAsSpace false a '+' is kept, as RFC 3986 only gives it that meaning in form encoded queries */
+    public String getRequestURL(boolean plusAsSpace)
+    {
+        String raw = getRawRequestURL();
+        if (raw == null)
+            return null;
+        return decodeURLComponent(raw, 0, raw.length(), plusAsSpace);
+    }
+
     public String getAbsoluteURL()
     {
         String result = getRequestURL();
@@ -189,45 +210,53 @@ public class HTTPRequestHeaders extends HTTPHeaders
         return result;
     }
 
+    /** 
+        Returns the decoded path of the request, with '+' decoded as a space as URLDecoder does; the path is split from the query 
+        before decoding so escaped '?' and '#' characters are kept
+    */
     public String getPath()
     {
-        String reqURL = getRequestURL();
-        if (reqURL.startsWith("http://"))
-        {
-            int s = reqURL.indexOf("/", 7);
-            if (s < 0)
-                return "/";
-            reqURL = reqURL.substring(s);
-        }
-        else if (reqURL.startsWith("https://"))
-        {
-            int s = reqURL.indexOf("/", 8);
-            if (s < 0)
-                return "/";
-            reqURL = reqURL.substring(s);
-        }
+        if (reqPath != null)
+            return reqPath;
+
+        reqPath = getPath(true);
+        return reqPath;
+    }
 
-        int q = reqURL.indexOf("?");
-        if (q >= 0)
-            reqURL = reqURL.substring(0, q);
+    /** Returns the decoded path of the request; with plusAsSpace false a '+' in the path is kept rather than read as a space */
+    public String getPath(boolean plusAsSpace)
+    {
+        String raw = getRawRequestURL();
+        int start = 0;
+        if (raw.startsWith("http://"))
+            start = raw.indexOf("/", 7);
+        else if (raw.startsWith("https://"))
+            start = raw.indexOf("/", 8);
+        if (start < 0)
+            return "/";
 
-        int h = reqURL.indexOf("#");
-        if (h >= 0)
-            reqURL = reqURL.substring(0, h);
+        int end = raw.length();
+        for (int i=start; i<end; i++)
+        {
+            char ch = raw.charAt(i);
+            if ((ch == '?') || (ch == '#'))
+                end = i;
+        }
 
-        return reqURL;
+        return decodeURLComponent(raw, start, end, plusAsSpace);
     }
 
+    /** Returns the query string as sent (still percent encoded), or null if there is none */
     public String getQueryString()
     {
-        String reqURL = getRequestURL();
-        int q = reqURL.indexOf("?");
+        String raw = getRawRequestURL();
+        int q = raw.indexOf("?");
         if (q < 0)
             return null;
-        int h = reqURL.indexOf("#");
-        if (h < q)
-            h = reqURL.length();
-        return reqURL.substring(q + 1, h);
+        int h = raw.indexOf("#", q);
+        if (h < 0)
+            h = raw.length();
+        return raw.substring(q + 1, h);
     }
 
     public Map getQueryParameters()
@@ -235,11 +264,24 @@ public class HTTPRequestHeaders extends HTTPHeaders
         if (!queryParsed)
         {
             queryParsed = true;
-            parseHTTPQueryParameters(getQueryString(), queryMap);
+            parseHTTPQueryParameters(getQueryString(), queryMap, queryValues);
         }
         return queryMap;
     }
 
+    /** Returns every value given for a query parameter, in request order (an empty array if there are none) */
+    public String[] getQueryValues(String key)
+    {
+        List ll = (List) queryValues.get(key);
+        if (ll != null)
+            return (String[]) ll.toArray(new String[ll.size()]);
+
+        String value = (String) getQueryParameters().get(key);
+        if (value == null)
+            return new String[0];
+        return new String[]{value};
+    }
+
     public boolean hasQueryParam(String key)
     {
         return getQueryParameters().get(key) != null;
@@ -360,32 +402,130 @@ public class HTTPRequestHeaders extends HTTPHeaders
     }
 
     public static Map parseHTTPQueryParameters(String queryString, Map result)
+    {
+        return parseHTTPQueryParameters(queryString, result, null);
+    }
+
+    /** 
+        Parses an encoded query string in a single pass, decoding each key and value separately. The result map holds the last value
+        given for each key; when multiValues is not null, keys which are repeated are also mapped in it to a List of all their values.
+    */
+    public static Map parseHTTPQueryParameters(String queryString, Map result, Map multiValues)
     {
         if (result == null)
             result = new HashMap();
         if (queryString == null)
             return result;
 
-        if (queryString.startsWith("?"))
-            queryString = queryString.substring(1);
-
-        String[] params = queryString.split("&");
-        for (int i=0; i<params.length; i++)
+        int len = queryString.length();
+        int pos = queryString.startsWith("?") ? 1 : 0;
+        while (pos < len)
         {
-            int eq = params[i].indexOf("=");
-            if (eq < 0)
-                continue;
-            try
+            int amp = queryString.indexOf('&', pos);
+            if (amp < 0)
+                amp = len;
+
+            int eq = queryString.indexOf('=', pos);
+            if ((eq >= 0) && (eq < amp))
             {
-                String key = URLDecoder.decode(params[i].substring(0, eq), "UTF-8");
-                String value = URLDecoder.decode(params[i].substring(eq+1), "UTF-8");
-                result.put(key, value);
+                String key = decodeURLComponent(queryString, pos, eq, true);
+                String value = decodeURLComponent(queryString, eq+1, amp, true);
+                Object previous = result.put(key, value);
+
+                if ((previous != null) && (multiValues != null))
+                {
+                    List ll = (List) multiValues.get(key);
+                    if (ll == null)
+                    {
+                        ll = new ArrayList();
+                        ll.add(previous);
+                        multiValues.put(key, ll);
+                    }
+                    ll.add(value);
+                }
             }
-            catch (UnsupportedEncodingException e) {}
+            pos = amp + 1;
         }
 
         return result;
     }
+
+    private static int hexValue(char ch)
+    {
+        if ((ch >= '0') && (ch <= '9'))
+            return ch - '0';
+        if ((ch >= 'a') && (ch <= 'f'))
+            return ch - 'a' + 10;
+        if ((ch >= 'A') && (ch <= 'F'))
+            return ch - 'A' + 10;
+        return -1;
+    }
+
+    /** 
+        Percent decodes (as UTF-8) the given region of a string, optionally treating '+' as a space. Malformed escapes are left 
+        as they are rather than rejected. If there is nothing to decode no new characters are copied.
+    */
+    public static String decodeURLComponent(String src, int start, int end, boolean plusAsSpace)
+    {
+        int i = start;
+        for (; i<end; i++)
+        {
+            char ch = src.charAt(i);
+            if ((ch == '%') || (plusAsSpace && (ch == '+')))
+                break;
+        }
+        if (i == end)
+            return src.substring(start, end);
+
+        StringBuilder buf = new StringBuilder(end - start);
+        buf.append(src, start, i);
+
+        byte[] bytes = null;
+        while (i < end)
+        {
+            char ch = src.charAt(i);
+            if (plusAsSpace && (ch == '+'))
+            {
+                buf.append(' ');
+                i++;
+            }
+            else if (ch != '%')
+            {
+                buf.append(ch);
+                i++;
+            }
+            else
+            {
+                int count = 0;
+                int j = i;
+                while ((j+2 < end) && (src.charAt(j) == '%'))
+                {
+                    int hi = hexValue(src.charAt(j+1));
+                    int lo = hexValue(src.charAt(j+2));
+                    if ((hi < 0) || (lo < 0))
+                        break;
+
+                    if (bytes == null)
+                        bytes = new byte[(end - i)/3];
+                    bytes[count++] = (byte) ((hi << 4) | lo);
+                    j += 3;
+                }
+
+                if (count == 0)
+                {
+                    buf.append(ch);
+                    i++;
+                }
+                else
+                {
+                    buf.append(new String(bytes, 0, count, StandardCharsets.UTF_8));
+                    i = j;
+                }
+            }
+        }
+
+        return buf.toString();
+    }
     
     public boolean isHTTP11()
     {
@@ -440,6 +580,11 @@ public class HTTPRequestHeaders extends HTTPHeaders
         return mainLine.startsWith("PUT");
     }
 
+    public boolean isPatch()
+    {
+        return mainLine.startsWith("PATCH");
+    }
+
     public String getHTTPMethod()
     {
         if (mainLine == null)
@@ -457,9 +602,80 @@ public class HTTPRequestHeaders extends HTTPHeaders
         return !isHead() && getHeader("Expect", "").startsWith("100-continue") || isPost();
     }
 
+    /** 
+        True when the Accept-Encoding header lists the content coding (or '*', if it does not name it) with a non zero q value.
+        Without an Accept-Encoding header only the identity coding is assumed to be acceptable.
+    */
+    public boolean acceptsEncoding(String coding)
+    {
+        String accept = getHeader("Accept-Encoding", null);
+        if (accept == null)
+            return "identity".equalsIgnoreCase(coding);
+
+        boolean wildcard = false;
+        String[] parts = accept.split(",");
+        for (int i=0; i<parts.length; i++)
+        {
+            String part = parts[i].trim();
+            double q = 1;
+            int semi = part.indexOf(";");
+            if (semi >= 0)
+            {
+                String param = part.substring(semi+1).trim();
+                part = part.substring(0, semi).trim();
+                if (param.startsWith("q=") || param.startsWith("Q="))
+                {
+                    try
+                    {
+                        q = Double.parseDouble(param.substring(2).trim());
+                    }
+                    catch (Exception e) {}
+                }
+            }
+
+            if (part.equalsIgnoreCase(coding))
+                return q > 0;
+            if (part.equals("*"))
+                wildcard = q > 0;
+        }
+
+        return wildcard;
+    }
+
+    private static String opaqueTag(String tag)
+    {
+        tag = tag.trim();
+        if (tag.startsWith("W/"))
+            tag = tag.substring(2);
+        if ((tag.length() >= 2) && tag.startsWith("\"") && tag.endsWith("\""))
+            tag = tag.substring(1, tag.length()-1);
+        return tag;
+    }
+
+    /** 
+        True when the If-None-Match header is '*' or lists the entity tag exactly (compared weakly, so a W/ prefix and
+        surrounding quotes are ignored), meaning a cached copy with that tag can be used.
+    */
+    public boolean ifNoneMatch(String eTag)
+    {
+        String header = getHeader("If-None-Match", null);
+        if ((header == null) || (eTag == null))
+            return false;
+
+        eTag = opaqueTag(eTag);
+        String[] tags = header.split(",");
+        for (int i=0; i<tags.length; i++)
+        {
+            String tag = tags[i].trim();
+            if (tag.equals("*") || opaqueTag(tag).equals(eTag))
+                return true;
+        }
+        return false;
+    }
+
     public long getIfModifiedSinceTime()
     {
-        return HTTPUtils.getUtils().parseHTTPDate(getHeader("If-Modified-Since", null), -1);
+        return headerTable.getDate("If-Modified-Since", -1);
     }
 
     public boolean requestsPartialContent()
@@ -488,6 +704,9 @@ public class HTTPRequestHeaders extends HTTPHeaders
     
     public static int readLine(InputStream src, byte[] lineBuffer) throws IOException
     {
+        if (src instanceof HTTPInputStream.MeasurableInputStream)
+            return ((HTTPInputStream.MeasurableInputStream) src).readLine(lineBuffer);
+
         int pos = 0;
         int eol = 0;
         while (true)
@@ -526,13 +745,52 @@ public class HTTPRequestHeaders extends HTTPHeaders
 
     public String getCookie(String key)
     {
-        if (!cookiesParsed)
+        if (cookiesParsed)
+            return (String) cookieMap.get(key);
+        return findCookie(getHeader("Cookie", null), key);
+    }
+
+    private static boolean isSpace(char ch)
+    {
+        return (ch == ' ') || (ch == '\t');
+    }
+
+    /** Scans a Cookie header for a single named cookie without building a map of them all; the last matching value wins */
+    public static String findCookie(String cookieString, String name)
+    {
+        if ((cookieString == null) || (name == null))
+            return null;
+
+        String result = null;
+        int len = cookieString.length();
+        int nameLength = name.length();
+        int pos = 0;
+        while (pos < len)
         {
-            cookiesParsed = true;
-            parseCookies(getHeader("Cookie"), cookieMap);
+            int semi = cookieString.indexOf(';', pos);
+            if (semi < 0)
+                semi = len;
+
+            while ((pos < semi) && isSpace(cookieString.charAt(pos)))
+                pos++;
+            if (cookieString.startsWith(name, pos))
+            {
+                int eq = pos + nameLength;
+                while ((eq < semi) && isSpace(cookieString.charAt(eq)))
+                    eq++;
+                if ((eq < semi) && (cookieString.charAt(eq) == '='))
+                {
+                    int start = eq+1, end = semi;
+                    while ((start < end) && isSpace(cookieString.charAt(start)))
+                        start++;
+                    while ((end > start) && isSpace(cookieString.charAt(end-1)))
+                        end--;
+                    result = cookieString.substring(start, end);
+                }
+            }
+            pos = semi + 1;
         }
-        
-        return (String) cookieMap.get(key);
+        return result;
     }
 
     public static Map parseCookies(String cookieString) 
@@ -547,15 +805,22 @@ public class HTTPRequestHeaders extends HTTPHeaders
         if (cookieString == null)
             return result;
         
-        String[] parts = cookieString.split(";");
-        for (int i=0; i<parts.length; i++)
+        int len = cookieString.length();
+        int pos = 0;
+        while (pos < len)
         {
-            int eq = parts[i].indexOf("=");
-            if (eq < 0)
-                continue;
-            String name = parts[i].substring(0, eq).trim();
-            String value = parts[i].substring(eq+1).trim();
-            result.put(name, value);
+            int semi = cookieString.indexOf(';', pos);
+            if (semi < 0)
+                semi = len;
+
+            int eq = cookieString.indexOf('=', pos);
+            if ((eq >= 0) && (eq < semi))
+            {
+                String name = cookieString.substring(pos, eq).trim();
+                String value = cookieString.substring(eq+1, semi).trim();
+                result.put(name, value);
+            }
+            pos = semi + 1;
         }
         return result;
     }
@@ -46,6 +46,7 @@ public class HTTPResponseHeaders extends HTTPHeaders
     public static final int HTTP_NOT_ALLOWED = 405;
     public static final int HTTP_SERVER_ERROR = 500;
     public static final int HTTP_NOT_IMPLEMENTED = 501;
+    public static final int HTTP_BAD_GATEWAY = 502;
     public static final int HTTP_SERVICE_UNAVAILABLE = 503;
     public static final int HTTP_GATEWAY_TIMEOUT = 504;
 
@@ -178,13 +179,13 @@ public class HTTPResponseHeaders extends HTTPHeaders
         }
         catch (ClassCastException e) // Handle the special case for set-cookie, commands which are in a list rather than a String
         {
-            List ll = (List) headerMap.get(key);
+            List ll = (List) headerTable.get(key);
             StringBuffer buf = new StringBuffer();
             for (int i=0; i<ll.size(); i++)
             {
                 if (i > 0)
                     buf.append(", ");
-                buf.append((String) ll.get(i));
+                buf.append(formatSetCookie(ll.get(i)));
             }
             return buf.toString();
         }
@@ -205,24 +206,37 @@ public class HTTPResponseHeaders extends HTTPHeaders
 
     public void setCookie(HttpCookie cookie) 
     {
-        List ll = (List) headerMap.get("Set-Cookie");
+        List ll = (List) headerTable.get("Set-Cookie");
         if (ll == null)
         {
             ll = new ArrayList();
-            headerMap.put("Set-Cookie", ll);
+            headerTable.put("Set-Cookie", ll);
         }
         ll.add(cookie);
     }
 
+    /** Adds a Set-Cookie header value exactly as given (e.g. as received from an upstream server), without parsing it into an HttpCookie */
+    public void addSetCookieHeader(String rawValue)
+    {
+        List ll = (List) headerTable.get("Set-Cookie");
+        if (ll == null)
+        {
+            ll = new ArrayList();
+            headerTable.put("Set-Cookie", ll);
+        }
+        ll.add(rawValue);
+    }
+
     public HttpCookie getCookie(String name)
     {
-        List ll = (List) headerMap.get("Set-Cookie");
+        List ll = (List) headerTable.get("Set-Cookie");
         if (ll == null)
             return null;
         for (int i=0; i<ll.size(); i++)
         {
-            HttpCookie cookie = (HttpCookie) ll.get(i);
-            if (cookie.getName().equals(name))
+            Object val = ll.get(i);
+            HttpCookie cookie = (val instanceof HttpCookie) ? (HttpCookie) val : parseSetCookie((String) val);
+            if ((cookie != null) && cookie.getName().equals(name))
                 return cookie;
         }
         return null;
@@ -369,6 +383,20 @@ public class HTTPResponseHeaders extends HTTPHeaders
         return mainLine != null;
     }
 
+    public int getResponseCode()
+    {
+        if ((mainLine == null) || (mainLine.length() < 12))
+            return -1;
+        try
+        {
+            return Integer.parseInt(mainLine.substring(9, 12));
+        }
+        catch (Exception e)
+        {
+            return -1;
+        }
+    }
+
     public void convertToHTTP10()
     {
         if (!responseCodeConfigured())
@@ -389,12 +417,10 @@ public class HTTPResponseHeaders extends HTTPHeaders
         out.write(Utils.getAsciiBytes(mainLine));
         out.write(crlf);
 
-        Iterator itt = headerMap.entrySet().iterator();
-        while (itt.hasNext())
+        for (int index=0; index<headerTable.size(); index++)
         {
-            Map.Entry entry = (Map.Entry) itt.next();
-            String key = (String) entry.getKey();
-            Object val = entry.getValue();
+            String key = headerTable.getKey(index);
+            Object val = headerTable.getValue(index);
             try
             {
                 String sval = (String) val;
@@ -410,7 +436,7 @@ public class HTTPResponseHeaders extends HTTPHeaders
                 {
                     out.write(Utils.getAsciiBytes(key));
                     out.write(colon);
-                    out.write(Utils.getAsciiBytes(formatSetCookie((HttpCookie)ll.get(i))));
+                    out.write(Utils.getAsciiBytes(formatSetCookie(ll.get(i))));
                     out.write(crlf);
                 }
             }
@@ -433,6 +459,13 @@ public class HTTPResponseHeaders extends HTTPHeaders
         cookieExpiresFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
     }
 
+    static String formatSetCookie(Object cookie)
+    {
+        if (cookie instanceof HttpCookie)
+            return formatSetCookie((HttpCookie) cookie);
+        return String.valueOf(cookie);
+    }
+
     public static String formatSetCookie(HttpCookie cookie)
     {
         // Set-Cookie: value[; Expires=date][; Domain=domain][; Path=path][; Secure][; HttpOnly]
@@ -469,7 +502,7 @@ public class HTTPResponseHeaders extends HTTPHeaders
         if (semi < 0)
             return new HttpCookie(name, raw.trim());
         
-        HttpCookie result = new HttpCookie(name, raw.substring(semi).trim());
+        HttpCookie result = new HttpCookie(name, raw.substring(0, semi).trim());
 
         raw = raw.substring(semi+1).trim();
         String[] parts = raw.split(";");
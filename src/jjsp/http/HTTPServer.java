@@ -27,9 +27,10 @@ import jjsp.http.filters.*;
 public class HTTPServer extends Server
 {
     private volatile int timeout;
+    private volatile long maxToReadOnClose;
 
     private final HTTPServerLogger logger;
-    private final HTTPRequestFilter mainFilter;
+    private volatile HTTPRequestFilter mainFilter;
 
     public HTTPServer(HTTPRequestFilter filter, HTTPServerLogger logger)
     {
@@ -41,6 +42,36 @@ public class HTTPServer extends Server
         super(recvBufferSize, sendBufferSize);
         this.mainFilter = filter;
         this.logger = logger;
+        maxToReadOnClose = HTTPInputStream.DEFAULT_MAX_TO_READ_ON_CLOSE;
+    }
+
+    /** 
+        Replaces the filter which handles each request, returning the previous one. Requests already in progress finish
+        with the filter they started with; open connections are kept and take the new filter for their next request.
+    */
+    public HTTPRequestFilter setMainFilter(HTTPRequestFilter filter)
+    {
+        if (filter == null)
+            throw new NullPointerException("Null main filter");
+        HTTPRequestFilter result = mainFilter;
+        mainFilter = filter;
+        return result;
+    }
+
+    public HTTPRequestFilter getMainFilter()
+    {
+        return mainFilter;
+    }
+
+    /** Sets how much of a request body left unread by the filters is skipped to keep the connection alive (see HTTPInputStream) */
+    public void setMaxToReadOnClose(long bytes)
+    {
+        maxToReadOnClose = Math.max(0, bytes);
+    }
+
+    public long getMaxToReadOnClose()
+    {
+        return maxToReadOnClose;
     }
 
     public int getDefaultSocketTimeout()
@@ -77,8 +108,15 @@ public class HTTPServer extends Server
     }
 
     protected void handleSocketStreams(InetSocketAddress clientAddress, int serverPort, boolean isSecure, InputStream input, OutputStream output) throws IOException
+    {
+        handleStreams(clientAddress, serverPort, isSecure, input, output, logger);
+    }
+
+    /** Serves the requests read from input until it ends, reporting them to the given logger (which may be null) rather than the server's */
+    protected void handleStreams(InetSocketAddress clientAddress, int serverPort, boolean isSecure, InputStream input, OutputStream output, HTTPServerLogger logger) throws IOException
     {
         HTTPInputStream requestInput = new HTTPInputStream(serverPort, isSecure, clientAddress, input);
+        requestInput.setMaxToReadOnClose(maxToReadOnClose);
         HTTPOutputStream requestOutput = new HTTPOutputStream(serverPort, isSecure, clientAddress, output);
 
         ConnectionState state = new ConnectionState();
@@ -94,12 +132,24 @@ public class HTTPServer extends Server
                 requestInput.resetReadTime();
                 requestOutput.resetWriteTime();
 
+                HTTPEvents.RequestHeaders headersEvent = new HTTPEvents.RequestHeaders();
+                headersEvent.begin();
                 try
                 {
                     boolean headerTooLarge = !requestInput.readHeaders();
                     headersReadTime = System.currentTimeMillis();
                     clientIP = requestInput.getHeaders().getClientIPAddress();
 
+                    headersEvent.end();
+                    if (headersEvent.shouldCommit())
+                    {
+                        headersEvent.serverPort = serverPort;
+                        headersEvent.method = HTTPEvents.method(requestInput.getHeaders().getMainLine());
+                        headersEvent.path = requestInput.getHeaders().getPath();
+                        headersEvent.bytes = requestInput.getBytesRead() - readMark;
+                        headersEvent.commit();
+                    }
+
                     if (headerTooLarge)
                     {
                         requestOutput.getHeaders().configureAsTooLarge();
@@ -111,7 +161,7 @@ public class HTTPServer extends Server
                             long read = requestInput.getBytesRead() - readMark;
                             long written = requestOutput.getBytesWritten() - writeMark;
                             
-                            HTTPLogEntry logEntry = new HTTPLogEntry(isSecure, clientIP, requestInput.getReadTime(), headersReadTime, requestOutput.getWriteTime(), responseSent, read, written, new HTTPFilterChain("HDRS_TOO_LARGE"), requestInput.getHeaders(), requestOutput.getHeaders());
+                            HTTPLogEntry logEntry = new HTTPLogEntry(serverPort, isSecure, clientIP, requestInput.getReadTime(), headersReadTime, requestOutput.getWriteTime(), responseSent, read, written, new HTTPFilterChain("HDRS_TOO_LARGE"), requestInput.getHeaders(), requestOutput.getHeaders());
                             logger.requestProcessed(logEntry);
                         }
 
@@ -136,7 +186,12 @@ public class HTTPServer extends Server
                     requestOutput.setResponseToHeadRequest(true);
                 if (!isHTTP11)
                     requestOutput.setToLegacyHTTP();
+                if (logger != null)
+                    logger.requestStarted(reqHdrs);
                  
+                HTTPEvents.Request requestEvent = new HTTPEvents.Request();
+                requestEvent.begin();
+
                 HTTPFilterChain chain = mainFilter.filterRequest(null, requestInput, requestOutput, state);
                 
                 Throwable primaryError = chain.getPrimaryError();
@@ -162,10 +217,24 @@ public class HTTPServer extends Server
                 
                 if (logger != null)
                 {
-                    HTTPLogEntry logEntry = new HTTPLogEntry(isSecure, clientIP, requestInput.getReadTime(), headersReadTime, requestOutput.getWriteTime(), responseSent, read, written, chain, requestInput.getHeaders(), requestOutput.getHeaders());
+                    HTTPLogEntry logEntry = new HTTPLogEntry(serverPort, isSecure, clientIP, requestInput.getReadTime(), headersReadTime, requestOutput.getWriteTime(), responseSent, read, written, chain, requestInput.getHeaders(), requestOutput.getHeaders());
                     logger.requestProcessed(logEntry);
                 }
 
+                requestEvent.end();
+                if (requestEvent.shouldCommit())
+                {
+                    requestEvent.serverPort = serverPort;
+                    requestEvent.clientAddress = clientIP;
+                    requestEvent.method = HTTPEvents.method(reqHdrs.getMainLine());
+                    requestEvent.path = reqHdrs.getPath();
+                    requestEvent.status = requestOutput.getHeaders().getResponseCode();
+                    requestEvent.bytesRead = read;
+                    requestEvent.bytesWritten = written;
+                    requestEvent.filterChain = chain.getPath();
+                    requestEvent.commit();
+                }
+
                 if (requestOutput.isDisposed())
                     break;
 
@@ -24,5 +24,7 @@ public interface HTTPServerLogger
 {
     default public void socketException(int clientPort, int serverPort, boolean isSecure, InetSocketAddress clientAddress, Throwable t) {}
 
+    default public void requestStarted(HTTPRequestHeaders reqHeaders) {}
+
     public void requestProcessed(HTTPLogEntry logEntry); 
 }
@@ -172,4 +172,66 @@ public class HTTPUtils
             return defaultValue;
         }
     }
+
+    private static final String MONTHS = "janfebmaraprmayjunjulaugsepoctnovdec";
+
+    private static int digits(byte[] b, int off, int len)
+    {
+        int result = 0;
+        for (int i=0; i<len; i++)
+        {
+            int d = b[off+i] - '0';
+            if ((d < 0) || (d > 9))
+                return -1;
+            result = 10*result + d;
+        }
+        return result;
+    }
+
+    /** Parses the fixed length "EEE, dd MMM yyyy HH:mm:ss GMT" date form directly from ASCII bytes, without a DateFormat */
+    public static long parseHTTPDate(byte[] b, int off, int len, long defaultValue)
+    {
+        while ((len > 0) && (b[off] == ' '))
+        {
+            off++;
+            len--;
+        }
+        while ((len > 0) && (b[off+len-1] == ' '))
+            len--;
+        if ((len != 29) || (b[off+3] != ',') || (b[off+4] != ' ') || (b[off+7] != ' ') || (b[off+11] != ' ') || (b[off+16] != ' ') || (b[off+19] != ':') || (b[off+22] != ':') || (b[off+25] != ' '))
+            return defaultValue;
+        if ((b[off+26] != 'G') || (b[off+27] != 'M') || (b[off+28] != 'T'))
+            return defaultValue;
+
+        int day = digits(b, off+5, 2);
+        int year = digits(b, off+12, 4);
+        int hour = digits(b, off+17, 2);
+        int minute = digits(b, off+20, 2);
+        int second = digits(b, off+23, 2);
+        if ((day < 1) || (day > 31) || (year < 0) || (hour < 0) || (hour > 23) || (minute < 0) || (minute > 59) || (second < 0) || (second > 60))
+            return defaultValue;
+
+        int month = -1;
+        for (int m=0; m<12; m++)
+        {
+            int p = 3*m;
+            if (((b[off+8] | 0x20) == MONTHS.charAt(p)) && ((b[off+9] | 0x20) == MONTHS.charAt(p+1)) && ((b[off+10] | 0x20) == MONTHS.charAt(p+2)))
+            {
+                month = m+1;
+                break;
+            }
+        }
+        if (month < 0)
+            return defaultValue;
+
+        // Days since the epoch of the proleptic Gregorian date (civil from days algorithm in reverse)
+        int y = (month <= 2) ? year - 1 : year;
+        int era = y / 400;
+        int yoe = y - era*400;
+        int doy = (153*(month + (month > 2 ? -3 : 9)) + 2)/5 + day - 1;
+        int doe = yoe*365 + yoe/4 - yoe/100 + doy;
+        long days = era*146097L + doe - 719468;
+
+        return ((days*24 + hour)*60 + minute)*60000L + second*1000L;
+    }
 }
@@ -0,0 +1,405 @@
+/*
+JJSP - Java and Javascript Server Pages 
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify 
+it under the terms of the GNU General Public License as published by 
+the Free Software Foundation, either version 3 of the License, or 
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but 
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+for more details.
+
+You should have received a copy of the GNU General Public License along with 
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.http;
+
+import java.io.*;
+import java.util.*;
+
+/**
+   Ordered, case-insensitive header storage used by HTTPHeaders. Headers read from a request are appended as raw bytes
+   into a buffer which is reused between requests; well known header names resolve to shared String constants and all
+   other names and values are only turned into Strings when first asked for. Values set through the API (including the
+   Set-Cookie lists of the response headers) are held as objects.
+ */
+class HeaderTable
+{
+    static final String[] KNOWN_NAMES = {"Host", "Connection", "Content-Length", "Content-Type", "Transfer-Encoding", "Accept", "Accept-Encoding", "Accept-Language",
+                                         "Accept-Charset", "User-Agent", "Cookie", "Referer", "Origin", "Authorization", "Cache-Control", "Pragma", "If-Modified-Since",
+                                         "If-None-Match", "If-Match", "If-Range", "If-Unmodified-Since", "Range", "Expect", "Upgrade", "Keep-Alive", "TE", "Via", "DNT",
+                                         "X-Forwarded-For", "X-Forwarded-Proto", "X-Forwarded-Host", "X-Real-IP", "X-Requested-With", "Forwarded", "Upgrade-Insecure-Requests",
+                                         "Sec-WebSocket-Key", "Sec-WebSocket-Version", "Sec-WebSocket-Extensions", "Sec-WebSocket-Protocol", "Content-Encoding", "Content-Range",
+                                         "Content-Disposition", "Date", "Server", "Last-Modified", "ETag", "Expires", "Location", "Vary", "Set-Cookie", "Access-Control-Allow-Origin",
+                                         "Strict-Transport-Security", "WWW-Authenticate"};
+
+    private static final int KNOWN_MASK = 255;
+    private static final int[] KNOWN_HASHES = new int[KNOWN_NAMES.length];
+    private static final short[] KNOWN_SLOTS = new short[KNOWN_MASK+1];
+
+    static
+    {
+        Arrays.fill(KNOWN_SLOTS, (short) -1);
+        for (int i=0; i<KNOWN_NAMES.length; i++)
+        {
+            int h = hash(KNOWN_NAMES[i]);
+            KNOWN_HASHES[i] = h;
+
+            int slot = h & KNOWN_MASK;
+            while (KNOWN_SLOTS[slot] >= 0)
+                slot = (slot + 1) & KNOWN_MASK;
+            KNOWN_SLOTS[slot] = (short) i;
+        }
+    }
+
+    private static int lower(int ch)
+    {
+        if ((ch >= 'A') && (ch <= 'Z'))
+            return ch + 32;
+        return ch;
+    }
+
+    static int hash(String s)
+    {
+        int h = 0;
+        for (int i=0; i<s.length(); i++)
+            h = 31*h + lower(s.charAt(i));
+        return h;
+    }
+
+    static int hash(byte[] b, int off, int len)
+    {
+        int h = 0;
+        for (int i=0; i<len; i++)
+            h = 31*h + lower(b[off+i] & 0xFF);
+        return h;
+    }
+
+    private static boolean equalsIgnoreCase(byte[] b, int off, int len, String s)
+    {
+        if (len != s.length())
+            return false;
+        for (int i=0; i<len; i++)
+            if (lower(b[off+i] & 0xFF) != lower(s.charAt(i)))
+                return false;
+        return true;
+    }
+
+    static String knownName(byte[] b, int off, int len, int hash)
+    {
+        int slot = hash & KNOWN_MASK;
+        while (true)
+        {
+            int index = KNOWN_SLOTS[slot];
+            if (index < 0)
+                return null;
+            if ((KNOWN_HASHES[index] == hash) && equalsIgnoreCase(b, off, len, KNOWN_NAMES[index]))
+                return KNOWN_NAMES[index];
+            slot = (slot + 1) & KNOWN_MASK;
+        }
+    }
+
+    private int count;
+    private int[] hashes, keyOffsets, keyLengths, valueOffsets, valueLengths;
+    private String[] keys;
+    private Object[] values;
+    private byte[] raw;
+    private int rawLength;
+
+    HeaderTable()
+    {
+        this(16);
+    }
+
+    HeaderTable(int capacity)
+    {
+        count = 0;
+        rawLength = 0;
+        raw = new byte[0];
+        allocate(Math.max(4, capacity));
+    }
+
+    private void allocate(int capacity)
+    {
+        hashes = grow(hashes, capacity);
+        keyOffsets = grow(keyOffsets, capacity);
+        keyLengths = grow(keyLengths, capacity);
+        valueOffsets = grow(valueOffsets, capacity);
+        valueLengths = grow(valueLengths, capacity);
+
+        String[] k = new String[capacity];
+        Object[] v = new Object[capacity];
+        if (keys != null)
+        {
+            System.arraycopy(keys, 0, k, 0, count);
+            System.arraycopy(values, 0, v, 0, count);
+        }
+        keys = k;
+        values = v;
+    }
+
+    private int[] grow(int[] src, int capacity)
+    {
+        int[] result = new int[capacity];
+        if (src != null)
+            System.arraycopy(src, 0, result, 0, count);
+        return result;
+    }
+
+    /** Returns an independent copy holding only what is in use, with raw names and values left unconverted */
+    HeaderTable copy()
+    {
+        HeaderTable result = new HeaderTable(count);
+        result.count = count;
+        result.rawLength = rawLength;
+        result.raw = Arrays.copyOf(raw, rawLength);
+        System.arraycopy(hashes, 0, result.hashes, 0, count);
+        System.arraycopy(keyOffsets, 0, result.keyOffsets, 0, count);
+        System.arraycopy(keyLengths, 0, result.keyLengths, 0, count);
+        System.arraycopy(valueOffsets, 0, result.valueOffsets, 0, count);
+        System.arraycopy(valueLengths, 0, result.valueLengths, 0, count);
+        System.arraycopy(keys, 0, result.keys, 0, count);
+        for (int i=0; i<count; i++)
+        {
+            // The Set-Cookie list is added to in place, so it is the one value which must not be shared
+            Object val = values[i];
+            if (val instanceof List)
+                val = new ArrayList((List) val);
+            result.values[i] = val;
+        }
+        return result;
+    }
+
+    void clear()
+    {
+        Arrays.fill(keys, 0, count, null);
+        Arrays.fill(values, 0, count, null);
+        count = 0;
+        rawLength = 0;
+    }
+
+    int size()
+    {
+        return count;
+    }
+
+    int indexOf(String key)
+    {
+        int h = hash(key);
+        for (int i=0; i<count; i++)
+        {
+            if (hashes[i] != h)
+                continue;
+            String k = keys[i];
+            if (k == null)
+            {
+                if (equalsIgnoreCase(raw, keyOffsets[i], keyLengths[i], key))
+                    return i;
+            }
+            else if ((k == key) || k.equalsIgnoreCase(key))
+                return i;
+        }
+        return -1;
+    }
+
+    private int indexOf(byte[] b, int off, int len, int h)
+    {
+        for (int i=0; i<count; i++)
+        {
+            if (hashes[i] != h)
+                continue;
+            String k = keys[i];
+            if (k == null)
+            {
+                if (keyLengths[i] != len)
+                    continue;
+
+                int j = 0;
+                for (; j<len; j++)
+                    if (lower(raw[keyOffsets[i]+j] & 0xFF) != lower(b[off+j] & 0xFF))
+                        break;
+                if (j == len)
+                    return i;
+            }
+            else if (equalsIgnoreCase(b, off, len, k))
+                return i;
+        }
+        return -1;
+    }
+
+    String getKey(int index)
+    {
+        String result = keys[index];
+        if (result == null)
+        {
+            result = new String(raw, keyOffsets[index], keyLengths[index], HTTPUtils.ASCII);
+            keys[index] = result;
+        }
+        return result;
+    }
+
+    Object getValue(int index)
+    {
+        Object result = values[index];
+        if (result == null)
+        {
+            result = new String(raw, valueOffsets[index], valueLengths[index], HTTPUtils.ASCII);
+            values[index] = result;
+        }
+        return result;
+    }
+
+    boolean containsKey(String key)
+    {
+        return indexOf(key) >= 0;
+    }
+
+    Object get(String key)
+    {
+        int index = indexOf(key);
+        if (index < 0)
+            return null;
+        return getValue(index);
+    }
+
+    void put(String key, Object value)
+    {
+        int index = indexOf(key);
+        if (index < 0)
+        {
+            if (count == keys.length)
+                allocate(count*2);
+            index = count++;
+            hashes[index] = hash(key);
+            keys[index] = key;
+        }
+        values[index] = value;
+    }
+
+    Object remove(String key)
+    {
+        int index = indexOf(key);
+        if (index < 0)
+            return null;
+
+        Object result = getValue(index);
+        int tail = count - index - 1;
+        System.arraycopy(hashes, index+1, hashes, index, tail);
+        System.arraycopy(keyOffsets, index+1, keyOffsets, index, tail);
+        System.arraycopy(keyLengths, index+1, keyLengths, index, tail);
+        System.arraycopy(valueOffsets, index+1, valueOffsets, index, tail);
+        System.arraycopy(valueLengths, index+1, valueLengths, index, tail);
+        System.arraycopy(keys, index+1, keys, index, tail);
+        System.arraycopy(values, index+1, values, index, tail);
+
+        count--;
+        keys[count] = null;
+        values[count] = null;
+        return result;
+    }
+
+    /** Stores a header straight from the bytes of a header line; a repeated header name replaces the earlier value */
+    void putRaw(byte[] line, int keyOffset, int keyLength, int valueOffset, int valueLength)
+    {
+        int start = rawLength;
+        int span = valueOffset + valueLength - keyOffset;
+        if (rawLength + span > raw.length)
+            raw = Arrays.copyOf(raw, Math.max(2*raw.length, Math.max(1024, rawLength + span)));
+        System.arraycopy(line, keyOffset, raw, start, span);
+        rawLength += span;
+
+        int h = hash(raw, start, keyLength);
+        int index = indexOf(raw, start, keyLength, h);
+        if (index < 0)
+        {
+            if (count == keys.length)
+                allocate(count*2);
+            index = count++;
+            hashes[index] = h;
+            keys[index] = knownName(raw, start, keyLength, h);
+            keyOffsets[index] = start;
+            keyLengths[index] = keyLength;
+        }
+
+        values[index] = null;
+        valueOffsets[index] = start + valueOffset - keyOffset;
+        valueLengths[index] = valueLength;
+    }
+
+    /** Returns the index of a header whose value is still held only as raw bytes, or -1 */
+    private int rawIndexOf(String key)
+    {
+        int index = indexOf(key);
+        if ((index < 0) || (values[index] != null))
+            return -1;
+        return index;
+    }
+
+    /** Parses a non-negative decimal header value, returning defaultValue when the header is missing or malformed */
+    long getLong(String key, long defaultValue)
+    {
+        int index = rawIndexOf(key);
+        if (index < 0)
+        {
+            Object val = get(key);
+            if (!(val instanceof String))
+                return defaultValue;
+            try
+            {
+                return Long.parseLong((String) val);
+            }
+            catch (Exception e)
+            {
+                return defaultValue;
+            }
+        }
+
+        int pos = valueOffsets[index], end = pos + valueLengths[index];
+        while ((end > pos) && (raw[end-1] == ' '))
+            end--;
+        if ((pos == end) || (end - pos > 18))
+            return defaultValue;
+
+        long result = 0;
+        for (; pos<end; pos++)
+        {
+            int d = raw[pos] - '0';
+            if ((d < 0) || (d > 9))
+                return defaultValue;
+            result = 10*result + d;
+        }
+        return result;
+    }
+
+    /** Tests whether a header value equals the given text ignoring case; missing headers never match */
+    boolean valueEqualsIgnoreCase(String key, String text)
+    {
+        int index = rawIndexOf(key);
+        if (index < 0)
+        {
+            Object val = get(key);
+            return (val instanceof String) && text.equalsIgnoreCase((String) val);
+        }
+        return equalsIgnoreCase(raw, valueOffsets[index], valueLengths[index], text);
+    }
+
+    /** Parses an HTTP date header, reading the common fixed length form straight from the raw bytes */
+    long getDate(String key, long defaultValue)
+    {
+        int index = rawIndexOf(key);
+        if (index >= 0)
+        {
+            long result = HTTPUtils.parseHTTPDate(raw, valueOffsets[index], valueLengths[index], Long.MIN_VALUE);
+            if (result != Long.MIN_VALUE)
+                return result;
+        }
+
+        Object val = get(key);
+        if (!(val instanceof String))
+            return defaultValue;
+        return HTTPUtils.getUtils().parseHTTPDate((String) val, defaultValue);
+    }
+}
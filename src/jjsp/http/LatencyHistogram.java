@@ -0,0 +1,158 @@
+/*
+JJSP - Java and Javascript Server Pages 
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify 
+it under the terms of the GNU General Public License as published by 
+the Free Software Foundation, either version 3 of the License, or 
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but 
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+for more details.
+
+You should have received a copy of the GNU General Public License along with 
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.http;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+   A fixed size log-linear histogram of non-negative values (typically milliseconds), in the style of HdrHistogram.
+   Each power of two range is split into 32 linear sub-buckets, so recorded values are accurate to about 3% over the whole
+   range 0 to Integer.MAX_VALUE in 7KB of counters. Recording is lock-free and safe from any number of threads.
+ */
+public class LatencyHistogram
+{
+    public static final int SUB_BUCKET_BITS = 5;
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    public static final int BUCKET_COUNT = (32 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong total, sum, max;
+
+    public LatencyHistogram()
+    {
+        counts = new AtomicLongArray(BUCKET_COUNT);
+        total = new AtomicLong();
+        sum = new AtomicLong();
+        max = new AtomicLong();
+    }
+
+    static int bucketIndex(long value)
+    {
+        if (value < SUB_BUCKETS)
+            return (int) Math.max(0, value);
+        if (value > Integer.MAX_VALUE)
+            value = Integer.MAX_VALUE;
+
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >> shift) - SUB_BUCKETS);
+    }
+
+    static long lowestValueOf(int index)
+    {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        return ((long) (SUB_BUCKETS + index % SUB_BUCKETS)) << shift;
+    }
+
+    static long highestValueOf(int index)
+    {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        return lowestValueOf(index) + (1L << shift) - 1;
+    }
+
+    public void record(long value)
+    {
+        if (value < 0)
+            value = 0;
+
+        counts.incrementAndGet(bucketIndex(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+
+        long m = max.get();
+        while ((value > m) && !max.compareAndSet(m, value))
+            m = max.get();
+    }
+
+    public void add(LatencyHistogram other)
+    {
+        for (int i=0; i<BUCKET_COUNT; i++)
+        {
+            long c = other.counts.get(i);
+            if (c != 0)
+                counts.addAndGet(i, c);
+        }
+        total.addAndGet(other.total.get());
+        sum.addAndGet(other.sum.get());
+
+        long otherMax = other.max.get();
+        long m = max.get();
+        while ((otherMax > m) && !max.compareAndSet(m, otherMax))
+            m = max.get();
+    }
+
+    public long getCount()
+    {
+        return total.get();
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    public double getMean()
+    {
+        long n = total.get();
+        if (n == 0)
+            return 0;
+        return ((double) sum.get()) / n;
+    }
+
+    /** Returns the highest value equivalent (within the bucket precision) to the given percentile (0 - 100) of recorded values */
+    public long getValueAtPercentile(double percentile)
+    {
+        long[] snapshot = new long[BUCKET_COUNT];
+        long n = 0;
+        for (int i=0; i<BUCKET_COUNT; i++)
+        {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0)
+            return 0;
+
+        long target = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100.0 * n));
+        long seen = 0;
+        for (int i=0; i<BUCKET_COUNT; i++)
+        {
+            seen += snapshot[i];
+            if (seen >= target)
+                return Math.min(highestValueOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    public long[] getValuesAtPercentiles(double[] percentiles)
+    {
+        long[] result = new long[percentiles.length];
+        for (int i=0; i<percentiles.length; i++)
+            result[i] = getValueAtPercentile(percentiles[i]);
+        return result;
+    }
+
+    public String toString()
+    {
+        return "count="+getCount()+" mean="+Math.round(getMean())+" p50="+getValueAtPercentile(50)+" p99="+getValueAtPercentile(99)+" p999="+getValueAtPercentile(99.9)+" max="+getMax();
+    }
+}
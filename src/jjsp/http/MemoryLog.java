@@ -20,13 +20,41 @@ package jjsp.http;
 import java.io.*;
 import java.util.*;
 import java.net.*;
+import java.util.concurrent.atomic.*;
 
-public class MemoryLog implements HTTPServerLogger 
+/**
+   A fixed size, lock-free ring buffer of the most recent log entries. Writers claim a sequence number and publish into the
+   slot for that sequence; readers never block writers and simply skip slots which are mid-update. Optionally the retained
+   entries can also be limited by age and/or by an estimate of the memory they occupy. The ring is allocated in segments
+   as it first fills, so a large capacity costs nothing until it is used.
+ */
+public class MemoryLog implements HTTPServerLogger, Iterable<HTTPLogEntry>
 {
     public static final int DEFAULT_LENGTH = 1024*1024;
-    
-    protected int pos;
-    protected HTTPLogEntry[] log;
+    public static final int ENTRY_OVERHEAD_BYTES = 256;
+    public static final int SEGMENT_SIZE = 4096;
+
+    private static final long UNPUBLISHED = -1;
+
+    private final int mask, segmentMask, segmentBits;
+    private final long maxAge, maxBytes;
+    private final AtomicLong head, tail, totalBytes;
+    private final AtomicReferenceArray<Segment> segments;
+
+    static class Segment
+    {
+        final AtomicLongArray slotSeq, slotBytes;
+        final AtomicReferenceArray<HTTPLogEntry> slots;
+
+        Segment(int size)
+        {
+            slots = new AtomicReferenceArray(size);
+            slotSeq = new AtomicLongArray(size);
+            slotBytes = new AtomicLongArray(size);
+            for (int i=0; i<size; i++)
+                slotSeq.set(i, UNPUBLISHED);
+        }
+    }
 
     public MemoryLog()
     {
@@ -35,41 +63,209 @@ public class MemoryLog implements HTTPServerLogger
 
     public MemoryLog(int maxLength)
     {
-        maxLength = Math.max(128, maxLength);
-        pos = 0;
-        log = new HTTPLogEntry[maxLength];
+        this(maxLength, -1, -1);
+    }
+
+    /** maxAge (ms) and maxBytes are ignored when zero or negative */
+    public MemoryLog(int maxLength, long maxAge, long maxBytes)
+    {
+        int capacity = Integer.highestOneBit(Math.max(128, Math.min(maxLength, 1 << 30)) - 1) << 1;
+        mask = capacity - 1;
+
+        this.maxAge = maxAge;
+        this.maxBytes = maxBytes;
+
+        int segmentSize = Math.min(capacity, SEGMENT_SIZE);
+        segmentMask = segmentSize - 1;
+        segmentBits = Integer.numberOfTrailingZeros(segmentSize);
+
+        head = new AtomicLong(0);
+        tail = new AtomicLong(0);
+        totalBytes = new AtomicLong(0);
+        segments = new AtomicReferenceArray(capacity / segmentSize);
+    }
+
+    /** Returns the segment holding the slot at index, allocating it (when create is true) the first time the ring reaches it */
+    private Segment getSegment(int index, boolean create)
+    {
+        int s = index >>> segmentBits;
+        Segment result = segments.get(s);
+        if ((result != null) || !create)
+            return result;
+
+        segments.compareAndSet(s, null, new Segment(segmentMask + 1));
+        return segments.get(s);
+    }
+
+    public int getCapacity()
+    {
+        return mask + 1;
+    }
+
+    public long getMaxAge()
+    {
+        return maxAge;
+    }
+
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    public static long estimateSize(HTTPLogEntry entry)
+    {
+        long result = ENTRY_OVERHEAD_BYTES;
+        result += estimateSize(entry.reqHeaders);
+        result += estimateSize(entry.respHeaders);
+        return result;
+    }
+
+    private static long estimateSize(Map m)
+    {
+        if (m == null)
+            return 0;
+
+        long result = 0;
+        Iterator itt = m.entrySet().iterator();
+        while (itt.hasNext())
+        {
+            Map.Entry e = (Map.Entry) itt.next();
+            result += 64 + 2*String.valueOf(e.getKey()).length() + 2*String.valueOf(e.getValue()).length();
+        }
+        return result;
     }
 
     public void requestProcessed(HTTPLogEntry entry)
     {
-        synchronized (log)
+        if (entry == null)
+            return;
+
+        long seq = head.getAndIncrement();
+        int index = (int) (seq & mask);
+        Segment seg = getSegment(index, true);
+        int slot = index & segmentMask;
+
+        long cumulativeBytes = 0;
+        if (maxBytes > 0)
+            cumulativeBytes = totalBytes.addAndGet(estimateSize(entry));
+
+        seg.slotSeq.set(slot, UNPUBLISHED);
+        seg.slots.set(slot, entry);
+        seg.slotBytes.set(slot, cumulativeBytes);
+        seg.slotSeq.set(slot, seq);
+
+        expireOldest(seq, entry.responseSent, cumulativeBytes);
+    }
+
+    private boolean expired(HTTPLogEntry entry, long entryBytes, long now, long newestBytes)
+    {
+        if ((maxAge > 0) && (entry.responseSent < now - maxAge))
+            return true;
+        if ((maxBytes > 0) && (newestBytes - entryBytes > maxBytes))
+            return true;
+        return false;
+    }
+
+    /** Advances the tail past at most two expired entries, so that the tail keeps up with the head at constant cost per append. */
+    private void expireOldest(long newest, long now, long newestBytes)
+    {
+        if ((maxAge <= 0) && (maxBytes <= 0))
+            return;
+
+        for (int i=0; i<2; i++)
         {
-            if (pos == log.length)
+            long t = tail.get();
+            if (t >= newest)
+                return;
+            if (newest - t > mask)
             {
-                int midPoint = log.length/2;
-                System.arraycopy(log, midPoint, log, 0, log.length - midPoint);
-                pos = midPoint;
+                tail.compareAndSet(t, newest - mask);
+                continue;
             }
-            log[pos++] = entry;
+
+            int index = (int) (t & mask);
+            Segment seg = getSegment(index, false);
+            int slot = index & segmentMask;
+            if ((seg == null) || (seg.slotSeq.get(slot) != t))
+                return;
+            HTTPLogEntry entry = seg.slots.get(slot);
+            if ((entry == null) || (seg.slotSeq.get(slot) != t) || !expired(entry, seg.slotBytes.get(slot), now, newestBytes))
+                return;
+
+            if (tail.compareAndSet(t, t+1))
+                seg.slots.compareAndSet(slot, entry, null);
         }
     }
 
     public int getSize()
     {
-        synchronized (log)
-        {
-            return pos;
-        }
+        long h = head.get();
+        long t = Math.max(tail.get(), h - mask - 1);
+        return (int) Math.max(0, h - t);
+    }
+
+    /** Returns the entry published with seq, or null if the slot has moved on, is mid-update or (with maxAge set) is older than oldest */
+    private HTTPLogEntry getEntryForSequence(long seq, long oldest)
+    {
+        int index = (int) (seq & mask);
+        Segment seg = getSegment(index, false);
+        int slot = index & segmentMask;
+        if ((seg == null) || (seg.slotSeq.get(slot) != seq))
+            return null;
+        HTTPLogEntry result = seg.slots.get(slot);
+        if (seg.slotSeq.get(slot) != seq)
+            return null;
+        if ((result != null) && (maxAge > 0) && (result.responseSent < oldest))
+            return null;
+        return result;
+    }
+
+    private long oldestRetained()
+    {
+        if (maxAge <= 0)
+            return Long.MIN_VALUE;
+        return System.currentTimeMillis() - maxAge;
     }
 
     public HTTPLogEntry getEntry(int fromTop)
     {
-        synchronized (log)
+        if (fromTop < 0)
+            return null;
+
+        long h = head.get();
+        long seq = h - 1 - fromTop;
+        if ((seq < 0) || (seq < tail.get()) || (seq < h - mask - 1))
+            return null;
+        return getEntryForSequence(seq, oldestRetained());
+    }
+
+    /** 
+        Returns the retained entries, oldest first, as they were at the time of the call. Slots being written concurrently are 
+        skipped, as are entries older than maxAge which no later append has yet expired.
+    */
+    public List<HTTPLogEntry> snapshot()
+    {
+        return snapshot(getCapacity());
+    }
+
+    public List<HTTPLogEntry> snapshot(int maxEntries)
+    {
+        long h = head.get();
+        long t = Math.max(Math.max(tail.get(), h - mask - 1), h - Math.max(0, maxEntries));
+
+        long oldest = oldestRetained();
+        ArrayList<HTTPLogEntry> result = new ArrayList((int) Math.max(0, h - t));
+        for (long seq = t; seq < h; seq++)
         {
-            int index = pos - 1 - fromTop;
-            if (index < 0)
-                return null;
-            return log[index];
+            HTTPLogEntry entry = getEntryForSequence(seq, oldest);
+            if (entry != null)
+                result.add(entry);
         }
+        return result;
+    }
+
+    public Iterator<HTTPLogEntry> iterator()
+    {
+        return snapshot().iterator();
     }
 }
@@ -0,0 +1,493 @@
+/*
+JJSP - Java and Javascript Server Pages 
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify 
+it under the terms of the GNU General Public License as published by 
+the Free Software Foundation, either version 3 of the License, or 
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but 
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+for more details.
+
+You should have received a copy of the GNU General Public License along with 
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.http;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+   A streaming reader for multipart/form-data request bodies. The body is read through a fixed size sliding buffer and part 
+   delimiters are found with a Boyer-Moore-Horspool search, so memory use does not depend on the size of the upload. Parts are 
+   visited in order with nextPart() (or readParts() with a PartHandler), and each part's data is read as an InputStream. 
+   A part can be collected into an HTMLFormPart, which is held in memory up to a threshold and spilled to a temporary file beyond it.
+ */
+public class MultipartReader implements Closeable
+{
+    public static final int DEFAULT_BUFFER_SIZE = 64*1024;
+    public static final int DEFAULT_SPILL_THRESHOLD = 256*1024;
+
+    public interface PartHandler
+    {
+        /** Return false to stop reading further parts */
+        public boolean handlePart(Part part) throws IOException;
+    }
+
+    private final InputStream src;
+    private final byte[] delimiter;
+    private final int[] skip;
+    private final byte[] buffer;
+
+    private Part current;
+    private long bytesRead;
+    private int start, end, matchAt, scanFrom;
+    private boolean eof, finished, segmentEnded;
+
+    public MultipartReader(HTTPHeaders headers, InputStream src) throws IOException
+    {
+        this(src, requireBoundary(headers), DEFAULT_BUFFER_SIZE);
+    }
+
+    public MultipartReader(InputStream src, String boundary)
+    {
+        this(src, boundary, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+       The boundary is the full delimiter line including its leading "--", as returned by HTMLFormPart.extractFormDataBoundary().
+     */
+    public MultipartReader(InputStream src, String boundary, int bufferSize)
+    {
+        this.src = src;
+        delimiter = ("\r\n"+boundary).getBytes(HTTPUtils.ASCII);
+        buffer = new byte[Math.max(bufferSize, 4*delimiter.length + 1024)];
+
+        skip = new int[256];
+        Arrays.fill(skip, delimiter.length);
+        for (int i=0; i<delimiter.length-1; i++)
+            skip[delimiter[i] & 0xFF] = delimiter.length - 1 - i;
+
+        // A virtual CRLF lets a boundary at the very start of the body match the same delimiter as all the others
+        buffer[0] = '\r';
+        buffer[1] = '\n';
+        start = 0;
+        end = 2;
+
+        matchAt = -1;
+        scanFrom = 0;
+        bytesRead = 0;
+        current = null;
+        eof = false;
+        finished = false;
+        segmentEnded = false;
+    }
+
+    private static String requireBoundary(HTTPHeaders headers) throws IOException
+    {
+        String boundary = HTMLFormPart.extractFormDataBoundary(headers);
+        if (boundary == null)
+            throw new IOException("No multipart boundary specified in request Content-Type");
+        return boundary;
+    }
+
+    public long getBytesRead()
+    {
+        return bytesRead;
+    }
+
+    public boolean isFinished()
+    {
+        return finished;
+    }
+
+    private boolean fill() throws IOException
+    {
+        if (eof)
+            return false;
+
+        if (start > 0)
+        {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            scanFrom = Math.max(0, scanFrom - start);
+            if (matchAt >= 0)
+                matchAt -= start;
+            start = 0;
+        }
+
+        if (end == buffer.length)
+            return false;
+
+        int r = src.read(buffer, end, buffer.length - end);
+        if (r < 0)
+        {
+            eof = true;
+            return false;
+        }
+
+        end += r;
+        bytesRead += r;
+        return true;
+    }
+
+    private int search()
+    {
+        if (matchAt >= 0)
+            return matchAt;
+
+        int m = delimiter.length;
+        int last = m - 1;
+        int i = Math.max(scanFrom, start);
+        while (i + m <= end)
+        {
+            int j = last;
+            while (buffer[i+j] == delimiter[j])
+            {
+                if (j == 0)
+                {
+                    matchAt = i;
+                    return i;
+                }
+                j--;
+            }
+            i += skip[buffer[i+last] & 0xFF];
+        }
+
+        scanFrom = i;
+        return -1;
+    }
+
+    private boolean ensure(int count) throws IOException
+    {
+        while (end - start < count)
+        {
+            if (!fill() && (eof || (end - start < count)))
+                return false;
+        }
+        return true;
+    }
+
+    private String readLine() throws IOException
+    {
+        int pos = start;
+        while (true)
+        {
+            for (; pos+1<end; pos++)
+            {
+                if ((buffer[pos] == '\r') && (buffer[pos+1] == '\n'))
+                {
+                    String result = new String(buffer, start, pos - start, StandardCharsets.UTF_8);
+                    start = pos + 2;
+                    return result;
+                }
+            }
+
+            int offset = pos - start;
+            if (!fill())
+            {
+                if (eof)
+                    throw new EOFException("Unexpected end of multipart data in part headers");
+                throw new IOException("Multipart header line longer than "+buffer.length+" bytes");
+            }
+            pos = start + offset;
+        }
+    }
+
+    /** Reads (or skips when dest is null) the data up to the next delimiter, consuming the delimiter and its line ending once reached */
+    private int readSegment(byte[] dest, int off, int len) throws IOException
+    {
+        while (true)
+        {
+            if (segmentEnded)
+                return -1;
+
+            int idx = search();
+            int available = (idx >= 0 ? idx : end - delimiter.length + 1) - start;
+            if (available > 0)
+            {
+                int n = Math.min(len, available);
+                if (dest != null)
+                    System.arraycopy(buffer, start, dest, off, n);
+                start += n;
+                return n;
+            }
+
+            if (idx >= 0)
+            {
+                start = idx + delimiter.length;
+                matchAt = -1;
+                segmentEnded = true;
+
+                if (!ensure(2))
+                    throw new EOFException("Unexpected end of multipart data after boundary");
+                if ((buffer[start] == '-') && (buffer[start+1] == '-'))
+                    finished = true;
+                else
+                    readLine(); // Any transport padding then CRLF
+                scanFrom = start;
+                return -1;
+            }
+
+            if (!fill() && eof)
+                throw new EOFException("Unexpected end of multipart data, no closing boundary");
+        }
+    }
+
+    /**
+       Returns the next part, skipping the preamble or whatever remains unread of the previous part, or null after the closing boundary.
+     */
+    public Part nextPart() throws IOException
+    {
+        while (!segmentEnded)
+            readSegment(null, 0, Integer.MAX_VALUE);
+        if (current != null)
+            current.closed = true;
+        current = null;
+        if (finished)
+            return null;
+
+        LinkedHashMap headers = new LinkedHashMap();
+        while (true)
+        {
+            String line = readLine();
+            if (line.length() == 0)
+                break;
+
+            int colon = line.indexOf(':');
+            if (colon > 0)
+                headers.put(line.substring(0, colon).trim(), line.substring(colon+1).trim());
+        }
+
+        scanFrom = start;
+        segmentEnded = false;
+        current = new Part(headers);
+        return current;
+    }
+
+    /** Passes each part in turn to the handler, returning the number of parts visited */
+    public int readParts(PartHandler handler) throws IOException
+    {
+        int count = 0;
+        while (true)
+        {
+            Part part = nextPart();
+            if (part == null)
+                break;
+            count++;
+            if (!handler.handlePart(part))
+                break;
+        }
+        return count;
+    }
+
+    /** Collects all the remaining parts as HTMLFormParts, spilling any part larger than spillThreshold to a temporary file in tempDir */
+    public HTMLFormPart[] readFormParts(int spillThreshold, File tempDir) throws IOException
+    {
+        ArrayList buf = new ArrayList();
+        try
+        {
+            while (true)
+            {
+                Part part = nextPart();
+                if (part == null)
+                    break;
+                buf.add(part.toFormPart(spillThreshold, tempDir));
+            }
+        }
+        catch (IOException e)
+        {
+            for (int i=0; i<buf.size(); i++)
+                ((HTMLFormPart) buf.get(i)).dispose();
+            throw e;
+        }
+
+        HTMLFormPart[] result = new HTMLFormPart[buf.size()];
+        buf.toArray(result);
+        return result;
+    }
+
+    public void close() throws IOException
+    {
+        finished = true;
+        segmentEnded = true;
+        if (current != null)
+            current.closed = true;
+        current = null;
+    }
+
+    public class Part extends InputStream
+    {
+        private final Map headers, attributes;
+        private boolean closed;
+        private long length;
+
+        Part(Map headers)
+        {
+            this.headers = headers;
+            String disposition = getHeader("Content-Disposition");
+            if (disposition == null)
+                attributes = new HashMap();
+            else
+                attributes = HTMLFormPart.extractAttrs(disposition);
+            closed = false;
+            length = 0;
+        }
+
+        public Map getHeaders()
+        {
+            return headers;
+        }
+
+        public String getHeader(String name)
+        {
+            Iterator itt = headers.entrySet().iterator();
+            while (itt.hasNext())
+            {
+                Map.Entry e = (Map.Entry) itt.next();
+                if (name.equalsIgnoreCase((String) e.getKey()))
+                    return (String) e.getValue();
+            }
+            return null;
+        }
+
+        public Map getAttributes()
+        {
+            return attributes;
+        }
+
+        public String getAttribute(String key)
+        {
+            Object val = attributes.get(key);
+            if (val == null)
+                return null;
+            return val.toString();
+        }
+
+        public String getName()
+        {
+            return getAttribute("name");
+        }
+
+        public String getFileName()
+        {
+            return getAttribute("filename");
+        }
+
+        public String getContentType()
+        {
+            return getHeader("Content-Type");
+        }
+
+        /** The number of data bytes read from this part so far */
+        public long getLength()
+        {
+            return length;
+        }
+
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            int r = read(b, 0, 1);
+            if (r <= 0)
+                return -1;
+            return b[0] & 0xFF;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (closed)
+                return -1;
+            if (len == 0)
+                return 0;
+
+            int r = readSegment(b, off, len);
+            if (r < 0)
+                closed = true;
+            else
+                length += r;
+            return r;
+        }
+
+        public long skip(long n) throws IOException
+        {
+            if (closed)
+                return 0;
+
+            long total = 0;
+            while (total < n)
+            {
+                int r = readSegment(null, 0, (int) Math.min(Integer.MAX_VALUE, n - total));
+                if (r < 0)
+                {
+                    closed = true;
+                    break;
+                }
+                total += r;
+            }
+            length += total;
+            return total;
+        }
+
+        public int available()
+        {
+            if (closed)
+                return 0;
+            int idx = search();
+            return Math.max(0, (idx >= 0 ? idx : end - delimiter.length + 1) - start);
+        }
+
+        /** Closing a part only stops reading from it; the remaining data is skipped by the next call to nextPart() */
+        public void close()
+        {
+            closed = true;
+        }
+
+        public HTMLFormPart toFormPart(int spillThreshold, File tempDir) throws IOException
+        {
+            byte[] block = new byte[Math.min(64*1024, Math.max(1024, spillThreshold+1))];
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            while (bout.size() <= spillThreshold)
+            {
+                int r = read(block);
+                if (r < 0)
+                    return new HTMLFormPart(attributes, bout.toByteArray());
+                bout.write(block, 0, r);
+            }
+
+            File spill = File.createTempFile("jjsp-upload-", ".part", tempDir);
+            long total = bout.size();
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(spill), block.length))
+            {
+                bout.writeTo(out);
+                bout = null;
+
+                while (true)
+                {
+                    int r = read(block);
+                    if (r < 0)
+                        break;
+                    out.write(block, 0, r);
+                    total += r;
+                }
+            }
+            catch (IOException e)
+            {
+                spill.delete();
+                throw e;
+            }
+
+            // Only once the file is closed (and so complete) is it handed to the part
+            return new HTMLFormPart(attributes, spill, total);
+        }
+
+        public String toString()
+        {
+            return "MultipartReader.Part"+attributes;
+        }
+    }
+}
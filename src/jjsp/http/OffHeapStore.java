@@ -0,0 +1,253 @@
+/*
+JJSP - Java and Javascript Server Pages 
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify 
+it under the terms of the GNU General Public License as published by 
+the Free Software Foundation, either version 3 of the License, or 
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but 
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+for more details.
+
+You should have received a copy of the GNU General Public License along with 
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.http;
+
+import java.io.*;
+import java.nio.*;
+import java.util.concurrent.atomic.*;
+
+/**
+   Holds long lived content (static assets, local store entries, their gzipped forms) outside the Java heap, so that
+   large sites do not keep hundreds of MB of byte arrays which every full GC has to trace and copy. Content at or above
+   the threshold size is copied into its own direct ByteBuffer; smaller content stays on the heap, where it is cheaper
+   than the buffer which would hold it. Direct memory is returned when the Asset holding it is collected.
+   <p>
+   Assets are written out through a small per thread transfer buffer, since the server's sockets are stream based
+   and cannot take a ByteBuffer directly; the copy is short lived and never promoted.
+ */
+public class OffHeapStore implements ServerMetrics.Source
+{
+    public static final int DEFAULT_THRESHOLD = 16*1024;
+    public static final int TRANSFER_BUFFER_SIZE = 64*1024;
+
+    private static final OffHeapStore DEFAULT = new OffHeapStore("default", Integer.getInteger("jjsp.offheap.threshold", DEFAULT_THRESHOLD).intValue());
+
+    static class TransferBuffer extends ThreadLocal
+    {
+        protected Object initialValue()
+        {
+            return new byte[TRANSFER_BUFFER_SIZE];
+        }
+    }
+
+    private static final ThreadLocal transferBuffer = new TransferBuffer();
+
+    private final String name;
+    private final int threshold;
+    private final LongAdder offHeapAssets, offHeapBytes, heapAssets, heapBytes, wrappedAssets, wrappedBytes;
+
+    public static class Asset
+    {
+        private final byte[] heap;
+        private final ByteBuffer buffer;
+        private final int length;
+        private volatile String eTag;
+
+        Asset(byte[] heap)
+        {
+            this.heap = heap;
+            buffer = null;
+            length = heap.length;
+        }
+
+        Asset(ByteBuffer buffer)
+        {
+            heap = null;
+            this.buffer = buffer;
+            length = buffer.capacity();
+        }
+
+        Asset(byte[] heap, ByteBuffer buffer, String eTag)
+        {
+            this.heap = heap;
+            this.buffer = buffer;
+            length = (heap != null) ? heap.length : buffer.capacity();
+            this.eTag = eTag;
+        }
+
+        public int length()
+        {
+            return length;
+        }
+
+        public boolean isOffHeap()
+        {
+            return buffer != null;
+        }
+
+        /** Returns the content as an array, which is a new copy for an off heap asset */
+        public byte[] toByteArray()
+        {
+            if (heap != null)
+                return heap;
+
+            byte[] result = new byte[length];
+            ByteBuffer view = buffer.duplicate();
+            view.get(result);
+            return result;
+        }
+
+        public String getETag()
+        {
+            String result = eTag;
+            if (result == null)
+            {
+                result = HTTPUtils.getUtils().createETag(toByteArray());
+                eTag = result;
+            }
+            return result;
+        }
+
+        public void writeTo(OutputStream out) throws IOException
+        {
+            writeTo(out, 0, length);
+        }
+
+        public void writeTo(OutputStream out, int off, int len) throws IOException
+        {
+            if ((off < 0) || (len < 0) || (off + len > length))
+                throw new IndexOutOfBoundsException("Range "+off+"+"+len+" outside asset of length "+length);
+
+            if (heap != null)
+            {
+                out.write(heap, off, len);
+                return;
+            }
+
+            byte[] transfer = (byte[]) transferBuffer.get();
+            ByteBuffer view = buffer.duplicate();
+            view.position(off);
+            while (len > 0)
+            {
+                int toCopy = Math.min(len, transfer.length);
+                view.get(transfer, 0, toCopy);
+                out.write(transfer, 0, toCopy);
+                len -= toCopy;
+            }
+        }
+    }
+
+    public OffHeapStore(String name)
+    {
+        this(name, DEFAULT_THRESHOLD);
+    }
+
+    public OffHeapStore(String name, int threshold)
+    {
+        this.name = name;
+        this.threshold = threshold;
+        offHeapAssets = new LongAdder();
+        offHeapBytes = new LongAdder();
+        heapAssets = new LongAdder();
+        heapBytes = new LongAdder();
+        wrappedAssets = new LongAdder();
+        wrappedBytes = new LongAdder();
+
+        ServerMetrics.getDefault().addSource(this);
+    }
+
+    public static OffHeapStore getDefault()
+    {
+        return DEFAULT;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    /** Content at least this long is stored off heap; a negative threshold keeps everything on the heap */
+    public int getThreshold()
+    {
+        return threshold;
+    }
+
+    /** Copies data off heap when it is large enough, otherwise wraps the array itself. Returns null for null data. */
+    public Asset store(byte[] data)
+    {
+        if (data == null)
+            return null;
+
+        if ((threshold < 0) || (data.length < threshold))
+        {
+            heapAssets.increment();
+            heapBytes.add(data.length);
+            return new Asset(data);
+        }
+
+        ByteBuffer buffer = null;
+        try
+        {
+            buffer = ByteBuffer.allocateDirect(data.length);
+        }
+        catch (OutOfMemoryError e)
+        {
+            // Direct memory is capped separately from the heap (-XX:MaxDirectMemorySize), so fall back rather than fail
+            heapAssets.increment();
+            heapBytes.add(data.length);
+            return new Asset(data);
+        }
+
+        buffer.put(data);
+        buffer.clear();
+        offHeapAssets.increment();
+        offHeapBytes.add(data.length);
+        return new Asset(buffer.asReadOnlyBuffer());
+    }
+
+    /** 
+        Uses content which is already outside the heap (a slice of a mapped file, say) as an asset without copying it, unless
+        it is below the threshold size, when it is copied onto the heap. The ETag may be null, when it is computed on first use.
+    */
+    public Asset wrap(ByteBuffer buffer, String eTag)
+    {
+        if (buffer == null)
+            return null;
+
+        ByteBuffer view = buffer.slice();
+        int length = view.remaining();
+        if ((threshold < 0) || (length < threshold))
+        {
+            byte[] data = new byte[length];
+            view.get(data);
+            heapAssets.increment();
+            heapBytes.add(length);
+            return new Asset(data, null, eTag);
+        }
+
+        wrappedAssets.increment();
+        wrappedBytes.add(length);
+        return new Asset(null, view.asReadOnlyBuffer(), eTag);
+    }
+
+    public void writeMetrics(ServerMetrics.Output out)
+    {
+        String label = ServerMetrics.label("store", name);
+        out.counter("jjsp_offheap_assets_stored_total", "Assets stored off heap", label, offHeapAssets.sum());
+        out.counter("jjsp_offheap_bytes_stored_total", "Bytes copied into off heap assets", label, offHeapBytes.sum());
+        out.counter("jjsp_offheap_heap_assets_stored_total", "Assets below the threshold kept on the heap", label, heapAssets.sum());
+        out.counter("jjsp_offheap_heap_bytes_stored_total", "Bytes of assets kept on the heap", label, heapBytes.sum());
+        out.counter("jjsp_offheap_wrapped_assets_total", "Assets using buffers already off heap, such as mapped files", label, wrappedAssets.sum());
+        out.counter("jjsp_offheap_wrapped_bytes_total", "Bytes of assets using buffers already off heap", label, wrappedBytes.sum());
+    }
+
+    public String getMetricsKey()
+    {
+        return "offheap/"+name;
+    }
+}
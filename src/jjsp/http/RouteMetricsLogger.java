@@ -0,0 +1,472 @@
+/*
+JJSP - Java and Javascript Server Pages 
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify 
+it under the terms of the GNU General Public License as published by 
+the Free Software Foundation, either version 3 of the License, or 
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but 
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+for more details.
+
+You should have received a copy of the GNU General Public License along with 
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.http;
+
+import java.io.*;
+import java.util.*;
+import java.text.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+   An HTTPServerLogger which does not keep individual requests. Instead each request is recorded into fixed size latency
+   histograms (total, request read, response and response write times) and byte counters for its route and status class.
+   Every interval the histograms are rolled up into one line per route (count, bytes and latency percentiles) which is
+   kept in memory and, if a directory is given, appended to a daily tab separated file there.
+
+   Routes are the request method plus the path without its query, with numeric and long hex/id like path segments
+   replaced by '*'. Once maxRoutes distinct routes have been seen any further ones are counted under OTHER_ROUTE.
+ */
+public class RouteMetricsLogger implements HTTPServerLogger
+{
+    public static final String OTHER_ROUTE = "*OTHER*";
+    public static final String FILE_PREFIX = "RouteMetrics_";
+    public static final String FILE_SUFFIX = ".tsv";
+
+    public static final long DEFAULT_INTERVAL = 60*1000;
+    public static final int DEFAULT_MAX_ROUTES = 1000;
+    public static final int DEFAULT_MAX_ROLLUPS = 100000;
+
+    public static final String COLUMNS = "start\tend\troute\tstatus\tcount\tbytesRead\tbytesWritten\tmean\tp50\tp90\tp99\tp999\tmax\treadP99\tresponseP99\twriteP99";
+
+    private final File dir;
+    private final long interval;
+    private final int maxRoutes, maxRollups;
+    private final Set knownRoutes;
+    private final LinkedList rollups;
+    private final ReadWriteLock intervalLock;
+
+    private volatile boolean closed;
+    private volatile long intervalStart;
+    private volatile ConcurrentHashMap current;
+
+    class RouteStats
+    {
+        final LatencyHistogram total, read, response, write;
+        final AtomicLong bytesRead, bytesWritten;
+
+        RouteStats()
+        {
+            total = new LatencyHistogram();
+            read = new LatencyHistogram();
+            response = new LatencyHistogram();
+            write = new LatencyHistogram();
+            bytesRead = new AtomicLong();
+            bytesWritten = new AtomicLong();
+        }
+
+        void record(HTTPLogEntry entry)
+        {
+            total.record(entry.totalRequestTime());
+            read.record(entry.requestReadTime());
+            response.record(entry.responseTime());
+            write.record(entry.responseWriteTime());
+            bytesRead.addAndGet(entry.bytesRead);
+            bytesWritten.addAndGet(entry.bytesWritten);
+        }
+    }
+
+    public static class Rollup
+    {
+        public final long start, end, count, bytesRead, bytesWritten;
+        public final long p50, p90, p99, p999, max, readP99, responseP99, writeP99;
+        public final double mean;
+        public final String route, status;
+
+        Rollup(long start, long end, String route, String status, RouteStats stats)
+        {
+            this.start = start;
+            this.end = end;
+            this.route = route;
+            this.status = status;
+            count = stats.total.getCount();
+            bytesRead = stats.bytesRead.get();
+            bytesWritten = stats.bytesWritten.get();
+            mean = stats.total.getMean();
+            p50 = stats.total.getValueAtPercentile(50);
+            p90 = stats.total.getValueAtPercentile(90);
+            p99 = stats.total.getValueAtPercentile(99);
+            p999 = stats.total.getValueAtPercentile(99.9);
+            max = stats.total.getMax();
+            readP99 = stats.read.getValueAtPercentile(99);
+            responseP99 = stats.response.getValueAtPercentile(99);
+            writeP99 = stats.write.getValueAtPercentile(99);
+        }
+
+        Rollup(String line)
+        {
+            String[] parts = line.split("\t");
+            if (parts.length < 16)
+                throw new IllegalArgumentException("Invalid route metrics line: "+line);
+
+            start = Long.parseLong(parts[0]);
+            end = Long.parseLong(parts[1]);
+            route = parts[2];
+            status = parts[3];
+            count = Long.parseLong(parts[4]);
+            bytesRead = Long.parseLong(parts[5]);
+            bytesWritten = Long.parseLong(parts[6]);
+            mean = Double.parseDouble(parts[7]);
+            p50 = Long.parseLong(parts[8]);
+            p90 = Long.parseLong(parts[9]);
+            p99 = Long.parseLong(parts[10]);
+            p999 = Long.parseLong(parts[11]);
+            max = Long.parseLong(parts[12]);
+            readP99 = Long.parseLong(parts[13]);
+            responseP99 = Long.parseLong(parts[14]);
+            writeP99 = Long.parseLong(parts[15]);
+        }
+
+        public String toString()
+        {
+            return start+"\t"+end+"\t"+route+"\t"+status+"\t"+count+"\t"+bytesRead+"\t"+bytesWritten+"\t"+Math.round(mean*10)/10.0+"\t"+p50+"\t"+p90+"\t"+p99+"\t"+p999+"\t"+max+"\t"+readP99+"\t"+responseP99+"\t"+writeP99;
+        }
+
+        public String toJSON()
+        {
+            return "{\"start\":"+start+",\"end\":"+end+",\"route\":\""+route.replace("\\", "\\\\").replace("\"", "\\\"")+"\",\"status\":\""+status+"\",\"count\":"+count+",\"bytesRead\":"+bytesRead+",\"bytesWritten\":"+bytesWritten+",\"mean\":"+Math.round(mean*10)/10.0+",\"p50\":"+p50+",\"p90\":"+p90+",\"p99\":"+p99+",\"p999\":"+p999+",\"max\":"+max+",\"readP99\":"+readP99+",\"responseP99\":"+responseP99+",\"writeP99\":"+writeP99+"}";
+        }
+    }
+
+    public RouteMetricsLogger()
+    {
+        this(null, DEFAULT_INTERVAL);
+    }
+
+    public RouteMetricsLogger(File dir, long interval)
+    {
+        this(dir, interval, DEFAULT_MAX_ROUTES, DEFAULT_MAX_ROLLUPS);
+    }
+
+    public RouteMetricsLogger(File dir, long interval, int maxRoutes, int maxRollups)
+    {
+        this.dir = dir;
+        this.interval = Math.max(1000, interval);
+        this.maxRoutes = maxRoutes;
+        this.maxRollups = maxRollups;
+
+        knownRoutes = ConcurrentHashMap.newKeySet();
+        rollups = new LinkedList();
+        intervalLock = new ReentrantReadWriteLock();
+        current = new ConcurrentHashMap();
+        intervalStart = System.currentTimeMillis();
+        closed = false;
+
+        if (dir != null)
+        {
+            dir.mkdirs();
+            loadRecent();
+        }
+
+        Thread t = new Thread(new Roller(), "Route Metrics Roller");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    class Roller implements Runnable
+    {
+        public void run()
+        {
+            while (!closed)
+            {
+                try
+                {
+                    long now = System.currentTimeMillis();
+                    long next = (now / interval + 1) * interval;
+                    Thread.sleep(Math.max(1, next - now));
+                    rollup();
+                }
+                catch (InterruptedException e) {}
+                catch (Throwable t)
+                {
+                    t.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static boolean isVariableSegment(String seg)
+    {
+        if (seg.length() == 0)
+            return false;
+
+        boolean allDigits = true;
+        int hexOrDash = 0;
+        for (int i=0; i<seg.length(); i++)
+        {
+            char ch = seg.charAt(i);
+            if ((ch < '0') || (ch > '9'))
+                allDigits = false;
+            if (((ch >= '0') && (ch <= '9')) || ((ch >= 'a') && (ch <= 'f')) || ((ch >= 'A') && (ch <= 'F')) || (ch == '-'))
+                hexOrDash++;
+        }
+        return allDigits || ((seg.length() >= 16) && (hexOrDash == seg.length()));
+    }
+
+    /** Returns the route an entry is aggregated under. Override to map paths onto application specific route names. */
+    protected String getRoute(HTTPLogEntry entry)
+    {
+        return normaliseRoute(entry.getRequestMainLine());
+    }
+
+    /** Returns the method and path of a request main line, without the query and with variable looking path segments replaced by '*' */
+    public static String normaliseRoute(String mainLine)
+    {
+        if (mainLine == null)
+            return OTHER_ROUTE;
+
+        int sp1 = mainLine.indexOf(' ');
+        int sp2 = mainLine.lastIndexOf(' ');
+        if (sp1 <= 0)
+            return OTHER_ROUTE;
+
+        String method = mainLine.substring(0, sp1);
+        String path = (sp2 > sp1) ? mainLine.substring(sp1+1, sp2) : mainLine.substring(sp1+1);
+        int q = path.indexOf('?');
+        if (q >= 0)
+            path = path.substring(0, q);
+
+        StringBuffer buf = new StringBuffer(method.length() + path.length() + 1);
+        buf.append(method);
+        buf.append(' ');
+
+        int pos = 0;
+        while (pos <= path.length())
+        {
+            int slash = path.indexOf('/', pos);
+            if (slash < 0)
+                slash = path.length();
+
+            String seg = path.substring(pos, slash);
+            buf.append(isVariableSegment(seg) ? "*" : seg);
+            if (slash < path.length())
+                buf.append('/');
+            pos = slash + 1;
+        }
+
+        return buf.toString();
+    }
+
+    private static String statusClass(HTTPLogEntry entry)
+    {
+        String respLine = entry.getResponseMainLine();
+        if ((respLine == null) || (respLine.length() < 10))
+            return "---";
+        char ch = respLine.charAt(9);
+        if ((ch < '1') || (ch > '5'))
+            return "---";
+        return ch+"xx";
+    }
+
+    public void requestProcessed(HTTPLogEntry entry)
+    {
+        if ((entry == null) || closed)
+            return;
+
+        String route = getRoute(entry);
+        if (!knownRoutes.contains(route))
+        {
+            if (knownRoutes.size() >= maxRoutes)
+                route = OTHER_ROUTE;
+            else
+                knownRoutes.add(route);
+        }
+
+        String key = route+"\t"+statusClass(entry);
+
+        // Recording requests share the read lock; rollup takes the write lock, so a record always lands in the interval it read
+        Lock lock = intervalLock.readLock();
+        lock.lock();
+        try
+        {
+            ConcurrentHashMap stats = current;
+            RouteStats rs = (RouteStats) stats.get(key);
+            if (rs == null)
+            {
+                rs = new RouteStats();
+                RouteStats existing = (RouteStats) stats.putIfAbsent(key, rs);
+                if (existing != null)
+                    rs = existing;
+            }
+            rs.record(entry);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /** Closes the current interval, returning its rollups. Called automatically every interval. */
+    public synchronized List<Rollup> rollup()
+    {
+        long end = 0, start = 0;
+        ConcurrentHashMap stats = null;
+
+        Lock lock = intervalLock.writeLock();
+        lock.lock();
+        try
+        {
+            end = System.currentTimeMillis();
+            start = intervalStart;
+            stats = current;
+
+            current = new ConcurrentHashMap();
+            intervalStart = end;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        ArrayList result = new ArrayList();
+        Iterator itt = new TreeMap(stats).entrySet().iterator();
+        while (itt.hasNext())
+        {
+            Map.Entry e = (Map.Entry) itt.next();
+            String key = (String) e.getKey();
+            int tab = key.lastIndexOf('\t');
+            result.add(new Rollup(start, end, key.substring(0, tab), key.substring(tab+1), (RouteStats) e.getValue()));
+        }
+
+        synchronized (rollups)
+        {
+            rollups.addAll(result);
+            while (rollups.size() > maxRollups)
+                rollups.removeFirst();
+        }
+
+        if ((dir != null) && (result.size() > 0))
+            append(result);
+        return result;
+    }
+
+    private File fileFor(long time)
+    {
+        return new File(dir, FILE_PREFIX+new SimpleDateFormat("yyyy-MM-dd").format(new Date(time))+FILE_SUFFIX);
+    }
+
+    private void append(List result)
+    {
+        File f = fileFor(((Rollup) result.get(0)).end);
+        boolean isNew = !f.exists();
+        try (PrintStream ps = new PrintStream(new BufferedOutputStream(new FileOutputStream(f, true)), false, "UTF-8"))
+        {
+            if (isNew)
+                ps.print("#"+COLUMNS+"\n");
+            for (int i=0; i<result.size(); i++)
+                ps.print(result.get(i)+"\n");
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    private void loadRecent()
+    {
+        long now = System.currentTimeMillis();
+        File[] files = new File[]{fileFor(now - 24*60*60*1000L), fileFor(now)};
+
+        ArrayList loaded = new ArrayList();
+        for (int i=0; i<files.length; i++)
+        {
+            if (!files[i].exists())
+                continue;
+
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(files[i]), "UTF-8")))
+            {
+                while (true)
+                {
+                    String line = br.readLine();
+                    if (line == null)
+                        break;
+                    if (line.startsWith("#") || (line.length() == 0))
+                        continue;
+                    try
+                    {
+                        loaded.add(new Rollup(line));
+                    }
+                    catch (Exception e) {}
+                }
+            }
+            catch (Exception e) {}
+        }
+
+        synchronized (rollups)
+        {
+            int skip = Math.max(0, loaded.size() - maxRollups);
+            rollups.addAll(loaded.subList(skip, loaded.size()));
+        }
+    }
+
+    public long getInterval()
+    {
+        return interval;
+    }
+
+    public String[] getRoutes()
+    {
+        TreeSet result = new TreeSet(knownRoutes);
+        return (String[]) result.toArray(new String[result.size()]);
+    }
+
+    /** Returns the in memory rollups, oldest first, whose interval ended at or after fromTime. route or status may be null to match all. */
+    public List<Rollup> getRollups(String route, String status, long fromTime)
+    {
+        ArrayList result = new ArrayList();
+        synchronized (rollups)
+        {
+            Iterator itt = rollups.iterator();
+            while (itt.hasNext())
+            {
+                Rollup r = (Rollup) itt.next();
+                if (r.end < fromTime)
+                    continue;
+                if ((route != null) && !route.equals(r.route))
+                    continue;
+                if ((status != null) && !status.equals(r.status))
+                    continue;
+                result.add(r);
+            }
+        }
+        return result;
+    }
+
+    public String toJSON(String route, String status, long fromTime)
+    {
+        List result = getRollups(route, status, fromTime);
+        StringBuffer buf = new StringBuffer("[");
+        for (int i=0; i<result.size(); i++)
+        {
+            if (i > 0)
+                buf.append(",\n");
+            buf.append(((Rollup) result.get(i)).toJSON());
+        }
+        buf.append("]");
+        return buf.toString();
+    }
+
+    public synchronized void close()
+    {
+        if (closed)
+            return;
+        rollup();
+        closed = true;
+    }
+}
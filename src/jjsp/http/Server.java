@@ -24,13 +24,14 @@ import javax.net.*;
 import javax.net.ssl.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import jjsp.util.*;
 
 /**
    A multi-threaded abstract server class which dispatches multiple threads to handle incoming TCP connections. 
  */
-public abstract class Server implements ThreadFactory
+public abstract class Server implements ThreadFactory, ServerMetrics.Source
 {
     public static final int CORE_THREAD_COUNT = 100;
     public static final int MAX_THREAD_COUNT = 10000;
@@ -63,6 +64,8 @@ public abstract class Server implements ThreadFactory
         this.receiveBufferSize = receiveBufferSize;
         this.sendBufferSize = sendBufferSize;
         executor = createThreadPool();
+
+        ServerMetrics.getDefault().addSource(this);
     }
 
     protected void errorOnListen(int port, boolean isSecure, Throwable t) {}
@@ -128,9 +131,11 @@ public abstract class Server implements ThreadFactory
         private InetSocketAddress clientAddress;
 
         private volatile Thread executingThread;
+        private final long acceptedTime;
 
         SocketHandler(SocketAcceptor acceptor, Socket s, int port, boolean isSecure)
         {
+            acceptedTime = System.currentTimeMillis();
             socket = s;
             this.acceptor = acceptor;
             this.port = port;
@@ -161,6 +166,10 @@ public abstract class Server implements ThreadFactory
             output = null;
             input = null;
 
+            long handlerStarted = System.currentTimeMillis();
+            HTTPEvents.Connection event = new HTTPEvents.Connection();
+            event.begin();
+
             try
             {
                 try
@@ -194,6 +203,16 @@ public abstract class Server implements ThreadFactory
             finally
             {
                 close();
+
+                event.end();
+                if (event.shouldCommit())
+                {
+                    event.serverPort = port;
+                    event.secure = isSecure;
+                    event.clientAddress = String.valueOf(clientAddress);
+                    event.queueWait = handlerStarted - acceptedTime;
+                    event.commit();
+                }
             }
         }
     }
@@ -282,6 +301,37 @@ public abstract class Server implements ThreadFactory
         }
     }
 
+    public void writeMetrics(ServerMetrics.Output out)
+    {
+        SocketAcceptor[] sas = null;
+        synchronized (acceptorMap)
+        {
+            if (closed || acceptorMap.isEmpty())
+                return;
+            sas = new SocketAcceptor[acceptorMap.size()];
+            acceptorMap.values().toArray(sas);
+        }
+
+        String ports = "";
+        for (int i=0; i<sas.length; i++)
+        {
+            ports += (i > 0 ? "+" : "")+sas[i].port;
+            String label = ServerMetrics.label("port", Integer.valueOf(sas[i].port));
+            out.gauge("jjsp_server_open_connections", "Client connections currently open", label, sas[i].getOpenConnectionCount());
+            out.counter("jjsp_server_connections_total", "Client connections accepted", label, sas[i].acceptedCount.sum());
+        }
+
+        if (executor instanceof ThreadPoolExecutor)
+        {
+            ThreadPoolExecutor tpe = (ThreadPoolExecutor) executor;
+            String label = ServerMetrics.label("server", ports);
+            out.gauge("jjsp_server_executor_active_threads", "Socket handler threads currently running a connection", label, tpe.getActiveCount());
+            out.gauge("jjsp_server_executor_pool_threads", "Socket handler threads in the pool", label, tpe.getPoolSize());
+            out.gauge("jjsp_server_executor_queue_depth", "Connections waiting for a socket handler thread", label, tpe.getQueue().size());
+            out.counter("jjsp_server_executor_completed_total", "Connections completed by the socket handler pool", label, tpe.getCompletedTaskCount());
+        }
+    }
+
     public void close()
     {
         close(0);
@@ -289,6 +339,7 @@ public abstract class Server implements ThreadFactory
 
     public void close(long msToWait)
     {
+        ServerMetrics.getDefault().removeSource(this);
         try
         {
             closed = true;
@@ -323,6 +374,7 @@ public abstract class Server implements ThreadFactory
         private boolean isSecure;
         private ServerSocket ssocket;
         private HashSet acceptedSockets;
+        private LongAdder acceptedCount;
 
         private volatile boolean closed;
 
@@ -334,6 +386,15 @@ public abstract class Server implements ThreadFactory
             
             closed = false;
             acceptedSockets = new HashSet();
+            acceptedCount = new LongAdder();
+        }
+
+        int getOpenConnectionCount()
+        {
+            synchronized (acceptedSockets)
+            {
+                return acceptedSockets.size();
+            }
         }
 
         void socketHandlerClosed(SocketHandler handler)
@@ -385,6 +446,15 @@ public abstract class Server implements ThreadFactory
                     Socket s = ssocket.accept();
                     SocketHandler sh = new SocketHandler(this, s, port, isSecure);
 
+                    HTTPEvents.ConnectionAccepted event = new HTTPEvents.ConnectionAccepted();
+                    if (event.shouldCommit())
+                    {
+                        event.serverPort = port;
+                        event.secure = isSecure;
+                        event.clientAddress = String.valueOf(s.getRemoteSocketAddress());
+                        event.commit();
+                    }
+
                     synchronized (acceptedSockets)
                     {
                         if (closed)
@@ -400,6 +470,7 @@ public abstract class Server implements ThreadFactory
                         acceptedSockets.add(sh);
                         executor.execute(sh);
                     }
+                    acceptedCount.increment();
 
                     errorCounter = 0;
                 }
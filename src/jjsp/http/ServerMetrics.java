@@ -0,0 +1,350 @@
+/*
+JJSP - Java and Javascript Server Pages 
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify 
+it under the terms of the GNU General Public License as published by 
+the Free Software Foundation, either version 3 of the License, or 
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but 
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+for more details.
+
+You should have received a copy of the GNU General Public License along with 
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.http;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+   Server wide counters, gauges and histograms, rendered in the Prometheus text exposition format (see MetricsFilter).
+   Request metrics (by server port, route and status) are recorded when this is used as (or chained into) the server's
+   HTTPServerLogger. Other components - servers, database pools and caching filters - register themselves as weakly
+   held Sources and write their current values when the metrics are scraped. Updates only touch striped LongAdders and
+   concurrent maps; there is no global lock on the request path.
+ */
+public class ServerMetrics implements HTTPServerLogger
+{
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    public static final double[] DEFAULT_SECONDS_BUCKETS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+    public static final int DEFAULT_MAX_ROUTES = 500;
+
+    private static final ServerMetrics DEFAULT = new ServerMetrics();
+
+    public interface Source
+    {
+        public void writeMetrics(Output out);
+
+        /** 
+            Identifies the label sets this source writes; a source registered with the same (non null) key as an earlier one 
+            replaces it, so a reloaded runtime's filters and pools take over from the previous runtime's rather than repeat them
+        */
+        default public String getMetricsKey()
+        {
+            return null;
+        }
+    }
+
+    public static class Histogram
+    {
+        private final double[] bounds;
+        private final LongAdder[] buckets;
+        private final LongAdder count;
+        private final DoubleAdder sum;
+
+        public Histogram()
+        {
+            this(DEFAULT_SECONDS_BUCKETS);
+        }
+
+        public Histogram(double[] bounds)
+        {
+            this.bounds = bounds.clone();
+            Arrays.sort(this.bounds);
+            buckets = new LongAdder[this.bounds.length];
+            for (int i=0; i<buckets.length; i++)
+                buckets[i] = new LongAdder();
+            count = new LongAdder();
+            sum = new DoubleAdder();
+        }
+
+        public void observe(double value)
+        {
+            int pos = Arrays.binarySearch(bounds, value);
+            if (pos < 0)
+                pos = -pos - 1;
+            if (pos < buckets.length)
+                buckets[pos].increment();
+            count.increment();
+            sum.add(value);
+        }
+
+        public long getCount()
+        {
+            return count.sum();
+        }
+
+        public double getSum()
+        {
+            return sum.sum();
+        }
+    }
+
+    /** Collects the samples of one scrape, grouping them by metric family whatever order the sources write them in */
+    public static class Output
+    {
+        private final LinkedHashMap families = new LinkedHashMap();
+
+        private StringBuffer family(String name, String type, String help)
+        {
+            StringBuffer buf = (StringBuffer) families.get(name);
+            if (buf == null)
+            {
+                buf = new StringBuffer();
+                if (help != null)
+                    buf.append("# HELP "+name+" "+help.replace("\\", "\\\\").replace("\n", "\\n")+"\n");
+                buf.append("# TYPE "+name+" "+type+"\n");
+                families.put(name, buf);
+            }
+            return buf;
+        }
+
+        private static String format(double value)
+        {
+            if (Double.isNaN(value))
+                return "NaN";
+            if (Double.isInfinite(value))
+                return value > 0 ? "+Inf" : "-Inf";
+            if ((value == Math.rint(value)) && (Math.abs(value) < 1e15))
+                return String.valueOf((long) value);
+            return String.valueOf(value);
+        }
+
+        private static void sample(StringBuffer buf, String name, String labels, double value)
+        {
+            buf.append(name);
+            if ((labels != null) && (labels.length() > 0))
+                buf.append("{"+labels+"}");
+            buf.append(" "+format(value)+"\n");
+        }
+
+        public void counter(String name, String help, String labels, double value)
+        {
+            sample(family(name, "counter", help), name, labels, value);
+        }
+
+        public void gauge(String name, String help, String labels, double value)
+        {
+            sample(family(name, "gauge", help), name, labels, value);
+        }
+
+        public void histogram(String name, String help, String labels, Histogram h)
+        {
+            StringBuffer buf = family(name, "histogram", help);
+            String prefix = ((labels == null) || (labels.length() == 0)) ? "" : labels+",";
+
+            long cumulative = 0;
+            for (int i=0; i<h.bounds.length; i++)
+            {
+                cumulative += h.buckets[i].sum();
+                sample(buf, name+"_bucket", prefix+"le=\""+format(h.bounds[i])+"\"", cumulative);
+            }
+            sample(buf, name+"_bucket", prefix+"le=\"+Inf\"", h.getCount());
+            sample(buf, name+"_sum", labels, h.getSum());
+            sample(buf, name+"_count", labels, h.getCount());
+        }
+
+        public String toString()
+        {
+            StringBuffer result = new StringBuffer();
+            Iterator itt = families.values().iterator();
+            while (itt.hasNext())
+                result.append(itt.next());
+            return result.toString();
+        }
+    }
+
+    public static String label(String name, Object value)
+    {
+        String s = String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        return name+"=\""+s+"\"";
+    }
+
+    public static String labels(String name1, Object value1, String name2, Object value2)
+    {
+        return label(name1, value1)+","+label(name2, value2);
+    }
+
+    /** Writes the standard hit/miss counters, hit ratio and entry count of a named cache */
+    public static void writeCacheMetrics(Output out, String cacheType, String name, long hits, long misses, int entries)
+    {
+        String label = labels("cache", cacheType, "name", name);
+        out.counter("jjsp_cache_hits_total", "Cache lookups which found an entry", label, hits);
+        out.counter("jjsp_cache_misses_total", "Cache lookups which had to load the content", label, misses);
+        out.gauge("jjsp_cache_hit_ratio", "Fraction of cache lookups which found an entry", label, (hits + misses) == 0 ? 0 : ((double) hits) / (hits + misses));
+        out.gauge("jjsp_cache_entries", "Entries currently held in the cache", label, entries);
+    }
+
+    public static ServerMetrics getDefault()
+    {
+        return DEFAULT;
+    }
+
+    private final int maxRoutes;
+    private final Set knownRoutes;
+    private final Map sources;
+    private final ConcurrentHashMap requests, durations, bytesIn, bytesOut;
+
+    public ServerMetrics()
+    {
+        this(DEFAULT_MAX_ROUTES);
+    }
+
+    public ServerMetrics(int maxRoutes)
+    {
+        this.maxRoutes = maxRoutes;
+        knownRoutes = ConcurrentHashMap.newKeySet();
+        sources = Collections.synchronizedMap(new WeakHashMap());
+        requests = new ConcurrentHashMap();
+        durations = new ConcurrentHashMap();
+        bytesIn = new ConcurrentHashMap();
+        bytesOut = new ConcurrentHashMap();
+    }
+
+    /** Sources are weakly referenced, so registering does not keep closed servers or pools alive */
+    public void addSource(Source src)
+    {
+        String key = src.getMetricsKey();
+        synchronized (sources)
+        {
+            if (key != null)
+            {
+                Object[] srcs = sources.keySet().toArray();
+                for (int i=0; i<srcs.length; i++)
+                {
+                    if ((srcs[i] != null) && (srcs[i] != src) && key.equals(((Source) srcs[i]).getMetricsKey()))
+                        sources.remove(srcs[i]);
+                }
+            }
+            sources.put(src, Boolean.TRUE);
+        }
+    }
+
+    public void removeSource(Source src)
+    {
+        sources.remove(src);
+    }
+
+    private static LongAdder adder(ConcurrentHashMap map, Object key)
+    {
+        LongAdder result = (LongAdder) map.get(key);
+        if (result != null)
+            return result;
+
+        result = new LongAdder();
+        LongAdder existing = (LongAdder) map.putIfAbsent(key, result);
+        if (existing != null)
+            return existing;
+        return result;
+    }
+
+    private static Histogram histogram(ConcurrentHashMap map, Object key)
+    {
+        Histogram result = (Histogram) map.get(key);
+        if (result != null)
+            return result;
+
+        result = new Histogram();
+        Histogram existing = (Histogram) map.putIfAbsent(key, result);
+        if (existing != null)
+            return existing;
+        return result;
+    }
+
+    protected String getRoute(HTTPLogEntry entry)
+    {
+        return RouteMetricsLogger.normaliseRoute(entry.getRequestMainLine());
+    }
+
+    public void requestProcessed(HTTPLogEntry entry)
+    {
+        if (entry == null)
+            return;
+
+        String route = getRoute(entry);
+        if (!knownRoutes.contains(route))
+        {
+            if (knownRoutes.size() >= maxRoutes)
+                route = RouteMetricsLogger.OTHER_ROUTE;
+            else
+                knownRoutes.add(route);
+        }
+
+        Integer port = Integer.valueOf(entry.serverPort);
+        String status = String.valueOf(BinaryLogSegment.Writer.parseStatus(entry.getResponseMainLine()));
+
+        adder(requests, label("port", port)+","+labels("route", route, "status", status)).increment();
+        adder(bytesIn, port).add(entry.bytesRead);
+        adder(bytesOut, port).add(entry.bytesWritten);
+        histogram(durations, port).observe(entry.totalRequestTime() / 1000.0);
+    }
+
+    public void writeMetrics(Output out)
+    {
+        Iterator itt = new TreeMap(requests).entrySet().iterator();
+        while (itt.hasNext())
+        {
+            Map.Entry e = (Map.Entry) itt.next();
+            out.counter("jjsp_http_requests_total", "HTTP requests by server port, route and status", (String) e.getKey(), ((LongAdder) e.getValue()).sum());
+        }
+
+        itt = new TreeMap(bytesIn).entrySet().iterator();
+        while (itt.hasNext())
+        {
+            Map.Entry e = (Map.Entry) itt.next();
+            out.counter("jjsp_http_received_bytes_total", "Bytes read from HTTP requests", label("port", e.getKey()), ((LongAdder) e.getValue()).sum());
+        }
+
+        itt = new TreeMap(bytesOut).entrySet().iterator();
+        while (itt.hasNext())
+        {
+            Map.Entry e = (Map.Entry) itt.next();
+            out.counter("jjsp_http_sent_bytes_total", "Bytes written in HTTP responses", label("port", e.getKey()), ((LongAdder) e.getValue()).sum());
+        }
+
+        itt = new TreeMap(durations).entrySet().iterator();
+        while (itt.hasNext())
+        {
+            Map.Entry e = (Map.Entry) itt.next();
+            out.histogram("jjsp_http_request_duration_seconds", "Time from request received to response sent", label("port", e.getKey()), (Histogram) e.getValue());
+        }
+
+        Object[] srcs = null;
+        synchronized (sources)
+        {
+            srcs = sources.keySet().toArray();
+        }
+
+        for (int i=0; i<srcs.length; i++)
+        {
+            try
+            {
+                ((Source) srcs[i]).writeMetrics(out);
+            }
+            catch (Throwable t) {}
+        }
+    }
+
+    public String toPrometheusText()
+    {
+        Output out = new Output();
+        writeMetrics(out);
+        return out.toString();
+    }
+}
@@ -0,0 +1,579 @@
+/*
+JJSP - Java and Javascript Server Pages 
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify 
+it under the terms of the GNU General Public License as published by 
+the Free Software Foundation, either version 3 of the License, or 
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but 
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+for more details.
+
+You should have received a copy of the GNU General Public License along with 
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.http;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import jjsp.util.*;
+
+/**
+   A named group of interchangeable upstream servers for ProxyFilter. Requests are spread over the group by round-robin,
+   least outstanding requests or a consistent hash of the request path or a cookie. Upstreams are taken out of rotation
+   when active health checks against a configured path fail, or are ejected for a while after repeated errors or timeouts
+   on real traffic. Retries (of requests the proxy may safely repeat) are limited by a budget which earns a fraction of a
+   retry for every request, so that retries cannot multiply the load on a struggling group.
+ */
+public class UpstreamBalancer implements ServerMetrics.Source
+{
+    public static enum Balancing
+    {
+        ROUND_ROBIN, LEAST_OUTSTANDING, HASH_PATH, HASH_COOKIE;
+    }
+
+    public static final int VIRTUAL_NODES = 160;
+    public static final int DEFAULT_MAX_RETRIES = 2;
+    public static final double DEFAULT_RETRY_RATIO = 0.2;
+    public static final double DEFAULT_MIN_RETRY_TOKENS = 10;
+    public static final int DEFAULT_EJECTION_THRESHOLD = 5;
+    public static final long DEFAULT_BASE_EJECTION_TIME = 30000;
+    public static final int DEFAULT_HEALTH_CHECK_TIMEOUT = 2000;
+    public static final int HEALTH_THRESHOLD = 2;
+
+    private final String name;
+    private final Balancing balancing;
+    private final UpstreamPool pool;
+    private final AtomicInteger nextIndex;
+    private final LongAdder retries, retriesDenied;
+
+    private volatile Upstream[] upstreams;
+    private volatile TreeMap hashRing;
+
+    private String hashCookieName;
+    private int maxRetries;
+    private volatile int ejectionThreshold;
+    private volatile long baseEjectionTime;
+    private double retryRatio, retryTokens, maxRetryTokens;
+
+    private String healthCheckPath;
+    private int healthCheckInterval, healthCheckTimeout;
+    private Thread healthChecker;
+
+    public class Upstream
+    {
+        private final String host, hostString;
+        private final int port;
+        private final AtomicInteger outstanding;
+        private final LongAdder requests, failures, ejections, healthCheckFailures;
+
+        private volatile boolean healthy;
+        private volatile long ejectedUntil;
+        private int consecutiveFailures, timesEjected, healthCount;
+
+        Upstream(String host, int port)
+        {
+            this.host = host;
+            this.port = port;
+            hostString = host+":"+port;
+
+            outstanding = new AtomicInteger();
+            requests = new LongAdder();
+            failures = new LongAdder();
+            ejections = new LongAdder();
+            healthCheckFailures = new LongAdder();
+
+            healthy = true;
+            ejectedUntil = 0;
+            consecutiveFailures = timesEjected = healthCount = 0;
+        }
+
+        public String getHost()
+        {
+            return host;
+        }
+
+        public int getPort()
+        {
+            return port;
+        }
+
+        public String getHostString()
+        {
+            return hostString;
+        }
+
+        public int getOutstandingRequests()
+        {
+            return outstanding.get();
+        }
+
+        public boolean isHealthy()
+        {
+            return healthy;
+        }
+
+        public boolean isEjected()
+        {
+            return ejectedUntil > System.currentTimeMillis();
+        }
+
+        public boolean isAvailable()
+        {
+            return healthy && !isEjected();
+        }
+
+        /** Must be paired with a call to requestEnded */
+        public void requestStarted()
+        {
+            outstanding.incrementAndGet();
+            requests.increment();
+        }
+
+        /** Records the outcome of a request; consecutive failures (connection errors, timeouts and gateway errors) eject the upstream for a growing period */
+        public void requestEnded(boolean failed)
+        {
+            outstanding.decrementAndGet();
+            if (failed)
+                failures.increment();
+
+            synchronized (this)
+            {
+                if (!failed)
+                {
+                    consecutiveFailures = 0;
+                    if (!isEjected())
+                        timesEjected = 0;
+                    return;
+                }
+
+                if (++consecutiveFailures < ejectionThreshold)
+                    return;
+
+                consecutiveFailures = 0;
+                timesEjected = Math.min(timesEjected+1, 8);
+                ejectedUntil = System.currentTimeMillis() + baseEjectionTime*timesEjected;
+                ejections.increment();
+            }
+        }
+
+        synchronized void healthCheckResult(boolean ok)
+        {
+            if (!ok)
+                healthCheckFailures.increment();
+
+            if (ok == healthy)
+            {
+                healthCount = 0;
+                return;
+            }
+            if (++healthCount >= HEALTH_THRESHOLD)
+            {
+                healthy = ok;
+                healthCount = 0;
+            }
+        }
+
+        synchronized void resetHealth()
+        {
+            healthy = true;
+            healthCount = 0;
+        }
+
+        public String toString()
+        {
+            return hostString;
+        }
+    }
+
+    public UpstreamBalancer(String name, Balancing balancing)
+    {
+        this(name, balancing, UpstreamPool.getDefault());
+    }
+
+    public UpstreamBalancer(String name, Balancing balancing, UpstreamPool pool)
+    {
+        this.name = name;
+        this.balancing = balancing;
+        this.pool = pool;
+
+        upstreams = new Upstream[0];
+        hashRing = new TreeMap();
+        nextIndex = new AtomicInteger();
+        retries = new LongAdder();
+        retriesDenied = new LongAdder();
+
+        hashCookieName = null;
+        maxRetries = DEFAULT_MAX_RETRIES;
+        retryRatio = DEFAULT_RETRY_RATIO;
+        maxRetryTokens = retryTokens = DEFAULT_MIN_RETRY_TOKENS;
+        ejectionThreshold = DEFAULT_EJECTION_THRESHOLD;
+        baseEjectionTime = DEFAULT_BASE_EJECTION_TIME;
+        healthCheckPath = null;
+        healthCheckTimeout = DEFAULT_HEALTH_CHECK_TIMEOUT;
+
+        ServerMetrics.getDefault().addSource(this);
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public Balancing getBalancing()
+    {
+        return balancing;
+    }
+
+    public UpstreamPool getUpstreamPool()
+    {
+        return pool;
+    }
+
+    public Upstream[] getUpstreams()
+    {
+        return upstreams.clone();
+    }
+
+    public synchronized Upstream addUpstream(String host, int port)
+    {
+        Upstream result = new Upstream(host, port);
+        Upstream[] ups = new Upstream[upstreams.length+1];
+        System.arraycopy(upstreams, 0, ups, 0, upstreams.length);
+        ups[upstreams.length] = result;
+
+        TreeMap ring = new TreeMap(hashRing);
+        for (int i=0; i<VIRTUAL_NODES; i++)
+            ring.put(Long.valueOf(hash(result.hostString+"#"+i)), result);
+
+        hashRing = ring;
+        upstreams = ups;
+        return result;
+    }
+
+    /** Adds each of a comma separated list of host:port targets */
+    public void addUpstreams(String targets)
+    {
+        String[] parts = targets.split(",");
+        for (int i=0; i<parts.length; i++)
+        {
+            String target = parts[i].trim();
+            if (target.length() == 0)
+                continue;
+            int colon = target.lastIndexOf(':');
+            if (colon < 0)
+                addUpstream(target, 80);
+            else
+                addUpstream(target.substring(0, colon), Integer.parseInt(target.substring(colon+1)));
+        }
+    }
+
+    public synchronized void setHashCookieName(String cookieName)
+    {
+        hashCookieName = cookieName;
+    }
+
+    public synchronized void setMaxRetries(int maxRetries)
+    {
+        this.maxRetries = Math.max(0, maxRetries);
+    }
+
+    /** Each request earns retryRatio of a retry, up to a balance of max(minTokens, ...) held in reserve */
+    public synchronized void setRetryBudget(double retryRatio, double minTokens)
+    {
+        this.retryRatio = Math.max(0, retryRatio);
+        maxRetryTokens = Math.max(1, minTokens);
+        retryTokens = Math.min(retryTokens, maxRetryTokens);
+    }
+
+    public synchronized void setOutlierEjection(int consecutiveFailures, long baseEjectionTime)
+    {
+        ejectionThreshold = Math.max(1, consecutiveFailures);
+        this.baseEjectionTime = Math.max(0, baseEjectionTime);
+    }
+
+    /** 
+        Starts polling path on every upstream every interval ms; an upstream leaves or rejoins the rotation after two consecutive failed or 
+        successful checks. A null path stops the checks.
+    */
+    public synchronized void setHealthCheck(String path, int interval, int timeout)
+    {
+        if (path == null)
+        {
+            stopHealthChecks();
+            return;
+        }
+
+        healthCheckPath = path;
+        healthCheckInterval = Math.max(100, interval);
+        healthCheckTimeout = Math.max(1, timeout);
+
+        if (healthChecker == null)
+        {
+            healthChecker = new Thread(new HealthChecker(), "Upstream Health Checker ["+name+"]");
+            healthChecker.setDaemon(true);
+            healthChecker.start();
+        }
+    }
+
+    /** Stops the health checks and puts every upstream back into the rotation, since there is nothing left to mark them healthy again */
+    public synchronized void stopHealthChecks()
+    {
+        healthCheckPath = null;
+        if (healthChecker != null)
+            healthChecker.interrupt();
+        healthChecker = null;
+
+        Upstream[] ups = upstreams;
+        for (int i=0; i<ups.length; i++)
+            ups[i].resetHealth();
+    }
+
+    public void close()
+    {
+        stopHealthChecks();
+        ServerMetrics.getDefault().removeSource(this);
+    }
+
+    static long hash(String key)
+    {
+        // FNV-1a followed by the MurmurHash3 finaliser so that similar keys spread evenly around the ring
+        long h = 0xcbf29ce484222325L;
+        for (int i=0; i<key.length(); i++)
+        {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= (h >>> 33);
+        return h;
+    }
+
+    private String getHashKey(HTTPRequestHeaders headers)
+    {
+        if (balancing == Balancing.HASH_PATH)
+            return headers.getPath();
+        if (balancing == Balancing.HASH_COOKIE)
+        {
+            String cookieName = null;
+            synchronized (this)
+            {
+                cookieName = hashCookieName;
+            }
+            if (cookieName != null)
+                return headers.getCookie(cookieName);
+        }
+        return null;
+    }
+
+    private Upstream selectFrom(Upstream[] ups, HTTPRequestHeaders headers, Set tried, boolean availableOnly)
+    {
+        if (ups.length == 0)
+            return null;
+
+        String key = getHashKey(headers);
+        if (key != null)
+        {
+            TreeMap ring = hashRing;
+            Iterator itt = ring.tailMap(Long.valueOf(hash(key))).values().iterator();
+            for (int i=0; i<ring.size(); i++)
+            {
+                if (!itt.hasNext())
+                    itt = ring.values().iterator();
+                Upstream up = (Upstream) itt.next();
+                if (tried.contains(up) || (availableOnly && !up.isAvailable()))
+                    continue;
+                return up;
+            }
+            return null;
+        }
+
+        int start = (nextIndex.getAndIncrement() & 0x7FFFFFFF) % ups.length;
+        Upstream best = null;
+        for (int i=0; i<ups.length; i++)
+        {
+            Upstream up = ups[(start + i) % ups.length];
+            if (tried.contains(up) || (availableOnly && !up.isAvailable()))
+                continue;
+            if (balancing != Balancing.LEAST_OUTSTANDING)
+                return up;
+            if ((best == null) || (up.getOutstandingRequests() < best.getOutstandingRequests()))
+                best = up;
+        }
+        return best;
+    }
+
+    /**
+       Chooses the upstream for a request, skipping those already tried for it. If no upstream is available (all unhealthy
+       or ejected) one is chosen regardless, since failing every request is worse than trying a doubtful server. Throws an
+       IOException, which a ProxyFilter answers with 502 Bad Gateway, when the group has no upstreams.
+     */
+    public Upstream select(HTTPRequestHeaders headers, Set tried) throws IOException
+    {
+        if (tried.isEmpty())
+        {
+            synchronized (this)
+            {
+                retryTokens = Math.min(maxRetryTokens, retryTokens + retryRatio);
+            }
+        }
+
+        Upstream[] ups = upstreams;
+        Upstream result = selectFrom(ups, headers, tried, true);
+        if (result == null)
+            result = selectFrom(ups, headers, tried, false);
+        if (result == null)
+            throw new IOException("No upstreams configured for "+name);
+        return result;
+    }
+
+    /** Tests whether any upstream not yet tried is available, without moving the round-robin position as selectFrom does */
+    private static boolean hasAvailable(Upstream[] ups, Set tried)
+    {
+        for (int i=0; i<ups.length; i++)
+            if (!tried.contains(ups[i]) && ups[i].isAvailable())
+                return true;
+        return false;
+    }
+
+    /** Returns true, and spends from the retry budget, if a request which has been sent to the upstreams in tried may be sent to another */
+    public boolean allowRetry(HTTPRequestHeaders headers, Set tried)
+    {
+        Upstream[] ups = upstreams;
+        synchronized (this)
+        {
+            if ((tried.size() > maxRetries) || !hasAvailable(ups, tried))
+                return false;
+            if (retryTokens < 1)
+            {
+                retriesDenied.increment();
+                return false;
+            }
+            retryTokens -= 1;
+        }
+
+        retries.increment();
+        return true;
+    }
+
+    static boolean checkHealth(String host, int port, String path, int timeout)
+    {
+        try (Socket sock = new Socket())
+        {
+            sock.connect(new InetSocketAddress(host, port), timeout);
+            sock.setSoTimeout(timeout);
+
+            OutputStream out = sock.getOutputStream();
+            out.write(Utils.getAsciiBytes("GET "+path+" HTTP/1.1\r\nHost: "+host+":"+port+"\r\nConnection: close\r\nUser-Agent: JJSP-HealthCheck\r\n\r\n"));
+            out.flush();
+
+            byte[] lineBuffer = new byte[1024];
+            int len = HTTPRequestHeaders.readLine(new BufferedInputStream(sock.getInputStream()), lineBuffer);
+            if (len < 12)
+                return false;
+            String status = HTTPRequestHeaders.getCRLFTerminatedLineAsString(lineBuffer, len);
+            int code = Integer.parseInt(status.substring(9, 12));
+            return (code >= 200) && (code < 400);
+        }
+        catch (Exception e)
+        {
+            return false;
+        }
+    }
+
+    class HealthChecker implements Runnable
+    {
+        public void run()
+        {
+            while (true)
+            {
+                String path = null;
+                int interval = 0, timeout = 0;
+                synchronized (UpstreamBalancer.this)
+                {
+                    if (healthChecker != Thread.currentThread())
+                        return;
+                    path = healthCheckPath;
+                    interval = healthCheckInterval;
+                    timeout = healthCheckTimeout;
+                }
+
+                Upstream[] ups = upstreams;
+                boolean[] results = new boolean[ups.length];
+                for (int i=0; i<ups.length; i++)
+                    results[i] = checkHealth(ups[i].host, ups[i].port, path, timeout);
+
+                synchronized (UpstreamBalancer.this)
+                {
+                    // Checks still in flight when stopped must not undo the reset in stopHealthChecks
+                    if (healthChecker != Thread.currentThread())
+                        return;
+                    for (int i=0; i<ups.length; i++)
+                        ups[i].healthCheckResult(results[i]);
+                }
+
+                try
+                {
+                    Thread.sleep(interval);
+                }
+                catch (InterruptedException e) {}
+            }
+        }
+    }
+
+    public String getMetricsKey()
+    {
+        return "upstream_group/"+name;
+    }
+
+    public void writeMetrics(ServerMetrics.Output out)
+    {
+        Upstream[] ups = upstreams;
+        for (int i=0; i<ups.length; i++)
+        {
+            Upstream up = ups[i];
+            String label = ServerMetrics.labels("group", name, "upstream", up.hostString);
+            out.gauge("jjsp_upstream_healthy", "Whether the upstream passes its health checks", label, up.isHealthy() ? 1 : 0);
+            out.gauge("jjsp_upstream_ejected", "Whether the upstream is ejected after repeated errors", label, up.isEjected() ? 1 : 0);
+            out.gauge("jjsp_upstream_outstanding_requests", "Requests in progress to the upstream", label, up.getOutstandingRequests());
+            out.counter("jjsp_upstream_requests_total", "Requests sent to the upstream, including retries", label, up.requests.sum());
+            out.counter("jjsp_upstream_failures_total", "Requests to the upstream which failed with an error, timeout or gateway status", label, up.failures.sum());
+            out.counter("jjsp_upstream_ejections_total", "Times the upstream was ejected after consecutive failures", label, up.ejections.sum());
+            out.counter("jjsp_upstream_health_check_failures_total", "Failed health checks of the upstream", label, up.healthCheckFailures.sum());
+        }
+
+        double tokens = 0;
+        synchronized (this)
+        {
+            tokens = retryTokens;
+        }
+
+        String label = ServerMetrics.label("group", name);
+        out.counter("jjsp_upstream_retries_total", "Requests retried on another upstream", label, retries.sum());
+        out.counter("jjsp_upstream_retries_denied_total", "Retries refused because the retry budget was spent", label, retriesDenied.sum());
+        out.gauge("jjsp_upstream_retry_budget", "Retries currently available in the budget", label, tokens);
+    }
+
+    public String toString()
+    {
+        StringBuffer buf = new StringBuffer();
+        Upstream[] ups = upstreams;
+        for (int i=0; i<ups.length; i++)
+        {
+            if (i > 0)
+                buf.append(",");
+            buf.append(ups[i].hostString);
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,424 @@
+/*
+JJSP - Java and Javascript Server Pages 
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify 
+it under the terms of the GNU General Public License as published by 
+the Free Software Foundation, either version 3 of the License, or 
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but 
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+for more details.
+
+You should have received a copy of the GNU General Public License along with 
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.http;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+   A pool of persistent (keep-alive) client sockets to upstream HTTP servers, keyed by host and port. Each host has a limit
+   on open connections - callers wait for one to be released once it is reached - and idle connections are reused most
+   recently used first, so that surplus connections age out and are closed after the idle timeout.
+ */
+public class UpstreamPool implements ServerMetrics.Source, AutoCloseable
+{
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 64;
+    public static final int DEFAULT_IDLE_TIMEOUT = 30000;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    public static final int DEFAULT_READ_TIMEOUT = 60000;
+
+    private static final int IO_BUFFER_SIZE = 16*1024;
+    private static final UpstreamPool DEFAULT = new UpstreamPool();
+
+    private final HashMap hosts;
+    private final int maxConnectionsPerHost, idleTimeout, connectTimeout, readTimeout;
+
+    private volatile boolean closed;
+    private Thread reaper;
+
+    public static UpstreamPool getDefault()
+    {
+        return DEFAULT;
+    }
+
+    public UpstreamPool()
+    {
+        this(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_IDLE_TIMEOUT, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+    }
+
+    public UpstreamPool(int maxConnectionsPerHost, int idleTimeout, int connectTimeout, int readTimeout)
+    {
+        this.maxConnectionsPerHost = Math.max(1, maxConnectionsPerHost);
+        this.idleTimeout = Math.max(1000, idleTimeout);
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+
+        hosts = new HashMap();
+        closed = false;
+        reaper = null;
+        ServerMetrics.getDefault().addSource(this);
+    }
+
+    public int getMaxConnectionsPerHost()
+    {
+        return maxConnectionsPerHost;
+    }
+
+    public int getIdleTimeout()
+    {
+        return idleTimeout;
+    }
+
+    public int getConnectTimeout()
+    {
+        return connectTimeout;
+    }
+
+    public int getReadTimeout()
+    {
+        return readTimeout;
+    }
+
+    public class Connection implements AutoCloseable
+    {
+        private final Socket socket;
+        private final HostPool pool;
+        private final InputStream input;
+        private final OutputStream output;
+
+        private int uses;
+        private long lastUsed;
+        private boolean released;
+
+        Connection(HostPool pool, Socket socket) throws IOException
+        {
+            this.pool = pool;
+            this.socket = socket;
+            input = new BufferedInputStream(socket.getInputStream(), IO_BUFFER_SIZE);
+            output = new BufferedOutputStream(socket.getOutputStream(), IO_BUFFER_SIZE);
+            uses = 0;
+            lastUsed = System.currentTimeMillis();
+            released = false;
+        }
+
+        public InputStream getInputStream()
+        {
+            return input;
+        }
+
+        public OutputStream getOutputStream()
+        {
+            return output;
+        }
+
+        public String getHostString()
+        {
+            return pool.hostString;
+        }
+
+        /** Returns true if this connection has already carried an earlier request (and so may have been closed by the upstream server while idle) */
+        public boolean isReused()
+        {
+            return uses > 1;
+        }
+
+        public void setReadTimeout(int millis) throws IOException
+        {
+            socket.setSoTimeout(millis);
+        }
+
+        /** Returns the connection to the pool if its last exchange left it at a clean message boundary, otherwise closes it */
+        public void release(boolean reusable)
+        {
+            synchronized (pool)
+            {
+                if (released)
+                    return;
+                released = true;
+                pool.checkIn(this, reusable && !socket.isClosed());
+            }
+        }
+
+        public void close()
+        {
+            release(false);
+        }
+
+        void closeSocket()
+        {
+            try
+            {
+                socket.close();
+            }
+            catch (Exception e) {}
+        }
+    }
+
+    class HostPool
+    {
+        final String host, hostString;
+        final int port;
+        final LinkedList idle;
+        final LongAdder opened, reused, evicted, waits, timeouts;
+
+        int open;
+
+        HostPool(String host, int port)
+        {
+            this.host = host;
+            this.port = port;
+            hostString = host+":"+port;
+            idle = new LinkedList();
+            opened = new LongAdder();
+            reused = new LongAdder();
+            evicted = new LongAdder();
+            waits = new LongAdder();
+            timeouts = new LongAdder();
+            open = 0;
+        }
+
+        Connection checkOut(long timeout) throws IOException
+        {
+            long limit = System.currentTimeMillis() + timeout;
+            synchronized (this)
+            {
+                boolean waited = false;
+                while (true)
+                {
+                    if (closed)
+                        throw new IOException("Upstream connection pool closed");
+
+                    long now = System.currentTimeMillis();
+                    while (!idle.isEmpty())
+                    {
+                        Connection conn = (Connection) idle.removeFirst();
+                        if ((now - conn.lastUsed < idleTimeout) && !conn.socket.isClosed() && !conn.socket.isInputShutdown())
+                        {
+                            conn.released = false;
+                            conn.uses++;
+                            reused.increment();
+                            return conn;
+                        }
+
+                        open--;
+                        evicted.increment();
+                        conn.closeSocket();
+                    }
+
+                    if (open < maxConnectionsPerHost)
+                    {
+                        open++;
+                        break;
+                    }
+
+                    long wait = limit - now;
+                    if (wait <= 0)
+                    {
+                        timeouts.increment();
+                        throw new SocketTimeoutException("No connection to "+hostString+" became free within "+timeout+" ms");
+                    }
+                    if (!waited)
+                        waits.increment();
+                    waited = true;
+
+                    try
+                    {
+                        wait(wait);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        throw new InterruptedIOException("Interrupted waiting for a connection to "+hostString);
+                    }
+                }
+            }
+
+            Socket socket = new Socket();
+            try
+            {
+                socket.setTcpNoDelay(true);
+                socket.setKeepAlive(true);
+                socket.connect(new InetSocketAddress(host, port), connectTimeout);
+                socket.setSoTimeout(readTimeout);
+
+                Connection result = new Connection(this, socket);
+                result.uses = 1;
+                opened.increment();
+                return result;
+            }
+            catch (IOException e)
+            {
+                try
+                {
+                    socket.close();
+                }
+                catch (Exception ee) {}
+
+                synchronized (this)
+                {
+                    open--;
+                    notify();
+                }
+                throw e;
+            }
+        }
+
+        synchronized void checkIn(Connection conn, boolean reusable)
+        {
+            if (reusable && !closed)
+            {
+                conn.lastUsed = System.currentTimeMillis();
+                idle.addFirst(conn);
+            }
+            else
+            {
+                open--;
+                conn.closeSocket();
+            }
+            notify();
+        }
+
+        synchronized void evictIdle(long now, boolean all)
+        {
+            // Most recently used connections are at the front, so the expired ones are at the end
+            while (!idle.isEmpty())
+            {
+                Connection conn = (Connection) idle.getLast();
+                if (!all && (now - conn.lastUsed < idleTimeout))
+                    break;
+
+                idle.removeLast();
+                open--;
+                evicted.increment();
+                conn.closeSocket();
+            }
+            notifyAll();
+        }
+    }
+
+    class Reaper implements Runnable
+    {
+        public void run()
+        {
+            while (true)
+            {
+                try
+                {
+                    Thread.sleep(Math.max(500, idleTimeout/4));
+                }
+                catch (InterruptedException e) {}
+
+                Object[] pools = null;
+                synchronized (hosts)
+                {
+                    if (closed)
+                        return;
+                    pools = hosts.values().toArray();
+                }
+
+                long now = System.currentTimeMillis();
+                for (int i=0; i<pools.length; i++)
+                    ((HostPool) pools[i]).evictIdle(now, false);
+            }
+        }
+    }
+
+    private HostPool getHostPool(String host, int port) throws IOException
+    {
+        String key = host.toLowerCase()+":"+port;
+        synchronized (hosts)
+        {
+            if (closed)
+                throw new IOException("Upstream connection pool closed");
+
+            HostPool result = (HostPool) hosts.get(key);
+            if (result == null)
+            {
+                result = new HostPool(host, port);
+                hosts.put(key, result);
+            }
+
+            if (reaper == null)
+            {
+                reaper = new Thread(new Reaper(), "Upstream Connection Reaper");
+                reaper.setDaemon(true);
+                reaper.start();
+            }
+            return result;
+        }
+    }
+
+    public Connection getConnection(String host, int port) throws IOException
+    {
+        return getConnection(host, port, connectTimeout);
+    }
+
+    /** Checks out an idle connection to host:port, or opens a new one, waiting up to timeout ms if the host is at its connection limit */
+    public Connection getConnection(String host, int port, long timeout) throws IOException
+    {
+        return getHostPool(host, port).checkOut(timeout);
+    }
+
+    /** Opens a new connection to host:port which does not replace an idle one; used to retry when a reused connection turns out to be stale */
+    public Connection getFreshConnection(String host, int port) throws IOException
+    {
+        HostPool pool = getHostPool(host, port);
+        pool.evictIdle(System.currentTimeMillis(), true);
+        return pool.checkOut(connectTimeout);
+    }
+
+    public void writeMetrics(ServerMetrics.Output out)
+    {
+        Object[] pools = null;
+        synchronized (hosts)
+        {
+            if (closed)
+                return;
+            pools = hosts.values().toArray();
+        }
+
+        for (int i=0; i<pools.length; i++)
+        {
+            HostPool pool = (HostPool) pools[i];
+            int open = 0, idle = 0;
+            synchronized (pool)
+            {
+                open = pool.open;
+                idle = pool.idle.size();
+            }
+
+            String label = ServerMetrics.label("upstream", pool.hostString);
+            out.gauge("jjsp_upstream_open_connections", "Connections open to the upstream server", label, open);
+            out.gauge("jjsp_upstream_idle_connections", "Keep-alive connections idle in the pool", label, idle);
+            out.counter("jjsp_upstream_connections_opened_total", "New connections made to the upstream server", label, pool.opened.sum());
+            out.counter("jjsp_upstream_connections_reused_total", "Requests sent on an existing keep-alive connection", label, pool.reused.sum());
+            out.counter("jjsp_upstream_connections_evicted_total", "Idle connections closed after the idle timeout", label, pool.evicted.sum());
+            out.counter("jjsp_upstream_checkout_waits_total", "Checkouts which had to wait for the per host connection limit", label, pool.waits.sum());
+            out.counter("jjsp_upstream_checkout_timeouts_total", "Checkouts which timed out at the per host connection limit", label, pool.timeouts.sum());
+        }
+    }
+
+    public void close()
+    {
+        ServerMetrics.getDefault().removeSource(this);
+        Object[] pools = null;
+        synchronized (hosts)
+        {
+            closed = true;
+            pools = hosts.values().toArray();
+            hosts.clear();
+            if (reaper != null)
+                reaper.interrupt();
+        }
+
+        long now = System.currentTimeMillis();
+        for (int i=0; i<pools.length; i++)
+            ((HostPool) pools[i]).evictIdle(now, true);
+    }
+}
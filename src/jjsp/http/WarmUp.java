@@ -0,0 +1,373 @@
+/*
+JJSP - Java and Javascript Server Pages 
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify 
+it under the terms of the GNU General Public License as published by 
+the Free Software Foundation, either version 3 of the License, or 
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but 
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+for more details.
+
+You should have received a copy of the GNU General Public License along with 
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.http;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import jjsp.util.*;
+
+/**
+   Replays a set of requests through a server's filters in process, before it starts listening, so that the first real
+   requests after a start meet JIT compiled code and filled caches (compressed forms, ETags, pooled engines) rather than
+   paying for them. Each request is parsed and answered exactly as if it came from a socket, through in memory streams,
+   and nothing is logged or counted in the metrics.
+   <p>
+   The set is replayed in rounds until the request rate settles (the last few rounds are within a small fraction of each
+   other), each request has been replayed the maximum number of times, or the time limit is reached. The set comes from a
+   file of request lines, "GET /path" (or just "/path"), which can be written by a Recorder from the requests a server
+   actually sees. Only GET and HEAD requests are replayed, and only for paths starting with one of the given prefixes when
+   there are any, so that paths served by proxies, scripts or databases (where even a GET may have a cost or an effect
+   elsewhere) can be left out.
+ */
+public class WarmUp
+{
+    public static final long DEFAULT_MAX_TIME = 30000;
+    public static final int MIN_ROUNDS = 5;
+    public static final int MIN_ROUND_REQUESTS = 500;
+    public static final long MIN_ROUND_TIME = 200;
+    public static final int SETTLED_ROUNDS = 3;
+    public static final double SETTLED_TOLERANCE = 0.05;
+    public static final int DEFAULT_MAX_REPLAYS = 1000;
+
+    private static final InetSocketAddress WARM_UP_CLIENT = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+
+    private final HTTPServer server;
+    private final byte[][] requests;
+
+    private int rounds, errors, maxReplays;
+    private long replayed, elapsed;
+    private double firstRate, lastRate;
+    private boolean settled, capped;
+    private TreeMap statusCounts;
+
+    public WarmUp(HTTPServer server, String[] requestLines)
+    {
+        this(server, requestLines, null);
+    }
+
+    /** Replays only the requests for paths starting with one of pathPrefixes, or all of them when it is null or empty */
+    public WarmUp(HTTPServer server, String[] requestLines, String[] pathPrefixes)
+    {
+        this.server = server;
+        maxReplays = DEFAULT_MAX_REPLAYS;
+
+        ArrayList list = new ArrayList();
+        for (int i=0; i<requestLines.length; i++)
+        {
+            byte[] req = toRequest(requestLines[i], pathPrefixes);
+            if (req != null)
+                list.add(req);
+        }
+        requests = new byte[list.size()][];
+        list.toArray(requests);
+        statusCounts = new TreeMap();
+    }
+
+    /** Reads request lines, ignoring blank lines and those starting with '#' */
+    public static String[] parseRequestLines(String text)
+    {
+        ArrayList result = new ArrayList();
+        String[] lines = text.split("\n");
+        for (int i=0; i<lines.length; i++)
+        {
+            String line = lines[i].trim();
+            if ((line.length() > 0) && !line.startsWith("#"))
+                result.add(line);
+        }
+
+        String[] arr = new String[result.size()];
+        result.toArray(arr);
+        return arr;
+    }
+
+    /** Reads a comma separated list of path prefixes, returning null when there are none */
+    public static String[] parsePathPrefixes(String list)
+    {
+        if (list == null)
+            return null;
+
+        ArrayList result = new ArrayList();
+        String[] parts = list.split(",");
+        for (int i=0; i<parts.length; i++)
+        {
+            String prefix = parts[i].trim();
+            if (prefix.length() > 0)
+                result.add(prefix.startsWith("/") ? prefix : "/"+prefix);
+        }
+        if (result.size() == 0)
+            return null;
+
+        String[] arr = new String[result.size()];
+        result.toArray(arr);
+        return arr;
+    }
+
+    private static boolean matchesPrefix(String path, String[] pathPrefixes)
+    {
+        if ((pathPrefixes == null) || (pathPrefixes.length == 0))
+            return true;
+        for (int i=0; i<pathPrefixes.length; i++)
+            if (path.startsWith(pathPrefixes[i]))
+                return true;
+        return false;
+    }
+
+    static byte[] toRequest(String line, String[] pathPrefixes)
+    {
+        String[] parts = line.trim().split("\\s+");
+        String method = "GET";
+        String path = parts[0];
+        if (parts.length > 1)
+        {
+            method = parts[0].toUpperCase();
+            path = parts[1];
+        }
+        if (!method.equals("GET") && !method.equals("HEAD"))
+            return null;
+        if (!path.startsWith("/") || !matchesPrefix(path, pathPrefixes))
+            return null;
+
+        return Utils.getAsciiBytes(method+" "+path+" HTTP/1.1\r\nHost: localhost\r\nUser-Agent: JJSP WarmUp\r\nAccept: */*\r\nAccept-Encoding: gzip, deflate\r\nConnection: close\r\n\r\n");
+    }
+
+    public int getRequestCount()
+    {
+        return requests.length;
+    }
+
+    /** Sets the most times any one request is replayed, however long the rate takes to settle */
+    public void setMaxReplays(int maxReplays)
+    {
+        this.maxReplays = Math.max(1, maxReplays);
+    }
+
+    private void replay(byte[] request, ByteArrayOutputStream response)
+    {
+        response.reset();
+        try
+        {
+            server.handleStreams(WARM_UP_CLIENT, 0, false, new ByteArrayInputStream(request), response, null);
+        }
+        catch (Throwable t)
+        {
+            errors++;
+            return;
+        }
+
+        // The status code follows "HTTP/1.1 "
+        byte[] resp = response.toByteArray();
+        String status = "none";
+        if (resp.length >= 12)
+            status = Utils.toAsciiString(resp, 9, 3);
+
+        Integer count = (Integer) statusCounts.get(status);
+        statusCounts.put(status, Integer.valueOf((count == null) ? 1 : count.intValue()+1));
+    }
+
+    private static boolean hasSettled(ArrayList rates)
+    {
+        if (rates.size() < Math.max(MIN_ROUNDS, SETTLED_ROUNDS))
+            return false;
+
+        double min = Double.MAX_VALUE, max = 0;
+        for (int i=rates.size()-SETTLED_ROUNDS; i<rates.size(); i++)
+        {
+            double r = ((Double) rates.get(i)).doubleValue();
+            min = Math.min(min, r);
+            max = Math.max(max, r);
+        }
+        return max - min <= SETTLED_TOLERANCE*max;
+    }
+
+    /** Replays the requests in rounds until the rate settles or maxTime (ms) has passed, returning a report */
+    public String run(long maxTime)
+    {
+        if (requests.length == 0)
+            return "Warm-up skipped: no requests to replay";
+
+        // Rounds are long enough for their rates to be comparable, however fast the requests become
+        int perRound = Math.max(requests.length, MIN_ROUND_REQUESTS);
+        long minRoundNanos = 1000000l*MIN_ROUND_TIME;
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        ArrayList rates = new ArrayList();
+
+        // Requests are replayed in turn, so no request is replayed more than maxReplays times while the total stays within this
+        long replayLimit = (long) maxReplays*requests.length;
+
+        long start = System.nanoTime();
+        long deadline = start + 1000000l*maxTime;
+        while (true)
+        {
+            long roundStart = System.nanoTime();
+            long roundEnd = roundStart;
+            int count = 0;
+            while (((count < perRound) || (roundEnd - roundStart < minRoundNanos)) && (replayed + count < replayLimit))
+            {
+                replay(requests[count % requests.length], response);
+                count++;
+                roundEnd = System.nanoTime();
+            }
+
+            replayed += count;
+            rounds++;
+            double rate = count*1e9/Math.max(1, roundEnd - roundStart);
+            rates.add(Double.valueOf(rate));
+            if (rounds == 1)
+                firstRate = rate;
+            lastRate = rate;
+
+            settled = hasSettled(rates);
+            capped = replayed >= replayLimit;
+            if (settled || capped || (roundEnd >= deadline))
+                break;
+        }
+        elapsed = (System.nanoTime() - start)/1000000;
+        return toString();
+    }
+
+    public boolean hasSettled()
+    {
+        return settled;
+    }
+
+    public long getElapsedTime()
+    {
+        return elapsed;
+    }
+
+    public String toString()
+    {
+        StringBuffer buf = new StringBuffer();
+        String outcome = "stopped at the time limit";
+        if (settled)
+            outcome = "settled";
+        else if (capped)
+            outcome = "reached "+maxReplays+" replays of each request";
+        buf.append("Warm-up "+outcome+" after "+elapsed+" ms: "+replayed+" requests ("+requests.length+" distinct) in "+rounds+" rounds");
+        buf.append(", "+Math.round(firstRate)+" req/s in the first round, "+Math.round(lastRate)+" req/s in the last");
+        if (firstRate > 0)
+            buf.append(" ("+Math.round(10*lastRate/firstRate)/10.0+"x)");
+        buf.append(";  responses "+statusCounts);
+        if (errors > 0)
+            buf.append(", "+errors+" failed");
+        return buf.toString();
+    }
+
+    /**
+        Keeps count of the paths of successful GET requests a server answers (without their query strings, which may hold
+        private data), so that the most requested can be saved as the warm-up set for the next start. Counts are saved to
+        the file at most once per save interval, from whichever request thread finds it due.
+    */
+    public static class Recorder implements HTTPServerLogger
+    {
+        public static final int MAX_PATHS = 2000;
+        public static final int SAVED_PATHS = 200;
+        public static final long SAVE_INTERVAL = 60000;
+
+        private final File file;
+        private final ConcurrentHashMap counts;
+        private final AtomicLong lastSaved;
+
+        public Recorder(File file)
+        {
+            this.file = file;
+            counts = new ConcurrentHashMap();
+            lastSaved = new AtomicLong(System.currentTimeMillis());
+        }
+
+        public File getFile()
+        {
+            return file;
+        }
+
+        public void requestProcessed(HTTPLogEntry logEntry)
+        {
+            String req = logEntry.getRequestMainLine();
+            String resp = logEntry.getResponseMainLine();
+            if ((req == null) || (resp == null) || !req.startsWith("GET ") || (resp.length() < 12) || (resp.charAt(9) > '3'))
+                return;
+
+            int end = req.indexOf(' ', 4);
+            if (end < 0)
+                end = req.length();
+            String path = req.substring(4, end);
+            int q = path.indexOf('?');
+            if (q >= 0)
+                path = path.substring(0, q);
+            if (!path.startsWith("/"))
+                return;
+
+            LongAdder count = (LongAdder) counts.get(path);
+            if (count == null)
+            {
+                if (counts.size() >= MAX_PATHS)
+                    return;
+                count = new LongAdder();
+                LongAdder existing = (LongAdder) counts.putIfAbsent(path, count);
+                if (existing != null)
+                    count = existing;
+            }
+            count.increment();
+
+            long last = lastSaved.get();
+            long now = System.currentTimeMillis();
+            if ((now - last >= SAVE_INTERVAL) && lastSaved.compareAndSet(last, now))
+                save();
+        }
+
+        /** Writes the most requested paths, most requested first, in the request line format read by WarmUp */
+        public void save()
+        {
+            Map.Entry[] entries = (Map.Entry[]) counts.entrySet().toArray(new Map.Entry[0]);
+            if (entries.length == 0)
+                return;
+
+            Arrays.sort(entries, (a, b) -> Long.compare(((LongAdder) b.getValue()).sum(), ((LongAdder) a.getValue()).sum()));
+            StringBuffer buf = new StringBuffer("# Most requested paths, recorded "+new Date()+"\n");
+            for (int i=0; i<Math.min(SAVED_PATHS, entries.length); i++)
+                buf.append("GET "+entries[i].getKey()+"\n");
+
+            File temp = null;
+            try
+            {
+                file.getParentFile().mkdirs();
+                temp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+                FileOutputStream fout = new FileOutputStream(temp);
+                try
+                {
+                    fout.write(Utils.getAsciiBytes(buf.toString()));
+                }
+                finally
+                {
+                    fout.close();
+                }
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (Exception e)
+            {
+                if (temp != null)
+                    temp.delete();
+            }
+        }
+    }
+}
@@ -19,13 +19,15 @@ package jjsp.http.filters;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
 import jjsp.util.*;
 import jjsp.http.*;
 
-public class ClasspathResourceFilter extends AbstractRequestFilter 
+public class ClasspathResourceFilter extends AbstractRequestFilter implements ServerMetrics.Source
 {
     private HashMap cache;
+    private LongAdder cacheHits, cacheMisses;
     private String pathHead, resourcePrefix;
 
     public ClasspathResourceFilter(String name, HTTPRequestFilter filterChain) throws IOException
@@ -40,6 +42,30 @@ public class ClasspathResourceFilter extends AbstractRequestFilter
         this.pathHead = pathHead;
         this.resourcePrefix = resourcePrefix;
         cache = new HashMap();
+        cacheHits = new LongAdder();
+        cacheMisses = new LongAdder();
+
+        ServerMetrics.getDefault().addSource(this);
+    }
+
+    public void writeMetrics(ServerMetrics.Output out)
+    {
+        int entries = 0;
+        synchronized (cache)
+        {
+            entries = cache.size();
+        }
+        ServerMetrics.writeCacheMetrics(out, "classpath", getName(), cacheHits.sum(), cacheMisses.sum(), entries);
+    }
+
+    public String getMetricsKey()
+    {
+        return "cache/classpath/"+getName();
+    }
+
+    protected void closeFilter() throws Exception
+    {
+        ServerMetrics.getDefault().removeSource(this);
     }
     
     protected boolean handleRequestAndReport(HTTPFilterChain chain, HTTPInputStream request, HTTPOutputStream response, ConnectionState state) throws IOException
@@ -53,13 +79,16 @@ public class ClasspathResourceFilter extends AbstractRequestFilter
         resourcePath = resourcePrefix+resourcePath;
         chain.report = "CP{"+resourcePath+"}";
 
-        byte[] data = null;
+        OffHeapStore.Asset data = null;
         synchronized (cache)
         {
-            data = (byte[]) cache.get(resourcePath);
-            if (data == null)
+            data = (OffHeapStore.Asset) cache.get(resourcePath);
+            if (data != null)
+                cacheHits.increment();
+            else
             {
-                data = Utils.load(resourcePath);
+                cacheMisses.increment();
+                data = OffHeapStore.getDefault().store(Utils.load(resourcePath));
                 if (data != null)
                     cache.put(resourcePath, data);
             }
@@ -73,12 +102,12 @@ public class ClasspathResourceFilter extends AbstractRequestFilter
         else
         {
             response.getHeaders().configureAsOK();
-            response.getHeaders().configureCacheControl(data, 86400);
+            response.getHeaders().configureCacheControl(data.getETag(), 86400);
             response.getHeaders().guessAndSetContentType(resourcePath);
 
             if (request.getHeaders().isHead())
             {
-                response.getHeaders().setContentLength(data.length);
+                response.getHeaders().setContentLength(data.length());
                 response.sendHeaders();
             }
             else
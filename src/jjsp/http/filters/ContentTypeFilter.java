@@ -100,6 +100,10 @@ public class ContentTypeFilter extends AbstractRequestFilter
             myChain.report = ERROR;
             myChain.error = t;
         }
+        finally
+        {
+            myChain.markExit();
+        }
         
         return myChain;
     }
@@ -21,11 +21,12 @@ import java.io.*;
 import java.net.*;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
 import jjsp.http.*;
 import jjsp.util.*;
 
-public class DirectoryFilter extends AbstractRequestFilter
+public class DirectoryFilter extends AbstractRequestFilter implements ServerMetrics.Source
 {
     public static final int CACHE_SIZE_LIMIT = 8*1024;
     public static final int CACHEABLE_DATA_LIMIT = 8*1024*1024;
@@ -39,6 +40,9 @@ public class DirectoryFilter extends AbstractRequestFilter
     private volatile int cacheSize = 0;
     private volatile long lastFlush = 0;
 
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+
     public DirectoryFilter(File directory, HTTPRequestFilter filterChain) throws IOException
     {
         this(directory, "", filterChain);
@@ -58,6 +62,38 @@ public class DirectoryFilter extends AbstractRequestFilter
         useCache = false;
         cache = new LinkedHashMap(1024, 0.7f, true);
         setPathPrefix(pathPrefix);
+
+        ServerMetrics.getDefault().addSource(this);
+    }
+
+    public long getCacheHits()
+    {
+        return cacheHits.sum();
+    }
+
+    public long getCacheMisses()
+    {
+        return cacheMisses.sum();
+    }
+
+    public void writeMetrics(ServerMetrics.Output out)
+    {
+        int entries = 0;
+        synchronized (cache)
+        {
+            entries = cache.size();
+        }
+        ServerMetrics.writeCacheMetrics(out, "directory", getName(), cacheHits.sum(), cacheMisses.sum(), entries);
+    }
+
+    public String getMetricsKey()
+    {
+        return "cache/directory/"+getName();
+    }
+
+    protected void closeFilter() throws Exception
+    {
+        ServerMetrics.getDefault().removeSource(this);
     }
 
     public void setPathPrefix(String prefix)
@@ -213,7 +249,11 @@ public class DirectoryFilter extends AbstractRequestFilter
         {
             DataSource ds = (DataSource) cache.get(path);
             if (ds != null)
+            {
+                cacheHits.increment();
                 return ds;
+            }
+            cacheMisses.increment();
 
             File f = new File(rootDirectory, path);
             if (!f.exists() || !f.isFile() || !accessPermitted(f))
@@ -294,11 +334,10 @@ public class DirectoryFilter extends AbstractRequestFilter
             if (!includeFileInDirectoryList(files[i]))
                 continue;
             ll.add(files[i]);
-                
-            files = new File[ll.size()];
-            ll.toArray(files);
         }
-
+                
+        files = new File[ll.size()];
+        ll.toArray(files);
         return files;
     }
 
@@ -501,6 +540,16 @@ public class DirectoryFilter extends AbstractRequestFilter
         return null;
     }
 
+    protected String handlePutRequest(HTTPFilterChain chain, HTTPInputStream request, HTTPOutputStream response, ConnectionState state) throws IOException 
+    {
+        return null;
+    }
+
+    protected String handlePatchRequest(HTTPFilterChain chain, HTTPInputStream request, HTTPOutputStream response, ConnectionState state) throws IOException 
+    {
+        return null;
+    }
+
     protected boolean handleRequestAndReport(HTTPFilterChain chain, HTTPInputStream request, HTTPOutputStream response, ConnectionState state) throws IOException
     {
         String report = null;
@@ -512,6 +561,10 @@ public class DirectoryFilter extends AbstractRequestFilter
             report = handleHeadRequest(chain, request, response, state);
         else if (reqHeaders.isPost())
             report = handlePostRequest(chain, request, response, state);
+        else if (reqHeaders.isPut())
+            report = handlePutRequest(chain, request, response, state);
+        else if (reqHeaders.isPatch())
+            report = handlePatchRequest(chain, request, response, state);
         else
             throw new IllegalStateException("Unimplemented HTTP Method for "+reqHeaders.getMainLine());
 
@@ -69,30 +69,38 @@ public class ErrorFilter extends AbstractRequestFilter
 
     public HTTPFilterChain filterRequest(HTTPFilterChain chain, HTTPInputStream request, HTTPOutputStream response, ConnectionState state)
     {
-        HTTPFilterChain myChain = new HTTPFilterChain(filterName, chain);
+        HTTPFilterChain link = new HTTPFilterChain(filterName, chain);
+        HTTPFilterChain myChain = link;
         
         try
         {
-            myChain = filterChain.filterRequest(myChain, request, response, state);
-            if ((myChain.getPrimaryError() == null) || response.outputSent())
-                return myChain;
-        }
-        catch (Throwable error)
-        {
-            myChain.error = error;
-        }
+            try
+            {
+                myChain = filterChain.filterRequest(myChain, request, response, state);
+                if ((myChain.getPrimaryError() == null) || response.outputSent())
+                    return myChain;
+            }
+            catch (Throwable error)
+            {
+                myChain.error = error;
+            }
         
-        myChain.report = SENDING_SERVER_ERROR;
-        if (errorFilter != null)
-            return errorFilter.filterRequest(myChain, request, response, state);
+            myChain.report = SENDING_SERVER_ERROR;
+            if (errorFilter != null)
+                return errorFilter.filterRequest(myChain, request, response, state);
 
-        try
+            try
+            {
+                myChain.report = SENDING_HTML_SERVER_ERROR;
+                constructHTMLStackTracePage(chain, request, response, state, myChain.getPrimaryError());
+            }
+            catch (Throwable e) {}
+        
+            return myChain;
+        }
+        finally
         {
-            myChain.report = SENDING_HTML_SERVER_ERROR;
-            constructHTMLStackTracePage(chain, request, response, state, myChain.getPrimaryError());
+            link.markExit();
         }
-        catch (Throwable e) {}
-        
-        return myChain;
     }
 }
@@ -22,19 +22,37 @@ import java.lang.ref.*;
 import java.net.*;
 import java.util.*;
 import java.text.*;
+import java.util.concurrent.*;
 
 import jjsp.http.*;
 import jjsp.util.*;
 
 /**
    A handler which allows HTTP post requests to upload content into a directory. Often used in conjunction with a basic DirectoryHandler 
+   <p>
+   Large files can also be uploaded resumably (see ResumableUpload), in pieces sent on one or more connections:
+   <ul>
+   <li>PUT to the file path with "Content-Range: bytes start-end/total", or a PUT without a range for the whole file</li>
+   <li>PATCH to the file path with an "Upload-Offset" header, plus "Upload-Length" on the first piece</li>
+   <li>HEAD or GET of the file path with the query "?upload=status" to find the received "Upload-Offset" and "Upload-Ranges" before resuming</li>
+   </ul>
+   An optional "Upload-Checksum: sha256 &lt;hex&gt;" header is verified before the completed file is renamed into place. Incomplete 
+   pieces are answered with 204 No Content and the final piece with 201 Created.
  */
 public class FileUploadFilter extends DirectoryFilter
 {
     public static final int MAX_UPLOAD_SIZE = 8*1024*1024;
+    public static final long MAX_RESUMABLE_UPLOAD_SIZE = 64L*1024*1024*1024;
+
+    public static final String UPLOAD_OFFSET = "Upload-Offset";
+    public static final String UPLOAD_LENGTH = "Upload-Length";
+    public static final String UPLOAD_RANGES = "Upload-Ranges";
+    public static final String UPLOAD_CHECKSUM = "Upload-Checksum";
 
     protected int maxUploadSize;
+    protected long maxResumableUploadSize;
     protected boolean allowDeletion;
+    protected final ConcurrentHashMap uploads;
     
     public FileUploadFilter(File directory, HTTPRequestFilter filterChain) throws IOException
     {
@@ -55,13 +73,25 @@ public class FileUploadFilter extends DirectoryFilter
     {
         super(directory, pathPrefix, filterChain);
         maxUploadSize = MAX_UPLOAD_SIZE;
+        maxResumableUploadSize = MAX_RESUMABLE_UPLOAD_SIZE;
         this.allowDeletion = allowDeletion;
+        uploads = new ConcurrentHashMap();
     }
 
     public void setMaxUploadSize(int size)
     {
         maxUploadSize = Math.max(0, size);
     }
+
+    public void setMaxResumableUploadSize(long size)
+    {
+        maxResumableUploadSize = Math.max(0, size);
+    }
+
+    protected boolean includeFileInDirectoryList(File f)
+    {
+        return !ResumableUpload.isUploadFile(f);
+    }
     
     protected DataSource getDirectoryHTMLListPage(File dir)
     {
@@ -166,59 +196,80 @@ public class FileUploadFilter extends DirectoryFilter
                 }
                 
                 target.getParentFile().mkdirs();
-                target.createNewFile();
-
-                FileOutputStream fout = new FileOutputStream(target);
-                while (true)
+                // A file of its own (hidden from listings by its suffix), not the one a resumable upload to the same name appends to
+                File temp = File.createTempFile("."+target.getName()+".", ResumableUpload.TEMP_SUFFIX, target.getParentFile());
+                try (FileOutputStream fout = new FileOutputStream(temp))
                 {
-                    int r = request.read(buffer);
-                    if (r < 0)
-                        break;
-                    fout.write(buffer, 0, r);
+                    while (true)
+                    {
+                        int r = request.read(buffer);
+                        if (r < 0)
+                            break;
+                        fout.write(buffer, 0, r);
+                    }
+                }
+                catch (IOException e)
+                {
+                    temp.delete();
+                    throw e;
                 }
-                fout.close();
+                ResumableUpload.moveIntoPlace(temp, target);
 
                 return "Accepted binary data: "+target;
             }
             else if (type.indexOf("multipart/form-data") >= 0)
             {
-                int total = 0;
-                ByteArrayOutputStream bout = new ByteArrayOutputStream();
-                byte[] buffer = new byte[1024];
+                MultipartReader reader = new MultipartReader(request.getHeaders(), request);
                 while (true)
                 {
-                    int read = request.read(buffer);
-                    if (read < 0)
+                    MultipartReader.Part part = reader.nextPart();
+                    if (part == null)
                         break;
+                    if (!"target".equalsIgnoreCase(part.getName()))
+                        continue;
+
+                    String fileName = part.getFileName();
+                    if ((fileName == null) || (fileName.length() == 0))
+                        continue;
+
+                    File f = new File(target, fileName);
+                    f.getParentFile().mkdirs();
+                    File temp = File.createTempFile("."+f.getName()+".", ResumableUpload.TEMP_SUFFIX, f.getParentFile());
                     
-                    bout.write(buffer, 0, read);
-                    total += read;
-                    if (total > maxUploadSize)
+                    long total = 0;
+                    boolean tooLarge = false;
+                    byte[] buffer = new byte[64*1024];
+                    try (FileOutputStream fout = new FileOutputStream(temp))
                     {
-                        response.getHeaders().configureAsTooLarge();
-                        return "Maximum upload size reached";
-                    }
-                }
-                
-                HTMLFormPart[] parts = HTMLFormPart.processPostedFormData(request.getHeaders(), bout.toByteArray());
-                for (int i=0; i<parts.length; i++)
-                {
-                    if ("target".equalsIgnoreCase(parts[i].getAttribute("name")))
-                    {
-                        String fileName = parts[i].getAttribute("filename");
-                        if ((fileName != null) && (fileName.length() > 0))
+                        while (true)
                         {
-                            byte[] rawData = parts[i].getData();
-                            File f = new File(target, fileName);
-                            f.getParentFile().mkdirs();
-                            f.createNewFile();
-                            FileOutputStream fout = new FileOutputStream(f);
-                            fout.write(rawData);
-                            fout.close();
+                            int read = part.read(buffer);
+                            if (read < 0)
+                                break;
                             
-                            return "Accepted HTML form data: "+f;
+                            total += read;
+                            if (total > maxUploadSize)
+                            {
+                                tooLarge = true;
+                                break;
+                            }
+                            fout.write(buffer, 0, read);
                         }
                     }
+                    catch (IOException e)
+                    {
+                        temp.delete();
+                        throw e;
+                    }
+
+                    if (tooLarge)
+                    {
+                        temp.delete();
+                        response.getHeaders().configureAsTooLarge();
+                        return "Maximum upload size reached";
+                    }
+                    ResumableUpload.moveIntoPlace(temp, f);
+                    return "Accepted HTML form data: "+f;
                 }
                 
                 return "No upload data found";
@@ -228,7 +279,8 @@ public class FileUploadFilter extends DirectoryFilter
         }
         finally
         {
-            response.sendHeaders();
+            if (!response.outputSent())
+                response.sendHeaders();
         }
     }
 
@@ -243,6 +295,8 @@ public class FileUploadFilter extends DirectoryFilter
             return "Not Found "+urlPath;
         }
 
+        if (isUploadStatusRequest(request))
+            return handleUploadStatus(request, response, pathString);
         if (!request.getHeaders().hasQueryParam("delete"))
             return super.handleGetRequest(chain, request, response, state);
 
@@ -262,4 +316,266 @@ public class FileUploadFilter extends DirectoryFilter
         response.sendHeaders();
         return report;
     }
+
+    protected boolean isUploadStatusRequest(HTTPInputStream request)
+    {
+        return "status".equals(request.getHeaders().getQuery("upload", null));
+    }
+
+    protected String handleHeadRequest(HTTPFilterChain chain, HTTPInputStream request, HTTPOutputStream response, ConnectionState state) throws IOException 
+    {
+        if (!isUploadStatusRequest(request))
+            return super.handleHeadRequest(chain, request, response, state);
+
+        String pathString = getResourcePathForRequestPath(request.getHeaders().getPath());
+        if (pathString == null)
+            return null;
+        return handleUploadStatus(request, response, pathString);
+    }
+
+    private File getUploadTarget(HTTPOutputStream response, String pathString)
+    {
+        if (pathString == null)
+        {
+            response.getHeaders().configureAsNotFound();
+            return null;
+        }
+
+        File target = new File(rootDirectory, pathString);
+        if (!accessPermitted(target) || target.isDirectory() || ResumableUpload.isUploadFile(target))
+        {
+            response.getHeaders().configureAsForbidden();
+            response.getHeaders().configureToPreventCaching();
+            return null;
+        }
+        return target;
+    }
+
+    /** Returns the upload in progress for the target, starting one if a total length is given and there is none */
+    protected ResumableUpload getUpload(File target, long length, String checksum) throws IOException
+    {
+        String key = target.getAbsolutePath();
+        synchronized (uploads)
+        {
+            ResumableUpload result = (ResumableUpload) uploads.get(key);
+            if ((result == null) || result.isCompleted() || result.isFailed())
+            {
+                uploads.remove(key);
+                result = ResumableUpload.load(target);
+                if (result == null)
+                {
+                    if (length < 0)
+                        return null;
+                    result = ResumableUpload.create(target, length, checksum);
+                }
+                uploads.put(key, result);
+            }
+
+            if ((length >= 0) && (result.getLength() != length))
+                throw new IOException("Upload length "+length+" differs from the length "+result.getLength()+" of the upload in progress");
+            result.setExpectedChecksum(checksum);
+            return result;
+        }
+    }
+
+    private static void setUploadHeaders(HTTPResponseHeaders headers, ResumableUpload upload)
+    {
+        headers.configureToPreventCaching();
+        headers.setHeader(UPLOAD_OFFSET, String.valueOf(upload.getOffset()));
+        headers.setHeader(UPLOAD_LENGTH, String.valueOf(upload.getLength()));
+        headers.setHeader(UPLOAD_RANGES, upload.getRangesString());
+    }
+
+    private static String getChecksumHeader(HTTPRequestHeaders headers)
+    {
+        String value = headers.getHeader(UPLOAD_CHECKSUM, null);
+        if (value == null)
+            return null;
+
+        value = value.trim();
+        int sp = value.indexOf(' ');
+        if (sp >= 0)
+        {
+            String alg = value.substring(0, sp).toLowerCase();
+            if (!alg.equals("sha256") && !alg.equals("sha-256"))
+                return null;
+            value = value.substring(sp+1).trim();
+        }
+        return value.toLowerCase();
+    }
+
+    /** Parses "bytes start-end/total" into {start, end, total} */
+    public static long[] parseContentRange(String spec)
+    {
+        try
+        {
+            spec = spec.trim();
+            if (!spec.startsWith("bytes "))
+                return null;
+            int dash = spec.indexOf('-', 6);
+            int slash = spec.indexOf('/', dash);
+            if ((dash < 0) || (slash < 0))
+                return null;
+
+            long start = Long.parseLong(spec.substring(6, dash).trim());
+            long end = Long.parseLong(spec.substring(dash+1, slash).trim());
+            long total = Long.parseLong(spec.substring(slash+1).trim());
+            if ((start < 0) || (end < start) || (end >= total))
+                return null;
+            return new long[]{start, end, total};
+        }
+        catch (Exception e) 
+        {
+            return null;
+        }
+    }
+
+    protected String handleUploadStatus(HTTPInputStream request, HTTPOutputStream response, String pathString) throws IOException
+    {
+        HTTPResponseHeaders respHeaders = response.getHeaders();
+        try
+        {
+            File target = getUploadTarget(response, pathString);
+            if (target == null)
+                return "Upload status denied for "+pathString;
+
+            ResumableUpload upload = getUpload(target, -1, null);
+            if (upload == null)
+            {
+                respHeaders.configureAsNotFound();
+                respHeaders.configureToPreventCaching();
+                return "No upload in progress for "+pathString;
+            }
+
+            respHeaders.configureAsOK();
+            setUploadHeaders(respHeaders, upload);
+            if (request.getHeaders().isHead())
+                return "Upload status "+upload;
+
+            String json = "{\"path\": \""+pathString.replace("\\", "\\\\").replace("\"", "\\\"")+"\", \"length\": "+upload.getLength()+", \"offset\": "+upload.getOffset()+", \"received\": "+upload.getReceivedBytes()+", \"ranges\": \""+upload.getRangesString()+"\"}";
+            respHeaders.setContentType("application/json; charset=utf-8");
+            response.sendContent(json.getBytes("UTF-8"));
+            return "Upload status "+upload;
+        }
+        finally
+        {
+            if (!response.outputSent())
+                response.sendHeaders();
+        }
+    }
+
+    protected String handlePutRequest(HTTPFilterChain chain, HTTPInputStream request, HTTPOutputStream response, ConnectionState state) throws IOException 
+    {
+        HTTPRequestHeaders reqHeaders = request.getHeaders();
+        long contentLength = reqHeaders.getContentLength();
+        String range = reqHeaders.getHeader("Content-Range", null);
+
+        long offset = 0, total = contentLength;
+        if (range != null)
+        {
+            long[] spec = parseContentRange(range);
+            if ((spec == null) || ((contentLength >= 0) && (contentLength != spec[1] - spec[0] + 1)))
+            {
+                response.getHeaders().configureAsBadRequest("Invalid Content-Range");
+                response.sendHeaders();
+                return "Invalid Content-Range '"+range+"'";
+            }
+            offset = spec[0];
+            total = spec[2];
+        }
+        else if (contentLength < 0)
+        {
+            response.getHeaders().configureAsBadRequest("Content-Length required");
+            response.sendHeaders();
+            return "PUT upload without Content-Length";
+        }
+
+        return receiveUploadPiece(request, response, getResourcePathForRequestPath(reqHeaders.getPath()), offset, contentLength, total);
+    }
+
+    protected String handlePatchRequest(HTTPFilterChain chain, HTTPInputStream request, HTTPOutputStream response, ConnectionState state) throws IOException 
+    {
+        HTTPRequestHeaders reqHeaders = request.getHeaders();
+        long offset = reqHeaders.getLongHeader(UPLOAD_OFFSET, -1);
+        long total = reqHeaders.getLongHeader(UPLOAD_LENGTH, -1);
+        if (offset < 0)
+        {
+            response.getHeaders().configureAsBadRequest("Upload-Offset required");
+            response.sendHeaders();
+            return "PATCH upload without Upload-Offset";
+        }
+
+        return receiveUploadPiece(request, response, getResourcePathForRequestPath(reqHeaders.getPath()), offset, reqHeaders.getContentLength(), total);
+    }
+
+    private String receiveUploadPiece(HTTPInputStream request, HTTPOutputStream response, String pathString, long offset, long count, long total) throws IOException
+    {
+        HTTPResponseHeaders respHeaders = response.getHeaders();
+        try
+        {
+            File target = getUploadTarget(response, pathString);
+            if (target == null)
+                return "Upload denied for "+pathString;
+            if (total > maxResumableUploadSize)
+            {
+                respHeaders.configureAsTooLarge();
+                return "Upload of "+total+" bytes exceeds the maximum size";
+            }
+
+            ResumableUpload upload = null;
+            try
+            {
+                upload = getUpload(target, total, getChecksumHeader(request.getHeaders()));
+            }
+            catch (IOException e)
+            {
+                respHeaders.configure(409, "Conflict");
+                return "Upload conflict: "+e.getMessage();
+            }
+
+            if (upload == null)
+            {
+                respHeaders.configureAsNotFound();
+                respHeaders.configureToPreventCaching();
+                return "No upload in progress for "+pathString+" (Upload-Length required)";
+            }
+
+            if (count < 0)
+                count = upload.getLength() - offset;
+            if ((offset < 0) || (offset + count > upload.getLength()))
+            {
+                respHeaders.configure(416, "Range Not Satisfiable");
+                setUploadHeaders(respHeaders, upload);
+                return "Upload piece outside file length";
+            }
+
+            long written = upload.write(offset, request, count);
+            try
+            {
+                if (upload.complete())
+                {
+                    uploads.remove(target.getAbsolutePath(), upload);
+                    respHeaders.configure(201, "Created");
+                    setUploadHeaders(respHeaders, upload);
+                    respHeaders.setHeader(UPLOAD_CHECKSUM, "sha256 "+upload.getChecksum());
+                    return "Completed upload of "+target+" ("+upload.getLength()+" bytes)";
+                }
+            }
+            catch (IOException e)
+            {
+                uploads.remove(target.getAbsolutePath(), upload);
+                respHeaders.configure(409, "Conflict");
+                return e.getMessage();
+            }
+
+            respHeaders.configureAsNoContent();
+            setUploadHeaders(respHeaders, upload);
+            return "Received "+written+" bytes at "+offset+" of "+target;
+        }
+        finally
+        {
+            if (!response.outputSent())
+                response.sendHeaders();
+        }
+    }
 }
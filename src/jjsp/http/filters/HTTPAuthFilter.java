@@ -146,6 +146,10 @@ public class HTTPAuthFilter implements HTTPRequestFilter
             myChain.report = AbstractRequestFilter.ERROR;
             myChain.error = t;
         }
+        finally
+        {
+            myChain.markExit();
+        }
         
         return myChain;
     }
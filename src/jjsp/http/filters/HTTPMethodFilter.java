@@ -52,16 +52,23 @@ public class HTTPMethodFilter implements HTTPRequestFilter
         HTTPFilterChain myChain = new HTTPFilterChain(name, chain);
         HTTPRequestHeaders reqHeaders = request.getHeaders();
 
-        if (reqHeaders.isGet())
-            return getFilter.filterRequest(myChain, request, response, state);
-        else if (reqHeaders.isPost())
-            return postFilter.filterRequest(myChain, request, response, state);
-        else if (reqHeaders.isHead())
-            return headFilter.filterRequest(myChain, request, response, state);
-        else
+        try
         {
-            myChain.error = new IOException("Invalid HTTP method "+reqHeaders.getMainLine());
-            return myChain;
+            if (reqHeaders.isGet())
+                return getFilter.filterRequest(myChain, request, response, state);
+            else if (reqHeaders.isPost())
+                return postFilter.filterRequest(myChain, request, response, state);
+            else if (reqHeaders.isHead())
+                return headFilter.filterRequest(myChain, request, response, state);
+            else
+            {
+                myChain.error = new IOException("Invalid HTTP method "+reqHeaders.getMainLine());
+                return myChain;
+            }
+        }
+        finally
+        {
+            myChain.markExit();
         }
     }
 }
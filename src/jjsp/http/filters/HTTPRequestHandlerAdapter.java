@@ -26,16 +26,35 @@ import jjsp.http.*;
 public class HTTPRequestHandlerAdapter extends AbstractRequestFilter
 {
     protected HTTPRequestHandler handler;
+    protected Object lock;
 
     public HTTPRequestHandlerAdapter(String name, HTTPRequestHandler handler, HTTPRequestFilter filterChain)
+    {
+        this(name, handler, filterChain, null);
+    }
+
+    /** When lock is not null, calls to the handler are serialised on it (e.g. a script engine whose global scope is not thread safe) */
+    public HTTPRequestHandlerAdapter(String name, HTTPRequestHandler handler, HTTPRequestFilter filterChain, Object lock)
     {
         super(name, filterChain);
         this.handler = handler;
+        this.lock = lock;
     }
 
     protected boolean handleRequestAndReport(HTTPFilterChain chain, HTTPInputStream request, HTTPOutputStream response, ConnectionState state) throws IOException
     {
-        if (handler.handleRequest(request, response, state, chain))
+        boolean handled = false;
+        if (lock == null)
+            handled = handler.handleRequest(request, response, state, chain);
+        else
+        {
+            synchronized (lock)
+            {
+                handled = handler.handleRequest(request, response, state, chain);
+            }
+        }
+
+        if (handled)
             return true;
 
         return response.outputSent() && response.contentStreamClosed();
@@ -18,39 +18,91 @@ this program. If not, see http://www.gnu.org/licenses/.
 package jjsp.http.filters;
 
 import java.io.*;
-import java.lang.invoke.*;
 import javax.script.*;
 
 import jjsp.http.*;
-import jjsp.util.*;
+import jjsp.engine.*;
 
+/**
+   Calls a Javascript function (request, response, state) to handle requests. Script engine state is not thread safe, so
+   each call borrows its own instance from a ScriptEnginePool; a filter made from a single existing engine serialises its calls.
+   The function is bound to an HTTPRequestHandler in every instance when the filter is created, so a request is a direct
+   interface call rather than a lookup by name through Invocable.invokeFunction.
+ */
 public class JSRequestFilter extends AbstractRequestFilter
 {
-    private Invocable invocable;
+    private ScriptEnginePool enginePool;
+    private HTTPRequestHandler[] handlers;
 
     public JSRequestFilter(String jsFunctionName, ScriptEngine engine, HTTPRequestFilter filterChain) throws Exception
+    {
+        this(jsFunctionName, new ScriptEnginePool(jsFunctionName, engine), filterChain);
+    }
+
+    public JSRequestFilter(String jsFunctionName, ScriptEnginePool enginePool, HTTPRequestFilter filterChain) throws Exception
     {
         super(jsFunctionName, filterChain);  
-        this.invocable = (Invocable) engine;
+        this.enginePool = enginePool;
+
+        Object[] bound = enginePool.bindFunction(jsFunctionName, HTTPRequestHandler.class);
+        handlers = new HTTPRequestHandler[bound.length];
+        System.arraycopy(bound, 0, handlers, 0, bound.length);
+    }
+
+    public ScriptEnginePool getEnginePool()
+    {
+        return enginePool;
     }
 
     protected boolean handleRequest(HTTPInputStream request, HTTPOutputStream response, ConnectionState state) throws IOException
     {
+        ScriptEnginePool.Instance instance = null;
+        try
+        {
+            instance = enginePool.acquire();
+        }
+        catch (InterruptedException e)
+        {
+            throw new InterruptedIOException("Interrupted waiting for a script engine for '"+getName()+"'");
+        }
+
+        boolean handled = false;
+        HTTPEvents.ScriptInvocation event = new HTTPEvents.ScriptInvocation();
+        event.begin();
         try 
         {
-            return ((Boolean) invocable.invokeFunction(getName(), request, response, state)).booleanValue();
+            handled = handlers[instance.getIndex()].handleRequest(request, response, state, null);
+            return handled;
         } 
-        catch (Throwable e) 
+        catch (RuntimeException e) 
         {
+            // Script errors surface as runtime exceptions; IOExceptions and Errors pass through unchanged
             throw new IOException("Error in JS Request Filter function '"+getName()+"'", e);
         }
+        finally
+        {
+            enginePool.release(instance);
+            event.end();
+            if (event.shouldCommit())
+            {
+                event.function = getName();
+                event.path = request.getHeaders().getPath();
+                event.handled = handled;
+                event.commit();
+            }
+        }
     }
 
     public static JSRequestFilter createJSFilter(String jsFunctionName, String jsSource) throws Exception
+    {
+        return createJSFilter(jsFunctionName, jsSource, ScriptEnginePool.DEFAULT_SIZE);
+    }
+
+    /** Runs jsSource in poolSize separate scopes of one engine, so that up to poolSize requests can be handled at once */
+    public static JSRequestFilter createJSFilter(String jsFunctionName, String jsSource, int poolSize) throws Exception
     {
         ScriptEngineManager manager = new ScriptEngineManager();
         ScriptEngine engine = manager.getEngineByName("nashorn");
-        engine.eval(jsSource);
-        return new JSRequestFilter(jsFunctionName, engine, null);
+        return new JSRequestFilter(jsFunctionName, new ScriptEnginePool(jsFunctionName, engine, poolSize, new String[]{jsSource}), null);
     }
 }
@@ -0,0 +1,71 @@
+/*
+JJSP - Java and Javascript Server Pages 
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify 
+it under the terms of the GNU General Public License as published by 
+the Free Software Foundation, either version 3 of the License, or 
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but 
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+for more details.
+
+You should have received a copy of the GNU General Public License along with 
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.http.filters;
+
+import java.io.*;
+import java.util.*;
+
+import jjsp.http.*;
+import jjsp.util.*;
+
+/**
+   Serves the server wide metrics (see ServerMetrics) in the Prometheus text exposition format to GET and HEAD requests.
+ */
+public class MetricsFilter extends AbstractRequestFilter
+{
+    private final ServerMetrics metrics;
+
+    public MetricsFilter(String name, HTTPRequestFilter filterChain)
+    {
+        this(name, ServerMetrics.getDefault(), filterChain);
+    }
+
+    public MetricsFilter(String name, ServerMetrics metrics, HTTPRequestFilter filterChain)
+    {
+        super(name, filterChain);
+        this.metrics = metrics;
+    }
+
+    public ServerMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    protected boolean handleRequest(HTTPInputStream request, HTTPOutputStream response, ConnectionState state) throws IOException
+    {
+        HTTPRequestHeaders reqHeaders = request.getHeaders();
+        if (!reqHeaders.isGet() && !reqHeaders.isHead())
+            return false;
+
+        byte[] raw = metrics.toPrometheusText().getBytes("UTF-8");
+
+        HTTPResponseHeaders respHeaders = response.getHeaders();
+        respHeaders.configureAsOK();
+        respHeaders.configureToPreventCaching();
+        respHeaders.setContentType(ServerMetrics.CONTENT_TYPE);
+
+        if (reqHeaders.isHead())
+        {
+            respHeaders.setContentLength(raw.length);
+            response.sendHeaders();
+        }
+        else
+            response.sendContent(raw);
+        return true;
+    }
+}
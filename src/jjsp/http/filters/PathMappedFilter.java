@@ -158,6 +158,10 @@ public class PathMappedFilter extends AbstractRequestFilter
             myChain.report = ERROR;
             myChain.error = t;
         }
+        finally
+        {
+            myChain.markExit();
+        }
         
         return myChain;
     }
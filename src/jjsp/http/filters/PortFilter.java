@@ -67,31 +67,37 @@ public class PortFilter implements HTTPRequestFilter
     public HTTPFilterChain filterRequest(HTTPFilterChain chain, HTTPInputStream request, HTTPOutputStream response, ConnectionState state)
     {
         HTTPFilterChain myChain = new HTTPFilterChain(name, chain);
-
-        int incomingPort = request.getServerPort();
-        HTTPRequestFilter filter = registeredFilters[incomingPort];
-        if (filter != null)
+        try
         {
-            myChain.report = ACCEPTED;
-            return filter.filterRequest(myChain, request, response, state);
-        }
-        
-        if (onwardChain == null)
-        {
-            try
+            int incomingPort = request.getServerPort();
+            HTTPRequestFilter filter = registeredFilters[incomingPort];
+            if (filter != null)
             {
-                myChain.report = AbstractRequestFilter.ERROR;
-                response.getHeaders().configureAsServerError("No onward chain filter defined for Port Filter "+getName());
-                response.sendHeaders();
+                myChain.report = ACCEPTED;
+                return filter.filterRequest(myChain, request, response, state);
             }
-            catch (Exception e)
+        
+            if (onwardChain == null)
             {
-                myChain.error = e;
+                try
+                {
+                    myChain.report = AbstractRequestFilter.ERROR;
+                    response.getHeaders().configureAsServerError("No onward chain filter defined for Port Filter "+getName());
+                    response.sendHeaders();
+                }
+                catch (Exception e)
+                {
+                    myChain.error = e;
+                }
+                return myChain;
             }
-            return myChain;
-        }
         
-        myChain.report = PASSED_ON;
-        return onwardChain.filterRequest(myChain, request, response, state);
+            myChain.report = PASSED_ON;
+            return onwardChain.filterRequest(myChain, request, response, state);
+        }
+        finally
+        {
+            myChain.markExit();
+        }
     }
 }
@@ -60,6 +60,10 @@ public class PredicateFilter extends AbstractRequestFilter
             myChain.report = ERROR;
             myChain.error = t;
         }
+        finally
+        {
+            myChain.markExit();
+        }
         
         return myChain;
     }
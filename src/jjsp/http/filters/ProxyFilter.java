@@ -22,124 +22,567 @@ import java.net.*;
 import java.util.*;
 
 import jjsp.http.*;
+import jjsp.util.*;
 
+/**
+   Forwards requests (of any method) to an upstream HTTP/1.1 server over pooled keep-alive connections, streaming request
+   and response bodies in both directions without buffering them. Upstream responses - including redirects and error
+   statuses - are passed on as they are; hop-by-hop headers are removed and X-Forwarded-* headers are added.
+   The target is either a single host or an UpstreamBalancer group, across which failed requests that are safe to
+   repeat are retried.
+ */
 public class ProxyFilter extends AbstractRequestFilter
 {
-    protected String hostString;
+    public static final String[] HOP_BY_HOP_HEADERS = {"Connection", "Keep-Alive", "Proxy-Connection", "Proxy-Authenticate", "Proxy-Authorization", "TE", "Trailer", "Transfer-Encoding", "Upgrade"};
+
+    private static final int BUFFER_SIZE = 16*1024;
+    private static final int MAX_LINE_LENGTH = 16*1024;
+
+    protected UpstreamPool upstreamPool;
+    protected UpstreamBalancer balancer;
+    protected boolean preserveHost;
 
     public ProxyFilter(String name, String targetHost, int targetPort, HTTPRequestFilter filterChain)
+    {
+        this(name, targetHost, targetPort, UpstreamPool.getDefault(), filterChain);
+    }
+
+    public ProxyFilter(String name, String targetHost, int targetPort, UpstreamPool upstreamPool, HTTPRequestFilter filterChain)
+    {
+        this(name, new UpstreamBalancer(name, UpstreamBalancer.Balancing.ROUND_ROBIN, upstreamPool), filterChain);
+        balancer.addUpstream(targetHost, targetPort);
+    }
+
+    public ProxyFilter(String name, UpstreamBalancer balancer, HTTPRequestFilter filterChain)
     {
         super(name, filterChain);
-        hostString = targetHost+":"+targetPort;
+        this.balancer = balancer;
+        upstreamPool = balancer.getUpstreamPool();
+        preserveHost = false;
     }
 
-    protected boolean handleRequest(HTTPInputStream request, HTTPOutputStream response, ConnectionState state) throws IOException
+    /** If set, the client's Host header is sent upstream unchanged rather than being replaced with the target host */
+    public void setPreserveHost(boolean value)
+    {
+        preserveHost = value;
+    }
+
+    public boolean getPreserveHost()
+    {
+        return preserveHost;
+    }
+
+    public UpstreamPool getUpstreamPool()
+    {
+        return upstreamPool;
+    }
+
+    public UpstreamBalancer getUpstreamBalancer()
+    {
+        return balancer;
+    }
+
+    static boolean isHopByHopHeader(String key, String connectionHeader)
+    {
+        for (int i=0; i<HOP_BY_HOP_HEADERS.length; i++)
+            if (HOP_BY_HOP_HEADERS[i].equalsIgnoreCase(key))
+                return true;
+
+        if ((connectionHeader == null) || (connectionHeader.length() == 0))
+            return false;
+
+        // Headers named in the Connection header only apply to that hop (RFC 7230 6.1)
+        String[] tokens = connectionHeader.split(",");
+        for (int i=0; i<tokens.length; i++)
+            if (tokens[i].trim().equalsIgnoreCase(key))
+                return true;
+        return false;
+    }
+
+    static boolean isIdempotent(String method)
+    {
+        return "GET".equals(method) || "HEAD".equals(method) || "OPTIONS".equals(method) || "TRACE".equals(method) || "DELETE".equals(method);
+    }
+
+    protected String getUpstreamPath(HTTPRequestHeaders headers)
     {
-        HTTPRequestHeaders headers = request.getHeaders(); 
-        String path = headers.getRequestURL();
+        String path = headers.getRawRequestURL();
+        int scheme = path.indexOf("://");
+        if ((scheme > 0) && (scheme < 6))
+        {
+            int slash = path.indexOf("/", scheme+3);
+            path = (slash < 0) ? "/" : path.substring(slash);
+        }
+
         if (!path.startsWith("/"))
             path = "/"+path;
-       
-        if (!headers.isGet() && !headers.isHead() && !headers.isPost())
-            return false;
-        boolean isPost = headers.isPost();
+        return path;
+    }
 
-        URL url = new URL("http://"+hostString+path);
-        HttpURLConnection proxy = (HttpURLConnection) url.openConnection();
+    protected byte[] createRequestHead(HTTPInputStream request, UpstreamBalancer.Upstream target, String method, String path, boolean hasBody)
+    {
+        HTTPRequestHeaders headers = request.getHeaders();
+        String connection = headers.getHeader("Connection", "");
+
+        StringBuffer buf = new StringBuffer();
+        buf.append(method+" "+path+" HTTP/1.1\r\n");
+
+        String clientHost = headers.getHeader("Host", null);
+        if (preserveHost && (clientHost != null))
+            buf.append("Host: "+clientHost+"\r\n");
+        else if (target.getPort() == 80)
+            buf.append("Host: "+target.getHost()+"\r\n");
+        else
+            buf.append("Host: "+target.getHostString()+"\r\n");
 
         String[] keys = headers.getHeaderKeys();
         for (int i=0; i<keys.length; i++)
         {
-            String value = headers.getHeader(keys[i]);
-            proxy.setRequestProperty(keys[i], value);
+            String key = keys[i];
+            if (key.equalsIgnoreCase("Host") || key.equalsIgnoreCase("Content-Length") || key.equalsIgnoreCase("Expect") || key.toLowerCase().startsWith("x-forwarded-"))
+                continue;
+            if (isHopByHopHeader(key, connection))
+                continue;
+            buf.append(key+": "+headers.getHeader(key)+"\r\n");
         }
-        
-        proxy.setUseCaches(false);
-        if (isPost)
+
+        String clientIP = null;
+        InetSocketAddress clientAddress = request.getClientAddress();
+        if ((clientAddress != null) && (clientAddress.getAddress() != null))
+            clientIP = clientAddress.getAddress().getHostAddress();
+
+        String forwardedFor = headers.getHeader("X-Forwarded-For", null);
+        if (clientIP != null)
+            forwardedFor = (forwardedFor == null) ? clientIP : forwardedFor+", "+clientIP;
+        if (forwardedFor != null)
+            buf.append("X-Forwarded-For: "+forwardedFor+"\r\n");
+        buf.append("X-Forwarded-Proto: "+(request.isSecure() ? "https" : "http")+"\r\n");
+        if (clientHost != null)
+            buf.append("X-Forwarded-Host: "+clientHost+"\r\n");
+        buf.append("X-Forwarded-Port: "+request.getServerPort()+"\r\n");
+
+        if (hasBody)
         {
-            proxy.setDoOutput(true);
-            byte[] raw = request.readRawContent();
+            if (request.isChunked())
+                buf.append("Transfer-Encoding: chunked\r\n");
+            else
+                buf.append("Content-Length: "+headers.getContentLength()+"\r\n");
+        }
+        else if (headers.getContentLength() == 0)
+            buf.append("Content-Length: 0\r\n");
+        buf.append("\r\n");
 
-            OutputStream postOut = proxy.getOutputStream();
-            postOut.write(raw);
-            postOut.flush();
-            postOut.close();
+        return Utils.getAsciiBytes(buf.toString());
+    }
+
+    private static void sendRequestBody(HTTPInputStream request, OutputStream out, byte[] buffer) throws IOException
+    {
+        boolean chunked = request.isChunked();
+        while (true)
+        {
+            int r = request.read(buffer);
+            if (r < 0)
+                break;
+            if (r == 0)
+                continue;
+
+            if (chunked)
+                out.write(Utils.getAsciiBytes(Integer.toHexString(r)+"\r\n"));
+            out.write(buffer, 0, r);
+            if (chunked)
+                out.write(Utils.getAsciiBytes("\r\n"));
         }
-        
-        int respCode = proxy.getResponseCode();
-        String msg = proxy.getResponseMessage();
-        long length = proxy.getContentLengthLong();
-        boolean isChunked = false;
 
-        if (respCode != 200)
-            return false;
+        if (!chunked)
+            return;
 
-        HTTPResponseHeaders respHeaders = response.getHeaders();
-        for (int i=0; true; i++)
+        StringBuffer last = new StringBuffer("0\r\n");
+        Iterator itt = request.getTrailers().entrySet().iterator();
+        while (itt.hasNext())
+        {
+            Map.Entry e = (Map.Entry) itt.next();
+            last.append(e.getKey()+": "+e.getValue()+"\r\n");
+        }
+        last.append("\r\n");
+        out.write(Utils.getAsciiBytes(last.toString()));
+    }
+
+    /** The status line and headers of an upstream response, with any interim 1xx responses skipped */
+    static class UpstreamResponse
+    {
+        int code;
+        String version, message;
+        ArrayList keys, values;
+        UpstreamPool.Connection connection;
+
+        UpstreamResponse(InputStream in, byte[] lineBuffer) throws IOException
         {
-            String key = proxy.getHeaderFieldKey(i);
-            if (key == null)
+            keys = new ArrayList();
+            values = new ArrayList();
+
+            do
             {
-                if (i == 0)
+                keys.clear();
+                values.clear();
+
+                String statusLine = readLine(in, lineBuffer);
+                int sp1 = statusLine.indexOf(' ');
+                if ((sp1 < 0) || !statusLine.startsWith("HTTP/"))
+                    throw new IOException("Invalid upstream status line: "+statusLine);
+                int sp2 = statusLine.indexOf(' ', sp1+1);
+                if (sp2 < 0)
+                    sp2 = statusLine.length();
+
+                version = statusLine.substring(0, sp1);
+                try
+                {
+                    code = Integer.parseInt(statusLine.substring(sp1+1, sp2).trim());
+                }
+                catch (Exception e)
+                {
+                    throw new IOException("Invalid upstream status line: "+statusLine);
+                }
+                message = (sp2 < statusLine.length()) ? statusLine.substring(sp2+1).trim() : "";
+
+                while (true)
+                {
+                    String line = readLine(in, lineBuffer);
+                    if (line.length() == 0)
+                        break;
+                    if (keys.size() >= HTTPHeaders.MAX_HEADERS)
+                        throw new IOException("Too many upstream response headers");
+
+                    int colon = line.indexOf(':');
+                    if (colon <= 0)
+                        continue;
+                    keys.add(line.substring(0, colon).trim());
+                    values.add(line.substring(colon+1).trim());
+                }
+            }
+            while ((code >= 100) && (code < 200) && (code != 101));
+        }
+
+        static String readLine(InputStream in, byte[] lineBuffer) throws IOException
+        {
+            int len = HTTPRequestHeaders.readLine(in, lineBuffer);
+            if (len < 0)
+                throw new IOException("Upstream response header line too long");
+            return HTTPRequestHeaders.getCRLFTerminatedLineAsString(lineBuffer, len);
+        }
+
+        String getHeader(String key)
+        {
+            String result = null;
+            for (int i=0; i<keys.size(); i++)
+            {
+                if (!key.equalsIgnoreCase((String) keys.get(i)))
                     continue;
+                if (result == null)
+                    result = (String) values.get(i);
                 else
-                    break;
+                    result = result+", "+values.get(i);
+            }
+            return result;
+        }
+
+        boolean isChunked()
+        {
+            String te = getHeader("Transfer-Encoding");
+            if (te == null)
+                return false;
+            te = te.trim().toLowerCase();
+            return te.endsWith("chunked");
+        }
+
+        long getContentLength()
+        {
+            String cl = getHeader("Content-Length");
+            if (cl == null)
+                return -1;
+            try
+            {
+                return Long.parseLong(cl.trim());
             }
+            catch (Exception e)
+            {
+                return -1;
+            }
+        }
 
-            String value = proxy.getHeaderField(i);
-            if (key.equalsIgnoreCase("set-cookie"))
+        boolean allowsKeepAlive()
+        {
+            String connection = getHeader("Connection");
+            if (connection != null)
             {
-                HttpCookie setCookie = HTTPResponseHeaders.parseSetCookie(value);
-                respHeaders.setCookie(setCookie);
+                connection = connection.toLowerCase();
+                if (connection.indexOf("close") >= 0)
+                    return false;
+                if (connection.indexOf("keep-alive") >= 0)
+                    return true;
             }
+            return version.equals("HTTP/1.1");
+        }
+    }
+
+    /** Decodes an upstream chunked body; the trailers are read and discarded */
+    static class ChunkedInput extends InputStream
+    {
+        private final InputStream src;
+        private final byte[] lineBuffer;
+
+        private boolean eof;
+        private long remaining;
+
+        ChunkedInput(InputStream src, byte[] lineBuffer)
+        {
+            this.src = src;
+            this.lineBuffer = lineBuffer;
+            eof = false;
+            remaining = 0;
+        }
+
+        private boolean nextChunk() throws IOException
+        {
+            String line = UpstreamResponse.readLine(src, lineBuffer);
+            if (line.length() == 0) // CRLF ending the previous chunk
+                line = UpstreamResponse.readLine(src, lineBuffer);
+
+            int end = 0;
+            while ((end < line.length()) && (Character.digit(line.charAt(end), 16) >= 0))
+                end++;
+            if ((end == 0) || (end > 15))
+                throw new IOException("Invalid upstream chunk size");
+
+            remaining = Long.parseLong(line.substring(0, end), 16);
+            if (remaining > 0)
+                return true;
+
+            while (UpstreamResponse.readLine(src, lineBuffer).length() > 0);
+            eof = true;
+            return false;
+        }
+
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            if (read(b, 0, 1) < 0)
+                return -1;
+            return 0xFF & b[0];
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (eof || ((remaining == 0) && !nextChunk()))
+                return -1;
+
+            int r = src.read(b, off, (int) Math.min(len, remaining));
+            if (r < 0)
+                throw new EOFException("Upstream closed within a chunk");
+            remaining -= r;
+            return r;
+        }
+
+        public int available() throws IOException
+        {
+            if (eof)
+                return 0;
+            return (int) Math.min(remaining, src.available());
+        }
+
+        boolean complete()
+        {
+            return eof;
+        }
+    }
+
+    protected void copyResponseHeaders(UpstreamResponse upstream, HTTPResponseHeaders respHeaders, boolean hasBody)
+    {
+        respHeaders.configure(upstream.code, upstream.message);
+        respHeaders.clearCookies();
+
+        HashSet seen = new HashSet();
+        String connection = upstream.getHeader("Connection");
+        for (int i=0; i<upstream.keys.size(); i++)
+        {
+            String key = (String) upstream.keys.get(i);
+            String value = (String) upstream.values.get(i);
+
+            if (isHopByHopHeader(key, connection))
+                continue;
+            if (key.equalsIgnoreCase("Set-Cookie"))
+                respHeaders.addSetCookieHeader(value);
+            else if (hasBody && key.equalsIgnoreCase("Content-Length"))
+                continue;
+            else if (!seen.add(key.toLowerCase())) // Repeated fields are combined into one list value (RFC 7230 3.2.2)
+                respHeaders.setHeader(key, respHeaders.getHeader(key)+", "+value);
             else
                 respHeaders.setHeader(key, value);
+        }
+    }
 
-            isChunked = key.equalsIgnoreCase("transfer-encoding") && value.equalsIgnoreCase("chunked");
+    private static void sendResponseBody(InputStream in, HTTPOutputStream response, byte[] buffer, long limit) throws IOException
+    {
+        long total = 0;
+        while ((limit < 0) || (total < limit))
+        {
+            int toRead = buffer.length;
+            if (limit >= 0)
+                toRead = (int) Math.min(toRead, limit - total);
+
+            int r = in.read(buffer, 0, toRead);
+            if (r < 0)
+            {
+                if (limit >= 0)
+                    throw new EOFException("Upstream closed after "+total+" of "+limit+" bytes");
+                break;
+            }
+
+            response.write(buffer, 0, r);
+            total += r;
+            if (in.available() == 0) // Pass on whatever has arrived rather than waiting to fill the buffer
+                response.flush();
         }
+        response.close();
+    }
 
-        InputStream data = null;
-        try
+    private void sendError(HTTPOutputStream response, int code, String message, String detail) throws IOException
+    {
+        HTTPResponseHeaders respHeaders = response.getHeaders();
+        respHeaders.clear();
+        respHeaders.configure(code, message);
+        response.sendContent("<html><body><h1>"+code+" "+message+"</h1><p>"+HTTPHeaders.escapeHTML(detail)+"</p></body></html>");
+    }
+
+    static boolean isGatewayError(int code)
+    {
+        return (code == HTTPResponseHeaders.HTTP_BAD_GATEWAY) || (code == HTTPResponseHeaders.HTTP_SERVICE_UNAVAILABLE) || (code == HTTPResponseHeaders.HTTP_GATEWAY_TIMEOUT);
+    }
+
+    /** Sends the request to the target and reads the response headers, retrying once on a new connection if a kept-alive one turns out to have been closed */
+    private UpstreamResponse exchange(UpstreamBalancer.Upstream target, HTTPInputStream request, byte[] requestHead, boolean hasBody, boolean repeatable, byte[] buffer, byte[] lineBuffer) throws IOException
+    {
+        UpstreamPool.Connection conn = upstreamPool.getConnection(target.getHost(), target.getPort());
+        while (true)
         {
-            if ((length < 0) && isChunked)
+            try
             {
-                respHeaders.configure(respCode, msg);
-                response.sendHeaders();
+                OutputStream out = conn.getOutputStream();
+                out.write(requestHead);
+                if (hasBody)
+                    sendRequestBody(request, out, buffer);
+                out.flush();
+
+                UpstreamResponse result = new UpstreamResponse(conn.getInputStream(), lineBuffer);
+                result.connection = conn;
+                return result;
             }
-            else
+            catch (IOException e)
             {
-                data = proxy.getInputStream();
-                respHeaders.configure(respCode, msg);
-                
-                if ((length >= 0) && !isChunked)
-                    response.prepareToSendContent(length, false);
-                else
-                    response.prepareToSendContent(-1, true);
-                
-                byte[] buffer = new byte[4096];
-                while (true)
+                conn.release(false);
+                if (!conn.isReused() || !repeatable || (e instanceof SocketTimeoutException))
+                    throw e;
+                conn = upstreamPool.getFreshConnection(target.getHost(), target.getPort());
+            }
+        }
+    }
+
+    protected boolean handleRequest(HTTPInputStream request, HTTPOutputStream response, ConnectionState state) throws IOException
+    {
+        HTTPRequestHeaders headers = request.getHeaders();
+        String method = headers.getHTTPMethod();
+        String path = getUpstreamPath(headers);
+
+        boolean hasBody = request.isChunked() || (headers.getContentLength() > 0);
+        boolean repeatable = !hasBody && isIdempotent(method);
+        boolean isHead = headers.isHead();
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        byte[] lineBuffer = new byte[MAX_LINE_LENGTH];
+
+        HashSet tried = new HashSet();
+        UpstreamBalancer.Upstream target = null;
+        UpstreamResponse upstream = null;
+        boolean reusable = false, failed = false;
+        try
+        {
+            while (true)
+            {
+                target = balancer.select(headers, tried);
+                tried.add(target);
+                target.requestStarted();
+                try
                 {
-                    int r = data.read(buffer);
-                    if (r < 0)
+                    upstream = exchange(target, request, createRequestHead(request, target, method, path, hasBody), hasBody, repeatable, buffer, lineBuffer);
+                    if (!isGatewayError(upstream.code) || !repeatable || !balancer.allowRetry(headers, tried))
                         break;
-                    response.write(buffer, 0, r);
+
+                    upstream.connection.release(false);
+                    upstream = null;
+                    target.requestEnded(true);
+                    target = null;
+                }
+                catch (IOException e)
+                {
+                    // Cleared at once, so the finally below cannot end this attempt a second time whatever happens next
+                    target.requestEnded(true);
+                    target = null;
+                    if (!repeatable || !balancer.allowRetry(headers, tried))
+                        throw e;
                 }
+            }
+
+            failed = isGatewayError(upstream.code);
+            InputStream upstreamIn = upstream.connection.getInputStream();
+            int code = upstream.code;
+            boolean hasResponseBody = !isHead && (code >= 200) && (code != HTTPResponseHeaders.HTTP_NO_CONTENT) && (code != HTTPResponseHeaders.HTTP_NOT_MODIFIED);
+            copyResponseHeaders(upstream, response.getHeaders(), hasResponseBody);
 
-                response.close();
-                data.close();
+            if (!hasResponseBody)
+            {
+                response.sendHeaders();
+                reusable = upstream.allowsKeepAlive();
+            }
+            else if (upstream.isChunked())
+            {
+                ChunkedInput in = new ChunkedInput(upstreamIn, lineBuffer);
+                response.prepareToSendContent(-1, true);
+                sendResponseBody(in, response, buffer, -1);
+                reusable = in.complete() && upstream.allowsKeepAlive();
+            }
+            else if (upstream.getContentLength() >= 0)
+            {
+                long length = upstream.getContentLength();
+                response.prepareToSendContent(length, false);
+                sendResponseBody(upstreamIn, response, buffer, length);
+                reusable = upstream.allowsKeepAlive();
+            }
+            else
+            {
+                // No framing - the body runs until the upstream server closes the connection
+                response.prepareToSendContent(-1, true);
+                sendResponseBody(upstreamIn, response, buffer, -1);
             }
         }
-        catch (Exception e) 
+        catch (IOException e)
         {
-            return false;
+            if (response.outputSent())
+            {
+                // The client has a partial response, so the connection cannot carry on
+                response.dispose();
+                return true;
+            }
+
+            if (e instanceof SocketTimeoutException)
+                sendError(response, HTTPResponseHeaders.HTTP_GATEWAY_TIMEOUT, "Gateway Timeout", "No response from "+balancer);
+            else
+                sendError(response, HTTPResponseHeaders.HTTP_BAD_GATEWAY, "Bad Gateway", "Error proxying to "+balancer+": "+e.getMessage());
         }
         finally
         {
-            try
-            {
-                data.close();
-            }
-            catch (Exception e) {}
+            if (upstream != null)
+                upstream.connection.release(reusable);
+            if (target != null)
+                target.requestEnded(failed);
         }
 
         return true;
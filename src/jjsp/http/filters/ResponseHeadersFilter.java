@@ -53,6 +53,13 @@ public class ResponseHeadersFilter implements HTTPRequestFilter
         HTTPResponseHeaders respHeaders = response.getHeaders();
 
         addHeadersToResponse(reqHeaders, respHeaders);
-        return wrapped.filterRequest(myChain, request, response, state);
+        try
+        {
+            return wrapped.filterRequest(myChain, request, response, state);
+        }
+        finally
+        {
+            myChain.markExit();
+        }
     }
 }
@@ -0,0 +1,406 @@
+/*
+JJSP - Java and Javascript Server Pages 
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify 
+it under the terms of the GNU General Public License as published by 
+the Free Software Foundation, either version 3 of the License, or 
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but 
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+for more details.
+
+You should have received a copy of the GNU General Public License along with 
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.http.filters;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.security.*;
+
+import jjsp.util.*;
+
+/**
+   The state of one resumable upload into a target file. Pieces of the file are written with positioned FileChannel writes straight 
+   into a preallocated hidden temporary file next to the target, so pieces may arrive in any order and on several connections at once. 
+   The byte ranges received are persisted in a small state file after every piece so that an upload can be resumed after a dropped 
+   connection or a server restart. A SHA-256 digest is advanced over the contiguous received prefix as the data arrives and, once 
+   every byte is present, the temporary file is renamed atomically onto the target.
+ */
+public class ResumableUpload
+{
+    public static final String TEMP_SUFFIX = ".upload";
+    public static final String STATE_SUFFIX = ".upload-state";
+
+    private static final int BUFFER_SIZE = 256*1024;
+
+    private final File target, tempFile, stateFile;
+    private final long length;
+    private final TreeMap ranges;
+    private final MessageDigest digest;
+
+    private long digestedTo;
+    private String digestHex, expectedChecksum, checksum;
+    private boolean completed, failed;
+
+    private ResumableUpload(File target, long length, String expectedChecksum) throws IOException
+    {
+        this.target = target;
+        this.length = length;
+        this.expectedChecksum = expectedChecksum;
+
+        tempFile = getTempFile(target);
+        stateFile = new File(target.getParentFile(), tempFile.getName().substring(0, tempFile.getName().length() - TEMP_SUFFIX.length())+STATE_SUFFIX);
+        ranges = new TreeMap();
+        digestedTo = 0;
+        digestHex = checksum = null;
+        completed = failed = false;
+
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IOException("SHA-256 digest unavailable", e);
+        }
+    }
+
+    /** Renames a fully written file onto its target, atomically where the file system supports it */
+    public static void moveIntoPlace(File src, File target) throws IOException
+    {
+        try
+        {
+            Files.move(src.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e)
+        {
+            Files.move(src.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public static File getTempFile(File target)
+    {
+        return new File(target.getParentFile(), "."+target.getName()+TEMP_SUFFIX);
+    }
+
+    /** Tests whether a file is one of the hidden temporary or state files of an upload in progress */
+    public static boolean isUploadFile(File f)
+    {
+        String name = f.getName();
+        return name.startsWith(".") && (name.endsWith(TEMP_SUFFIX) || name.endsWith(STATE_SUFFIX));
+    }
+
+    /** Returns the upload in progress for the target, reloading its persisted state if need be, or null if there is none */
+    public static ResumableUpload load(File target) throws IOException
+    {
+        ResumableUpload result = new ResumableUpload(target, 0, null);
+        if (!result.stateFile.exists() || !result.tempFile.exists())
+            return null;
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(result.stateFile), "UTF-8"));
+        try
+        {
+            long len = Long.parseLong(in.readLine().trim());
+            String expected = in.readLine().trim();
+            result = new ResumableUpload(target, len, expected.length() == 0 ? null : expected);
+
+            while (true)
+            {
+                String line = in.readLine();
+                if (line == null)
+                    break;
+                int dash = line.indexOf('-');
+                if (dash > 0)
+                    result.addRange(Long.parseLong(line.substring(0, dash).trim()), Long.parseLong(line.substring(dash+1).trim()));
+            }
+        }
+        catch (RuntimeException e)
+        {
+            throw new IOException("Corrupt upload state file "+result.stateFile, e);
+        }
+        finally
+        {
+            in.close();
+        }
+
+        if (result.tempFile.length() != result.length)
+            throw new IOException("Upload temporary file "+result.tempFile+" does not match its recorded length");
+        return result;
+    }
+
+    /** Starts a new upload of the given total length, preallocating its temporary file */
+    public static ResumableUpload create(File target, long length, String expectedChecksum) throws IOException
+    {
+        if (length < 0)
+            throw new IOException("Invalid upload length "+length);
+
+        ResumableUpload result = new ResumableUpload(target, length, expectedChecksum);
+        target.getParentFile().mkdirs();
+        try (RandomAccessFile raf = new RandomAccessFile(result.tempFile, "rw"))
+        {
+            raf.setLength(length);
+        }
+        result.saveState();
+        return result;
+    }
+
+    public File getTarget()
+    {
+        return target;
+    }
+
+    public long getLength()
+    {
+        return length;
+    }
+
+    public synchronized String getExpectedChecksum()
+    {
+        return expectedChecksum;
+    }
+
+    public synchronized void setExpectedChecksum(String hex) throws IOException
+    {
+        if (hex == null)
+            return;
+        hex = hex.toLowerCase();
+        if (hex.equals(expectedChecksum))
+            return;
+        if (expectedChecksum != null)
+            throw new IOException("Upload checksum differs from the one given previously");
+        expectedChecksum = hex;
+        saveState();
+    }
+
+    /** The number of bytes received contiguously from the start of the file, which is where a sequential client should resume */
+    public synchronized long getOffset()
+    {
+        if (ranges.isEmpty())
+            return 0;
+        Map.Entry first = ranges.firstEntry();
+        if (((Long) first.getKey()).longValue() != 0)
+            return 0;
+        return ((Long) first.getValue()).longValue();
+    }
+
+    public synchronized long getReceivedBytes()
+    {
+        long total = 0;
+        Iterator itt = ranges.entrySet().iterator();
+        while (itt.hasNext())
+        {
+            Map.Entry e = (Map.Entry) itt.next();
+            total += ((Long) e.getValue()).longValue() - ((Long) e.getKey()).longValue();
+        }
+        return total;
+    }
+
+    /** Returns the received byte ranges as inclusive "start-end" pairs separated by commas */
+    public synchronized String getRangesString()
+    {
+        StringBuffer buf = new StringBuffer();
+        Iterator itt = ranges.entrySet().iterator();
+        while (itt.hasNext())
+        {
+            Map.Entry e = (Map.Entry) itt.next();
+            if (buf.length() > 0)
+                buf.append(",");
+            buf.append(e.getKey()+"-"+(((Long) e.getValue()).longValue() - 1));
+        }
+        return buf.toString();
+    }
+
+    public synchronized boolean isReceived()
+    {
+        return getOffset() == length;
+    }
+
+    public synchronized boolean isCompleted()
+    {
+        return completed;
+    }
+
+    public synchronized boolean isFailed()
+    {
+        return failed;
+    }
+
+    public synchronized String getChecksum()
+    {
+        return checksum;
+    }
+
+    private void addRange(long start, long end)
+    {
+        if (end <= start)
+            return;
+
+        Map.Entry before = ranges.floorEntry(Long.valueOf(start));
+        if ((before != null) && (((Long) before.getValue()).longValue() >= start))
+        {
+            start = ((Long) before.getKey()).longValue();
+            end = Math.max(end, ((Long) before.getValue()).longValue());
+            ranges.remove(before.getKey());
+        }
+
+        while (true)
+        {
+            Map.Entry after = ranges.ceilingEntry(Long.valueOf(start));
+            if ((after == null) || (((Long) after.getKey()).longValue() > end))
+                break;
+            end = Math.max(end, ((Long) after.getValue()).longValue());
+            ranges.remove(after.getKey());
+        }
+
+        ranges.put(Long.valueOf(start), Long.valueOf(end));
+    }
+
+    private synchronized void saveState() throws IOException
+    {
+        File tmp = new File(stateFile.getPath()+".tmp");
+        try (PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8")))
+        {
+            pw.println(length);
+            pw.println(expectedChecksum == null ? "" : expectedChecksum);
+
+            Iterator itt = ranges.entrySet().iterator();
+            while (itt.hasNext())
+            {
+                Map.Entry e = (Map.Entry) itt.next();
+                pw.println(e.getKey()+"-"+e.getValue());
+            }
+        }
+        Files.move(tmp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+       Writes up to count bytes from the source into the file at the given offset and records whatever was written, even if the
+       source fails part way. Returns the number of bytes written.
+     */
+    public long write(long offset, InputStream src, long count) throws IOException
+    {
+        synchronized (this)
+        {
+            if (completed || failed)
+                throw new IOException("Upload of "+target+" has already finished");
+        }
+        if ((offset < 0) || (count < 0) || (offset + count > length))
+            throw new IOException("Upload piece "+offset+"+"+count+" lies outside the file length "+length);
+
+        long pos = offset, end = offset + count;
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE))
+        {
+            byte[] block = new byte[(int) Math.min(BUFFER_SIZE, Math.max(1, count))];
+            ByteBuffer bb = ByteBuffer.wrap(block);
+            while (pos < end)
+            {
+                int r = src.read(block, 0, (int) Math.min(block.length, end - pos));
+                if (r < 0)
+                    break;
+
+                bb.clear().limit(r);
+                while (bb.hasRemaining())
+                    pos += channel.write(bb, pos);
+            }
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                addRange(offset, pos);
+                saveState();
+            }
+            advanceDigest();
+        }
+
+        return pos - offset;
+    }
+
+    private void advanceDigest() throws IOException
+    {
+        synchronized (digest)
+        {
+            long limit = getOffset();
+            if (digestedTo >= limit)
+                return;
+
+            try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.READ))
+            {
+                ByteBuffer bb = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, limit - digestedTo));
+                while (digestedTo < limit)
+                {
+                    bb.clear().limit((int) Math.min(bb.capacity(), limit - digestedTo));
+                    int r = channel.read(bb, digestedTo);
+                    if (r <= 0)
+                        throw new IOException("Unexpected end of upload temporary file "+tempFile);
+                    bb.flip();
+                    digest.update(bb);
+                    digestedTo += r;
+                }
+            }
+        }
+    }
+
+    /**
+       Once every byte has been received, verifies the checksum (if one was given) and renames the temporary file onto the target.
+       Returns true if this call completed the upload; only one caller will see true. A checksum mismatch discards the upload.
+     */
+    public boolean complete() throws IOException
+    {
+        synchronized (this)
+        {
+            if (completed || failed || !isReceived())
+                return false;
+        }
+
+        advanceDigest();
+        String hex = null;
+        synchronized (digest)
+        {
+            if (digestedTo != length)
+                return false;
+            if (digestHex == null)
+                digestHex = Utils.toHexString(digest.digest()).toLowerCase();
+            hex = digestHex;
+        }
+
+        synchronized (this)
+        {
+            if (completed || failed)
+                return false;
+
+            checksum = hex;
+            if ((expectedChecksum != null) && !expectedChecksum.equals(hex))
+            {
+                failed = true;
+                abort();
+                throw new IOException("Upload checksum mismatch for "+target+": expected "+expectedChecksum+" received "+hex);
+            }
+
+            moveIntoPlace(tempFile, target);
+            stateFile.delete();
+            completed = true;
+            return true;
+        }
+    }
+
+    /** Deletes the temporary and state files of the upload */
+    public synchronized void abort()
+    {
+        failed = !completed;
+        tempFile.delete();
+        stateFile.delete();
+    }
+
+    public String toString()
+    {
+        return "ResumableUpload["+target+" "+getReceivedBytes()+"/"+length+"]";
+    }
+}
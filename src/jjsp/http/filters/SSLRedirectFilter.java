@@ -68,7 +68,7 @@ public class SSLRedirectFilter implements HTTPRequestFilter
                 if (host == null)
                     host = request.getHeaders().getHost();
 
-                String secureURL = "https://"+host+request.getHeaders().getRequestURL();
+                String secureURL = "https://"+host+request.getHeaders().getRawRequestURL();
                 myChain.report = "Redirect to SSL: "+secureURL;
                 
                 response.getHeaders().configureAsRedirect(secureURL, HTTPResponseHeaders.HTTP_MOVED_PERMANENTLY);
@@ -80,12 +80,20 @@ public class SSLRedirectFilter implements HTTPRequestFilter
                 myChain.error = e;
             }
 
+            myChain.markExit();
             return myChain;
         }
         else
         {
             myChain.report = "Is SSL";
-            return onwardChain.filterRequest(myChain, request, response, state);
+            try
+            {
+                return onwardChain.filterRequest(myChain, request, response, state);
+            }
+            finally
+            {
+                myChain.markExit();
+            }
         }
     }
 }
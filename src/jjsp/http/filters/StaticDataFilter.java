@@ -23,6 +23,12 @@ import jjsp.http.*;
 
 public class StaticDataFilter extends AbstractRequestFilter
 {
+    protected OffHeapStore.Asset content;
+    /** 
+        @deprecated the data is held in content, possibly off heap; this is set at construction when content is on the heap 
+        (without a copy), and otherwise by the first call to getRawBytes. Use getRawBytes instead.
+    */
+    @Deprecated
     protected byte[] rawData;
     protected int cacheTime;
     protected long lastModifiedTime;
@@ -47,10 +53,12 @@ public class StaticDataFilter extends AbstractRequestFilter
     {
         super(name, chain);
 
-        rawData = fixedResponseData;
-        if (rawData == null)
+        if (fixedResponseData == null)
             throw new NullPointerException("FixedResponseData for filter "+name+" is null");
-        eTag = HTTPUtils.getUtils().createETag(rawData);
+        eTag = HTTPUtils.getUtils().createETag(fixedResponseData);
+        content = OffHeapStore.getDefault().store(fixedResponseData);
+        if (!content.isOffHeap())
+            rawData = content.toByteArray();
         lastModifiedTime = System.currentTimeMillis()/1000*1000;
 
         if (contentType == null)
@@ -100,8 +108,12 @@ public class StaticDataFilter extends AbstractRequestFilter
         contentType = type;
     }
 
-    public byte[] getRawBytes()
+    /** Returns the response data, which is copied (once) when it is held off heap */
+    @SuppressWarnings("deprecation")
+    public synchronized byte[] getRawBytes()
     {
+        if (rawData == null)
+            rawData = content.toByteArray();
         return rawData;
     }
 
@@ -149,7 +161,7 @@ public class StaticDataFilter extends AbstractRequestFilter
             configureResponseHeaders(request, response);
             
             response.getHeaders().configureAsNotModified();
-            response.getHeaders().setContentLength(rawData.length);
+            response.getHeaders().setContentLength(content.length());
             response.sendHeaders();
         }
         else
@@ -157,16 +169,16 @@ public class StaticDataFilter extends AbstractRequestFilter
             configureResponseHeaders(request, response);
 
             long start = 0;
-            long end = rawData.length;        
+            long end = content.length();        
             long[] limits = request.getHeaders().extractByteRanges();
             if (limits != null)
             {
                 start = limits[0];
                 end = limits[1];
                 if (end < 0)
-                    end = rawData.length;
+                    end = content.length();
                 else
-                    end = Math.min(rawData.length, end);
+                    end = Math.min(content.length(), end);
             }
 
             if (request.getHeaders().isHead())
@@ -175,7 +187,7 @@ public class StaticDataFilter extends AbstractRequestFilter
                 response.sendHeaders();
             }
             else
-                response.sendContent(rawData, (int) start, (int) (end-start));
+                response.sendContent(content, (int) start, (int) (end-start));
         }
 
         return true;
@@ -84,7 +84,14 @@ public class UserAgentHandler implements HTTPRequestFilter
             break;
         }
 
-        return result.filterRequest(myChain, request, response, state);
+        try
+        {
+            return result.filterRequest(myChain, request, response, state);
+        }
+        finally
+        {
+            myChain.markExit();
+        }
     }
 
 
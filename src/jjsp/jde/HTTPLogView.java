@@ -127,6 +127,15 @@ public class HTTPLogView extends BorderPane implements HTTPServerLogger
             Platform.runLater(() -> {table.logList.add(logEntry);});
     }
 
+    public void load(MemoryLog log)
+    {
+        List entries = log.snapshot();
+        if (Platform.isFxApplicationThread())
+            table.logList.setAll(entries);
+        else
+            Platform.runLater(() -> {table.logList.setAll(entries);});
+    }
+
     public void clear()
     {
         table.logList.clear();
@@ -219,13 +219,28 @@ public class SourcePane extends JDETextEditor
 
         MenuItem clearHTTPLog = new MenuItem("Clear HTTP Log");
         clearHTTPLog.setOnAction((evt)-> log.clear());
+
+        MenuItem showMemoryLog = new MenuItem("Show Entries Kept by Memory Log");
+        showMemoryLog.setOnAction((evt)-> 
+                            { 
+                                // The view keeps every entry since the last compile; the script's MemoryLog keeps only its bounded window
+                                JJSPRuntime runtime = (jjspEngine == null) ? null : jjspEngine.getRuntime();
+                                HTTPServerLogger logger = (runtime == null) ? null : runtime.getHTTPLogger();
+                                if (logger instanceof MemoryLog)
+                                    log.load((MemoryLog) logger);
+                                else
+                                {
+                                    clearStatus();
+                                    appendStatus("No Memory Log in use - set one with jjsp.setHTTPLogger(jjsp.createMemoryLogger(...))", null);
+                                }
+                            });
         
         MenuItem extraArgs = new MenuItem("Runtime Args");
         extraArgs.setOnAction((evt)-> showArgsPopup());
 
         Menu[] mm = super.createMenus();
         mm[0].setText("JJSP Actions");
-        mm[0].getItems().addAll(new SeparatorMenuItem(), compile, stop, new SeparatorMenuItem(), extraArgs, new SeparatorMenuItem(), saveArchive, clearHTTPLog);   
+        mm[0].getItems().addAll(new SeparatorMenuItem(), compile, stop, new SeparatorMenuItem(), extraArgs, new SeparatorMenuItem(), saveArchive, clearHTTPLog, showMemoryLog);   
 
         CheckMenuItem showTranslation = new CheckMenuItem("Show JJSP Script Translation");
         showTranslation.setSelected(mainSplit.getItems().get(0) != leftPane);
@@ -490,6 +505,12 @@ public class SourcePane extends JDETextEditor
             return (logEntry) -> {logger.requestProcessed(logEntry); log.requestProcessed(logEntry);}; 
         }
 
+        protected boolean hotReloadEnabled(JJSPRuntime runtime)
+        {
+            // The editor recompiles its own (possibly unsaved) text, and these callbacks are not written to run on a watcher thread
+            return false;
+        }
+
         protected ServerSocketInfo getDefaultServerSocket(JJSPRuntime runtime) throws Exception 
         {
             ServerSocketInfo result = super.getDefaultServerSocket(runtime);
@@ -0,0 +1,91 @@
+/*
+JJSP - Java and Javascript Server Pages 
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify 
+it under the terms of the GNU General Public License as published by 
+the Free Software Foundation, either version 3 of the License, or 
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but 
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+for more details.
+
+You should have received a copy of the GNU General Public License along with 
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.test;
+
+import javax.script.*;
+
+import jjsp.util.*;
+import jjsp.http.*;
+import jjsp.engine.*;
+
+/**
+   Compares the cost of calling a trivial Javascript request handler by name through Invocable.invokeFunction (the old
+   JSRequestFilter path) with calling the same function through an HTTPRequestHandler bound once with
+   ScriptEnginePool.bindFunction (the current path). No HTTP is involved, so the difference is the dispatch alone.
+
+   Usage: java jjsp.test.JSDispatchBench [-calls 5000000] [-rounds 5]
+ */
+public class JSDispatchBench
+{
+    private static final String SOURCE = "function handler(request, response, state) { return request == null; }";
+
+    static long reflective(ScriptEnginePool pool, int calls) throws Exception
+    {
+        long start = System.nanoTime();
+        for (int i=0; i<calls; i++)
+        {
+            if (!((Boolean) pool.invokeFunction("handler", null, null, null)).booleanValue())
+                throw new IllegalStateException("Unexpected result");
+        }
+        return System.nanoTime() - start;
+    }
+
+    static long bound(ScriptEnginePool pool, HTTPRequestHandler[] handlers, int calls) throws Exception
+    {
+        long start = System.nanoTime();
+        for (int i=0; i<calls; i++)
+        {
+            ScriptEnginePool.Instance inst = pool.acquire();
+            try
+            {
+                if (!handlers[inst.getIndex()].handleRequest(null, null, null, null))
+                    throw new IllegalStateException("Unexpected result");
+            }
+            finally
+            {
+                pool.release(inst);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Args.parse(args);
+        int calls = Args.getInt("calls", 5000000);
+        int rounds = Args.getInt("rounds", 5);
+
+        ScriptEngine engine = new ScriptEngineManager().getEngineByName("nashorn");
+        ScriptEnginePool pool = new ScriptEnginePool("bench", engine, 1, new String[]{SOURCE});
+
+        Object[] bound = pool.bindFunction("handler", HTTPRequestHandler.class);
+        HTTPRequestHandler[] handlers = new HTTPRequestHandler[bound.length];
+        System.arraycopy(bound, 0, handlers, 0, bound.length);
+
+        // The first round warms up both paths and is not reported
+        for (int r=0; r<=rounds; r++)
+        {
+            long t1 = reflective(pool, calls);
+            long t2 = bound(pool, handlers, calls);
+            if (r == 0)
+                continue;
+
+            System.out.println(String.format("Round %d:  invokeFunction %7.1f ns/call   bound interface %7.1f ns/call   (x%.2f)", r, ((double) t1)/calls, ((double) t2)/calls, ((double) t1)/t2));
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+JJSP - Java and Javascript Server Pages 
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify 
+it under the terms of the GNU General Public License as published by 
+the Free Software Foundation, either version 3 of the License, or 
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but 
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+for more details.
+
+You should have received a copy of the GNU General Public License along with 
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.test;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import jjsp.util.*;
+import jjsp.http.*;
+import jjsp.engine.*;
+import jjsp.http.filters.*;
+import jjsp.container.TestJSSource;
+
+/**
+   Measures request throughput of a JSRequestFilter running TestJSSource.jsBenchmark as the size of its ScriptEnginePool
+   grows from 1 to the number of cores (or 'maxPool'). With one instance every request waits for the previous one, so
+   requests per second should rise in proportion to the pool size.
+
+   Usage: java jjsp.test.JSEngineBench [-port 18200] [-clients 64] [-seconds 10] [-maxPool N]
+ */
+public class JSEngineBench
+{
+    // Adapts the handler(url, ins, outs, state) signature of the test source to JSRequestFilter's (request, response, state)
+    private static final String ADAPTER = "\nvar bench = function(request, response, state) {\n"+
+                                          "    var outs = {configureAsOK: function() { response.getHeaders().configureAsOK(); }, sendContent: function(s) { response.sendContent(s); }};\n"+
+                                          "    return handler(request.getHeaders().getPath(), request, outs, state);\n"+
+                                          "};\n";
+
+    static class Client implements Runnable
+    {
+        final URL url;
+        final long endTime;
+        final AtomicLong completed, failed;
+
+        Client(URL url, long endTime, AtomicLong completed, AtomicLong failed)
+        {
+            this.url = url;
+            this.endTime = endTime;
+            this.completed = completed;
+            this.failed = failed;
+        }
+
+        public void run()
+        {
+            byte[] buffer = new byte[4096];
+            while (System.currentTimeMillis() < endTime)
+            {
+                try
+                {
+                    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+                    InputStream in = conn.getInputStream();
+                    while (in.read(buffer) >= 0);
+                    in.close();
+                    completed.incrementAndGet();
+                }
+                catch (Exception e)
+                {
+                    failed.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    static double run(int poolSize, int port, int clients, int seconds) throws Exception
+    {
+        JSRequestFilter filter = JSRequestFilter.createJSFilter("bench", TestJSSource.jsBenchmark()+ADAPTER, poolSize);
+        HTTPServer server = new HTTPServer(filter, null);
+        server.listenOn(port);
+
+        try
+        {
+            AtomicLong completed = new AtomicLong(), failed = new AtomicLong();
+            long start = System.currentTimeMillis();
+            long end = start + seconds*1000l;
+
+            Thread[] threads = new Thread[clients];
+            URL url = new URL("http://localhost:"+port+"/bench");
+            for (int i=0; i<clients; i++)
+            {
+                threads[i] = new Thread(new Client(url, end, completed, failed));
+                threads[i].start();
+            }
+            for (int i=0; i<clients; i++)
+                threads[i].join();
+
+            double rate = completed.get() * 1000.0 / (System.currentTimeMillis() - start);
+            System.out.println(String.format("Pool size %3d:  %9.1f requests/s   (%d completed, %d failed)", poolSize, rate, completed.get(), failed.get()));
+            return rate;
+        }
+        finally
+        {
+            server.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Args.parse(args);
+        int port = Args.getInt("port", 18200);
+        int seconds = Args.getInt("seconds", 10);
+        int maxPool = Args.getInt("maxPool", ScriptEnginePool.DEFAULT_SIZE);
+        int clients = Args.getInt("clients", Math.max(64, 4*maxPool));
+
+        System.out.println("Benchmarking JS handler with "+clients+" client threads for "+seconds+"s per pool size on "+ScriptEnginePool.DEFAULT_SIZE+" cores");
+
+        double base = 0;
+        for (int size=1; true; size = Math.min(2*size, maxPool))
+        {
+            double rate = run(size, port++, clients, seconds);
+            if (size == 1)
+                base = rate;
+            else if (base > 0)
+                System.out.println(String.format("                 speedup x%.2f over a single engine", rate/base));
+
+            if (size >= maxPool)
+                break;
+        }
+        System.exit(0);
+    }
+}
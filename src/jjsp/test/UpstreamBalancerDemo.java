@@ -0,0 +1,150 @@
+/*
+JJSP - Java and Javascript Server Pages 
+Copyright (C) 2016 Global Travel Ventures Ltd
+
+This program is free software: you can redistribute it and/or modify 
+it under the terms of the GNU General Public License as published by 
+the Free Software Foundation, either version 3 of the License, or 
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful, but 
+WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY 
+or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License 
+for more details.
+
+You should have received a copy of the GNU General Public License along with 
+this program. If not, see http://www.gnu.org/licenses/.
+*/
+package jjsp.test;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import jjsp.util.*;
+import jjsp.http.*;
+import jjsp.http.filters.*;
+
+/**
+   Exercises ProxyFilter and UpstreamBalancer against stand-in HTTPServer upstreams on loopback ports: round-robin spread,
+   consistent hashing by path, retries past an upstream which refuses connections (and its ejection), and that asking
+   whether a retry is allowed does not move the round-robin position. Each check prints ok or FAILED, and the exit status
+   is the number of failures.
+
+   Usage: java jjsp.test.UpstreamBalancerDemo [-port 18200]
+ */
+public class UpstreamBalancerDemo
+{
+    private static int failures = 0;
+
+    static HTTPServer startUpstream(final String id, int port) throws IOException
+    {
+        AbstractRequestFilter filter = new AbstractRequestFilter(id, null)
+        {
+            protected boolean handleRequest(HTTPInputStream request, HTTPOutputStream response, ConnectionState state) throws IOException
+            {
+                response.getHeaders().configureAsOK();
+                response.sendContent(Utils.getAsciiBytes(id));
+                return true;
+            }
+        };
+
+        HTTPServer server = new HTTPServer(filter, null);
+        server.listenOn(port);
+        return server;
+    }
+
+    static String get(int port, String path) throws IOException
+    {
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://127.0.0.1:"+port+path).openConnection();
+        int code = conn.getResponseCode();
+        InputStream in = (code < 400) ? conn.getInputStream() : conn.getErrorStream();
+        String body = Utils.toAsciiString(Utils.load(in));
+        return (code == 200) ? body : code+" "+body;
+    }
+
+    static Map countResponses(int port, int requests, String path) throws IOException
+    {
+        TreeMap result = new TreeMap();
+        for (int i=0; i<requests; i++)
+        {
+            String id = get(port, (path == null) ? "/r"+i : path);
+            Integer count = (Integer) result.get(id);
+            result.put(id, Integer.valueOf((count == null) ? 1 : count.intValue()+1));
+        }
+        return result;
+    }
+
+    static void check(String description, boolean ok, Object detail)
+    {
+        System.out.println((ok ? "ok      " : "FAILED  ")+description+"   "+detail);
+        if (!ok)
+            failures++;
+    }
+
+    static UpstreamBalancer createGroup(String name, UpstreamBalancer.Balancing balancing, int basePort, int upstreams)
+    {
+        UpstreamBalancer balancer = new UpstreamBalancer(name, balancing);
+        for (int i=0; i<upstreams; i++)
+            balancer.addUpstream("127.0.0.1", basePort+i);
+        return balancer;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Args.parse(args);
+        int port = Args.getInt("port", 18200);
+
+        HTTPServer[] upstreams = new HTTPServer[3];
+        for (int i=0; i<upstreams.length; i++)
+            upstreams[i] = startUpstream("u"+i, port+i);
+
+        // Round-robin over three healthy upstreams spreads requests evenly
+        UpstreamBalancer roundRobin = createGroup("roundrobin", UpstreamBalancer.Balancing.ROUND_ROBIN, port, 3);
+        HTTPServer proxy = new HTTPServer(new ProxyFilter("proxy", roundRobin, null), null);
+        proxy.listenOn(port+10);
+        Map counts = countResponses(port+10, 30, null);
+        check("round-robin spreads requests evenly", (counts.size() == 3) && (Collections.frequency(counts.values(), Integer.valueOf(10)) == 3), counts);
+        proxy.close();
+
+        // Asking whether a retry is allowed must leave the next choice unchanged
+        UpstreamBalancer cursor = createGroup("cursor", UpstreamBalancer.Balancing.ROUND_ROBIN, port, 3);
+        HTTPRequestHeaders headers = new HTTPRequestHeaders();
+        UpstreamBalancer.Upstream first = cursor.select(headers, new HashSet());
+        HashSet tried = new HashSet();
+        tried.add(first);
+        for (int i=0; i<5; i++)
+            cursor.allowRetry(headers, tried);
+        UpstreamBalancer.Upstream second = cursor.select(headers, new HashSet());
+        UpstreamBalancer.Upstream[] all = cursor.getUpstreams();
+        int firstIndex = Arrays.asList(all).indexOf(first);
+        check("allowRetry does not move the round-robin position", second == all[(firstIndex+1) % all.length], first+" then "+second);
+
+        // The same path always goes to the same upstream
+        UpstreamBalancer hashed = createGroup("hashpath", UpstreamBalancer.Balancing.HASH_PATH, port, 3);
+        proxy = new HTTPServer(new ProxyFilter("proxy", hashed, null), null);
+        proxy.listenOn(port+11);
+        counts = countResponses(port+11, 10, "/same/path");
+        check("hashing by path sticks to one upstream", counts.size() == 1, counts);
+        proxy.close();
+
+        // A fourth upstream refuses connections: requests are retried elsewhere, and it is ejected
+        UpstreamBalancer withDead = createGroup("withdead", UpstreamBalancer.Balancing.ROUND_ROBIN, port, 4);
+        withDead.setOutlierEjection(2, 60000);
+        proxy = new HTTPServer(new ProxyFilter("proxy", withDead, null), null);
+        proxy.listenOn(port+12);
+        counts = countResponses(port+12, 20, null);
+        check("requests are retried past a refused upstream", (counts.size() == 3) && counts.keySet().containsAll(Arrays.asList("u0", "u1", "u2")), counts);
+        UpstreamBalancer.Upstream dead = withDead.getUpstreams()[3];
+        check("the refused upstream is ejected", dead.isEjected(), dead);
+        proxy.close();
+
+        ServerMetrics.Output out = new ServerMetrics.Output();
+        withDead.writeMetrics(out);
+        System.out.println(out);
+
+        for (int i=0; i<upstreams.length; i++)
+            upstreams[i].close();
+        System.exit(failures);
+    }
+}
@@ -280,6 +280,12 @@ public class Utils
         }
     }
 
+    /** A cheap stamp of a file's size and modification time, for noticing that it has changed without reading it */
+    public static String fileHash(File f)
+    {
+        return f.length()+":"+f.lastModified();
+    }
+
     public static String[] find(Predicate acceptor, File root)
     {
         TreeSet ts = new TreeSet();
@@ -526,6 +532,11 @@ public class Utils
     }
 
     public static byte[] gzip(byte[] src)
+    {
+        return gzip(src, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public static byte[] gzip(byte[] src, final int level)
     {
         if (src == null)
             return null;
@@ -533,7 +544,12 @@ public class Utils
         try
         {
             ByteArrayOutputStream bout = new ByteArrayOutputStream();
-            GZIPOutputStream gz = new GZIPOutputStream(bout);
+            GZIPOutputStream gz = new GZIPOutputStream(bout)
+            {
+                {
+                    def.setLevel(level);
+                }
+            };
             gz.write(src);
             gz.close();
             return bout.toByteArray();
@@ -544,6 +560,31 @@ public class Utils
         }
     }
 
+    /** Compresses to the zlib format, which is what the HTTP 'deflate' content coding means */
+    public static byte[] deflate(byte[] src, int level)
+    {
+        if (src == null)
+            return null;
+
+        Deflater deflater = new Deflater(level);
+        try
+        {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            DeflaterOutputStream out = new DeflaterOutputStream(bout, deflater);
+            out.write(src);
+            out.close();
+            return bout.toByteArray();
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException("Unable to deflate bytes: "+e, e);
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
     public static byte[] unzip(byte[] src)
     {
         return fromGzip(src);